@@ -71,6 +71,7 @@ dependencies {
     }
     implementation("org.springframework.boot:spring-boot-starter-web")
     implementation("org.springframework.boot:spring-boot-starter-webflux")
+    implementation("com.github.ben-manes.caffeine:caffeine")
     developmentOnly("org.springframework.boot:spring-boot-devtools")
 
     implementation("org.springframework.cloud:spring-cloud-stream")
@@ -141,6 +142,7 @@ dependencies {
     testImplementation("org.springframework.boot:spring-boot-starter-test") {
         exclude("org.junit.vintage:junit-vintage-engine")
     }
+    testImplementation("io.projectreactor:reactor-test")
 }
 
 dependencyManagement {
@@ -151,7 +153,7 @@ dependencyManagement {
 }
 
 tasks.named<BootBuildImage>("bootBuildImage") {
-    environment.set(environment.get() + mapOf("BP_JVM_VERSION" to "17.*"))
+    environment.set(environment.get() + mapOf("BP_JVM_VERSION" to "21.*"))
     imageName.set("ailegorreta/${project.name}")
     docker {
         publishRegistry {
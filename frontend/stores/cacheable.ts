@@ -30,6 +30,13 @@ export async function cacheable<T>(
     return result;
 }
 
+/**
+ * Returns the value saved in localStorage for the key, i.e., to ask the backend only for what has changed.
+ */
+export function cachedValue<T>(key: string): T | undefined {
+    return getCache()[key];
+}
+
 function getCache(): any {
     const cache = localStorage.getItem(CACHE_NAME) || "{}";
     return JSON.parse(cache);
@@ -0,0 +1,28 @@
+/**
+ * Keyset cursors of the pages already read by a grid.
+ *
+ * Every page returned by the endpoint has the cursor of the next page. When the grid asks for a page whose
+ * cursor we have (i.e., the user scrolls down) the cursor is sent so the server reads the page after it instead of
+ * skipping rows. If the grid jumps to a page we do not have the cursor for, the page is read by its number.
+ *
+ * @date: November 2023
+ */
+export class PageCursors {
+    private cursors = new Map<number, string>();
+
+    get(page: number): string | undefined {
+        return this.cursors.get(page);
+    }
+
+    set(page: number, cursor: string | undefined) {
+        if (cursor)
+            this.cursors.set(page, cursor);
+        else
+            this.cursors.delete(page);
+    }
+
+    /* Must be called when the first page is read, i.e., the filter changed */
+    reset() {
+        this.cursors.clear();
+    }
+}
@@ -0,0 +1,49 @@
+import { Subscription } from '@hilla/frontend';
+
+/**
+ * Converts the subscription of an 'Async' endpoint method (i.e., a Flux of just one element) into a Promise,
+ * so the views can keep using await.
+ *
+ * @date: November 2023
+ */
+export function firstValue<T>(subscription: Subscription<T>): Promise<T | undefined> {
+    return new Promise((resolve, reject) => {
+        let value: T | undefined = undefined;
+
+        subscription.onNext((next) => value = next)
+                    .onComplete(() => resolve(value))
+                    .onError(() => reject(new Error("Error en la suscripción al endpoint")));
+    });
+}
+
+/**
+ * Reads a 'stream' endpoint method (i.e., a Flux of chunks of rows). 'onChunk' is called as soon as every chunk
+ * arrives, so the view can render the first rows while the rest are still being read.
+ *
+ * 'cancel' ends the subscription and the server stops reading pages. 'done' resolves with the number of rows
+ * received when the stream completes or it is cancelled.
+ *
+ * @date: November 2023
+ */
+export function streamChunks<T>(subscription: Subscription<T[]>,
+                                onChunk: (chunk: T[]) => void): { done: Promise<number>, cancel: () => void } {
+    let rows = 0;
+    let finish: (rows: number) => void = () => {};
+    const done = new Promise<number>((resolve, reject) => {
+        finish = resolve;
+        subscription.onNext((chunk) => {
+                        rows += chunk.length;
+                        onChunk(chunk);
+                    })
+                    .onComplete(() => resolve(rows))
+                    .onError(() => reject(new Error("Error en el stream del endpoint")));
+    });
+
+    return {
+        done,
+        cancel: () => {
+            subscription.cancel();
+            finish(rows);
+        }
+    };
+}
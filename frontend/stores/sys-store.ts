@@ -26,9 +26,10 @@ import * as endpoint from 'Frontend/generated/AcmeEndpoint';
 import * as cacheEndpoint from 'Frontend/generated/CacheEndpoint';
 import * as messageEndpoint from 'Frontend/generated/MessageEndpoint';
 import SysDataModel from 'Frontend/generated/com/acme/acmeui/data/endpoint/AcmeEndpoint/SysDataModel';
+import SysData from 'Frontend/generated/com/acme/acmeui/data/endpoint/AcmeEndpoint/SysData';
 import { uiStore } from './app-store';
 import Sector from "Frontend/generated/com/acme/acmeui/data/dto/Sector";
-import { cacheable } from './cacheable';
+import { cacheable, cachedValue } from './cacheable';
 import Compania from "Frontend/generated/com/acme/acmeui/data/dto/Compania";
 import Municipio from "Frontend/generated/com/acme/acmeui/data/dto/Municipio";
 import Estado from "Frontend/generated/com/acme/acmeui/data/dto/Estado";
@@ -54,9 +55,10 @@ export class SysStore {
     }
 
     async initFromServer() {
-        // To use data cache. This is for small grid sizes
+        // To use data cache. The backend sends the data only if its version is not the cached one
+        const cached = cachedValue<SysData>('sys');
         const data = await cacheable(
-            () => endpoint.getSysData(),
+            async () => (await endpoint.getSysDataIfChanged(cached?.version)) ?? cached,
             'sys',
             SysDataModel.createEmptyValue()
         );
@@ -247,6 +249,14 @@ export class SysStore {
     /**
      * Address methods
      */
+    async suggestColonies(prefix: string, limit: number) {
+        return prefix.length > 0 ? endpoint.suggestColonies(prefix, limit) : [];
+    }
+
+    async suggestCities(prefix: string, limit: number) {
+        return prefix.length > 0 ? endpoint.suggestCities(prefix, limit) : [];
+    }
+
     async getColony(colony: string) {
         const validate = await endpoint.getMunicipio(colony);
 
@@ -0,0 +1,23 @@
+import type { ComboBoxDataProvider } from '@vaadin/combo-box';
+import { sysStore } from 'Frontend/stores/app-store';
+
+/**
+ * Data providers for the combo boxes of colonies and cities of the address forms.
+ *
+ * The suggestions are answered by the server from memory (prefix trie without accents nor case), so the
+ * combo box can ask for them in every key stroke. The combo boxes must allow custom values, since a new colony or
+ * city can be typed.
+ *
+ * @date: November 2023
+ */
+export const colonySuggestions: ComboBoxDataProvider<string> = (params, callback) => {
+    sysStore.suggestColonies(params.filter, params.pageSize)
+            .then((names) => callback(names, names.length))
+            .catch(() => callback([], 0));
+};
+
+export const citySuggestions: ComboBoxDataProvider<string> = (params, callback) => {
+    sysStore.suggestCities(params.filter, params.pageSize)
+            .then((names) => callback(names, names.length))
+            .catch(() => callback([], 0));
+};
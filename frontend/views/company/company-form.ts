@@ -24,6 +24,7 @@ import {ComboBox, ComboBoxRenderer} from "@vaadin/combo-box";
 import Estado from "Frontend/generated/com/acme/acmeui/data/dto/Estado";
 import TelefonoType from "Frontend/generated/com/acme/acmeui/data/dto/TelefonoType";
 import DireccionType from "Frontend/generated/com/acme/acmeui/data/dto/DireccionType";
+import { citySuggestions, colonySuggestions } from 'Frontend/views/address-suggestions';
 
 @customElement('company-form')
 export class CompanyForm extends View {
@@ -217,13 +218,14 @@ export class CompanyForm extends View {
                       ></vaadin-text-field>
                       <vaadin-vertical-layout class="block">
                           <vaadin-horizontal-layout class="gap-x-s">
-                              <vaadin-text-field
+                              <vaadin-combo-box
                                       label="Ciudad"
-                                      minlength="4"
+                                      allow-custom-value
                                       ?disabled=${uiStore.offline}
+                                      .dataProvider="${citySuggestions}"
                                       .value ="${companyViewStore.address?.ciudad}"
                                       @change="${this.setAddressCity}"
-                              ></vaadin-text-field>
+                              ></vaadin-combo-box>
                               <vaadin-combo-box
                                       label="Tipo"
                                       auto-open-disabled
@@ -234,13 +236,14 @@ export class CompanyForm extends View {
 
                           </vaadin-horizontal-layout>
                           <vaadin-horizontal-layout class="gap-x-s">
-                              <vaadin-text-field
+                              <vaadin-combo-box
                                       label="Municipio"
-                                      minlength="4"
+                                      allow-custom-value
                                       ?disabled=${uiStore.offline}
+                                      .dataProvider="${colonySuggestions}"
                                       .value ="${companyViewStore.address?.municipio?.nombre}"
                                       @change="${this.changeColony}"
-                              ></vaadin-text-field>
+                              ></vaadin-combo-box>
                               <vaadin-combo-box
                                       label="Código postal"
                                       allow-custom-value
@@ -460,7 +463,7 @@ export class CompanyForm extends View {
     }
 
     private setAddressCity(event: CustomEvent) {
-        const target = event.target as TextField;
+        const target = event.target as ComboBox;
 
         companyViewStore.setAddressCity(target.value);
     }
@@ -474,7 +477,7 @@ export class CompanyForm extends View {
     }
 
     private changeColony(event: CustomEvent) {
-        const target = event.target as TextField;
+        const target = event.target as ComboBox;
 
         if (target.checkValidity()) {
             companyViewStore.changeColony(target.value);
@@ -13,12 +13,36 @@ import Codigo from "Frontend/generated/com/acme/acmeui/data/dto/Codigo";
 import Estado from "Frontend/generated/com/acme/acmeui/data/dto/Estado";
 import CodigoModel from "Frontend/generated/com/acme/acmeui/data/dto/CodigoModel";
 import MunicipioModel from "Frontend/generated/com/acme/acmeui/data/dto/MunicipioModel";
-import {GridDataProviderCallback} from "@vaadin/grid";
+import {GridDataProviderCallback, GridFilterDefinition, GridSorterDefinition} from "@vaadin/grid";
+import { PageCursors } from 'Frontend/stores/page-cursors';
+import CompaniaResumen from "Frontend/generated/com/acme/acmeui/data/dto/CompaniaResumen";
+import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { firstValue } from 'Frontend/stores/subscription';
+import { CsvColumn, exportCsv } from 'Frontend/views/csv-export';
+
+const EXPORT_CHUNK_SIZE = 500;
+const EXPORT_COLUMNS: CsvColumn<CompaniaResumen>[] = [
+    { header: 'Razón social', value: (c) => c.nombre },
+    { header: 'RFC', value: (c) => c.rfc },
+    { header: 'Sector', value: (c) => c.sector },
+    { header: 'Estado', value: (c) => c.estado },
+    { header: 'Activo', value: (c) => c.activo ? 'Sí' : 'No' },
+    { header: 'Areas', value: (c) => c.areas },
+    { header: 'Subsidiarias', value: (c) => c.subsidiarias },
+    { header: 'Proveedores', value: (c) => c.proveedores },
+    { header: 'Modificó', value: (c) => c.usuarioModificacion },
+    { header: 'Fecha modificación', value: (c) => c.fechaModificacion },
+];
 
 class CompanyViewStore {
-    content: Array<Compania> | undefined;
-    callBack: GridDataProviderCallback<Compania> | null = null;
-
+    content: Array<CompaniaResumen> | undefined;
+    callBack: GridDataProviderCallback<CompaniaResumen> | null = null;
+    cursors = new PageCursors();
+    gridFilters: GridFilterDefinition[] = [];           // the last filter and sort of the grid, for the export
+    gridSortOrders: GridSorterDefinition[] = [];
+    exportedRows: number | null = null;                 // rows exported so far, null if not exporting
+
+    selectedSummary: CompaniaResumen | null = null;
     selectedCompany: Compania | null = null;
     areas?: Array<Area | undefined> = undefined;
     telephones?: Array<Telefono | undefined> = undefined;
@@ -36,7 +60,11 @@ class CompanyViewStore {
         makeAutoObservable(
             this,
             { callBack: false,
+                cursors: false,
+                gridFilters: false,
+                gridSortOrders: false,
                 content: observable.shallow,
+                selectedSummary: observable.ref,
                 selectedCompany: observable.ref,
                 areas: observable.ref,
                 telephones: observable.ref,
@@ -47,6 +75,27 @@ class CompanyViewStore {
         );
     }
 
+    /*
+     * The grid has just the summary of the company, so the full company is read when it is opened for editing
+     */
+    async openCompany(summary: CompaniaResumen | null) {
+        this.setSelectedSummary(summary);
+        if (!summary) {
+            await this.cancelEdit();
+            return;
+        }
+        const company = await firstValue(endpoint.companyAsync(summary.idNeo4j as string));
+
+        if (company && this.selectedSummary === summary)
+            this.setSelectedCompany(company);
+        else if (!company)
+            uiStore.showError("No se pudo leer la compañía " + summary.nombre);
+    }
+
+    setSelectedSummary(summary: CompaniaResumen | null) {
+        this.selectedSummary = summary;
+    }
+
     setSelectedCompany(company: Compania) {
         this.selectedCompany = company;
         if (company && this.selectedCompany.areas)
@@ -65,6 +114,7 @@ class CompanyViewStore {
     }
 
     editNew() {
+        this.selectedSummary = null;
         this.selectedCompany = CompaniaModel.createEmptyValue();
         this.areas = [];
         this.telephones = [];
@@ -74,7 +124,7 @@ class CompanyViewStore {
     }
 
     async cancelEdit() {
-        this.selectedCompany = null;
+        this.selectedCompany = this.selectedSummary = null;
         this.areas = this.telephones = undefined;
         this.telephoneNumber = this.telephoneCity = this.telephoneType = null;
         this.addresses = this.address = undefined;
@@ -324,20 +374,47 @@ class CompanyViewStore {
         }
     }
 
-    setContent(content: Array<Compania> | undefined) {
+    setContent(content: Array<CompaniaResumen> | undefined) {
         this.content = content;
     }
 
-    setCallBack(callBack: GridDataProviderCallback<Compania> ) {
+    setCallBack(callBack: GridDataProviderCallback<CompaniaResumen> ) {
         this.callBack = callBack;
     }
 
+    setGridQuery(filters: GridFilterDefinition[], sortOrders: GridSorterDefinition[]) {
+        this.gridFilters = filters;
+        this.gridSortOrders = sortOrders;
+    }
+
+    setExportedRows(rows: number | null) {
+        this.exportedRows = rows;
+    }
+
+    /* Exports all the companies of the grid filter, not just the pages already read, streaming them by chunks */
+    async exportCompanies() {
+        this.setExportedRows(0);
+        try {
+            const rows = await exportCsv('companias.csv', EXPORT_COLUMNS,
+                                         // @ts-ignore
+                                         endpoint.streamCompanies(this.gridFilters, this.gridSortOrders, EXPORT_CHUNK_SIZE, 0),
+                                         this.setExportedRows);
+
+            uiStore.showSuccess(`Se exportaron ${rows} compañías`);
+        } catch (e) {
+            uiStore.showError('Error al exportar las compañías');
+        } finally {
+            this.setExportedRows(null);
+        }
+    }
+
     /*
      * note: In the front we do not use company._id but idNeo4j because Hilla does not generate correctly
      *       the accessor methods (i.e., always is undefined because is not in sync from the server).
      */
-    private saveCompanyLocal(saved: Compania) {
+    private saveCompanyLocal(company: Compania) {
         if (this.content != undefined) {
+            const saved = this.toSummary(company);
             const companyExists = this.content.some((c) => c.idNeo4j === saved.idNeo4j);
 
             if (companyExists) {
@@ -357,6 +434,25 @@ class CompanyViewStore {
         }
     }
 
+    private toSummary(company: Compania): CompaniaResumen {
+        return {
+            idNeo4j: company.idNeo4j,
+            nombre: company.nombre,
+            usuarioModificacion: company.usuarioModificacion,
+            fechaModificacion: company.fechaModificacion,
+            activo: company.activo,
+            sector: company.sector?.nombre,
+            rfc: company.rfc?.rfc,
+            estado: company.direcciones?.map((d) => d?.codigo?.estado?.nombre).find((e) => e != null),
+            areas: company.areas?.length ?? 0,
+            area: company.areas?.[0]?.nombre,
+            subsidiarias: company.subsidiarias?.length ?? 0,
+            subsidiaria: company.subsidiarias?.[0]?.nombre,
+            proveedores: company.proveedores?.length ?? 0,
+            proveedor: company.proveedores?.[0]?.to?.nombre,
+        } as CompaniaResumen;
+    }
+
     private deleteCompanyLocal(company: Compania) {
         // @ts-ignore
         this.content = this.content.filter((c) => c.idNeo4j !== company.idNeo4j);
@@ -8,11 +8,14 @@ import '@vaadin/button';
 import '@vaadin/grid';
 import '@vaadin/grid/vaadin-grid-column';
 import '@vaadin/grid/vaadin-grid-filter-column.js';
+import '@vaadin/grid/vaadin-grid-sort-column.js';
+import { sortFilterHeader } from 'Frontend/views/grid-headers';
 import './company-form';
 import { companyViewStore } from './company-view-store';
-import Compania from "Frontend/generated/com/acme/acmeui/data/dto/Compania";
+import CompaniaResumen from "Frontend/generated/com/acme/acmeui/data/dto/CompaniaResumen";
 import {GridDataProviderCallback, GridDataProviderParams, GridItemModel, GridDataProvider, Grid} from "@vaadin/grid";
 import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { firstValue } from 'Frontend/stores/subscription';
 import dateFnsFormat from "date-fns/format";
 import dateFnsParse from "date-fns/parse";
 import {parseISO} from "date-fns";
@@ -51,17 +54,35 @@ export class CompanyView extends View {
           ?disabled=${uiStore.offline}
           >Añadir nueva compañía</vaadin-button
         >
+        <vaadin-button
+          @click=${companyViewStore.exportCompanies}
+          ?disabled=${uiStore.offline || companyViewStore.exportedRows != null}
+          >${companyViewStore.exportedRows == null ? 'Exportar CSV' : `Exportando ${companyViewStore.exportedRows}...`}</vaadin-button
+        >
       </div>
       <div class="content flex spacing-e-m h-full">
         <vaadin-grid
           id="gridCompanies"
           class="grid h-full"
           .dataProvider=${this.dataProvider}
-          .selectedItems=${[companyViewStore.selectedCompany]}
+          .selectedItems=${companyViewStore.selectedSummary ? [companyViewStore.selectedSummary] : []}
            @active-item-changed=${this.handleGridSelection}
         >
-            <vaadin-grid-filter-column path="nombre" header="Razón social" auto-width></vaadin-grid-filter-column>
-            <vaadin-grid-column path="sector.nombre" header="Sector" auto-with></vaadin-grid-column>
+            <vaadin-grid-column
+                    path="nombre"
+                    .headerRenderer="${sortFilterHeader('nombre', 'Razón social')}"
+                    auto-width
+            ></vaadin-grid-column>
+            <vaadin-grid-filter-column path="rfc" header="RFC" auto-width></vaadin-grid-filter-column>
+            <vaadin-grid-filter-column path="sector" header="Sector" auto-width></vaadin-grid-filter-column>
+            <vaadin-grid-filter-column path="estado" header="Estado" auto-width></vaadin-grid-filter-column>
+            <vaadin-grid-filter-column
+                    path="activo"
+                    header="Activo"
+                    .renderer="${this.activoRenderer}"
+                    flex-grow="0"
+                    auto-width
+            ></vaadin-grid-filter-column>
             <vaadin-grid-column
                     header="Areas"
                     .renderer="${this.areasRenderer}"
@@ -80,9 +101,10 @@ export class CompanyView extends View {
                     flex-grow="0"
                     auto-width
             ></vaadin-grid-column>
-            <vaadin-grid-column path="usuarioModificacion" header="Modificó" auto-width></vaadin-grid-column>
+            <vaadin-grid-sort-column path="usuarioModificacion" header="Modificó" auto-width></vaadin-grid-sort-column>
             <vaadin-grid-column
-                        header="Fecha modificación"
+                        path="fechaModificacion"
+                        .headerRenderer="${sortFilterHeader('fechaModificacion', 'Fecha modificación')}"
                         .renderer="${this.dayRenderer}"
                         flex-grow="0"
                         auto-width
@@ -119,7 +141,19 @@ export class CompanyView extends View {
         }
     };
 
-    private dayRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Compania>) => {
+    /* The 'Activo' column is filtered with 'si' or 'no' */
+    private activoRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<CompaniaResumen>) => {
+        const company = model.item;
+
+        render(
+            html`
+                <span theme="badge ${company.activo ? 'success' : 'error'}">${company.activo ? 'Sí' : 'No'}</span>
+            `,
+            root
+        );
+    };
+
+    private dayRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<CompaniaResumen>) => {
         const company = model.item;
         const dateFormatted = this.formatDateIso8601(company.fechaModificacion);
 
@@ -131,15 +165,14 @@ export class CompanyView extends View {
         );
     };
 
-    private areasRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Compania>) => {
+    private areasRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<CompaniaResumen>) => {
         const company = model.item;
         let areas = "";
         let areasSize = "";
 
-        if ((company.areas != undefined) && (company.areas.length > 0)) {
-            areasSize = "[" + company.areas.length +"] ";
-            // @ts-ignore
-            areas = company.areas[0].nombre.substring(0, 6) + "...";
+        if (company.areas > 0) {
+            areasSize = "[" + company.areas +"] ";
+            areas = (company.area ?? "").substring(0, 6) + "...";
         }
         render(
             html`
@@ -149,15 +182,14 @@ export class CompanyView extends View {
         );
     };
 
-    private subsidiariasRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Compania>) => {
+    private subsidiariasRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<CompaniaResumen>) => {
         const company = model.item;
         let subsidiarias = "";
         let subsidiariasSize = "";
 
-        if ((company.subsidiarias != undefined) && (company.subsidiarias.length > 0)) {
-            subsidiariasSize = "[" + company.subsidiarias.length + "]";
-            // @ts-ignore
-            subsidiarias = company.subsidiarias[0].nombre.substring(0, 8) + "...";
+        if (company.subsidiarias > 0) {
+            subsidiariasSize = "[" + company.subsidiarias + "]";
+            subsidiarias = (company.subsidiaria ?? "").substring(0, 8) + "...";
         }
         render(
             html`
@@ -167,15 +199,14 @@ export class CompanyView extends View {
         );
     };
 
-    private proveedoresRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Compania>) => {
+    private proveedoresRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<CompaniaResumen>) => {
         const company = model.item;
         let proveedores = "";
         let proveedoresSize = "";
 
-        if ((company.proveedores != undefined) && (company.proveedores.length > 0)){
-            proveedoresSize = "[" + company.proveedores.length + "]";
-            // @ts-ignore
-            proveedores = company.proveedores[0].to.nombre.substring(0, 8) + "...";
+        if (company.proveedores > 0){
+            proveedoresSize = "[" + company.proveedores + "]";
+            proveedores = (company.proveedor ?? "").substring(0, 8) + "...";
         }
         render(
             html`
@@ -193,12 +224,19 @@ export class CompanyView extends View {
             this.first = false;
             return;
         }
-        companyViewStore.setSelectedCompany(e.detail.value);
+        // the grid has just the summary, the store reads the full company
+        companyViewStore.openCompany(e.detail.value);
     }
 
-    async dataProvider(params: GridDataProviderParams<Compania>, callBack: GridDataProviderCallback<Compania>) {
+    async dataProvider(params: GridDataProviderParams<CompaniaResumen>, callBack: GridDataProviderCallback<CompaniaResumen>) {
+        if (params.page == 0)
+            companyViewStore.cursors.reset();
         // @ts-ignore
-        const page = await endpoint.companies(params.page, params.pageSize, params.filters);
+        const page = await firstValue(endpoint.companiesAsync(params.page, params.pageSize, params.filters, params.sortOrders,
+                                                              companyViewStore.cursors.get(params.page)));
+
+        companyViewStore.cursors.set(params.page + 1, page?.nextCursor);
+        companyViewStore.setGridQuery(params.filters, params.sortOrders);
 
         // @ts-ignore
         companyViewStore.setContent(page?.content);
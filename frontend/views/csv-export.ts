@@ -0,0 +1,43 @@
+import { Subscription } from '@hilla/frontend';
+import { streamChunks } from 'Frontend/stores/subscription';
+
+export interface CsvColumn<T> {
+    header: string;
+    value: (row: T) => unknown;
+}
+
+/**
+ * Exports to a CSV file all the rows of a 'stream' endpoint method. The rows are converted as every chunk
+ * arrives, so the browser does not wait for the whole listing nor keeps the rows, just the CSV lines.
+ *
+ * 'onProgress' receives the rows exported so far. Returns the number of rows exported.
+ *
+ * @date: November 2023
+ */
+export async function exportCsv<T>(fileName: string,
+                                   columns: CsvColumn<T>[],
+                                   subscription: Subscription<T[]>,
+                                   onProgress?: (rows: number) => void): Promise<number> {
+    const lines: string[] = [columns.map((column) => csvValue(column.header)).join(',')];
+    const stream = streamChunks(subscription, (chunk) => {
+        chunk.forEach((row) => lines.push(columns.map((column) => csvValue(column.value(row))).join(',')));
+        onProgress?.(lines.length - 1);
+    });
+    const rows = await stream.done;
+    // the BOM is for Excel to read the accents
+    const url = URL.createObjectURL(new Blob(['\uFEFF' + lines.join('\r\n')], { type: 'text/csv;charset=utf-8' }));
+    const link = document.createElement('a');
+
+    link.href = url;
+    link.download = fileName;
+    link.click();
+    URL.revokeObjectURL(url);
+
+    return rows;
+}
+
+function csvValue(value: unknown): string {
+    const text = value == null ? '' : String(value);
+
+    return /[",\r\n]/.test(text) ? '"' + text.replace(/"/g, '""') + '"' : text;
+}
@@ -0,0 +1,32 @@
+import { html, render } from 'lit';
+import '@vaadin/text-field';
+import '@vaadin/grid/vaadin-grid-filter.js';
+import '@vaadin/grid/vaadin-grid-sorter.js';
+
+/**
+ * Header renderer of a grid column that can be sorted and filtered.
+ *
+ * The grid sends the sort and the filter to the data provider (params.sortOrders and params.filters) and the
+ * endpoint passes them to the BUP, so the filtering and the ordering are done by Neo4j. The paths must be the
+ * ones that the service can map (see GridQueryDescriptor).
+ *
+ * @date: November 2023
+ */
+export function sortFilterHeader(path: string, header: string) {
+    return (root: HTMLElement) => render(
+        html`
+            <vaadin-grid-sorter path="${path}">${header}</vaadin-grid-sorter>
+            <vaadin-grid-filter path="${path}">
+                <vaadin-text-field
+                        slot="filter"
+                        theme="small"
+                        focus-target
+                        style="max-width: 100%"
+                        @value-changed=${(e: CustomEvent) =>
+                            ((e.target as HTMLElement).parentElement as any).value = e.detail.value}
+                ></vaadin-text-field>
+            </vaadin-grid-filter>
+        `,
+        root
+    );
+}
@@ -1,16 +1,33 @@
 import Order from 'Frontend/generated/com/acme/acmeui/data/dto/Order';
 import {makeAutoObservable, observable} from 'mobx';
 import {GridDataProviderCallback} from "@vaadin/grid";
+import { PageCursors } from 'Frontend/stores/page-cursors';
+import { uiStore } from 'Frontend/stores/app-store';
+import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { CsvColumn, exportCsv } from 'Frontend/views/csv-export';
+
+const EXPORT_CHUNK_SIZE = 500;
+const EXPORT_COLUMNS: CsvColumn<Order>[] = [
+    { header: 'Folio orden', value: (o) => o.idNeo4j },
+    { header: 'Fecha Operación', value: (o) => o.fechaOperacion },
+    { header: 'ID de la tienda', value: (o) => o.tiendaID },
+    { header: 'ID del producto', value: (o) => o.productoID },
+    { header: 'Cantidad', value: (o) => o.cantidad },
+    { header: 'Monto', value: (o) => o.monto },
+];
 
 class OrderViewStore {
     content: Array<Order> | undefined;
     callBack: GridDataProviderCallback<Order> | null = null;
+    cursors = new PageCursors();
     ordersCount: number | undefined = undefined;
+    exportedRows: number | null = null;                 // rows exported so far, null if not exporting
 
     constructor() {
         makeAutoObservable(
             this,
             { callBack: false,
+                cursors: false,
                 content: observable.shallow,
             },
             { autoBind: true }
@@ -29,6 +46,26 @@ class OrderViewStore {
         this.callBack = callBack;
     }
 
+    setExportedRows(rows: number | null) {
+        this.exportedRows = rows;
+    }
+
+    /* Exports all the orders streaming them by chunks */
+    async exportOrders() {
+        this.setExportedRows(0);
+        try {
+            const rows = await exportCsv('ordenes.csv', EXPORT_COLUMNS,
+                                         endpoint.streamOrders(EXPORT_CHUNK_SIZE, 0),
+                                         this.setExportedRows);
+
+            uiStore.showSuccess(`Se exportaron ${rows} órdenes`);
+        } catch (e) {
+            uiStore.showError('Error al exportar las órdenes');
+        } finally {
+            this.setExportedRows(null);
+        }
+    }
+
 }
 
 export const orderViewStore = new OrderViewStore();
@@ -4,10 +4,12 @@ import { View } from 'Frontend/views/view';
 import '@vaadin/vertical-layout';
 import '@vaadin/grid';
 import '@vaadin/grid/vaadin-grid-column';
+import '@vaadin/button';
 import { orderViewStore } from './order-view-store';
 import Order from "Frontend/generated/com/acme/acmeui/data/dto/Order";
 import {GridDataProviderCallback, GridDataProviderParams, GridDataProvider, Grid} from "@vaadin/grid";
 import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { firstValue } from 'Frontend/stores/subscription';
 
 @customElement('order-view')
 export class OrderView extends View {
@@ -34,6 +36,11 @@ export class OrderView extends View {
     render() {
         return html`
                 <div class="toolbar spacing-e-s"><p>&emsp;Número de ordenes: <b>${orderViewStore.ordersCount}</b></p>
+                    <vaadin-button
+                      @click=${orderViewStore.exportOrders}
+                      ?disabled=${orderViewStore.exportedRows != null}
+                      >${orderViewStore.exportedRows == null ? 'Exportar CSV' : `Exportando ${orderViewStore.exportedRows}...`}</vaadin-button
+                    >
                 </div>
                 <vaadin-grid
                   id="gridOrders"
@@ -62,10 +69,15 @@ export class OrderView extends View {
     }
 
     async dataProvider(params: GridDataProviderParams<Order>, callBack: GridDataProviderCallback<Order>) {
-        const page = await endpoint.orders(params.page, params.pageSize);
+        if (params.page == 0)
+            orderViewStore.cursors.reset();
+        const page = await firstValue(endpoint.ordersAsync(params.page, params.pageSize,
+                                                           orderViewStore.cursors.get(params.page)));
+
+        orderViewStore.cursors.set(params.page + 1, page?.nextCursor);
 
         if (params.page == 0)
-            orderViewStore.setCount(await endpoint.ordersCount())
+            orderViewStore.setCount(page?.size);     // the total is read with the page
 
         // @ts-ignore
         orderViewStore.setContent(page?.content);
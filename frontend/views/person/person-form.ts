@@ -32,6 +32,7 @@ import EmailAsignado from 'Frontend/generated/com/acme/acmeui/data/dto/EmailAsig
 import EstadoCivilType from "Frontend/generated/com/acme/acmeui/data/dto/EstadoCivilType";
 import TelefonoType from "Frontend/generated/com/acme/acmeui/data/dto/TelefonoType";
 import DireccionType from "Frontend/generated/com/acme/acmeui/data/dto/DireccionType";
+import { citySuggestions, colonySuggestions } from 'Frontend/views/address-suggestions';
 import {EmailField} from "@vaadin/email-field";
 
 @customElement('person-form')
@@ -300,13 +301,14 @@ export class PersonForm extends View {
                       ></vaadin-text-field>
                       <vaadin-vertical-layout class="block">
                           <vaadin-horizontal-layout class="gap-x-s">
-                              <vaadin-text-field
+                              <vaadin-combo-box
                                       label="Ciudad"
-                                      minlength="4"
+                                      allow-custom-value
                                       ?disabled=${uiStore.offline}
+                                      .dataProvider="${citySuggestions}"
                                       .value ="${personViewStore.address?.ciudad}"
                                       @change="${this.setAddressCity}"
-                              ></vaadin-text-field>
+                              ></vaadin-combo-box>
                               <vaadin-combo-box
                                       label="Tipo"
                                       auto-open-disabled
@@ -317,13 +319,14 @@ export class PersonForm extends View {
 
                           </vaadin-horizontal-layout>
                           <vaadin-horizontal-layout class="gap-x-s">
-                              <vaadin-text-field
+                              <vaadin-combo-box
                                       label="Municipio"
-                                      minlength="4"
+                                      allow-custom-value
                                       ?disabled=${uiStore.offline}
+                                      .dataProvider="${colonySuggestions}"
                                       .value ="${personViewStore.address?.municipio?.nombre}"
                                       @change="${this.changeColony}"
-                              ></vaadin-text-field>
+                              ></vaadin-combo-box>
                               <vaadin-combo-box
                                       label="Código postal"
                                       allow-custom-value
@@ -564,7 +567,7 @@ export class PersonForm extends View {
     }
 
     private setAddressCity(event: CustomEvent) {
-        const target = event.target as TextField;
+        const target = event.target as ComboBox;
 
         personViewStore.setAddressCity(target.value);
     }
@@ -578,7 +581,7 @@ export class PersonForm extends View {
     }
 
     private changeColony(event: CustomEvent) {
-        const target = event.target as TextField;
+        const target = event.target as ComboBox;
 
         if (target.checkValidity()) {
             personViewStore.changeColony(target.value);
@@ -13,12 +13,36 @@ import Codigo from "Frontend/generated/com/acme/acmeui/data/dto/Codigo";
 import Estado from "Frontend/generated/com/acme/acmeui/data/dto/Estado";
 import CodigoModel from "Frontend/generated/com/acme/acmeui/data/dto/CodigoModel";
 import MunicipioModel from "Frontend/generated/com/acme/acmeui/data/dto/MunicipioModel";
-import {GridDataProviderCallback} from "@vaadin/grid";
+import {GridDataProviderCallback, GridFilterDefinition, GridSorterDefinition} from "@vaadin/grid";
+import { PageCursors } from 'Frontend/stores/page-cursors';
+import PersonaResumen from "Frontend/generated/com/acme/acmeui/data/dto/PersonaResumen";
+import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { firstValue } from 'Frontend/stores/subscription';
+import { CsvColumn, exportCsv } from 'Frontend/views/csv-export';
+
+const EXPORT_CHUNK_SIZE = 500;
+const EXPORT_COLUMNS: CsvColumn<PersonaResumen>[] = [
+    { header: 'Nombre', value: (p) => p.nombre },
+    { header: 'Apellido Paterno', value: (p) => p.apellidoPaterno },
+    { header: 'Apellido Materno', value: (p) => p.apellidoMaterno },
+    { header: 'RFC', value: (p) => p.rfc },
+    { header: 'Estado', value: (p) => p.estado },
+    { header: 'Activo', value: (p) => p.activo ? 'Sí' : 'No' },
+    { header: 'Labora', value: (p) => p.empresa },
+    { header: 'Email', value: (p) => p.email },
+    { header: 'Modificó', value: (p) => p.usuarioModificacion },
+    { header: 'Fecha modificación', value: (p) => p.fechaModificacion },
+];
 
 class PersonViewStore {
-    content: Array<Persona> | undefined = undefined;
-    callBack: GridDataProviderCallback<Persona> | null = null;
-
+    content: Array<PersonaResumen> | undefined = undefined;
+    callBack: GridDataProviderCallback<PersonaResumen> | null = null;
+    cursors = new PageCursors();
+    gridFilters: GridFilterDefinition[] = [];           // the last filter and sort of the grid, for the export
+    gridSortOrders: GridSorterDefinition[] = [];
+    exportedRows: number | null = null;                 // rows exported so far, null if not exporting
+
+    selectedSummary: PersonaResumen | null = null;
     selectedPerson: Persona | null = null;
     emails?: Array<EmailAsignado | undefined> = undefined;
     telephones?: Array<Telefono | undefined> = undefined;
@@ -37,7 +61,11 @@ class PersonViewStore {
         makeAutoObservable(
             this,
             { callBack: false,
+                       cursors: false,
+                       gridFilters: false,
+                       gridSortOrders: false,
                        content: observable.shallow,
+                       selectedSummary: observable.ref,
                        selectedPerson: observable.ref,
                        emails: observable.ref,
                        telephones: observable.ref,
@@ -48,6 +76,27 @@ class PersonViewStore {
         );
     }
 
+    /*
+     * The grid has just the summary of the person, so the full person is read when it is opened for editing
+     */
+    async openPerson(summary: PersonaResumen | null) {
+        this.setSelectedSummary(summary);
+        if (!summary) {
+            await this.cancelEdit();
+            return;
+        }
+        const person = await firstValue(endpoint.personAsync(summary.idNeo4j as string));
+
+        if (person && this.selectedSummary === summary)
+            this.setSelectedPerson(person);
+        else if (!person)
+            uiStore.showError("No se pudo leer la persona " + summary.nombre + " " + summary.apellidoPaterno);
+    }
+
+    setSelectedSummary(summary: PersonaResumen | null) {
+        this.selectedSummary = summary;
+    }
+
     setSelectedPerson(person: Persona) {
         this.selectedPerson = person;
         if (person && this.selectedPerson.emails)
@@ -66,6 +115,7 @@ class PersonViewStore {
     }
 
     editNew() {
+        this.selectedSummary = null;
         this.selectedPerson = PersonaModel.createEmptyValue();
         this.emails = [];
         this.telephones = [];
@@ -75,7 +125,7 @@ class PersonViewStore {
     }
 
     async cancelEdit() {
-        this.selectedPerson = null;
+        this.selectedPerson = this.selectedSummary = null;
         this.emails = this.telephones = undefined;
         this.telephoneNumber = this.telephoneCity = this.telephoneType = null;
         this.addresses = this.address = undefined;
@@ -326,20 +376,48 @@ class PersonViewStore {
         }
     }
 
-    setContent(content: Array<Persona> | undefined) {
+    setContent(content: Array<PersonaResumen> | undefined) {
         this.content = content;
     }
 
-    setCallBack(callBack: GridDataProviderCallback<Persona> ) {
+    setCallBack(callBack: GridDataProviderCallback<PersonaResumen> ) {
         this.callBack = callBack;
     }
 
+    setGridQuery(filters: GridFilterDefinition[], sortOrders: GridSorterDefinition[]) {
+        this.gridFilters = filters;
+        this.gridSortOrders = sortOrders;
+    }
+
+    setExportedRows(rows: number | null) {
+        this.exportedRows = rows;
+    }
+
+    /* Exports all the persons of the grid filter, not just the pages already read, streaming them by chunks */
+    async exportPersons() {
+        this.setExportedRows(0);
+        try {
+            const rows = await exportCsv('personas.csv', EXPORT_COLUMNS,
+                                         // @ts-ignore
+                                         endpoint.streamPersons(this.gridFilters, this.gridSortOrders,
+                                                                this.justActivePersons, EXPORT_CHUNK_SIZE, 0),
+                                         this.setExportedRows);
+
+            uiStore.showSuccess(`Se exportaron ${rows} personas`);
+        } catch (e) {
+            uiStore.showError('Error al exportar las personas');
+        } finally {
+            this.setExportedRows(null);
+        }
+    }
+
     /*
      * note: In the front we do not use person._id but idNeo4j because Hilla does not generate correctly
      *       the accessor methods (i.e., always is undefined because is not in sync from the server).
     */
-    private savePersonLocal(saved: Persona) {
+    private savePersonLocal(person: Persona) {
         if (this.content != undefined) {
+            const saved = this.toSummary(person);
             const personExists = this.content.some((p) => p.idNeo4j === saved.idNeo4j);
 
             if (personExists) {
@@ -359,6 +437,24 @@ class PersonViewStore {
         }
     }
 
+    private toSummary(person: Persona): PersonaResumen {
+        return {
+            idNeo4j: person.idNeo4j,
+            nombre: person.nombre,
+            apellidoPaterno: person.apellidoPaterno,
+            apellidoMaterno: person.apellidoMaterno,
+            usuarioModificacion: person.usuarioModificacion,
+            fechaModificacion: person.fechaModificacion,
+            activo: person.activo,
+            rfc: person.rfc?.rfc,
+            estado: person.direcciones?.map((d) => d?.codigo?.estado?.nombre).find((e) => e != null),
+            empresas: person.trabaja?.length ?? 0,
+            empresa: person.trabaja?.[0]?.to?.nombre,
+            emails: person.emails?.length ?? 0,
+            email: person.emails?.[0]?.email,
+        } as PersonaResumen;
+    }
+
     private deletePersonLocal(person: Persona) {
         // @ts-ignore
         this.content = this.content.filter((p) => p.idNeo4j !== person.idNeo4j);
@@ -387,6 +483,7 @@ class PersonViewStore {
     }
     setJustActivePersons(justActivePersons: boolean) {
         this.justActivePersons = justActivePersons;
+        this.cursors.reset();           // the cursors are for the previous filter
     }
 
 }
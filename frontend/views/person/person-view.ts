@@ -9,11 +9,14 @@ import '@vaadin/checkbox';
 import '@vaadin/grid';
 import '@vaadin/grid/vaadin-grid-column';
 import '@vaadin/grid/vaadin-grid-filter-column.js';
+import '@vaadin/grid/vaadin-grid-sort-column.js';
+import { sortFilterHeader } from 'Frontend/views/grid-headers';
 import './person-form';
 import { personViewStore } from './person-view-store';
-import Persona from "Frontend/generated/com/acme/acmeui/data/dto/Persona";
+import PersonaResumen from "Frontend/generated/com/acme/acmeui/data/dto/PersonaResumen";
 import {GridDataProviderCallback, GridDataProviderParams, GridItemModel, Grid} from "@vaadin/grid";
 import * as endpoint from 'Frontend/generated/AcmeEndpoint';
+import { firstValue } from 'Frontend/stores/subscription';
 import dateFnsFormat from "date-fns/format";
 import dateFnsParse from "date-fns/parse";
 import {parseISO} from "date-fns";
@@ -56,19 +59,30 @@ export class PersonView extends View {
           ?disabled=${uiStore.offline}
           >Añadir nueva persona física</vaadin-button
         >
+        <vaadin-button
+          @click=${personViewStore.exportPersons}
+          ?disabled=${uiStore.offline || personViewStore.exportedRows != null}
+          >${personViewStore.exportedRows == null ? 'Exportar CSV' : `Exportando ${personViewStore.exportedRows}...`}</vaadin-button
+        >
       </div>
       <div class="content flex spacing-e-m h-full">
         <vaadin-grid
           id="gridPersonas"
           class="grid h-full"
           .dataProvider=${this.dataProvider}
-          .selectedItems=${[personViewStore.selectedPerson]}
+          .selectedItems=${personViewStore.selectedSummary ? [personViewStore.selectedSummary] : []}
            @active-item-changed=${this.handleGridSelection}
            @change=${this.reloadGrid}
         >
-            <vaadin-grid-column path="nombre" header="Nombre" auto-width></vaadin-grid-column>
-            <vaadin-grid-filter-column path="apellidoPaterno" header="Apellido Paterno" auto-width></vaadin-grid-filter-column>
-            <vaadin-grid-column path="apellidoMaterno" header="Apellido Materno" auto-width></vaadin-grid-column>
+            <vaadin-grid-sort-column path="nombre" header="Nombre" auto-width></vaadin-grid-sort-column>
+            <vaadin-grid-column
+                    path="apellidoPaterno"
+                    .headerRenderer="${sortFilterHeader('apellidoPaterno', 'Apellido Paterno')}"
+                    auto-width
+            ></vaadin-grid-column>
+            <vaadin-grid-sort-column path="apellidoMaterno" header="Apellido Materno" auto-width></vaadin-grid-sort-column>
+            <vaadin-grid-filter-column path="rfc" header="RFC" auto-width></vaadin-grid-filter-column>
+            <vaadin-grid-filter-column path="estado" header="Estado" auto-width></vaadin-grid-filter-column>
             <vaadin-grid-column
                     header="Activo"
                     .renderer="${this.activoRenderer}"
@@ -87,9 +101,10 @@ export class PersonView extends View {
                     flex-grow="0"
                     auto-width
             ></vaadin-grid-column>
-            <vaadin-grid-column path="usuarioModificacion" header="Modificó" auto-width></vaadin-grid-column>
+            <vaadin-grid-sort-column path="usuarioModificacion" header="Modificó" auto-width></vaadin-grid-sort-column>
             <vaadin-grid-column
-                        header="Fecha modificación"
+                        path="fechaModificacion"
+                        .headerRenderer="${sortFilterHeader('fechaModificacion', 'Fecha modificación')}"
                         .renderer="${this.dayRenderer}"
                         flex-grow="0"
                         auto-width
@@ -126,7 +141,7 @@ export class PersonView extends View {
         }
     };
 
-    private dayRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Persona>) => {
+    private dayRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<PersonaResumen>) => {
         const company = model.item;
         const dateFormatted = this.formatDateIso8601(company.fechaModificacion);
 
@@ -138,16 +153,15 @@ export class PersonView extends View {
         );
     };
 
-    private laboraRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Persona>) => {
+    private laboraRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<PersonaResumen>) => {
         const person = model.item;
         let empresas = "";
         let empresasSize = "";
 
-        if ((person.trabaja != undefined) && (person.trabaja.length > 0)) {
-            if (person.trabaja.length > 1)
-                empresasSize = "[" + person.trabaja.length +"] ";
-            // @ts-ignore
-            empresas = person.trabaja[0]?.to?.nombre.substring(0, 10) + "...";
+        if (person.empresas > 0) {
+            if (person.empresas > 1)
+                empresasSize = "[" + person.empresas +"] ";
+            empresas = (person.empresa ?? "").substring(0, 10) + "...";
         }
         render(
             html`
@@ -157,15 +171,14 @@ export class PersonView extends View {
         );
     };
 
-    private emailsRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Persona>) => {
+    private emailsRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<PersonaResumen>) => {
         const person = model.item;
         let emails = "";
         let emailsSize = "";
 
-        if ((person.emails != undefined) && (person.emails.length > 0)) {
-            emailsSize = "[" + person.emails.length +"] ";
-            // @ts-ignore
-            emails = person.emails[0].email.substring(0, 10) + "...";
+        if (person.emails > 0) {
+            emailsSize = "[" + person.emails +"] ";
+            emails = (person.email ?? "").substring(0, 10) + "...";
         }
         render(
             html`
@@ -174,7 +187,7 @@ export class PersonView extends View {
             root
         );
     };
-    private activoRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<Persona>) => {
+    private activoRenderer = (root: HTMLElement, _: HTMLElement, model: GridItemModel<PersonaResumen>) => {
         const person = model.item;
 
         render(
@@ -202,12 +215,20 @@ export class PersonView extends View {
             this.first = false;
             return;
         }
-        personViewStore.setSelectedPerson(e.detail.value);
+        // the grid has just the summary, the store reads the full person
+        personViewStore.openPerson(e.detail.value);
     }
 
-    async dataProvider(params: GridDataProviderParams<Persona>, callBack: GridDataProviderCallback<Persona>) {
+    async dataProvider(params: GridDataProviderParams<PersonaResumen>, callBack: GridDataProviderCallback<PersonaResumen>) {
+        if (params.page == 0)
+            personViewStore.cursors.reset();
         // @ts-ignore
-        const page = await endpoint.persons(params.page, params.pageSize, params.filters, personViewStore.justActivePersons);
+        const page = await firstValue(endpoint.personsAsync(params.page, params.pageSize, params.filters, params.sortOrders,
+                                                            personViewStore.justActivePersons,
+                                                            personViewStore.cursors.get(params.page)));
+
+        personViewStore.cursors.set(params.page + 1, page?.nextCursor);
+        personViewStore.setGridQuery(params.filters, params.sortOrders);
 
         // @ts-ignore
         personViewStore.setContent(page?.content);
@@ -32,16 +32,28 @@ import com.acme.acmeui.views.dataproviders.OrdersDataProvider;
 import com.acme.acmeui.views.dataproviders.PersonsDataProvider;
 import com.ailegorreta.client.security.utils.HasLogger;
 import dev.hilla.Endpoint;
+import dev.hilla.Nonnull;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.springframework.security.core.context.SecurityContextHolder;
 import jakarta.annotation.security.PermitAll;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /**
  * EndPoint to handle all ACME data reading and actualization.
  *
  * Also handle cache data
  *
+ * The saves invalidate the pages that the data providers keep in cache for the grids.
+ *
+ * For every operation there is also an 'Async' method that returns a Flux. Hilla serves them through the push
+ * connection, so no Tomcat thread is waiting while the BUP or Order microservices answer. The other methods
+ * are kept for the clients that still use the request/response calls.
+ *
+ * The 'stream' methods send all the rows of a grid in chunks through the same push connection, instead of one
+ * request per page.
+ *
  * @author rlh
  * @project: ACME-UI
  * @date: November 2023
@@ -59,7 +71,9 @@ public class AcmeEndpoint implements HasLogger {
     private PersonsDataProvider personsDataProvider;
     private CodigoService codigoService;
     private MunicipioService municipioService;
-    private SysData sysData = null;
+    private ReferenceDataService referenceDataService;
+    private AddressIndexService addressIndexService;
+    private BulkImportService bulkImportService;
 
     /**
      * This class is to handle page handler for "any" hilla table. We use a small Page in order not to send
@@ -69,32 +83,40 @@ public class AcmeEndpoint implements HasLogger {
      *        Type 'unknown' does not satisfy the constraint 'Record<never, never>' in the PageResonseModel
      * So the work around is to generate a PageResponse class for each type of DTO
      *
+     * 'nextCursor' is the opaque keyset cursor of the next page (null if this is the last page). The client
+     * sends it back when it asks for the next page, so deep pages cost the same as the first one.
      */
-    static class PageResponseCompanias<T extends Compania> {
+    static class PageResponseCompanias<T extends CompaniaResumen> {
         public List<T> content;
         public long size;
+        public String nextCursor;
 
-        PageResponseCompanias(List<T> content, long size) {
+        PageResponseCompanias(List<T> content, long size, String nextCursor) {
             this.content = content;
             this.size = size;
+            this.nextCursor = nextCursor;
         }
     }
-    static class PageResponsePersonas<T extends Persona> {
+    static class PageResponsePersonas<T extends PersonaResumen> {
         public List<T> content;
         public long size;
+        public String nextCursor;
 
-        PageResponsePersonas(List<T> content, long size) {
+        PageResponsePersonas(List<T> content, long size, String nextCursor) {
             this.content = content;
             this.size = size;
+            this.nextCursor = nextCursor;
         }
     }
     static class PageResponseOrders<T extends Order> {
         public List<T> content;
         public long size;
+        public String nextCursor;
 
-        PageResponseOrders(List<T> content, long size) {
+        PageResponseOrders(List<T> content, long size, String nextCursor) {
             this.content = content;
             this.size = size;
+            this.nextCursor = nextCursor;
         }
     }
 
@@ -103,7 +125,10 @@ public class AcmeEndpoint implements HasLogger {
                         CodigoService codigoService, MunicipioService municipioService,
                         PersonaService personaService, PersonsDataProvider personsDataProvider,
                         EstadoService estadoService,
-                        OrdersDataProvider ordersDataProvider) {
+                        OrdersDataProvider ordersDataProvider,
+                        ReferenceDataService referenceDataService,
+                        AddressIndexService addressIndexService,
+                        BulkImportService bulkImportService) {
         this.sectorService = sectorService;
         this.companiaService = companiaService;
         this.companiesDataProvider = companiesDataProvider;
@@ -113,27 +138,59 @@ public class AcmeEndpoint implements HasLogger {
         this.estadoService = estadoService;
         this.personaService = personaService;
         this.personsDataProvider = personsDataProvider;
+        this.referenceDataService = referenceDataService;
+        this.addressIndexService = addressIndexService;
+        this.bulkImportService = bulkImportService;
     }
 
+    /**
+     * Sectors and states, see ReferenceDataService. 'version' changes only when the data changes, so the client
+     * keeps it and asks with getSysDataIfChanged() instead of downloading the data every time.
+     */
     public static class SysData {
         public List<Sector> sectors;
         public List<Estado> states;
+        public String version;
+
+        static SysData of(ReferenceDataService.Snapshot snapshot) {
+            var sysData = new SysData();
+
+            sysData.sectors = snapshot.getSectors();
+            sysData.states = snapshot.getStates();
+            sysData.version = snapshot.getVersion();
+
+            return sysData;
+        }
     }
 
     public SysData getSysData() {
-        if (sysData == null) {
-            sysData = new SysData();
-            sysData.sectors = sectorService.allSectors();
-            sysData.states = estadoService.allStates();
-        }
+        return SysData.of(referenceDataService.current());
+    }
 
-        return sysData;
+    public @Nonnull Flux<@Nonnull SysData> getSysDataAsync() {
+        return referenceDataService.currentAsync()
+                                   .map(SysData::of)
+                                   .flux();
     }
 
-    public SysData refreshSysData() {
-        sysData = null;
+    /**
+     * Returns the data only if its version is not the one that the client already has
+     */
+    public Optional<SysData> getSysDataIfChanged(String version) {
+        var snapshot = referenceDataService.current();
+
+        return snapshot.getVersion().equals(version) ? Optional.empty() : Optional.of(SysData.of(snapshot));
+    }
 
-        return getSysData();
+    public @Nonnull Flux<@Nonnull SysData> getSysDataIfChangedAsync(String version) {
+        return referenceDataService.currentAsync()
+                                   .filter(snapshot -> !snapshot.getVersion().equals(version))
+                                   .map(SysData::of)
+                                   .flux();
+    }
+
+    public SysData refreshSysData() {
+        return SysData.of(referenceDataService.reload());
     }
 
     /**
@@ -148,35 +205,92 @@ public class AcmeEndpoint implements HasLogger {
 
         sector.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
         sector.setFechaModificacion(LocalDateTime.now());
-        if (isNew)
-            return sectorService.addSector(sector);
-        else
-            return sectorService.updateSector(sector);
+        var saved = isNew ? sectorService.addSector(sector) : sectorService.updateSector(sector);
+
+        if (saved != null) {
+            companiesDataProvider.invalidateAll();  // the sector name is in the companies grid
+            referenceDataService.invalidate();
+        }
+
+        return saved;
     }
 
     public String deleteSector(String id) {
-        return sectorService.deleteSector(id);
+        var result = sectorService.deleteSector(id);
+
+        companiesDataProvider.invalidateAll();
+        referenceDataService.invalidate();
+
+        return result;
+    }
+
+    public @Nonnull Flux<String> uniqueSectorValidatorAsync(Sector sector) {
+        return sectorService.uniqueValidatorAsync(sector).flux();
+    }
+
+    public @Nonnull Flux<Sector> saveSectorAsync(Sector sector) {
+        var isNew = sector.getUsuarioModificacion() == null;
+
+        sector.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
+        sector.setFechaModificacion(LocalDateTime.now());
+        return (isNew ? sectorService.addSectorAsync(sector) : sectorService.updateSectorAsync(sector))
+                    .doOnNext(saved -> companiesDataProvider.invalidateAll())
+                    .doOnNext(saved -> referenceDataService.invalidate())
+                    .flux();
+    }
+
+    public @Nonnull Flux<String> deleteSectorAsync(String id) {
+        return sectorService.deleteSectorAsync(id)
+                            .doFinally(signal -> companiesDataProvider.invalidateAll())
+                            .doFinally(signal -> referenceDataService.invalidate())
+                            .flux();
     }
 
     /**
      * Companies methods
      */
-    public PageResponseCompanias<Compania> companies(int page, int size, ArrayList<LinkedHashMap> params) {
-        String nombre = null;
+    public PageResponseCompanias<CompaniaResumen> companies(int page, int size, ArrayList<LinkedHashMap> params,
+                                                            ArrayList<LinkedHashMap> sortOrders, String cursor) {
+        var query = GridQuery.of(params, sortOrders);
+        var companiesPage =  companiesDataProvider.allCompanies(query, page, size, cursor);
+
+        return new PageResponseCompanias<>(companiesPage.getContent(), companiesPage.getTotalElements(),
+                                           companiesDataProvider.nextCursor(companiesPage, query));
+    }
+
+    public @Nonnull Flux<@Nonnull PageResponseCompanias<CompaniaResumen>> companiesAsync(int page, int size, ArrayList<LinkedHashMap> params,
+                                                                                         ArrayList<LinkedHashMap> sortOrders, String cursor) {
+        var query = GridQuery.of(params, sortOrders);
 
-        if (params != null)
-            for (LinkedHashMap<String, String> param: params) {
-                String path = param.get("path");
+        return companiesDataProvider.allCompaniesAsync(query, page, size, cursor)
+                                    .map(companiesPage -> new PageResponseCompanias<>(companiesPage.getContent(),
+                                                                                      companiesPage.getTotalElements(),
+                                                                                      companiesDataProvider.nextCursor(companiesPage, query)))
+                                    .flux();
+    }
 
-                if (path.equals("nombre"))
-                    nombre = param.get("value");
-                else
-                    getLogger().error("Error in filter path:" + path);
-            };
+    /**
+     * All the companies of the grid query streamed in chunks of rows, for the exports and the long scrolls. The
+     * client receives the first chunk while the rest are still being read and, if it cancels the subscription,
+     * the server stops reading pages. 'maxRows' zero means the configured maximum.
+     */
+    public @Nonnull Flux<@Nonnull List<@Nonnull CompaniaResumen>> streamCompanies(ArrayList<LinkedHashMap> params,
+                                                                                  ArrayList<LinkedHashMap> sortOrders,
+                                                                                  int chunkSize, int maxRows) {
+        return companiesDataProvider.streamCompanies(GridQuery.of(params, sortOrders), chunkSize, maxRows);
+    }
 
-        var companiesPage =  companiesDataProvider.allCompanies(nombre, page, size);
+    /**
+     * The grid has just the summary of the companies, the full company is read when the user opens it
+     */
+    public Optional<Compania> company(@Nonnull String id) {
+        return companiaService.getCompany(id, null).stream().findFirst();
+    }
 
-        return new PageResponseCompanias<>(companiesPage.getContent(), companiesDataProvider.getTotalElements());
+    public @Nonnull Flux<Compania> companyAsync(@Nonnull String id) {
+        return companiaService.getCompanyAsync(id, null)
+                              .flatMapMany(Flux::fromIterable)
+                              .take(1);
     }
 
     public String uniqueCompaniaValidator(Compania compania) {
@@ -188,32 +302,93 @@ public class AcmeEndpoint implements HasLogger {
 
         company.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
         company.setFechaModificacion(LocalDateTime.now());
+        var saved = isNew ? companiaService.addCompany(company) : companiaService.updateCompany(company);
+
+        if (saved != null) {
+            invalidateCompany(company, isNew);
+            addressIndexService.addressesSaved(company.getDirecciones());
+        }
+
+        return saved;
+    }
+
+    public @Nonnull Flux<String> uniqueCompaniaValidatorAsync(Compania compania) {
+        return companiaService.uniqueValidatorAsync(compania).flux();
+    }
+
+    public @Nonnull Flux<Compania> saveCompanyAsync(Compania company) {
+        var isNew = company.getUsuarioModificacion() == null;
+
+        company.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
+        company.setFechaModificacion(LocalDateTime.now());
+        return (isNew ? companiaService.addCompanyAsync(company) : companiaService.updateCompanyAsync(company))
+                    .doOnNext(saved -> invalidateCompany(company, isNew))
+                    .doOnNext(saved -> addressIndexService.addressesSaved(company.getDirecciones()))
+                    .flux();
+    }
+
+    /**
+     * An existing company is dropped just from the pages where it is or where its name is, also in the persons
+     * grid (i.e., where they work). A new company changes the totals and the pages of the companies grid.
+     */
+    private void invalidateCompany(Compania company, boolean isNew) {
         if (isNew)
-            return companiaService.addCompany(company);
+            companiesDataProvider.invalidateAll();
         else
-            return companiaService.updateCompany(company);
+            personsDataProvider.invalidateCompany(companiesDataProvider.invalidate(company.get_id(), company.getNombre()));
     }
 
     /**
      * Persons methods
      */
-    public PageResponsePersonas<Persona> persons(int page, int size, ArrayList<LinkedHashMap> params, boolean justActivePersons) {
-        String apellidoPaterno = null;
-        Boolean activo = justActivePersons ? true : null;
+    public PageResponsePersonas<PersonaResumen> persons(int page, int size, ArrayList<LinkedHashMap> params,
+                                                        ArrayList<LinkedHashMap> sortOrders, boolean justActivePersons, String cursor) {
+        var query = personsQuery(params, sortOrders, justActivePersons);
+        var personsPage =  personsDataProvider.allPersons(query, page, size, cursor);
+
+        return new PageResponsePersonas<>(personsPage.getContent(), personsPage.getTotalElements(),
+                                          personsDataProvider.nextCursor(personsPage, query));
+    }
+
+    public @Nonnull Flux<@Nonnull PageResponsePersonas<PersonaResumen>> personsAsync(int page, int size, ArrayList<LinkedHashMap> params,
+                                                                                     ArrayList<LinkedHashMap> sortOrders, boolean justActivePersons, String cursor) {
+        var query = personsQuery(params, sortOrders, justActivePersons);
+
+        return personsDataProvider.allPersonsAsync(query, page, size, cursor)
+                                  .map(personsPage -> new PageResponsePersonas<>(personsPage.getContent(),
+                                                                                 personsPage.getTotalElements(),
+                                                                                 personsDataProvider.nextCursor(personsPage, query)))
+                                  .flux();
+    }
+
+    /**
+     * All the persons of the grid query streamed in chunks of rows (see streamCompanies)
+     */
+    public @Nonnull Flux<@Nonnull List<@Nonnull PersonaResumen>> streamPersons(ArrayList<LinkedHashMap> params,
+                                                                               ArrayList<LinkedHashMap> sortOrders,
+                                                                               boolean justActivePersons,
+                                                                               int chunkSize, int maxRows) {
+        return personsDataProvider.streamPersons(personsQuery(params, sortOrders, justActivePersons), chunkSize, maxRows);
+    }
 
-        if (params != null)
-            for (LinkedHashMap<String, String> param: params) {
-                String path = param.get("path");
+    /**
+     * The 'solo activos' checkbox is one more filter of the grid
+     */
+    private GridQuery personsQuery(ArrayList<LinkedHashMap> params, ArrayList<LinkedHashMap> sortOrders, boolean justActivePersons) {
+        var query = GridQuery.of(params, sortOrders);
 
-                if (path.equals("apellidoPaterno"))
-                    apellidoPaterno = param.get("value");
-                else
-                    getLogger().error("Error in filter path:" + path);
-            };
+        return justActivePersons ? query.with("activo", "true") : query;
+    }
 
-        var personsPage =  personsDataProvider.allPersons(apellidoPaterno, activo, page, size);
+    /**
+     * The grid has just the summary of the persons, the full person is read when the user opens it
+     */
+    public Optional<Persona> person(@Nonnull String id) {
+        return Optional.ofNullable(personaService.getPersonById(id));
+    }
 
-        return new PageResponsePersonas<>(personsPage.getContent(), personsDataProvider.getTotalElements());
+    public @Nonnull Flux<Persona> personAsync(@Nonnull String id) {
+        return personaService.getPersonByIdAsync(id).flux();
     }
 
     public String uniquePersonValidator(Persona persona) {
@@ -225,26 +400,99 @@ public class AcmeEndpoint implements HasLogger {
 
         person.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
         person.setFechaModificacion(LocalDateTime.now());
+        var saved = isNew ? personaService.addPerson(person) : personaService.updatePerson(person);
+
+        if (saved != null) {
+            invalidatePerson(person, isNew);
+            addressIndexService.addressesSaved(person.getDirecciones());
+        }
+
+        return saved;
+    }
+
+    public @Nonnull Flux<String> uniquePersonValidatorAsync(Persona persona) {
+        return personaService.uniqueValidatorAsync(persona).flux();
+    }
+
+    public @Nonnull Flux<Persona> savePersonAsync(Persona person) {
+        var isNew = person.getUsuarioModificacion() == null;
+
+        person.setUsuarioModificacion(SecurityContextHolder.getContext().getAuthentication().getName());
+        person.setFechaModificacion(LocalDateTime.now());
+        return (isNew ? personaService.addPersonAsync(person) : personaService.updatePersonAsync(person))
+                    .doOnNext(saved -> invalidatePerson(person, isNew))
+                    .doOnNext(saved -> addressIndexService.addressesSaved(person.getDirecciones()))
+                    .flux();
+    }
+
+    private void invalidatePerson(Persona person, boolean isNew) {
         if (isNew)
-            return personaService.addPerson(person);
+            personsDataProvider.invalidateAll();
         else
-            return personaService.updatePerson(person);
+            personsDataProvider.invalidate(person.get_id());
+    }
+
+    /**
+     * Bulk import of the companies or persons of a file already uploaded (see ImportController). The progress is
+     * sent while the rows are saved and the last one has 'done' true. The grids are invalidated at the end, even if
+     * the client cancels, since some rows may have been saved.
+     */
+    public @Nonnull Flux<@Nonnull ImportProgress> importFile(@Nonnull String importId, @Nonnull ImportEntity entity) {
+        return bulkImportService.importAsync(importId, entity)
+                                .doFinally(signal -> {
+                                    if (entity == ImportEntity.COMPANIAS) companiesDataProvider.invalidateAll();
+                                    personsDataProvider.invalidateAll();        // an imported company can be an existing one
+                                });
+    }
+
+    /**
+     * Type-ahead of the address forms. They are answered from memory (see AddressIndexService) so every key stroke
+     * does not go to the BUP.
+     */
+    public @Nonnull List<@Nonnull String> suggestColonies(@Nonnull String prefix, int limit) {
+        return addressIndexService.suggestColonies(prefix, limit);
+    }
+
+    public @Nonnull List<@Nonnull String> suggestCities(@Nonnull String prefix, int limit) {
+        return addressIndexService.suggestCities(prefix, limit);
     }
 
     /**
      * Codigo methods
      *
+     * The lookups are answered by the AddressIndexService and the new zip codes are added to it.
+     *
      * note: a zipcode is never deleted
      */
     public Optional<Codigo> getZipcode(Integer zipCode) {
-        return codigoService.getZipcode(null, zipCode).stream().findFirst();
+        return addressIndexService.getZipcode(zipCode).stream().findFirst();
     }
 
     public Codigo addZipcode(Codigo zipcode) {
         if (zipcode.getEstado() == null)
             getLogger().error("Error se debe tener un estado definido");
 
-        return codigoService.addZipcode(zipcode);
+        var saved = codigoService.addZipcode(zipcode);
+
+        if (saved != null)
+            addressIndexService.zipcodeAdded(saved, zipcode.getEstado());
+
+        return saved;
+    }
+
+    public @Nonnull Flux<Codigo> getZipcodeAsync(Integer zipCode) {
+        return addressIndexService.getZipcodeAsync(zipCode)
+                            .flatMapMany(Flux::fromIterable)
+                            .take(1);
+    }
+
+    public @Nonnull Flux<Codigo> addZipcodeAsync(Codigo zipcode) {
+        if (zipcode.getEstado() == null)
+            getLogger().error("Error se debe tener un estado definido");
+
+        return codigoService.addZipcodeAsync(zipcode)
+                            .doOnNext(saved -> addressIndexService.zipcodeAdded(saved, zipcode.getEstado()))
+                            .flux();
     }
 
     /**
@@ -253,28 +501,66 @@ public class AcmeEndpoint implements HasLogger {
      * note: a colony is never deleted
      */
     public Optional<Municipio> getMunicipio(String colony) {
-        return municipioService.getColony(null, colony).stream().findFirst();
+        return addressIndexService.getColony(colony).stream().findFirst();
     }
 
     public Municipio addColony(Municipio colony) {
         if (colony.getCodigos() == null || colony.getCodigos().isEmpty())
             getLogger().error("Error se debe tener un al menos un código definido");
 
-        return municipioService.addColony(colony);
+        var saved = municipioService.addColony(colony);
+
+        if (saved != null)
+            addressIndexService.colonyAdded(saved, colony.getCodigos());
+
+        return saved;
     }
 
     public Municipio addColonyZipcode(String idColony, String idZipcode) {
-        return municipioService.addColonyZipcode(idColony, idZipcode);
+        var saved = municipioService.addColonyZipcode(idColony, idZipcode);
+
+        addressIndexService.colonyZipcodeAdded(saved, idZipcode);
+
+        return saved;
+    }
+
+    public @Nonnull Flux<Municipio> getMunicipioAsync(String colony) {
+        return addressIndexService.getColonyAsync(colony)
+                               .flatMapMany(Flux::fromIterable)
+                               .take(1);
+    }
+
+    public @Nonnull Flux<Municipio> addColonyAsync(Municipio colony) {
+        if (colony.getCodigos() == null || colony.getCodigos().isEmpty())
+            getLogger().error("Error se debe tener un al menos un código definido");
+
+        return municipioService.addColonyAsync(colony)
+                               .doOnNext(saved -> addressIndexService.colonyAdded(saved, colony.getCodigos()))
+                               .flux();
+    }
+
+    public @Nonnull Flux<Municipio> addColonyZipcodeAsync(String idColony, String idZipcode) {
+        return municipioService.addColonyZipcodeAsync(idColony, idZipcode)
+                               .doOnNext(saved -> addressIndexService.colonyZipcodeAdded(saved, idZipcode))
+                               .flux();
     }
 
     /**
      * Order methods
      */
     @NotNull
-    public PageResponseOrders<Order> orders(int page, int size) {
-        var ordersPage =  ordersDataProvider.allOrders(page, size);
+    public PageResponseOrders<Order> orders(int page, int size, String cursor) {
+        var ordersPage =  ordersDataProvider.allOrders(page, size, cursor);
 
-        return new PageResponseOrders<>(ordersPage.getContent(), ordersDataProvider.getTotalElements());
+        return new PageResponseOrders<>(ordersPage.getContent(), ordersPage.getTotalElements(),
+                                        ordersDataProvider.nextCursor(ordersPage));
+    }
+
+    /**
+     * All the orders streamed in chunks of rows (see streamCompanies)
+     */
+    public @Nonnull Flux<@Nonnull List<@Nonnull Order>> streamOrders(int chunkSize, int maxRows) {
+        return ordersDataProvider.streamOrders(chunkSize, maxRows);
     }
 
     @NotNull
@@ -282,6 +568,18 @@ public class AcmeEndpoint implements HasLogger {
         return ordersDataProvider.count();
     }
 
+    public @Nonnull Flux<@Nonnull PageResponseOrders<Order>> ordersAsync(int page, int size, String cursor) {
+        return ordersDataProvider.allOrdersAsync(page, size, cursor)
+                                 .map(ordersPage -> new PageResponseOrders<>(ordersPage.getContent(),
+                                                                             ordersPage.getTotalElements(),
+                                                                             ordersDataProvider.nextCursor(ordersPage)))
+                                 .flux();
+    }
+
+    public @Nonnull Flux<@Nonnull Long> ordersCountAsync() {
+        return ordersDataProvider.countAsync().flux();
+    }
+
     public Order saveOrder(@NotNull Order order) {
         return null;
     }
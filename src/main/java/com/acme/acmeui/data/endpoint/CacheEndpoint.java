@@ -36,6 +36,9 @@ import java.time.LocalDate;
  *
  * In the future more data wil be added as acme-ui will be added
  *
+ * Every page load calls this endpoint, so the values are kept in a local near cache (see CacheService) and the
+ * cache microservice is not called every time.
+ *
  * @project acme-ui
  * @author rlh
  * @date November 2023
@@ -23,9 +23,17 @@
 package com.acme.acmeui.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Reader from resource directory for all GraphqlSchemas
+ * Reader from resource directory for all GraphqlSchemas.
+ *
+ * Each document is read just once from the classpath and kept in memory. The GraphqlDocumentRegistry
+ * preloads all of them at startup, so in a running application this class never touches the class loader.
  *
  * @project: acme-ui
  * @author rlh
@@ -33,19 +41,32 @@ import java.io.IOException;
  */
 public final class GraphqlSchemaReaderUtil {
 
-    public static String getSchemaFromFileName(final String filename) throws IOException {
-        return new String(
-                GraphqlSchemaReaderUtil.class.getClassLoader()
-                                             .getResourceAsStream("graphql/" + filename + ".graphql")
-                                             .readAllBytes());
+    private static final Map<String, String> documents = new ConcurrentHashMap<>();
 
+    public static String getSchemaFromFileName(final String filename) throws IOException {
+        return getResource("graphql/" + filename + ".graphql");
     }
 
     public static String getBpmSchemaFromFileName(final String filename) throws IOException {
-        return new String(
-                GraphqlSchemaReaderUtil.class.getClassLoader()
-                        .getResourceAsStream("bpm/graphql/" + filename + ".graphql")
-                        .readAllBytes());
+        return getResource("bpm/graphql/" + filename + ".graphql");
+    }
+
+    private static String getResource(final String path) throws IOException {
+        try {
+            return documents.computeIfAbsent(path, GraphqlSchemaReaderUtil::readResource);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String readResource(final String path) {
+        try (InputStream stream = GraphqlSchemaReaderUtil.class.getClassLoader().getResourceAsStream(path)) {
+            if (stream == null)
+                throw new UncheckedIOException(new IOException("GraphQL document not found:" + path));
 
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
@@ -31,6 +31,7 @@ import org.springframework.context.annotation.Configuration
 import org.springframework.stereotype.Component
 import org.springframework.web.servlet.config.annotation.CorsRegistry
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer
+import java.time.Duration
 
 /**
  * Configuration class to read all application properties.
@@ -82,10 +83,106 @@ open class ServiceConfig: SecurityServiceConfig, ServiceConfigBpm, ServiceConfig
     private val cacheProviderUri: String = "Issuer uri not defined"
     fun getCacheProvider() =  cacheProviderUri
 
+    @Value("\${microservice.cache.near-cache.rate-ttl:5m}")
+    val cacheNearCacheRateTtl: Duration = Duration.ofMinutes(5)
+
+    @Value("\${microservice.cache.near-cache.document-types-ttl:30m}")
+    val cacheNearCacheDocumentTypesTtl: Duration = Duration.ofMinutes(30)
+
+    @Value("\${microservice.cache.near-cache.timeout:5s}")
+    val cacheNearCacheTimeout: Duration = Duration.ofSeconds(5)
+
     @Value("\${microservice.bup.provider-uri}")
     private val bupProviderUri: String = "Issuer uri not defined"
     fun getBupProvider() =  bupProviderUri
 
+    @Value("\${microservice.graphql.persisted-queries:true}")
+    val persistedQueries: Boolean = true
+
+    @Value("\${microservice.graphql.batch.enabled:true}")
+    val graphqlBatch: Boolean = true
+
+    @Value("\${microservice.graphql.batch.window:5ms}")
+    val graphqlBatchWindow: Duration = Duration.ofMillis(5)
+
+    @Value("\${microservice.graphql.batch.max-size:50}")
+    val graphqlBatchMaxSize: Int = 50
+
+    @Value("\${microservice.bup.fan-out.max-concurrency:8}")
+    val bupFanOutMaxConcurrency: Int = 8
+
+    @Value("\${microservice.bup.identity-cache.ttl:10m}")
+    val bupIdentityCacheTtl: Duration = Duration.ofMinutes(10)
+
+    @Value("\${microservice.bup.identity-cache.max-size:10000}")
+    val bupIdentityCacheMaxSize: Long = 10_000
+
+    @Value("\${microservice.graphql.single-flight.enabled:true}")
+    val graphqlSingleFlight: Boolean = true
+
+    @Value("\${microservice.grid.totals.ttl:5m}")
+    val gridTotalsTtl: Duration = Duration.ofMinutes(5)
+
+    @Value("\${microservice.grid.totals.max-size:10000}")
+    val gridTotalsMaxSize: Long = 10_000
+
+    @Value("\${microservice.grid.pages.ttl:10m}")
+    val gridPagesTtl: Duration = Duration.ofMinutes(10)
+
+    @Value("\${microservice.grid.pages.max-rows:50000}")
+    val gridPagesMaxRows: Long = 50_000
+
+    @Value("\${microservice.grid.prefetch.enabled:true}")
+    val gridPrefetch: Boolean = true
+
+    @Value("\${microservice.grid.prefetch.ttl:10s}")
+    val gridPrefetchTtl: Duration = Duration.ofSeconds(10)
+
+    @Value("\${microservice.grid.prefetch.max-size:1000}")
+    val gridPrefetchMaxSize: Long = 1_000
+
+    @Value("\${microservice.grid.prefetch.min-hit-rate:0.5}")
+    val gridPrefetchMinHitRate: Double = 0.5
+
+    @Value("\${microservice.grid.prefetch.max-latency:800ms}")
+    val gridPrefetchMaxLatency: Duration = Duration.ofMillis(800)
+
+    @Value("\${microservice.grid.prefetch.cooldown:5m}")
+    val gridPrefetchCooldown: Duration = Duration.ofMinutes(5)
+
+    @Value("\${microservice.grid.stream.max-chunk-size:500}")
+    val gridStreamMaxChunkSize: Int = 500
+
+    @Value("\${microservice.grid.stream.max-rows:100000}")
+    val gridStreamMaxRows: Int = 100_000
+
+    @Value("\${microservice.reference-data.refresh:1h}")
+    val referenceDataRefresh: Duration = Duration.ofHours(1)
+
+    @Value("\${microservice.reference-data.snapshot.dir:}")
+    val referenceDataSnapshotDir: String = ""
+
+    @Value("\${microservice.reference-data.address-index.enabled:true}")
+    val addressIndexEnabled: Boolean = true
+
+    @Value("\${microservice.reference-data.address-index.page-size:5000}")
+    val addressIndexPageSize: Int = 5000
+
+    @Value("\${microservice.import.dir:}")
+    val importDir: String = ""
+
+    @Value("\${microservice.import.max-concurrency:8}")
+    val importMaxConcurrency: Int = 8
+
+    @Value("\${microservice.import.upload-ttl:1h}")
+    val importUploadTtl: Duration = Duration.ofHours(1)
+
+    @Value("\${microservice.virtual-threads.enabled:false}")
+    val virtualThreads: Boolean = false
+
+    @Value("\${microservice.virtual-threads.pinned-threshold:20ms}")
+    val virtualThreadsPinnedThreshold: Duration = Duration.ofMillis(20)
+
     @Value("\${microservice.order.provider-uri}")
     private val orderProviderUri: String = "Issuer uri not defined"
     fun getOrderProvider() =  orderProviderUri
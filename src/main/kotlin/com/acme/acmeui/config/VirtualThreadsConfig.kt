@@ -0,0 +1,153 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  VirtualThreadsConfig.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.config
+
+import com.ailegorreta.client.security.utils.HasLogger
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import jdk.jfr.consumer.RecordedEvent
+import jdk.jfr.consumer.RecordingStream
+import org.apache.coyote.ProtocolHandler
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.event.EventListener
+import org.springframework.core.task.AsyncTaskExecutor
+import org.springframework.core.task.support.TaskExecutorAdapter
+import org.springframework.scheduling.annotation.AsyncAnnotationBeanPostProcessor
+import org.springframework.stereotype.Component
+import java.time.Duration
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Configuration to execute the Tomcat requests (i.e., Hilla endpoints, Flow views and REST calls) and the
+ * application tasks in virtual threads.
+ *
+ * It is enabled with the property 'microservice.virtual-threads.enabled' and it needs a JDK 21 at runtime. The
+ * application is still compiled for Java 17, so the virtual thread executor is created by reflection.
+ *
+ * Since a virtual thread that blocks inside a 'synchronized' block pins its carrier thread, the
+ * VirtualThreadPinnedMonitor reports (log and metric) all pinned events that last more than the configured
+ * threshold.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "microservice.virtual-threads", name = ["enabled"], havingValue = "true")
+class VirtualThreadsConfig {
+
+    companion object {
+        fun newVirtualThreadPerTaskExecutor(): ExecutorService =
+            try {
+                Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+            } catch (e: NoSuchMethodException) {
+                throw IllegalStateException("Los hilos virtuales requieren JDK 21 o superior, la versión actual es:" +
+                                            Runtime.version())
+            }
+    }
+
+    @Bean
+    fun virtualThreadExecutor(): ExecutorService = newVirtualThreadPerTaskExecutor()
+
+    /**
+     * Tomcat creates a new virtual thread for every request instead of using its platform threads pool
+     */
+    @Bean
+    fun virtualThreadsProtocolHandlerCustomizer(virtualThreadExecutor: ExecutorService): TomcatProtocolHandlerCustomizer<*> =
+        TomcatProtocolHandlerCustomizer<ProtocolHandler> { protocolHandler ->
+            protocolHandler.executor = virtualThreadExecutor
+        }
+
+    /**
+     * Executor for @Async methods, Spring MVC async requests and any background task of the Flow views
+     */
+    @Bean(name = [TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME,
+                  AsyncAnnotationBeanPostProcessor.DEFAULT_TASK_EXECUTOR_BEAN_NAME])
+    fun applicationTaskExecutor(virtualThreadExecutor: ExecutorService): AsyncTaskExecutor =
+        TaskExecutorAdapter(virtualThreadExecutor)
+
+    @Bean
+    fun virtualThreadPinnedMonitor(serviceConfig: ServiceConfig, meterRegistry: MeterRegistry) =
+        VirtualThreadPinnedMonitor(serviceConfig.virtualThreadsPinnedThreshold, meterRegistry)
+}
+
+/**
+ * Listens the JFR event 'jdk.VirtualThreadPinned', that is generated when a virtual thread blocks while it is
+ * pinned to its carrier thread (i.e., inside a synchronized block or a native call).
+ *
+ * Every event is logged with the top of its stack trace and counted in the metric 'acme.virtual-threads.pinned'.
+ */
+class VirtualThreadPinnedMonitor(threshold: Duration,
+                                 meterRegistry: MeterRegistry): DisposableBean, HasLogger {
+    companion object {
+        const val VIRTUAL_THREAD_PINNED = "jdk.VirtualThreadPinned"
+        const val STACK_FRAMES = 8
+    }
+
+    private val pinnedCounter = Counter.builder("acme.virtual-threads.pinned")
+                                       .description("Veces que un hilo virtual se bloqueó fijo a su hilo de plataforma")
+                                       .register(meterRegistry)
+    private val recordingStream = RecordingStream()
+
+    init {
+        recordingStream.enable(VIRTUAL_THREAD_PINNED).withThreshold(threshold).withStackTrace()
+        recordingStream.onEvent(VIRTUAL_THREAD_PINNED) { event -> pinned(event) }
+        recordingStream.startAsync()
+    }
+
+    private fun pinned(event: RecordedEvent) {
+        pinnedCounter.increment()
+        logger.warn("Hilo virtual fijo (pinned) por ${event.duration.toMillis()}ms en:" +
+                    (event.stackTrace?.frames?.take(STACK_FRAMES)
+                                              ?.joinToString(separator = "\n\t", prefix = "\n\t") { frame ->
+                                                  "${frame.method.type.name}.${frame.method.name}:${frame.lineNumber}"
+                                              } ?: " sin stack trace"))
+    }
+
+    override fun destroy() {
+        recordingStream.close()
+    }
+}
+
+/**
+ * Logs at startup the execution mode of the application
+ */
+@Component
+class ExecutionModeLogger(private val serviceConfig: ServiceConfig): HasLogger {
+
+    @EventListener(ApplicationReadyEvent::class)
+    fun logExecutionMode() {
+        if (serviceConfig.virtualThreads)
+            logger.info("Modo de ejecución: hilos virtuales (JDK ${Runtime.version()}), reporte de hilos fijos mayores a " +
+                        "${serviceConfig.virtualThreadsPinnedThreshold.toMillis()}ms")
+        else
+            logger.info("Modo de ejecución: pool de hilos de plataforma de Tomcat (JDK ${Runtime.version()})")
+    }
+}
@@ -0,0 +1,53 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  BulkImport.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+/**
+ * Bulk import of companies or persons from a CSV or XLSX file (see BulkImportService)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+enum class ImportEntity {
+    COMPANIAS, PERSONAS
+}
+
+/**
+ * A row of the file that could not be imported. 'row' is the row number in the file (the header is the row 1)
+ */
+data class ImportRowError(val row: Long,
+                          val message: String)
+
+/**
+ * Progress of a bulk import. 'errors' has just the rows that failed since the previous progress, so the client
+ * must keep them. 'rowsPerSecond' is the throughput since the import started.
+ */
+data class ImportProgress(val importId: String,
+                          val entity: ImportEntity,
+                          val rows: Long,
+                          val imported: Long,
+                          val failed: Long,
+                          val rowsPerSecond: Double,
+                          val done: Boolean,
+                          val errors: List<ImportRowError> = emptyList())
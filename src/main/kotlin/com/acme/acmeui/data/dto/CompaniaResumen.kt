@@ -0,0 +1,126 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  CompaniaResumen.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import java.time.LocalDateTime
+
+/**
+ * Summary of a Company for the companies grid. It has just the columns that the grid shows, for the
+ * relationships (areas, subsidiarias and proveedores) just the number of them and the name of the first one.
+ * The RFC and the state of the first address are also in the summary because the grid can filter by them.
+ *
+ * The full Compania is read only when the user opens it for editing.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+data class CompaniaResumen(var _id: String?,
+                           var nombre: String,
+                           var usuarioModificacion: String? = null,
+                           var fechaModificacion: LocalDateTime? = null,
+                           val activo: Boolean = true,
+                           val sector: String? = null,
+                           val rfc: String? = null,
+                           val estado: String? = null,
+                           val areas: Int = 0,
+                           val area: String? = null,
+                           val subsidiarias: Int = 0,
+                           val subsidiaria: String? = null,
+                           val proveedores: Int = 0,
+                           val proveedor: String? = null) {
+    override fun hashCode(): Int = _id.hashCode()
+
+    var idNeo4j = _id       // this is because the mapping done from the endpoint with '_id' it ignores de underscore
+                            // and make it wrong
+
+    companion object {
+        fun of(compania: Compania) = CompaniaResumen(_id = compania._id,
+                                                     nombre = compania.nombre,
+                                                     usuarioModificacion = compania.usuarioModificacion,
+                                                     fechaModificacion = compania.fechaModificacion,
+                                                     activo = compania.activo,
+                                                     sector = compania.sector?.nombre,
+                                                     rfc = compania.rfc.rfc,
+                                                     estado = compania.direcciones?.firstNotNullOfOrNull { it.codigo?.estado?.nombre },
+                                                     areas = compania.areas?.size ?: 0,
+                                                     area = compania.areas?.firstOrNull()?.nombre,
+                                                     subsidiarias = compania.subsidiarias?.size ?: 0,
+                                                     subsidiaria = compania.subsidiarias?.firstOrNull()?.nombre,
+                                                     proveedores = compania.proveedores?.size ?: 0,
+                                                     proveedor = compania.proveedores?.firstOrNull()?.to?.nombre)
+    }
+}
+
+/**
+ * Company as it is read by the 'allCompaniesSummary' document, i.e., the relationships with just the names
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class CompaniaResumenGraphql(val _id: String?,
+                                  val nombre: String,
+                                  val usuarioModificacion: String? = null,
+                                  val fechaModificacion: LocalDateTime? = null,
+                                  val activo: Boolean = true,
+                                  val sector: Nombre? = null,
+                                  val rfc: Rfc? = null,
+                                  val direcciones: Collection<DireccionEstado>? = null,
+                                  val areas: Collection<Nombre>? = null,
+                                  val subsidiarias: Collection<Nombre>? = null,
+                                  val proveedores: Collection<RelacionNombre>? = null) {
+    fun toResumen() = CompaniaResumen(_id = _id,
+                                      nombre = nombre,
+                                      usuarioModificacion = usuarioModificacion,
+                                      fechaModificacion = fechaModificacion,
+                                      activo = activo,
+                                      sector = sector?.nombre,
+                                      rfc = rfc?.rfc,
+                                      estado = direcciones?.firstNotNullOfOrNull { it.codigo?.estado?.nombre },
+                                      areas = areas?.size ?: 0,
+                                      area = areas?.firstOrNull()?.nombre,
+                                      subsidiarias = subsidiarias?.size ?: 0,
+                                      subsidiaria = subsidiarias?.firstOrNull()?.nombre,
+                                      proveedores = proveedores?.size ?: 0,
+                                      proveedor = proveedores?.firstOrNull()?.to?.nombre)
+}
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class Nombre(val nombre: String? = null)
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class RelacionNombre(val to: Nombre? = null)
+
+/**
+ * Address with just the name of its state, i.e., 'direcciones { codigo { estado { nombre } } }'
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class DireccionEstado(val codigo: CodigoEstado? = null) {
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    data class CodigoEstado(val estado: Nombre? = null)
+}
+
+data class GraphqlResponseCompaniasResumen(val data: Data? = null,
+                                           val errors: Collection<Map<String, Any>>? = null) {
+    data class Data(val companias: List<CompaniaResumenGraphql>,
+                    val companiasCount: String? = null)     // just when the document is sent 'countByNombre'
+}
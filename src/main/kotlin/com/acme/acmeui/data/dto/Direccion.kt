@@ -60,6 +60,13 @@ data class GraphqlResponseDirecciones(val data: Data? = null,
                                 // ^ this is correct name since is the GraphQL generated schema
 }
 
+/** Just the cities of the addresses (see allCities.graphql) */
+data class GraphqlResponseCiudades(val data: Data? = null,
+                                   val errors: Collection<Map<String, Any>>? = null) {
+    data class Data(val direccions: List<Ciudad>)
+    data class Ciudad(val ciudad: String?)
+}
+
 data class GraphqlResponseCreateDireccion(val data: Data? = null,
                                           val errors: Collection<Map<String, Any>>? = null) {
     data class Data(val createDireccion: Direccion)
@@ -70,24 +77,22 @@ data class GraphqlResponseDeleteDireccion(val data: Data? = null,
     data class Data(val deleteDireccion: Direccion)
 }
 
-/** Direccion -> Codigo 1: 1 */
-data class GraphqlResponseAddDireccionCodigo(val data: Data? = null,
-                                             val errors: Collection<Map<String, Any>>? = null) {
-    data class Data(val addDireccionCodigo: Direccion)
-}
-data class GraphqlResponseDeleteDireccionCodigo(val data: Data? = null,
-                                                val errors: Collection<Map<String, Any>>? = null) {
-    data class Data(val deleteDireccionCodigo: Direccion)
+/**
+ * Direccion -> Codigo 1: 1 and Direccion -> Municipio 1: 1 in one document (see addAddressLinks.graphql). The
+ * fields are nullable because the server returns the data of the links that were added even if the other fails.
+ */
+data class GraphqlResponseAddDireccionLinks(val data: Data? = null,
+                                            val errors: Collection<Map<String, Any>>? = null) {
+    data class Data(val addDireccionCodigo: Direccion? = null,
+                    val addDireccionMunicipio: Direccion? = null)
 }
 
-/** Direccion -> Municipio  1: 1 */
-data class GraphqlResponseAddDireccionMunicipio(val data: Data? = null,
-                                                val errors: Collection<Map<String, Any>>? = null) {
-    data class Data(val addDireccionMunicipio: Direccion)
-}
-data class GraphqlResponseDeleteDireccionMunicipio(val data: Data? = null,
+/** Deletes the links to Codigo and Municipio and the Direccion in one document (see deleteAddressWithLinks.graphql) */
+data class GraphqlResponseDeleteDireccionWithLinks(val data: Data? = null,
                                                    val errors: Collection<Map<String, Any>>? = null) {
-    data class Data(val deleteDireccionMunicipio: Direccion)
+    data class Data(val deleteDireccionCodigo: Direccion? = null,
+                    val deleteDireccionMunicipio: Direccion? = null,
+                    val deleteDireccion: Direccion? = null)
 }
 
 /** Direccion -> Compania 1:m */
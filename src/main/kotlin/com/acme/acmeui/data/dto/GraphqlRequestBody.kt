@@ -22,16 +22,30 @@
  */
 package com.acme.acmeui.data.dto
 
+import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.databind.PropertyNamingStrategies
 import com.fasterxml.jackson.databind.annotation.JsonNaming
 
 /**
  * Generic JSON format to make request body for GraphQL param server
  *
+ * When the query is sent as an Automatic Persisted Query the 'query' is null and the 'extensions' has the
+ * SHA-256 hash of the document.
+ *
  * @project acme-ui
  * @autho: rlh
  * @date: November 2023
  */
 @JsonNaming(PropertyNamingStrategies.SnakeCaseStrategy::class)
-data class GraphqlRequestBody(val query: String,
-                              val variables: Any? = null)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class GraphqlRequestBody(val query: String?,
+                              val variables: Any? = null,
+                              val extensions: Map<String, Any>? = null) {
+    companion object {
+        fun persistedQueryExtension(sha256: String) = mapOf("persistedQuery" to mapOf("version" to 1,
+                                                                                      "sha256Hash" to sha256))
+
+        fun persisted(sha256: String, variables: Any? = null) = GraphqlRequestBody(null, variables,
+                                                                                   persistedQueryExtension(sha256))
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GridQuery.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+/**
+ * Filter and sort model of a Hilla grid, as it is received by the endpoints: the grid filters
+ * ('[{path, value}]') and the grid sort orders ('[{path, direction}]').
+ *
+ * The blank filters are ignored and just the first sort order is kept (the grids are not multi-sort). The
+ * service maps them to the variables of the BUP query (see GridQueryDescriptor).
+ *
+ * It is a data class because it is part of the key of the pages and totals kept by the data providers.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+data class GridQuery(val filters: Map<String, String> = emptyMap(),
+                     val sortPath: String? = null,
+                     val descending: Boolean = false) {
+
+    fun filter(path: String): String? = filters[path]
+
+    /**
+     * Same query with the filter 'path' (i.e., a filter that is not in the grid, like the persons 'solo activos')
+     */
+    fun with(path: String, value: String) = copy(filters = filters + (path to value))
+
+    companion object {
+        @JvmStatic
+        fun of(filters: List<Map<*, *>>?, sortOrders: List<Map<*, *>>?): GridQuery {
+            val values = LinkedHashMap<String, String>()
+
+            filters?.forEach { filter ->
+                val path = filter["path"] as? String
+                val value = filter["value"]?.toString()?.trim()
+
+                if (path != null && !value.isNullOrEmpty()) values[path] = value
+            }
+
+            val sort = sortOrders?.firstOrNull { it["path"] != null && it["direction"] != null }
+
+            return GridQuery(values, sort?.get("path") as? String, sort?.get("direction") == "desc")
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  KeysetCursor.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+import java.nio.charset.StandardCharsets
+import java.util.Base64
+
+/**
+ * Cursor for the keyset pagination: the sort key and the _id of the last row of the previous page.
+ *
+ * The next page is read with 'sortKey > cursor.sortKey OR (sortKey = cursor.sortKey AND _id > cursor.id)' instead
+ * of skipping rows, so every page costs the same no matter how deep it is, and an insert does not move rows
+ * between the pages already read.
+ *
+ * For the client the cursor is opaque: base64url of 'sortKey|_id'.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+data class KeysetCursor(val sortKey: String, val id: String) {
+
+    fun encode(): String = Base64.getUrlEncoder()
+                                 .withoutPadding()
+                                 .encodeToString("$sortKey$SEPARATOR$id".toByteArray(StandardCharsets.UTF_8))
+
+    companion object {
+        private const val SEPARATOR = '|'
+
+        /**
+         * note: The sort key can have the separator, the _id not, so the last separator is taken.
+         */
+        fun decode(cursor: String): KeysetCursor {
+            val text = try {
+                            String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8)
+                        } catch (e: IllegalArgumentException) {
+                            throw IllegalArgumentException("Cursor de paginación inválido:$cursor")
+                        }
+            val separator = text.lastIndexOf(SEPARATOR)
+
+            if (separator < 0)
+                throw IllegalArgumentException("Cursor de paginación inválido:$cursor")
+
+            return KeysetCursor(text.substring(0, separator), text.substring(separator + 1))
+        }
+
+        /**
+         * Cursor of the next page, or null if the page was the last one
+         */
+        fun <T> next(content: List<T>, size: Int, key: (T) -> Pair<String?, Any?>): String? {
+            if (content.size < size) return null
+
+            val (sortKey, id) = key(content.last())
+
+            return if (id == null) null else KeysetCursor(sortKey ?: "", id.toString()).encode()
+        }
+    }
+}
@@ -47,7 +47,8 @@ data class Order(var _id: Long?,
 
 data class GraphqlResponseOrders(val data: Data? = null,
                                  val errors: Collection<Map<String, Any>>? = null) {
-    data class Data(val orders: List<Order>)
+    data class Data(val orders: List<Order>,
+                    val ordersCount: String? = null)        // just when the document is sent 'withCount'
 }
 
 data class GraphqlResponseOrdersCount(val data: Data? = null,
@@ -0,0 +1,108 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PersonaResumen.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import java.time.LocalDateTime
+
+/**
+ * Summary of a Person for the persons grid. It has just the columns that the grid shows, for the relationships
+ * (trabaja and emails) just the number of them and the first one. The RFC and the state of the first address are
+ * also in the summary because the grid can filter by them.
+ *
+ * The full Persona is read only when the user opens it for editing.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+data class PersonaResumen(var _id: String?,
+                          var nombre: String,
+                          var apellidoPaterno: String,
+                          var apellidoMaterno: String,
+                          var usuarioModificacion: String? = null,
+                          var fechaModificacion: LocalDateTime? = null,
+                          val activo: Boolean = true,
+                          val rfc: String? = null,
+                          val estado: String? = null,
+                          val empresas: Int = 0,
+                          val empresa: String? = null,
+                          val emails: Int = 0,
+                          val email: String? = null) {
+    override fun hashCode(): Int = _id.hashCode()
+
+    var idNeo4j = _id       // this is because the mapping done from the endpoint with '_id' it ignores de underscore
+                            // and make it wrong
+
+    companion object {
+        fun of(persona: Persona) = PersonaResumen(_id = persona._id,
+                                                  nombre = persona.nombre,
+                                                  apellidoPaterno = persona.apellidoPaterno,
+                                                  apellidoMaterno = persona.apellidoMaterno,
+                                                  usuarioModificacion = persona.usuarioModificacion,
+                                                  fechaModificacion = persona.fechaModificacion,
+                                                  activo = persona.activo,
+                                                  rfc = persona.rfc.rfc,
+                                                  estado = persona.direcciones?.firstNotNullOfOrNull { it.codigo?.estado?.nombre },
+                                                  empresas = persona.trabaja?.size ?: 0,
+                                                  empresa = persona.trabaja?.firstOrNull()?.to?.nombre,
+                                                  emails = persona.emails?.size ?: 0,
+                                                  email = persona.emails?.firstOrNull()?.email)
+    }
+}
+
+/**
+ * Person as it is read by the 'allPersonsSummary' document, i.e., the relationships with just the names
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+data class PersonaResumenGraphql(val _id: String?,
+                                 val nombre: String,
+                                 val apellidoPaterno: String,
+                                 val apellidoMaterno: String,
+                                 val usuarioModificacion: String? = null,
+                                 val fechaModificacion: LocalDateTime? = null,
+                                 val activo: Boolean = true,
+                                 val rfc: Rfc? = null,
+                                 val direcciones: Collection<DireccionEstado>? = null,
+                                 val trabaja: Collection<RelacionNombre>? = null,
+                                 val emails: Collection<EmailAsignado>? = null) {
+    fun toResumen() = PersonaResumen(_id = _id,
+                                     nombre = nombre,
+                                     apellidoPaterno = apellidoPaterno,
+                                     apellidoMaterno = apellidoMaterno,
+                                     usuarioModificacion = usuarioModificacion,
+                                     fechaModificacion = fechaModificacion,
+                                     activo = activo,
+                                     rfc = rfc?.rfc,
+                                     estado = direcciones?.firstNotNullOfOrNull { it.codigo?.estado?.nombre },
+                                     empresas = trabaja?.size ?: 0,
+                                     empresa = trabaja?.firstOrNull()?.to?.nombre,
+                                     emails = emails?.size ?: 0,
+                                     email = emails?.firstOrNull()?.email)
+}
+
+data class GraphqlResponsePersonasResumen(val data: Data? = null,
+                                          val errors: Collection<Map<String, Any>>? = null) {
+    data class Data(val personae: List<PersonaResumenGraphql>,
+                    val personasCount: String? = null)      // just when the document is sent 'countByApellido'
+}
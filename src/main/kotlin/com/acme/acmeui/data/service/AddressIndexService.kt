@@ -0,0 +1,381 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  AddressIndexService.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.Codigo
+import com.acme.acmeui.data.dto.Direccion
+import com.acme.acmeui.data.dto.Estado
+import com.acme.acmeui.data.dto.Municipio
+import com.acme.acmeui.service.cache.SnapshotStore
+import com.acme.acmeui.service.cache.SnapshotStore.Companion.getText
+import com.acme.acmeui.service.cache.SnapshotStore.Companion.writeText
+import com.acme.acmeui.service.graphql.securedMono
+import com.ailegorreta.client.security.utils.HasLogger
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.reactor.awaitSingleOrNull
+import org.springframework.stereotype.Service
+import reactor.core.publisher.Mono
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ * In memory index of the zip codes and the municipios (colonies), so the address forms do not call the BUP for
+ * every lookup.
+ *
+ * The zip codes are the index of two arrays (the _id and the state of every zip code), so a lookup is just two
+ * array reads. The states are kept just once and every zip code has the index of its state in a byte. The
+ * colonies are indexed by name (the same exact match that getColony.graphql does) with the numbers of their zip
+ * codes.
+ *
+ * The names of the colonies and the cities of the addresses are also kept in PrefixTries for the type-ahead of
+ * the address forms.
+ *
+ * The catalog is read from the BUP in pages the first time an address is looked up and while it is loading the
+ * lookups still go to the BUP. A zip code or colony that is not in the index is read from the BUP (it could be
+ * added by another node) and added to the index. The zip codes and colonies added in this node are added to the
+ * index by the endpoint (and the cities of the saved addresses), including the ones added while the index is loading.
+ *
+ * After every load the index is saved in a disk snapshot (see SnapshotStore). When the node starts the index is
+ * read from the snapshot, so the lookups are answered from memory at once, and the first lookup reads the catalog
+ * again in background to get the changes done while the node was down.
+ *
+ * note: The index is loaded by the first lookup with the token of the user (the CodigoService and MunicipioService
+ *       reads), not at startup with the token of the application like the sectors and states (see
+ *       ReferenceDataService).
+ * note: The reads do not lock, the writes (very few) and the snapshot serialization are done with a ReentrantLock
+ *       in order not to pin virtual threads.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Service
+class AddressIndexService(private val codigoService: CodigoService,
+                          private val municipioService: MunicipioService,
+                          private val direccionService: DireccionService,
+                          private val serviceConfig: ServiceConfig,
+                          private val snapshots: SnapshotStore,
+                          meterRegistry: MeterRegistry): HasLogger {
+    companion object {
+        const val MAX_ZIPCODE = 100_000         // the Mexican zip codes have five digits
+        const val NO_STATE: Byte = -1
+        const val RETRY_AFTER_MILLIS = 60_000L  // after a failed load
+        const val MAX_SUGGESTIONS = 50
+        const val SNAPSHOT = "address-index"
+    }
+
+    private class Colony(val id: String, val nombre: String, @Volatile var zipcodes: IntArray)
+
+    private class Index {
+        val states = CopyOnWriteArrayList<Estado>()
+        val zipcodeIds = arrayOfNulls<String>(MAX_ZIPCODE)
+        val zipcodeStates = ByteArray(MAX_ZIPCODE) { NO_STATE }
+        val zipcodeNumbers = HashMap<String, Int>()     // _id -> zip code, just read with the lock (see addZipcode)
+        val colonies = ConcurrentHashMap<String, Colony>()
+        val colonyNames = PrefixTrie()
+        val cities = PrefixTrie()
+        @Volatile var zipcodes = 0
+
+        fun codigo(cp: Int): Codigo? {
+            if (cp !in 0 until MAX_ZIPCODE) return null
+            val id = zipcodeIds[cp] ?: return null
+            val state = zipcodeStates[cp]
+
+            return Codigo(id, cp, if (state == NO_STATE) null else states[state.toInt()])
+        }
+
+        fun municipio(nombre: String): Municipio? =
+            colonies[nombre]?.let { colony -> Municipio(colony.id, colony.nombre,
+                                                        colony.zipcodes.mapNotNull { codigo(it) }) }
+
+        fun add(codigo: Codigo) {
+            val id = codigo._id ?: return
+
+            if (codigo.cp !in 0 until MAX_ZIPCODE) return
+            val previous = zipcodeIds[codigo.cp]
+
+            if (previous == null) zipcodes++
+            else if (previous != id) zipcodeNumbers.remove(previous)
+            zipcodeIds[codigo.cp] = id
+            zipcodeNumbers[id] = codigo.cp
+            zipcodeStates[codigo.cp] = codigo.estado?.let { stateIndex(it) } ?: NO_STATE
+        }
+
+        fun add(municipio: Municipio) {
+            val id = municipio._id ?: return
+            val zipcodes = municipio.codigos?.map { it.cp }?.toIntArray() ?: IntArray(0)
+
+            colonies.putIfAbsent(municipio.nombre, Colony(id, municipio.nombre, zipcodes))  // the first one, as BUP
+            colonyNames.add(municipio.nombre)
+        }
+
+        fun addZipcode(municipio: Municipio, idZipcode: String) {
+            val colony = colonies[municipio.nombre]?.takeIf { it.id == municipio._id } ?: return
+            val cp = zipcodeNumbers[idZipcode] ?: return
+
+            if (!colony.zipcodes.contains(cp)) colony.zipcodes = colony.zipcodes + cp
+        }
+
+        fun write(out: DataOutputStream) {
+            val states = states.toList()
+            val colonies = colonies.values.toList()
+            val cities = cities.names()
+
+            out.writeInt(states.size)
+            states.forEach { state ->
+                out.writeText(state._id)
+                out.writeText(state.nombre)
+                out.writeText(state.pais)
+            }
+            out.writeInt(zipcodeIds.count { it != null })
+            zipcodeIds.forEachIndexed { cp, id ->
+                if (id != null) {
+                    out.writeInt(cp)
+                    out.writeText(id)
+                    out.writeByte(zipcodeStates[cp].toInt())
+                }
+            }
+            out.writeInt(colonies.size)
+            colonies.forEach { colony ->
+                out.writeText(colony.id)
+                out.writeText(colony.nombre)
+                out.writeInt(colony.zipcodes.size)
+                colony.zipcodes.forEach { out.writeInt(it) }
+            }
+            out.writeInt(cities.size)
+            cities.forEach { out.writeText(it) }
+        }
+
+        fun read(buffer: ByteBuffer) {
+            repeat(buffer.int) { states.add(Estado(buffer.getText(), buffer.getText()!!, buffer.getText()!!)) }
+            repeat(buffer.int) {
+                val cp = buffer.int
+                val id = buffer.getText()!!
+
+                zipcodeIds[cp] = id
+                zipcodeNumbers[id] = cp
+                zipcodeStates[cp] = buffer.get()
+                zipcodes++
+            }
+            repeat(buffer.int) {
+                val id = buffer.getText()!!
+                val nombre = buffer.getText()!!
+
+                colonies[nombre] = Colony(id, nombre, IntArray(buffer.int) { buffer.int })
+                colonyNames.add(nombre)
+            }
+            repeat(buffer.int) { cities.add(buffer.getText()) }
+        }
+
+        private fun stateIndex(estado: Estado): Byte {
+            val i = states.indexOf(estado)
+
+            if (i >= 0) return i.toByte()
+            if (states.size >= Byte.MAX_VALUE) return NO_STATE
+            states.add(estado)
+
+            return (states.size - 1).toByte()
+        }
+    }
+
+    @Volatile private var index: Index? = null
+    private val lock = ReentrantLock()
+    private val loading = AtomicBoolean(false)
+    private val pendingUpdates = mutableListOf<(Index) -> Unit>()   // received while the index is loading
+    @Volatile private var lastFailure = 0L
+    @Volatile private var reconciled = false      // false while the index comes from the disk snapshot
+
+    private val hits = Counter.builder("acme.address-index.hits")
+                              .description("Búsquedas de códigos postales y municipios resueltas en memoria")
+                              .register(meterRegistry)
+    private val misses = Counter.builder("acme.address-index.misses")
+                                .description("Búsquedas de códigos postales y municipios enviadas al BUP")
+                                .register(meterRegistry)
+
+    init {
+        Gauge.builder("acme.address-index.zipcodes", this) { it.index?.zipcodes?.toDouble() ?: 0.0 }
+             .description("Códigos postales en el índice en memoria")
+             .register(meterRegistry)
+        if (serviceConfig.addressIndexEnabled)
+            snapshots.read(SNAPSHOT)?.let { saved ->
+                try {
+                    index = Index().also { it.read(saved.data) }
+                    logger.info("Índice de direcciones leído del snapshot en disco con ${index?.zipcodes} códigos postales")
+                } catch (e: Exception) {
+                    logger.warn("No se pudo leer el snapshot del índice de direcciones:${e.message}")
+                }
+            }
+    }
+
+    /**
+     * Type-ahead of the colonies: names that start (or that have a word that starts) with the prefix, without
+     * accents nor case. It is empty while the index is loading.
+     */
+    fun suggestColonies(prefix: String, limit: Int): List<String> =
+        index()?.colonyNames?.search(prefix, limit.coerceIn(1, MAX_SUGGESTIONS)) ?: emptyList()
+
+    fun suggestCities(prefix: String, limit: Int): List<String> =
+        index()?.cities?.search(prefix, limit.coerceIn(1, MAX_SUGGESTIONS)) ?: emptyList()
+
+    fun getZipcode(cp: Int?): List<Codigo>? = getZipcodeAsync(cp).block()
+
+    /**
+     * Same result as CodigoService.getZipcodeAsync(cp = cp). Must be called in the caller thread.
+     */
+    fun getZipcodeAsync(cp: Int?): Mono<List<Codigo>> {
+        val codigo = if (cp == null) null else index()?.codigo(cp)
+
+        if (codigo != null) {
+            hits.increment()
+            return Mono.just(listOf(codigo))
+        }
+        misses.increment()
+
+        return codigoService.getZipcodeAsync(null, cp)
+                            .doOnNext { codigos -> update { index -> codigos.forEach { index.add(it) } } }
+    }
+
+    fun getColony(nombre: String?): List<Municipio>? = getColonyAsync(nombre).block()
+
+    /**
+     * Same result as MunicipioService.getColonyAsync(nombre = nombre). Must be called in the caller thread.
+     */
+    fun getColonyAsync(nombre: String?): Mono<List<Municipio>> {
+        val municipio = if (nombre == null) null else index()?.municipio(nombre)
+
+        if (municipio != null) {
+            hits.increment()
+            return Mono.just(listOf(municipio))
+        }
+        misses.increment()
+
+        return municipioService.getColonyAsync(null, nombre)
+                               .doOnNext { municipios ->
+                                   update { index ->
+                                       municipios.forEach { municipio ->
+                                           municipio.codigos?.forEach { index.add(it) }
+                                           index.add(municipio)
+                                       }
+                                   }
+                               }
+    }
+
+    /**
+     * The saved zip code comes from the BUP without its state, so the state of the request is used
+     */
+    fun zipcodeAdded(saved: Codigo, estado: Estado?) = update { it.add(Codigo(saved._id, saved.cp, estado)) }
+
+    /**
+     * MunicipioService.addColony relates the new colony just with the first zip code of the request
+     */
+    fun colonyAdded(saved: Municipio, codigos: Collection<Codigo>?) =
+        update { it.add(Municipio(saved._id, saved.nombre, codigos?.take(1))) }
+
+    fun colonyZipcodeAdded(saved: Municipio, idZipcode: String) = update { it.addZipcode(saved, idZipcode) }
+
+    /**
+     * The colony was changed in another node (i.e., a new zip code), so the next lookup reads it from the BUP
+     */
+    fun colonyChanged(nombre: String) = update { it.colonies.remove(nombre) }
+
+    fun addressesSaved(direcciones: Collection<Direccion>?) =
+        update { index -> direcciones?.forEach { index.cities.add(it.ciudad) } }
+
+    private fun update(update: (Index) -> Unit) {
+        lock.withLock {
+            index?.let(update)
+            if (loading.get()) pendingUpdates.add(update)
+        }
+    }
+
+    /**
+     * Returns the index if it is loaded, else it starts to load it (in the caller thread, so it uses the token of
+     * the user) and returns null. An index read from the disk snapshot is returned and loaded again in background.
+     */
+    private fun index(): Index? {
+        val current = index
+
+        if ((current == null || !reconciled) && serviceConfig.addressIndexEnabled &&
+            System.currentTimeMillis() - lastFailure > RETRY_AFTER_MILLIS && loading.compareAndSet(false, true))
+            load().subscribe({ loaded ->
+                                 lock.withLock {
+                                     pendingUpdates.forEach { it(loaded) }
+                                     pendingUpdates.clear()
+                                     index = loaded
+                                     reconciled = true
+                                     loading.set(false)
+                                 }
+                                 // serialized with the lock, so an update does not change it half written
+                                 snapshots.write(SNAPSHOT) { out -> lock.withLock { loaded.write(out) } }
+                                 logger.info("Índice de direcciones cargado con ${loaded.zipcodes} códigos postales, " +
+                                             "${loaded.colonies.size} municipios y ${loaded.cities.size} ciudades")
+                             },
+                             { error ->
+                                 lastFailure = System.currentTimeMillis()
+                                 lock.withLock {
+                                     pendingUpdates.clear()
+                                     loading.set(false)
+                                 }
+                                 logger.error("Error al cargar el índice de direcciones:${error.message}")
+                             })
+
+        return current
+    }
+
+    private fun load(): Mono<Index> = securedMono {
+        val loaded = Index()
+        val size = serviceConfig.addressIndexPageSize
+        var page = 0
+
+        do {
+            val zipcodes = codigoService.allZipcodesAsync(page++, size).awaitSingleOrNull()
+                                    ?: throw IllegalStateException("No se pudieron leer los códigos postales")
+
+            zipcodes.forEach { loaded.add(it) }
+        } while (zipcodes.size == size)
+        page = 0
+        do {
+            val colonies = municipioService.allColoniesAsync(page++, size).awaitSingleOrNull()
+                                    ?: throw IllegalStateException("No se pudieron leer los municipios")
+
+            colonies.forEach { loaded.add(it) }
+        } while (colonies.size == size)
+        page = 0
+        do {
+            val cities = direccionService.allCitiesAsync(page++, size).awaitSingleOrNull()
+                                    ?: throw IllegalStateException("No se pudieron leer las ciudades")
+
+            cities.forEach { loaded.cities.add(it) }
+        } while (cities.size == size)
+
+        loaded
+    }
+}
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -47,52 +45,54 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
+class AreaService(private val graphqlClient: GraphqlClient,
                   private val eventService: EventService,
+                  private val identityCache: IdentityCache,
                   private val serviceConfig: ServiceConfig
 ): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun getArea(id: String? = null, nombre: String? = null): List<Area>? {
+    fun getArea(id: String? = null, nombre: String? = null): List<Area>? = getAreaAsync(id, nombre).block()
+
+    fun getAreaAsync(id: String? = null, nombre: String? = null): Mono<List<Area>> = securedMono {
         val variables = if (id == null) mutableMapOf("nombre" to nombre)
                         else if (nombre == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "nombre" to nombre)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getArea"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseAreas::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getArea", variables)
+                               .bodyToMono(GraphqlResponseAreas::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer las areas:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return res.data!!.areas
+        return@securedMono res.data!!.areas
+    }
+
+    fun addAreaIfNotExists(area: Area): Area? = addAreaIfNotExistsAsync(area).block()
+
+    /**
+     * Upsert of the area. The _id is read from the IdentityCache, so most calls do not go to the BUP
+     */
+    fun addAreaIfNotExistsAsync(area: Area): Mono<Area> = securedMono {
+        val id = identityCache.idAsync(IdentityCache.Kind.AREA, area.nombre) { upsertArea(area) }
+                              .awaitSingleOrNull() ?: return@securedMono null
+
+        return@securedMono Area(_id = id, nombre = area.nombre)
     }
 
-    fun addAreaIfNotExists(area: Area): Area? {
+    private fun upsertArea(area: Area): Mono<String> = securedMono {
         // check that not exists
-        val areas = getArea(nombre = area.nombre) ?: return null
+        val areas = getAreaAsync(nombre = area.nombre).awaitSingleOrNull() ?: return@securedMono null
 
-        if (areas.isNotEmpty()) return areas.first()
+        if (areas.isNotEmpty()) return@securedMono areas.first().idNeo4j
 
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addArea"),
-                                                    mutableMapOf("nombre" to area.nombre))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseCreateArea::class.java)
-                        .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addArea",
+                                     mutableMapOf("nombre" to area.nombre))
+                               .toEntity(GraphqlResponseCreateArea::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.body!!.errors != null) {
             logger.error("Error al añadir una área:" + (res?.body?.errors ?: ""))
@@ -100,16 +100,16 @@ class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:ALTA_AREA_COMPAÑIA", value = EventGraphqlError(res.body?.errors, mutableMapOf("area" to area))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_AREA_COMPAÑIA", value = res.body!!.data!!.createArea)
 
-        return res.body!!.data!!.createArea
+        return@securedMono res.body!!.data!!.createArea.idNeo4j
     }
 
-    private fun hasCompanies(id: String, idCompany: String): Boolean {
-        val areas = getArea(id = id)
+    private suspend fun hasCompanies(id: String, idCompany: String): Boolean {
+        val areas = getAreaAsync(id = id).awaitSingleOrNull()
 
         return if (areas == null) true
                else if (areas.size == 1)
@@ -120,20 +120,16 @@ class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
                 else true // this is not possible
     }
 
-    fun deleteAreaIfNotNeeded(id: String, idCompany: String): String? {
+    fun deleteAreaIfNotNeeded(id: String, idCompany: String): String? = deleteAreaIfNotNeededAsync(id, idCompany).block()
+
+    fun deleteAreaIfNotNeededAsync(id: String, idCompany: String): Mono<String> = securedMono {
         if (hasCompanies(id, idCompany))
-            return "El área tiene compañías asignadas. No se borró"
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteArea"),
-                                                    mutableMapOf("id" to id))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteArea::class.java)
-                            .block()
+            return@securedMono "El área tiene compañías asignadas. No se borró"
+
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteArea",
+                                     mutableMapOf("id" to id))
+                               .toEntity(GraphqlResponseDeleteArea::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.body!!.errors != null) {
             logger.error("Error al borrar el área:" + (res?.body?.errors ?: ""))
@@ -143,26 +139,23 @@ class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:BORRADO_AUTOMATICO_AREA_COMPAÑIA", value = graphQLError)
-            return "Error interno al tratar de borrar el área"
+            return@securedMono "Error interno al tratar de borrar el área"
         }
+        identityCache.evict(IdentityCache.Kind.AREA, id)
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "BORRADO_AUTOMATICO_AREA_COMPAÑIA", value = idCompany)
 
-        return null   // ok no error
+        return@securedMono null   // ok no error
     }
 
-    fun addAreaCompany(idArea: String, idCompany: String): Area {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAreaCompany"),
-                                        mutableMapOf("id" to idArea,
-                                                     "compania" to idCompany))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddAreaCompania::class.java)
-                            .block()
+    fun addAreaCompany(idArea: String, idCompany: String): Area = addAreaCompanyAsync(idArea, idCompany).block()!!
+
+    fun addAreaCompanyAsync(idArea: String, idCompany: String): Mono<Area> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addAreaCompany",
+                                     mutableMapOf("id" to idArea,
+                                                  "compania" to idCompany))
+                               .toEntity(GraphqlResponseAddAreaCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error al añadir la relación área compañía:" + (res?.body?.errors ?: ""))
@@ -178,21 +171,17 @@ class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                               eventName = "ASIGNACION_AREA_COMPAÑIA", value = res.body!!.data!!.addAreaCompania)
 
-        return res.body!!.data!!.addAreaCompania
+        return@securedMono res.body!!.data!!.addAreaCompania
     }
 
-    fun deleteAreaCompany(idArea: String, idCompany: String): Area {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAreaCompany"),
-                                                mutableMapOf("id" to idArea,
-                                                             "compania" to idCompany))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteAreaCompania::class.java)
-                            .block()
+    fun deleteAreaCompany(idArea: String, idCompany: String): Area = deleteAreaCompanyAsync(idArea, idCompany).block()!!
+
+    fun deleteAreaCompanyAsync(idArea: String, idCompany: String): Mono<Area> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteAreaCompany",
+                                     mutableMapOf("id" to idArea,
+                                                  "compania" to idCompany))
+                               .toEntity(GraphqlResponseDeleteAreaCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error borrar la relación área compañía:" + (res?.body?.errors ?: ""))
@@ -207,7 +196,7 @@ class AreaService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "DES_ASIGNACION_AREA_COMPAÑIA", value = res.body!!.data!!.deleteAreaCompania)
 
-        return res.body!!.data!!.deleteAreaCompania
+        return@securedMono res.body!!.data!!.deleteAreaCompania
     }
 
 }
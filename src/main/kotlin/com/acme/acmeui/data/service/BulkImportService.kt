@@ -0,0 +1,384 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  BulkImportService.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.*
+import com.acme.acmeui.service.graphql.securedFlux
+import com.ailegorreta.client.security.utils.HasLogger
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.reactor.awaitSingle
+import kotlinx.coroutines.reactor.awaitSingleOrNull
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withContext
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.stereotype.Service
+import reactor.core.publisher.Flux
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bulk import of companies and persons from a CSV or XLSX file, i.e., when a new client is onboarded.
+ *
+ * The file is uploaded first (see ImportController) and saved in 'microservice.import.dir', and then the client
+ * subscribes to importAsync() with the id of the upload and receives the progress as a Flux:
+ *  - The rows are read as a stream (see ImportRowReader), READ_AHEAD rows at a time in the IO dispatcher, and
+ *    the next rows are read just when there is room to save them (backpressure), so the file is never in memory.
+ *  - Every row is validated and converted to a company or person. A row with errors is not saved and its
+ *    errors are sent in the progress.
+ *  - Up to 'microservice.import.max-concurrency' rows are saved at the same time with the same addCompany or
+ *    addPerson of the forms. Their mutations are issued at the same time, so the GraphqlBatchLoader sends them
+ *    in a few merged documents, and their relationship steps are also limited by the FanOutExecutor.
+ *  - The progress is sent at most every PROGRESS_INTERVAL and at the end. If the client is slower, just the
+ *    last progress is kept (the errors are never lost, they are sent in the next progress).
+ * If the client cancels the subscription the import stops after the rows that are being saved.
+ *
+ * Columns (the header is case insensitive and the blanks and '_' are ignored):
+ *  - companias: nombre (required), sector (nombre of an existing sector), rfc, activo, padre, telefono,
+ *    telefonoCiudad, telefonoTipo.
+ *  - personas: nombre, apellidoPaterno, apellidoMaterno (required), fechaNacimiento (yyyy-MM-dd, dd/MM/yyyy or
+ *    XLSX date), genero, estadoCivil, curp, rfc, activo, telefono, telefonoCiudad, telefonoTipo, email (several
+ *    separated by blanks or ',').
+ * The addresses are not imported because they need the zip code and colony of the BUP; they are added in the
+ * forms.
+ *
+ * Metrics:
+ *  - acme.import.rows (tags entity and result 'imported' or 'failed'): its rate is the rows per second.
+ *  - acme.import.throughput: rows per second of every finished import.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Service
+class BulkImportService(private val companiaService: CompaniaService,
+                        private val personaService: PersonaService,
+                        private val referenceDataService: ReferenceDataService,
+                        private val serviceConfig: ServiceConfig,
+                        private val meterRegistry: MeterRegistry): HasLogger {
+    companion object {
+        const val READ_AHEAD = 100
+        val PROGRESS_INTERVAL: Duration = Duration.ofMillis(500)
+        val EXTENSIONS = setOf("csv", "txt", "xlsx")
+        private val DAY_MONTH_YEAR = DateTimeFormatter.ofPattern("d/M/yyyy")
+        private val EXCEL_EPOCH = LocalDate.of(1899, 12, 30)
+    }
+
+    private data class Upload(val file: Path, val fileName: String, val owner: String, val uploadedAt: Instant)
+
+    private val uploads = ConcurrentHashMap<String, Upload>()
+    private val directory: Path = if (serviceConfig.importDir.isBlank()) Path.of(System.getProperty("java.io.tmpdir"), "acme-ui-imports")
+                                  else Path.of(serviceConfig.importDir)
+
+    /**
+     * Saves the uploaded file in disk and returns the id to import it. Just the user that uploaded the file can
+     * import it.
+     */
+    fun store(fileName: String, input: InputStream): String {
+        if (fileName.substringAfterLast('.').lowercase() !in EXTENSIONS)
+            throw IllegalArgumentException("Tipo de archivo no soportado para importar:$fileName")
+        deleteExpiredUploads()
+        Files.createDirectories(directory)
+
+        val importId = UUID.randomUUID().toString()
+        val file = directory.resolve(importId + "." + fileName.substringAfterLast('.').lowercase())
+
+        Files.copy(input, file, StandardCopyOption.REPLACE_EXISTING)
+        uploads[importId] = Upload(file, fileName, SecurityContextHolder.getContext().authentication!!.name, Instant.now())
+        logger.info("Archivo $fileName para importar guardado con id $importId (${Files.size(file)} bytes)")
+
+        return importId
+    }
+
+    private fun deleteExpiredUploads() {
+        val expired = Instant.now().minus(serviceConfig.importUploadTtl)
+
+        uploads.entries.filter { it.value.uploadedAt.isBefore(expired) }
+                       .forEach { (importId, upload) ->
+                           if (uploads.remove(importId, upload)) Files.deleteIfExists(upload.file)
+                       }
+    }
+
+    /**
+     * Imports the uploaded file. The file is deleted at the end, so it can be imported just once.
+     */
+    fun importAsync(importId: String, entity: ImportEntity): Flux<ImportProgress> {
+        val userName = SecurityContextHolder.getContext().authentication!!.name
+        val upload = uploads[importId]
+
+        if (upload == null || upload.owner != userName)
+            return Flux.error(IllegalArgumentException("No existe el archivo a importar:$importId"))
+        if (!uploads.remove(importId, upload))
+            return Flux.error(IllegalArgumentException("El archivo $importId ya se está importando"))
+
+        return securedFlux<ImportProgress> {
+            val progress = Progress(importId, entity)
+
+            try {
+                ImportRowReader.open(upload.file, upload.fileName).use { reader ->
+                    importRows(reader, entity, userName, progress, channel)
+                }
+                send(progress.snapshot(done = true))
+                progress.finished()
+            } finally {
+                Files.deleteIfExists(upload.file)       // also if it was cancelled, so no suspending call here
+            }
+        }.onBackpressureLatest()
+    }
+
+    private suspend fun importRows(reader: ImportRowReader, entity: ImportEntity, userName: String,
+                                   progress: Progress, channel: SendChannel<ImportProgress>) = coroutineScope {
+        val limit = Semaphore(serviceConfig.importMaxConcurrency)
+
+        while (true) {
+            val rows = withContext(Dispatchers.IO) { reader.next(READ_AHEAD) }
+
+            if (rows.isEmpty()) break
+            rows.forEach { row ->
+                limit.acquire()     // backpressure: the next row waits until there is room to save it
+                launch {
+                    try {
+                        val errors = when (entity) {
+                            ImportEntity.COMPANIAS -> importCompany(row, userName)
+                            ImportEntity.PERSONAS -> importPerson(row, userName)
+                        }
+
+                        progress.row(row, errors)
+                    } catch (e: CancellationException) {
+                        throw e             // the client cancelled the import, the row is not a failure
+                    } catch (e: Exception) {
+                        progress.row(row, listOf("Error interno:${e.message}"))
+                    } finally {
+                        limit.release()
+                    }
+                    if (progress.isDue()) channel.send(progress.snapshot(done = false))
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the errors of the row, empty if the company was saved
+     */
+    private suspend fun importCompany(row: ImportRowReader.Row, userName: String): List<String> {
+        val errors = mutableListOf<String>()
+        val nombre = row.value("nombre") ?: return listOf("Falta el nombre")
+        val sectorName = row.value("sector")
+        val sector = sectorName?.let { name ->
+            referenceDataService.currentAsync().awaitSingle().sectors.firstOrNull { it.nombre.equals(name, ignoreCase = true) }
+        }
+
+        if (sectorName != null && sector == null) errors.add("No existe el sector $sectorName")
+        val company = Compania(_id = null,
+                               nombre = nombre,
+                               usuarioModificacion = userName,
+                               fechaModificacion = LocalDateTime.now(),
+                               activo = boolean(row, "activo", errors),
+                               padre = boolean(row, "padre", errors),
+                               sector = sector,
+                               rfc = Rfc(rfc = row.value("rfc")?.uppercase()),
+                               telefonos = telephone(row, TelefonoType.OFICINA, errors))
+
+        if (errors.isNotEmpty()) return errors
+        companiaService.uniqueValidatorAsync(company).awaitSingleOrNull()?.let { return listOf(it) }
+
+        return if (companiaService.addCompanyAsync(company).awaitSingleOrNull() == null) listOf("No se pudo guardar la compañía")
+               else emptyList()
+    }
+
+    /**
+     * Returns the errors of the row, empty if the person was saved
+     */
+    private suspend fun importPerson(row: ImportRowReader.Row, userName: String): List<String> {
+        val errors = mutableListOf<String>()
+        val nombre = row.value("nombre")
+        val apellidoPaterno = row.value("apellidoPaterno")
+        val apellidoMaterno = row.value("apellidoMaterno")
+
+        if (nombre == null || apellidoPaterno == null || apellidoMaterno == null)
+            return listOf("Falta el nombre, el apellido paterno o el apellido materno")
+
+        val person = Persona(_id = null,
+                             nombre = nombre,
+                             apellidoPaterno = apellidoPaterno,
+                             apellidoMaterno = apellidoMaterno,
+                             fechaNacimiento = date(row, "fechaNacimiento", errors),
+                             genero = enum<GeneroType>(row, "genero", errors),
+                             estadoCivil = enum<EstadoCivilType>(row, "estadoCivil", errors),
+                             usuarioModificacion = userName,
+                             fechaModificacion = LocalDateTime.now(),
+                             activo = boolean(row, "activo", errors),
+                             curp = row.value("curp")?.uppercase(),
+                             rfc = Rfc(rfc = row.value("rfc")?.uppercase()),
+                             telefonos = telephone(row, TelefonoType.CELULAR, errors),
+                             emails = row.value("email")?.split(' ', ',')
+                                                       ?.filter { it.isNotBlank() }
+                                                       ?.map { email ->
+                                                           if (!email.contains('@')) errors.add("El email $email no es válido")
+                                                           EmailAsignado(email)
+                                                       })
+
+        if (errors.isNotEmpty()) return errors
+        personaService.uniqueValidatorAsync(person).awaitSingleOrNull()?.let { return listOf(it) }
+
+        return if (personaService.addPersonAsync(person).awaitSingleOrNull() == null) listOf("No se pudo guardar la persona")
+               else emptyList()
+    }
+
+    private fun telephone(row: ImportRowReader.Row, defaultType: TelefonoType, errors: MutableList<String>): List<Telefono>? {
+        val numero = row.value("telefono")?.filter { it.isDigit() } ?: return null
+
+        if (numero.isEmpty()) {
+            errors.add("El teléfono ${row.value("telefono")} no es válido")
+            return null
+        }
+        val ciudad = row.value("telefonoCiudad")
+
+        if (ciudad == null) {
+            errors.add("Falta la ciudad del teléfono")
+            return null
+        }
+
+        return listOf(Telefono(_id = null, numero = numero, ciudad = ciudad,
+                               tipo = enum<TelefonoType>(row, "telefonoTipo", errors) ?: defaultType))
+    }
+
+    /**
+     * Empty is true (the default of the forms)
+     */
+    private fun boolean(row: ImportRowReader.Row, column: String, errors: MutableList<String>): Boolean =
+        when (row.value(column)?.lowercase()) {
+            null, "true", "1", "si", "sí", "s", "verdadero" -> true
+            "false", "0", "no", "n", "falso" -> false
+            else -> true.also { errors.add("El valor de $column no es sí o no:${row.value(column)}") }
+        }
+
+    private inline fun <reified T : Enum<T>> enum(row: ImportRowReader.Row, column: String, errors: MutableList<String>): T? {
+        val value = row.value(column) ?: return null
+        val result = enumValues<T>().firstOrNull { it.name.equals(value, ignoreCase = true) }
+
+        if (result == null) errors.add("El valor de $column debe ser uno de ${enumValues<T>().joinToString()}:$value")
+
+        return result
+    }
+
+    private fun date(row: ImportRowReader.Row, column: String, errors: MutableList<String>): LocalDate? {
+        val value = row.value(column) ?: return null
+
+        return try {
+            when {
+                value.contains('/') -> LocalDate.parse(value, DAY_MONTH_YEAR)
+                value.contains('-') -> LocalDate.parse(value.take(10))
+                else -> EXCEL_EPOCH.plusDays(value.toDouble().toLong())     // XLSX date cell
+            }
+        } catch (e: Exception) {
+            errors.add("La fecha de $column no es válida:$value")
+            null
+        }
+    }
+
+    /**
+     * Counters of one import. The rows are counted by the coroutines that save them, so they are atomic.
+     */
+    private inner class Progress(val importId: String, val entity: ImportEntity) {
+        private val startedAt = System.nanoTime()
+        private val imported = AtomicLong()
+        private val failed = AtomicLong()
+        private val lastReport = AtomicLong(startedAt)
+        private val errors = ConcurrentLinkedQueue<ImportRowError>()
+        private val importedCounter = counter("imported")
+        private val failedCounter = counter("failed")
+
+        fun row(row: ImportRowReader.Row, rowErrors: List<String>) {
+            if (rowErrors.isEmpty()) {
+                imported.incrementAndGet()
+                importedCounter.increment()
+            } else {
+                failed.incrementAndGet()
+                failedCounter.increment()
+                errors.add(ImportRowError(row.number, rowErrors.joinToString("; ")))
+            }
+        }
+
+        /**
+         * True for just one of the coroutines when PROGRESS_INTERVAL has passed since the last progress
+         */
+        fun isDue(): Boolean {
+            val last = lastReport.get()
+            val now = System.nanoTime()
+
+            return now - last >= PROGRESS_INTERVAL.toNanos() && lastReport.compareAndSet(last, now)
+        }
+
+        fun snapshot(done: Boolean): ImportProgress {
+            val newErrors = generateSequence { errors.poll() }.toList()
+            val rows = imported.get() + failed.get()
+
+            return ImportProgress(importId, entity, rows, imported.get(), failed.get(), rowsPerSecond(rows), done, newErrors)
+        }
+
+        fun finished() {
+            val rows = imported.get() + failed.get()
+
+            DistributionSummary.builder("acme.import.throughput")
+                               .description("Renglones por segundo de cada importación masiva")
+                               .baseUnit("rows/s")
+                               .tag("entity", entity.name)
+                               .register(meterRegistry)
+                               .record(rowsPerSecond(rows))
+            logger.info("Importación $importId de $entity terminada: ${imported.get()} importados, ${failed.get()} con " +
+                        "error, ${"%.1f".format(rowsPerSecond(rows))} renglones/s")
+        }
+
+        private fun rowsPerSecond(rows: Long): Double {
+            val seconds = (System.nanoTime() - startedAt) / 1_000_000_000.0
+
+            return if (seconds > 0) rows / seconds else 0.0
+        }
+
+        private fun counter(result: String) =
+            Counter.builder("acme.import.rows")
+                   .description("Renglones procesados por la importación masiva")
+                   .tag("entity", entity.name)
+                   .tag("result", result)
+                   .register(meterRegistry)
+    }
+}
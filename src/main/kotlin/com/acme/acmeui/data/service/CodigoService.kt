@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -50,47 +48,55 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class CodigoService(@Qualifier("authorization_code") val webClient: WebClient,
+class CodigoService(private val graphqlClient: GraphqlClient,
                     private val eventService: EventService,
                     private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun getZipcode(id: Long? = null, cp: Int? = null): List<Codigo>? {
+    fun getZipcode(id: Long? = null, cp: Int? = null): List<Codigo>? = getZipcodeAsync(id, cp).block()
+
+    fun getZipcodeAsync(id: Long? = null, cp: Int? = null): Mono<List<Codigo>> = securedMono {
         val variables = if (id == null) mutableMapOf("cp" to cp)
                         else if (cp == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "cp" to cp)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getZipcode"),
-            variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseGetCodigos::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getZipcode", variables)
+                               .bodyToMono(GraphqlResponseGetCodigos::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer los códigos:" + res?.errors)
-            return null
+            return@securedMono null
+        }
+
+        return@securedMono res.data!!.codigoes
+    }
+
+    /**
+     * Reads one page of all the zip codes sorted by _id, i.e., to load the AddressIndexService
+     */
+    fun allZipcodesAsync(page: Int, size: Int): Mono<List<Codigo>> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "allZipcodes",
+                                     mutableMapOf("options" to mapOf("skip" to page * size, "limit" to size,
+                                                                     "sort" to listOf(mapOf("_id" to "ASC")))))
+                               .bodyToMono(GraphqlResponseGetCodigos::class.java)
+                               .awaitSingleOrNull()
+
+        if (res == null || res.errors != null) {
+            logger.error("Error al leer la página $page de códigos postales:" + res?.errors)
+            return@securedMono null
         }
 
-        return res.data!!.codigoes
+        return@securedMono res.data!!.codigoes
     }
 
-    fun addZipcode(zipcode: Codigo): Codigo? {
-        val graphQLRequestBody = GraphqlRequestBody(
-            GraphqlSchemaReaderUtil.getSchemaFromFileName("addZipcode"),
-                                                        mutableMapOf("cp" to zipcode.cp))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateCodigo::class.java)
-                            .block()
+    fun addZipcode(zipcode: Codigo): Codigo? = addZipcodeAsync(zipcode).block()
+
+    fun addZipcodeAsync(zipcode: Codigo): Mono<Codigo> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addZipcode",
+                                     mutableMapOf("cp" to zipcode.cp))
+                               .toEntity(GraphqlResponseCreateCodigo::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un código postal:" + (res?.body?.errors ?: ""))
@@ -98,7 +104,7 @@ class CodigoService(@Qualifier("authorization_code") val webClient: WebClient,
                                    headers = res?.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:ALTA_CODIGO_POSTAL", value = EventGraphqlError(res?.body?.errors, mutableMapOf("zipcode" to zipcode))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_CODIGO_POSTAL", value = zipcode)
@@ -109,24 +115,18 @@ class CodigoService(@Qualifier("authorization_code") val webClient: WebClient,
                             idState = zipcode.estado!!.idNeo4j!!)
         } catch (e: Exception) {
             logger.error("Error al añadir la relación de código postal a estado:" + e.message)
-            return null
+            return@securedMono null
         }
 
-        return res.body!!.data!!.createCodigo
+        return@securedMono res.body!!.data!!.createCodigo
     }
 
-    private fun addZipcodeState(idZipcode: String, idState: String): Codigo {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addZipcodeState"),
-                                                    mutableMapOf("id" to idZipcode,
-                                                                  "estado" to idState))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddCodigoEstado::class.java)
-                            .block()
+    private suspend fun addZipcodeState(idZipcode: String, idState: String): Codigo {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addZipcodeState",
+                                     mutableMapOf("id" to idZipcode,
+                                                   "estado" to idState))
+                               .toEntity(GraphqlResponseAddCodigoEstado::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación código con estado:" + (res?.body?.errors ?: ""))
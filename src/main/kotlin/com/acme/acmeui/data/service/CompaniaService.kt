@@ -24,23 +24,30 @@ package com.acme.acmeui.data.service
 
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.boolean
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.contains
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.day
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.relationship
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.some
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.CompositeMutation
+import com.acme.acmeui.service.graphql.FanOutExecutor
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingle
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
-import reactor.core.publisher.Mono
 import org.springframework.data.domain.Page
+import org.springframework.data.domain.PageImpl
 import org.springframework.data.domain.PageRequest
 import org.springframework.data.support.PageableExecutionUtils
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import java.time.format.DateTimeFormatter
+import reactor.core.publisher.Mono
 
 /**
  * Companies to communicate to the BUP microservice server repo to get all companies
@@ -51,112 +58,136 @@ import java.time.format.DateTimeFormatter
  * @date February 2024
  */
 @Service
-class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
+class CompaniaService(private val graphqlClient: GraphqlClient,
                       private val areaService: AreaService,
                       private val telefonoService: TelefonoService,
                       private val direccionService: DireccionService,
                       private val rfcService: RfcService,
                       private val eventService: EventService,
+                      private val fanOutExecutor: FanOutExecutor,
                       private val serviceConfig: ServiceConfig): HasLogger {
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun allCompanies(nombre: String?, page: Int, size: Int): Page<Compania>? {
+    fun allCompanies(nombre: String?, page: Int, size: Int): Page<Compania>? = allCompaniesAsync(nombre, page, size).block()
+
+    fun allCompaniesAsync(nombre: String?, page: Int, size: Int): Mono<Page<Compania>> = securedMono {
         val variables = if (nombre.isNullOrBlank())
                             mutableMapOf("skip" to (page * size), "limit" to size)
                         else
                             mutableMapOf("nombre" to nombre,
                                          "skip" to (page * size), "limit" to size)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allCompaniesPageable"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseCompanias::class.java)
-                            .block()
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allCompaniesPageable",
+                                           variables)
+                               .bodyToMono(GraphqlResponseCompanias::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.errors != null)) {
             logger.error("Error al leer una página de compañías:" + res?.errors)
-            return null
+            return@securedMono null
+        }
+
+        return@securedMono PageableExecutionUtils.getPage(res.data!!.companias, PageRequest.of(page, size)) { 0 }
+    }
+
+    /**
+     * Page of companies for the grid. Just the summary is read, the full company is read with getCompany()
+     * when the user opens it for editing.
+     *
+     * The grid filter and sort are done by the BUP, see GRID for the grid paths that can be filtered and sorted.
+     * If a cursor is given the page is read after it (keyset pagination), otherwise it skips page * size rows.
+     * If the total is not known (i.e., null) it is read in the same document as the page, so the total always
+     * belongs to the same filter as the page. The BUP just counts by name (see isCounted), for any other filter
+     * the total is estimated (see GridQueryDescriptor.estimatedTotal) and it is exact only in the last page.
+     */
+    fun allCompaniesSummary(query: GridQuery, page: Int, size: Int,
+                            cursor: KeysetCursor? = null, total: Long? = null): Page<CompaniaResumen>? =
+        allCompaniesSummaryAsync(query, page, size, cursor, total).block()
+
+    fun allCompaniesSummaryAsync(query: GridQuery, page: Int, size: Int,
+                                 cursor: KeysetCursor? = null, total: Long? = null): Mono<Page<CompaniaResumen>> = securedMono {
+        val countByNombre = total == null && isCounted(query)
+        val variables = mapOf("filter" to GRID.filter(query, cursor),
+                              "options" to GRID.options(query, page, size, cursor),
+                              "nombre" to if (countByNombre) query.filter("nombre") else null,
+                              "countByNombre" to countByNombre)
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allCompaniesSummary",
+                                           variables.filterValues { it != null })
+                               .bodyToMono(GraphqlResponseCompaniasResumen::class.java)
+                               .awaitSingleOrNull()
+
+        if ((res == null) || (res.errors != null)) {
+            logger.error("Error al leer una página del resumen de compañías:" + res?.errors)
+            return@securedMono null
         }
 
-        return PageableExecutionUtils.getPage(res.data!!.companias, PageRequest.of(page, size)) { 0 }
+        return@securedMono PageImpl(res.data!!.companias.map { it.toResumen() }, PageRequest.of(page, size),
+                                    total ?: res.data.companiasCount?.toLong()
+                                          ?: GridQueryDescriptor.estimatedTotal(page, size, res.data.companias.size))
     }
 
-    fun count(nombre: String?) : Long {
-        val graphQLRequestBody = if (nombre.isNullOrBlank())
-                                    GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allCompaniesCount"))
-                                 else
-                                    GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allCompaniesCount"),
-                                                         mutableMapOf("nombre" to nombre))
-
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseCompaniasCount::class.java)
-                            .block()
+    /**
+     * True if the BUP can count the rows of the grid filter: companiasCount just filters by name
+     */
+    fun isCounted(query: GridQuery) = query.filters.keys.all { it == "nombre" }
+
+    fun count(nombre: String?): Long = countAsync(nombre).block()!!
+
+    fun countAsync(nombre: String?): Mono<Long> = securedMono {
+        val variables = if (nombre.isNullOrBlank()) null
+                        else mutableMapOf("nombre" to nombre)
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allCompaniesCount", variables)
+                               .bodyToMono(GraphqlResponseCompaniasCount::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.errors != null)) {
             logger.error("Error al leer una el número de registros en compañías:" + res?.errors)
-            return 0L
+            return@securedMono 0L
         }
 
-        return res.data!!.companiasCount.toLong()
+        return@securedMono res.data!!.companiasCount.toLong()
     }
 
-    fun getCompany(id: String? = null, nombre: String? = null): List<Compania>? {
+    fun getCompany(id: String? = null, nombre: String? = null): List<Compania>? = getCompanyAsync(id, nombre).block()
+
+    fun getCompanyAsync(id: String? = null, nombre: String? = null): Mono<List<Compania>> = securedMono {
         val variables = if (id == null) mutableMapOf("nombre" to nombre)
                         else if (nombre == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "nombre" to nombre)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getCompany"),
-            variables)
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .bodyToMono(GraphqlResponseCompanias::class.java)
-                        .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getCompany", variables)
+                               .bodyToMono(GraphqlResponseCompanias::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer la compañía:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return res.data!!.companias
+        return@securedMono res.data!!.companias
     }
 
-    fun uniqueValidator(compania: Compania): String? {
-        val companies = getCompany(nombre = compania.nombre)
+    fun uniqueValidator(compania: Compania): String? = uniqueValidatorAsync(compania).block()
 
-        return if (companies == null) "Error al leer de la base de datos"
+    fun uniqueValidatorAsync(compania: Compania): Mono<String> = securedMono {
+        val companies = getCompanyAsync(nombre = compania.nombre).awaitSingleOrNull()
+
+        return@securedMono if (companies == null) "Error al leer de la base de datos"
                else if (companies.isEmpty()) null
                else if (companies.first().idNeo4j == compania.idNeo4j) null
                else "Ya existe una compañía con la misma razón social"
     }
 
-    fun addCompany(company: Compania): Compania? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addCompany"),
-                                    mutableMapOf("nombre" to company.nombre,
-                                                 "usuarioModificacion" to company.usuarioModificacion!!,
-                                                 "fechaModificacion" to company.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
-                                                 "padre" to company.padre,
-                                                 "activo" to company.activo,
-                                                 "idPersona" to company.idPersona))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateCompania::class.java)
-                            .block()
+    fun addCompany(company: Compania): Compania? = addCompanyAsync(company).block()
+
+    fun addCompanyAsync(company: Compania): Mono<Compania> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addCompany",
+                                     mutableMapOf("nombre" to company.nombre,
+                                                  "usuarioModificacion" to company.usuarioModificacion!!,
+                                                  "fechaModificacion" to company.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
+                                                  "padre" to company.padre,
+                                                  "activo" to company.activo,
+                                                  "idPersona" to company.idPersona))
+                               .toEntity(GraphqlResponseCreateCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir a la compañía:" + (res?.body?.errors ?: ""))
@@ -164,261 +195,244 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
                                    headers = res?.headers, userName = company.usuarioModificacion!!,
                                    eventName = "ERROR:ALTA_COMPANIA", value = EventGraphqlError(res?.body?.errors, mutableMapOf("company" to company))
             )
-            return null
+            return@securedMono null
         }
         // Inform Kafka event
         eventService.sendEvent(headers = res.headers, userName = company.usuarioModificacion!!,
                                eventName = "ALTA_COMPANIA", value = res.body?.data!!.createCompania)
 
-        // Now check relationships to be added
+        // Now add all relationships. Every step is executed at the same time (see CompositeMutation), so their
+        // mutations are sent in a few aliased documents and not one by one
+        val newCompany = res.body!!.data!!.createCompania
+        val relationships = fanOutExecutor.composite(FanOutExecutor.BUP)
+
         // Sector 1:1
         if (company.sector != null)
-            try {
-                addCompanySector(res.body!!.data!!.createCompania._id!!, company.sector!!._id!!)
-            } catch (e : Exception) {
-                logger.error("No se pudo dar de alta el sector para la compañía ${company.nombre}: ${e.message}")
-                return null
+            relationships.add("el sector") {
+                addCompanySector(newCompany._id!!, company.sector!!._id!!)
+                compensate { deleteCompanySector(newCompany._id!!, company.sector!!._id!!) }
             }
         // Rfc 1:1
         if (company.rfc.rfc != null)
-            try {
-                val newRfc = rfcService.addRfcIfNotExists(company.rfc)
-
-                if (newRfc != null)
-                    addCompanyRfc(res.body!!.data!!.createCompania._id!!, newRfc.idNeo4j!!)
-            } catch (e : Exception) {
-                logger.error("No se pudo dar de alta el rfc para la compañía ${company.nombre}: ${e.message}")
-                return null
-            }
-        // Areas 1:m
-        if (company.areas != null && company.areas!!.isNotEmpty())
-            try {
-                company.areas!!.forEach { area ->
-                    run {
-                        val newArea = areaService.addAreaIfNotExists(area)
-
-                        if (newArea != null)
-                            areaService.addAreaCompany(idArea = newArea.idNeo4j!!,
-                                                       idCompany = res.body!!.data!!.createCompania.idNeo4j!!)
+            relationships.add("el rfc ${company.rfc.rfc}") {
+                val newRfc = rfcService.addRfcIfNotExistsAsync(company.rfc).awaitSingleOrNull()
+
+                if (newRfc != null) {
+                    addCompanyRfc(newCompany._id!!, newRfc.idNeo4j!!)
+                    compensate {
+                        deleteCompanyRfc(newCompany._id!!, newRfc.idNeo4j!!)
+                        rfcService.deleteRfcIfNotNeededAsync(newRfc.idNeo4j!!).awaitSingleOrNull()
                     }
                 }
-
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de alta las áreas de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
+        // Areas 1:m (the same area just once, because the steps of the same area would create it twice)
+        company.areas?.distinctBy { it.nombre }?.forEach { area ->
+            relationships.add("el área ${area.nombre}") {
+                val newArea = areaService.addAreaIfNotExistsAsync(area).awaitSingleOrNull()
+
+                if (newArea != null) {
+                    areaService.addAreaCompanyAsync(idArea = newArea.idNeo4j!!,
+                                                    idCompany = newCompany.idNeo4j!!).awaitSingle()
+                    compensate { removeArea(newArea, newCompany.idNeo4j!!) }
+                }
+            }
+        }
         // Check telephones
-        if (company.telefonos != null && company.telefonos!!.isNotEmpty())
-            try {
-                company.telefonos!!.forEach { telephone ->
-                    run {
-                        val newTelephone = telefonoService.addTelephoneIfNotExists(telephone)
-
-                        if (newTelephone != null)
-                            telefonoService.addTelephoneCompany(idTelephone =  newTelephone.idNeo4j!!,
-                                                                idCompany = res.body!!.data!!.createCompania.idNeo4j!!,)
-                    }
+        company.telefonos?.distinctBy { it.numero }?.forEach { telephone ->
+            relationships.add("el teléfono ${telephone.numero}") {
+                val newTelephone = telefonoService.addTelephoneIfNotExistsAsync(telephone).awaitSingleOrNull()
+
+                if (newTelephone != null) {
+                    telefonoService.addTelephoneCompanyAsync(idTelephone = newTelephone.idNeo4j!!,
+                                                             idCompany = newCompany.idNeo4j!!).awaitSingle()
+                    compensate { removeTelephone(newTelephone, newCompany.idNeo4j!!) }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los teléfonos de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
+        }
         // Addresses 1:m
-        if (company.direcciones != null && company.direcciones!!.isNotEmpty())
-            try {
-                company.direcciones!!.forEach { address ->
-                    run {
-                        val newAddress = direccionService.addAddress(address)
-
-                        if (newAddress != null)
-                            direccionService.addAddressCompany(idAddress = newAddress.idNeo4j!!,
-                                                               idCompany = res.body!!.data!!.createCompania.idNeo4j!!)
-                    }
+        company.direcciones?.forEach { address ->
+            relationships.add("la dirección ${address.calle}") {
+                val newAddress = direccionService.addAddressAsync(address).awaitSingleOrNull()
+
+                if (newAddress != null) {
+                    compensate { direccionService.deleteAddressAsync(address.copy(_id = newAddress._id)).awaitSingleOrNull() }
+                    direccionService.addAddressCompanyAsync(idAddress = newAddress.idNeo4j!!,
+                                                            idCompany = newCompany.idNeo4j!!).awaitSingle()
+                    compensate { direccionService.deleteAddressCompanyAsync(idAddress = newAddress.idNeo4j!!, idCompany = newCompany.idNeo4j!!).awaitSingle() }
                 }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de alta las direcciones de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
+        }
+        if (!execute(relationships, "dar de alta", company))
+            return@securedMono null
 
-        return res.body!!.data!!.createCompania
+        return@securedMono newCompany
     }
 
-    fun updateCompany(company: Compania): Compania? {
+    fun updateCompany(company: Compania): Compania? = updateCompanyAsync(company).block()
+
+    fun updateCompanyAsync(company: Compania): Mono<Compania> = securedMono {
         // now check relationship if you need to be deleted or added
-        val companies = getCompany(company._id)
+        val companies = getCompanyAsync(company._id).awaitSingleOrNull()
 
         if (companies == null || companies.size != 1) {
             logger.error("No se pudo leer el registro anterior de la compañía ${company._id}. No se hizo ninguna actualización")
-            return null
+            return@securedMono null
         }
         val oldCompany = companies.first()
+        // Structural diff with the version read from the server, so just the relationships that changed are sent
+        val sector = RelationshipDiff.sector(oldCompany.sector, company.sector)
+        val rfc = RelationshipDiff.rfc(oldCompany.rfc, company.rfc)
+        val areas = RelationshipDiff.areas(oldCompany.areas, company.areas)
+        val telephones = RelationshipDiff.telephones(oldCompany.telefonos, company.telefonos)
+        val addresses = RelationshipDiff.addresses(oldCompany.direcciones, company.direcciones)
 
         // update company
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("updateCompany"),
-                                                mutableMapOf("id" to company.idNeo4j,
-                                                             "nombre" to company.nombre,
-                                                             "usuarioModificacion" to company.usuarioModificacion!!,
-                                                             "fechaModificacion" to company.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
-                                                             "padre" to company.padre,
-                                                             "activo" to company.activo,
-                                                             "idPersona" to company.idPersona))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseUpdateCompania::class.java)
-                            .block()
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "updateCompany",
+                                     mutableMapOf("id" to company.idNeo4j,
+                                                  "nombre" to company.nombre,
+                                                  "usuarioModificacion" to company.usuarioModificacion!!,
+                                                  "fechaModificacion" to company.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
+                                                  "padre" to company.padre,
+                                                  "activo" to company.activo,
+                                                  "idPersona" to company.idPersona))
+                               .toEntity(GraphqlResponseUpdateCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al actualizar a la compañía:" + (res?.body?.errors ?: ""))
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                    headers = res!!.headers, userName = company.usuarioModificacion!!,
                                    eventName = "ERROR:ACTUALIZA_COMPANIA", value = EventGraphqlError(res.body?.errors, mutableMapOf("company" to company)))
-            return null
+            return@securedMono null
         }
         // Inform Kafka event
         eventService.sendEvent(headers = res.headers, userName = company.usuarioModificacion!!,
                                eventName = "ACTUALIZA_COMPANIA", value = res.body!!.data!!.updateCompania)
 
+        // First remove the relationships that are not needed anymore and then add the new ones. Just the items of
+        // the diff are sent, and the steps of each phase are executed at the same time (see CompositeMutation), so
+        // their mutations are sent in a few aliased documents and not one by one
+        val removals = fanOutExecutor.composite(FanOutExecutor.BUP)
+        val additions = fanOutExecutor.composite(FanOutExecutor.BUP)
+        val idCompany = res.body!!.data!!.updateCompania.idNeo4j!!
+
         // Check CompaniaSector relationship
-        if (!((oldCompany.sector != null) && (company.sector != null) &&
-            (oldCompany.sector!!.idNeo4j == company.sector!!.idNeo4j)))
-            try {
-                if (oldCompany.sector != null)
-                    deleteCompanySector(oldCompany.idNeo4j!!, oldCompany.sector!!._id!!)
-                if (company.sector != null)
-                    addCompanySector(company.idNeo4j!!, company.sector!!._id!!)
-            } catch (e: Exception) {
-                logger.error("No se pudo actualizar la relación con el sector. ")
-                return null
+        sector.removed.forEach { oldSector ->
+            removals.add("el sector") { deleteCompanySector(oldCompany.idNeo4j!!, oldSector._id!!) }
+        }
+        sector.added.forEach { newSector ->
+            additions.add("el sector") {
+                addCompanySector(idCompany, newSector._id!!)
+                compensate { deleteCompanySector(idCompany, newSector._id!!) }
             }
+        }
         // Check CompaniaRfc relationship
-        if (!((oldCompany.rfc.rfc != null) && (company.rfc.rfc != null) &&
-              (oldCompany.rfc.idNeo4j == company.rfc.idNeo4j)))
-            try {
-                if (oldCompany.rfc.rfc != null) {
-                    deleteCompanyRfc(oldCompany.idNeo4j!!, oldCompany.rfc.idNeo4j!!)
-                    rfcService.deleteRfcIfNotNeeded(oldCompany.rfc.idNeo4j!!)
-                }
-                if (company.rfc.rfc != null) {
-                    val newRfc = rfcService.addRfcIfNotExists(company.rfc)
-
-                    if (newRfc != null)
-                        addCompanyRfc(company.idNeo4j!!, newRfc.idNeo4j!!)
-                }
-            } catch (e: Exception) {
-                logger.error("No se pudo actualizar la relación con el rfc. ")
-                return null
+        rfc.removed.forEach { oldRfc ->
+            removals.add("el rfc ${oldRfc.rfc}") {
+                deleteCompanyRfc(oldCompany.idNeo4j!!, oldRfc.idNeo4j!!)
+                rfcService.deleteRfcIfNotNeededAsync(oldRfc.idNeo4j!!).awaitSingleOrNull()
             }
-        // Check CompaniaArea relationship
-        if (oldCompany.areas != null && oldCompany.areas!!.isNotEmpty())
-            try {
-                oldCompany.areas!!.forEach { area ->
-                        if ((company.areas == null) || (!company.areas!!.any {it == area})) {
-                            areaService.deleteAreaCompany(idArea = area.idNeo4j!!, idCompany = oldCompany.idNeo4j!! )
-                            areaService.deleteAreaIfNotNeeded(id = area.idNeo4j!!, idCompany = oldCompany.idNeo4j!!)
-                        }
-                    }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de baja las áreas de la compañía ${company.nombre}: ${e.message}")
-                return null
-            }
-        if (company.areas != null && company.areas!!.isNotEmpty())
-            try {
-                company.areas!!.forEach { area ->
-                    if ((oldCompany.areas == null) || (!oldCompany.areas!!.any {it == area})) {
-                        val newArea = areaService.addAreaIfNotExists(area)
-
-                        if (newArea != null)
-                            areaService.addAreaCompany(idArea =  newArea.idNeo4j!!,
-                                                       idCompany = res.body!!.data!!.updateCompania.idNeo4j!!,)
+        }
+        rfc.added.forEach { rfcToAdd ->
+            additions.add("el rfc ${rfcToAdd.rfc}") {
+                val newRfc = rfcService.addRfcIfNotExistsAsync(rfcToAdd).awaitSingleOrNull()
+
+                if (newRfc != null) {
+                    addCompanyRfc(idCompany, newRfc.idNeo4j!!)
+                    compensate {
+                        deleteCompanyRfc(idCompany, newRfc.idNeo4j!!)
+                        rfcService.deleteRfcIfNotNeededAsync(newRfc.idNeo4j!!).awaitSingleOrNull()
                     }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta las áreas de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
-        // Check CompaniaTelefono relationship
-        if (oldCompany.telefonos != null && oldCompany.telefonos!!.isNotEmpty())
-            try {
-                oldCompany.telefonos!!.forEach { telephone ->
-                    if ((company.telefonos == null) || (!company.telefonos!!.any {it == telephone})) {
-                        telefonoService.deleteTelephoneCompany(idTelephone = telephone.idNeo4j!!, idCompany = oldCompany.idNeo4j!!)
-                        telefonoService.deleteTelephoneIfNotNeeded(id = telephone.idNeo4j!!, idCompany = oldCompany.idNeo4j!!)
-                    }
+        }
+        // Check CompaniaArea relationship
+        areas.removed.forEach { area ->
+            removals.add("el área ${area.nombre}") { removeArea(area, oldCompany.idNeo4j!!) }
+        }
+        areas.added.forEach { area ->
+            additions.add("el área ${area.nombre}") {
+                val newArea = areaService.addAreaIfNotExistsAsync(area).awaitSingleOrNull()
+
+                if (newArea != null) {
+                    areaService.addAreaCompanyAsync(idArea = newArea.idNeo4j!!, idCompany = idCompany).awaitSingle()
+                    compensate { removeArea(newArea, idCompany) }
                 }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de baja los teléfonos de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
-        if (company.telefonos != null && company.telefonos!!.isNotEmpty())
-            try {
-                company.telefonos!!.forEach { telephone ->
-                    if ((oldCompany.telefonos == null) || (!oldCompany.telefonos!!.any {it == telephone})) {
-                        val newTelephone = telefonoService.addTelephoneIfNotExists(telephone)
-
-                        if (newTelephone != null)
-                            telefonoService.addTelephoneCompany(idTelephone =  newTelephone.idNeo4j!!,
-                                                                idCompany = res.body!!.data!!.updateCompania.idNeo4j!!,)
-                    }
+        }
+        // Check CompaniaTelefono relationship
+        telephones.removed.forEach { telephone ->
+            removals.add("el teléfono ${telephone.numero}") { removeTelephone(telephone, oldCompany.idNeo4j!!) }
+        }
+        telephones.added.forEach { telephone ->
+            additions.add("el teléfono ${telephone.numero}") {
+                val newTelephone = telefonoService.addTelephoneIfNotExistsAsync(telephone).awaitSingleOrNull()
+
+                if (newTelephone != null) {
+                    telefonoService.addTelephoneCompanyAsync(idTelephone = newTelephone.idNeo4j!!, idCompany = idCompany).awaitSingle()
+                    compensate { removeTelephone(newTelephone, idCompany) }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los teléfonos de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
+        }
         // Check CompaniaDireccion relationship
-        if (oldCompany.direcciones != null && oldCompany.direcciones!!.isNotEmpty())
-            try {
-                oldCompany.direcciones!!.forEach { address ->
-                    if ((company.direcciones == null) || (!company.direcciones!!.any {it == address})) {
-                        direccionService.deleteAddressCompany(idAddress = address.idNeo4j!!, idCompany = oldCompany.idNeo4j!! )
-                        direccionService.deleteAddress(address)
-                    }
-                }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de baja las direcciones de la compañía ${company.nombre}: ${e.message}")
-                return null
+        addresses.removed.forEach { address ->
+            removals.add("la dirección ${address.calle}") {
+                direccionService.deleteAddressCompanyAsync(idAddress = address.idNeo4j!!, idCompany = oldCompany.idNeo4j!!).awaitSingle()
+                direccionService.deleteAddressAsync(address).awaitSingleOrNull()
             }
-        if (company.direcciones != null && company.direcciones!!.isNotEmpty())
-            try {
-                company.direcciones!!.forEach { address ->
-                    if ((oldCompany.direcciones == null) || (!oldCompany.direcciones!!.any {it == address})) {
-                        val newAddress = direccionService.addAddress(address)
-
-                        if (newAddress != null)
-                            direccionService.addAddressCompany(idAddress =  newAddress.idNeo4j!!,
-                                                              idCompany = res.body!!.data!!.updateCompania.idNeo4j!!,)
-                    }
+        }
+        addresses.added.forEach { address ->
+            additions.add("la dirección ${address.calle}") {
+                val newAddress = direccionService.addAddressAsync(address).awaitSingleOrNull()
+
+                if (newAddress != null) {
+                    compensate { direccionService.deleteAddressAsync(address.copy(_id = newAddress._id)).awaitSingleOrNull() }
+                    direccionService.addAddressCompanyAsync(idAddress = newAddress.idNeo4j!!, idCompany = idCompany).awaitSingle()
+                    compensate { direccionService.deleteAddressCompanyAsync(idAddress = newAddress.idNeo4j!!, idCompany = idCompany).awaitSingle() }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta las direcciones de la compañía ${company.nombre}: ${e.message}")
-                return null
             }
+        }
+        if (!execute(removals, "dar de baja", company) || !execute(additions, "dar de alta", company))
+            return@securedMono null
 
-        return res.body!!.data!!.updateCompania
+        return@securedMono res.body!!.data!!.updateCompania
+    }
+
+    /**
+     * Executes the relationships steps and logs every step that failed. Returns true if all steps were executed
+     */
+    private suspend fun execute(mutation: CompositeMutation, action: String, company: Compania): Boolean {
+        val failures = mutation.execute()
+
+        failures.forEach {
+            if (it.compensation)
+                logger.error("No se pudo deshacer ${it.description} de la compañía ${company.nombre}: ${it.error.message}")
+            else
+                logger.error("No se pudo $action ${it.description} de la compañía ${company.nombre}: ${it.error.message}")
+        }
+
+        return failures.isEmpty()
+    }
+
+    private suspend fun removeArea(area: Area, idCompany: String) {
+        areaService.deleteAreaCompanyAsync(idArea = area.idNeo4j!!, idCompany = idCompany).awaitSingle()
+        areaService.deleteAreaIfNotNeededAsync(id = area.idNeo4j!!, idCompany = idCompany).awaitSingleOrNull()
+    }
+
+    private suspend fun removeTelephone(telephone: Telefono, idCompany: String) {
+        telefonoService.deleteTelephoneCompanyAsync(idTelephone = telephone.idNeo4j!!, idCompany = idCompany).awaitSingle()
+        telefonoService.deleteTelephoneIfNotNeededAsync(id = telephone.idNeo4j!!, idCompany = idCompany).awaitSingleOrNull()
     }
 
     /**
      * Company sector relationship maintenance
      */
-    private fun addCompanySector(idCompany: String, idSector: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addCompanySector"),
-            mutableMapOf("id" to idCompany,
-                         "sector" to idSector))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddCompaniaSector::class.java)
-                            .block()
+    private suspend fun addCompanySector(idCompany: String, idSector: String): Compania {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addCompanySector",
+                                     mutableMapOf("id" to idCompany,
+                                                  "sector" to idSector))
+                               .toEntity(GraphqlResponseAddCompaniaSector::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error al añadir la relación compañía sector:" + (res?.body?.errors ?: ""))
@@ -436,18 +450,12 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
         return res.body!!.data!!.addCompaniaSector
     }
 
-    private fun deleteCompanySector(idCompany: String, idSector: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteCompanySector"),
-            mutableMapOf("id" to idCompany,
-                         "sector" to idSector))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteCompaniaSector::class.java)
-                            .block()
+    private suspend fun deleteCompanySector(idCompany: String, idSector: String): Compania {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteCompanySector",
+                                     mutableMapOf("id" to idCompany,
+                                                  "sector" to idSector))
+                               .toEntity(GraphqlResponseDeleteCompaniaSector::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error borrar la relación sector compañía:" + (res?.body?.errors ?: ""))
@@ -468,18 +476,12 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
     /**
      * Company rfc relationship maintenance
      */
-    private fun addCompanyRfc(idCompany: String, idRfc: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addCompanyRfc"),
-                                                mutableMapOf("id" to idCompany,
-                                                             "rfc" to idRfc))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddCompaniaRfc::class.java)
-                            .block()
+    private suspend fun addCompanyRfc(idCompany: String, idRfc: String): Compania {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addCompanyRfc",
+                                     mutableMapOf("id" to idCompany,
+                                                  "rfc" to idRfc))
+                               .toEntity(GraphqlResponseAddCompaniaRfc::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error al añadir la relación compañía rfc:" + (res?.body?.errors ?: ""))
@@ -497,18 +499,12 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
         return res.body!!.data!!.addCompaniaRfc
     }
 
-    private fun deleteCompanyRfc(idCompany: String, idRfc: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteCompanyRfc"),
-                                                            mutableMapOf("id" to idCompany,
-                                                                         "rfc" to idRfc))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteCompaniaRfc::class.java)
-                            .block()
+    private suspend fun deleteCompanyRfc(idCompany: String, idRfc: String): Compania {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteCompanyRfc",
+                                     mutableMapOf("id" to idCompany,
+                                                  "rfc" to idRfc))
+                               .toEntity(GraphqlResponseDeleteCompaniaRfc::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error borrar la relación rfc compañía:" + (res?.body?.errors ?: ""))
@@ -529,18 +525,14 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
     /**
      * Company vs company subsidiary relationships
      */
-    fun addCompanySubsidiary(idCompany: String, idSubsidiary: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addCompanySubsidiary"),
-                                    mutableMapOf("id" to idCompany,
-                                                 "subsidiaria" to idSubsidiary))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddCompaniaSubsidiaria::class.java)
-                            .block()
+    fun addCompanySubsidiary(idCompany: String, idSubsidiary: String): Compania = addCompanySubsidiaryAsync(idCompany, idSubsidiary).block()!!
+
+    fun addCompanySubsidiaryAsync(idCompany: String, idSubsidiary: String): Mono<Compania> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addCompanySubsidiary",
+                                     mutableMapOf("id" to idCompany,
+                                                  "subsidiaria" to idSubsidiary))
+                               .toEntity(GraphqlResponseAddCompaniaSubsidiaria::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.body?.errors != null) {
             logger.error("Error al añadir la subsidiaria a la compañía :" + (res?.body?.errors ?: ""))
@@ -555,21 +547,17 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ASIGNACION_SUBSIDIARIA_COMPAÑIA", value = res.body!!.data!!.addCompaniaSubsidiaria)
 
-        return res.body!!.data!!.addCompaniaSubsidiaria
+        return@securedMono res.body!!.data!!.addCompaniaSubsidiaria
     }
 
-    fun deleteCompanySubsidiaria(idCompany: String, idSubsidiary: String): Compania {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteCompanySubsidiary"),
-                                            mutableMapOf("id" to idCompany,
-                                                         "subsidiaria" to idSubsidiary))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteCompaniaSubsidiaria::class.java)
-                            .block()
+    fun deleteCompanySubsidiaria(idCompany: String, idSubsidiary: String): Compania = deleteCompanySubsidiariaAsync(idCompany, idSubsidiary).block()!!
+
+    fun deleteCompanySubsidiariaAsync(idCompany: String, idSubsidiary: String): Mono<Compania> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteCompanySubsidiary",
+                                     mutableMapOf("id" to idCompany,
+                                                  "subsidiaria" to idSubsidiary))
+                               .toEntity(GraphqlResponseDeleteCompaniaSubsidiaria::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error borrar la subsidiaria de la compañía:" + (res!!.body?.errors ?: ""))
@@ -579,9 +567,28 @@ class CompaniaService(@Qualifier("authorization_code") val webClient: WebClient,
             throw Exception("Error al borrar la subsidiaria de la compañía")
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "ERROR:ASIGNACION_SUBSIDIARIA_COMPAÑIA", value = res.body!!.data!!.deleteCompaniaSubsidiaria)
+                               eventName = "DES_ASIGNACION_SUBSIDIARIA_COMPAÑIA", value = res.body!!.data!!.deleteCompaniaSubsidiaria)
 
-        return res.body!!.data!!.deleteCompaniaSubsidiaria
+        return@securedMono res.body!!.data!!.deleteCompaniaSubsidiaria
     }
 
+    companion object {
+        /**
+         * Grid paths of the companies grid that are filtered and sorted by the BUP
+         */
+        val GRID = GridQueryDescriptor<CompaniaResumen>(
+                        entity = "compañías",
+                        filters = mapOf("nombre" to contains("nombre"),
+                                        "rfc" to relationship("rfc", contains("rfc")),
+                                        "sector" to relationship("sector", contains("nombre")),
+                                        "activo" to boolean("activo"),
+                                        "fechaModificacion" to day("fechaModificacion"),
+                                        "estado" to some("direcciones",
+                                                         relationship("codigo", relationship("estado", contains("nombre"))))),
+                        sorts = mapOf("nombre" to CompaniaResumen::nombre,
+                                      "usuarioModificacion" to CompaniaResumen::usuarioModificacion,
+                                      "fechaModificacion" to CompaniaResumen::fechaModificacion),
+                        defaultSort = "nombre",
+                        id = CompaniaResumen::_id)
+    }
 }
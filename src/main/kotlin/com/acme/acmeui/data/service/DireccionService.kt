@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -47,25 +45,51 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class DireccionService (@Qualifier("authorization_code") val webClient: WebClient,
+class DireccionService (private val graphqlClient: GraphqlClient,
                         private val eventService: EventService,
                         private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addAddress(direccion: Direccion): Direccion? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAddress"),
-                                            mutableMapOf("calle" to direccion.calle,
-                                                         "ciudad" to direccion.ciudad,
-                                                         "tipo" to direccion.tipo))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseCreateDireccion::class.java)
-                        .block()
+    /**
+     * Reads the cities of one page of all the addresses sorted by _id, i.e., for the type-ahead of cities
+     */
+    fun allCitiesAsync(page: Int, size: Int): Mono<List<String?>> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "allCities",
+                                     mutableMapOf("options" to mapOf("skip" to page * size, "limit" to size,
+                                                                     "sort" to listOf(mapOf("_id" to "ASC")))))
+                               .bodyToMono(GraphqlResponseCiudades::class.java)
+                               .awaitSingleOrNull()
+
+        if (res == null || res.errors != null) {
+            logger.error("Error al leer la página $page de ciudades:" + res?.errors)
+            return@securedMono null
+        }
+
+        return@securedMono res.data!!.direccions.map { it.ciudad }
+    }
+
+    fun addAddress(direccion: Direccion): Direccion? = addAddressAsync(direccion).block()
+
+    /**
+     * Creates the address and its links to the código postal and municipio (we think they already where created
+     * before) in two round trips: the BUP does not have a nested create, so the links document needs the _id of
+     * the new address.
+     *
+     * Just one event is sent for the whole operation. If the links cannot be added the new address is deleted, so
+     * no address without código postal and municipio is left in the BUP.
+     */
+    fun addAddressAsync(direccion: Direccion): Mono<Direccion> = securedMono {
+        if (direccion.codigo?.idNeo4j == null || direccion.municipio?.idNeo4j == null) {
+            logger.error("Error al añadir la dirección, no tiene código postal o municipio:$direccion")
+            return@securedMono null
+        }
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addAddress",
+                                     mutableMapOf("calle" to direccion.calle,
+                                                  "ciudad" to direccion.ciudad,
+                                                  "tipo" to direccion.tipo))
+                               .toEntity(GraphqlResponseCreateDireccion::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la dirección:" + (res?.body?.errors ?: ""))
@@ -73,186 +97,93 @@ class DireccionService (@Qualifier("authorization_code") val webClient: WebClien
                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:AÑADIR_DIRECCION_COMPAÑIA", value = EventGraphqlError(res.body?.errors, mutableMapOf("direccion" to direccion))
             )
-            return null
-        }
-        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "AÑADIR_DIRECCION_COMPAÑIA", value = res.body!!.data!!.createDireccion)
-        // now its relationships to municipios and código.
-        // note: we think they already where created before
-        try {
-            addAddressZipcode(idAddress = res.body!!.data!!.createDireccion._id!!,
-                              idZipcode = direccion.codigo!!.idNeo4j!!)
-            addAddressColony(idAddress = res.body!!.data!!.createDireccion._id!!,
-                             idColony = direccion.municipio!!.idNeo4j!!)
-        } catch (e: Exception) {
-            logger.error("Error al añadir las relaciones de código postal y municipio:" + e.message)
-            return null
+            return@securedMono null
         }
-
-        return res.body!!.data!!.createDireccion
-    }
-
-    private fun addAddressZipcode(idAddress: String, idZipcode: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAddressZipcode"),
-                                            mutableMapOf("id" to idAddress,
-                                                         "codigo" to idZipcode))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddDireccionCodigo::class.java)
-                            .block()
-
-        if ((res == null) || (res.body?.errors != null)) {
-            logger.error("Error al añadir la relación dirección con código:" + (res?.body?.errors ?: ""))
-            val graphQLError = EventGraphqlError(res?.body?.errors, mutableMapOf("idAddress" to idAddress))
-
-            graphQLError.addExtraData("idZipcode", idZipcode)
+        val idAddress = res.body!!.data!!.createDireccion._id!!
+        val links = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addAddressLinks",
+                                     mutableMapOf("id" to idAddress,
+                                                  "codigo" to direccion.codigo!!.idNeo4j!!,
+                                                  "municipio" to direccion.municipio!!.idNeo4j!!))
+                                 .toEntity(GraphqlResponseAddDireccionLinks::class.java)
+                                 .awaitSingleOrNull()
+
+        if ((links == null) || (links.body?.errors != null)) {
+            logger.error("Error al añadir las relaciones de código postal y municipio:" + (links?.body?.errors ?: ""))
+            val graphQLError = EventGraphqlError(links?.body?.errors, mutableMapOf("direccion" to direccion))
+
+            graphQLError.addExtraData("idAddress", idAddress)
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
-                                   headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                                  eventName = "ERROR:AÑADIR_DIRECCION_CODIGO", value = graphQLError)
-            throw Exception("Error al añadir la relación dirección con código")
+                                   headers = links?.headers ?: res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
+                                   eventName = "ERROR:AÑADIR_DIRECCION_COMPAÑIA", value = graphQLError)
+            deleteOrphanAddress(idAddress)
+            return@securedMono null
         }
-        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "AÑADIR_DIRECCION_CODIGO", value =  res.body!!.data!!.addDireccionCodigo)
+        val newAddress = res.body!!.data!!.createDireccion.copy(codigo = direccion.codigo,
+                                                                municipio = direccion.municipio)
+
+        eventService.sendEvent(headers = links.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
+                               eventName = "AÑADIR_DIRECCION_COMPAÑIA", value = newAddress)
 
-        return res.body!!.data!!.addDireccionCodigo
+        return@securedMono newAddress
     }
 
-    private fun addAddressColony(idAddress: String, idColony: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAddressColony"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                 "municipio" to idColony))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddDireccionMunicipio::class.java)
-                            .block()
+    /**
+     * Deletes the address created by addAddressAsync when its links could not be added. It is a best effort: if
+     * the address cannot be deleted it is just logged, because the error event was already sent
+     */
+    private suspend fun deleteOrphanAddress(idAddress: String) {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteAddress",
+                                     mutableMapOf("id" to idAddress))
+                               .toEntity(GraphqlResponseDeleteDireccion::class.java)
+                               .awaitSingleOrNull()
+
+        if ((res == null) || (res.body?.errors != null))
+            logger.error("No se pudo borrar la dirección $idAddress sin código postal y municipio:" + (res?.body?.errors ?: ""))
+    }
 
-        if ((res == null) || (res.body?.errors != null)) {
-            logger.error("Error al añadir la relación dirección con municipio:" + (res?.body?.errors ?: ""))
-            val graphQLError = EventGraphqlError(res?.body?.errors, mutableMapOf("idAddress" to idAddress))
+    fun deleteAddress(direccion: Direccion): Direccion? = deleteAddressAsync(direccion).block()
 
-            graphQLError.addExtraData("idColony", idColony)
+    /**
+     * Deletes the links to the código postal and municipio and the address in one document. The server executes
+     * the mutations in the order of the document, so the address is deleted after its links.
+     */
+    fun deleteAddressAsync(direccion: Direccion): Mono<Direccion> = securedMono {
+        if (direccion._id == null || direccion.codigo?.idNeo4j == null || direccion.municipio?.idNeo4j == null) {
+            // i.e., the address was read without its links, so it is not deleted (it would be left orphan)
+            logger.error("Error al borrar la dirección, no tiene id, código postal o municipio:$direccion")
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
-                                   headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                                   eventName = "ERROR:AÑADIR_MUNICIPIO_DIRECCION", value = graphQLError)
-            throw Exception("Error al añadir la relación dirección con municipio")
-        }
-        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "AÑADIR_MUNICIPIO_DIRECCION", value = res.body!!.data!!.addDireccionMunicipio)
-
-        return res.body!!.data!!.addDireccionMunicipio
-    }
-
-    fun deleteAddress(direccion: Direccion): Direccion? {
-        // first delete its relationships for municipios and código.
-        try {
-            deleteAddressZipcode(idAddress = direccion._id!!, idZipcode = direccion.codigo!!.idNeo4j!!)
-            deleteAddressColony(idAddress = direccion._id!!, idColony = direccion.municipio!!.idNeo4j!!)
-        } catch (e: Exception) {
-            logger.error("Error al borrar las relaciones de código postal y municipio:" + e.message)
-            return null
+                                   headers = null, userName = SecurityContextHolder.getContext().authentication!!.name,
+                                   eventName = "ERROR:ELIMINAR_DIRECCION", value = EventGraphqlError(null, mutableMapOf("direccion" to direccion)))
+            return@securedMono null
         }
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAddress"),
-                                                    mutableMapOf("id" to direccion._id!!))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDireccion::class.java)
-                            .block()
-
-        if ((res == null) || (res.body?.errors != null)) {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteAddressWithLinks",
+                                     mutableMapOf("id" to direccion._id!!,
+                                                  "codigo" to direccion.codigo!!.idNeo4j!!,
+                                                  "municipio" to direccion.municipio!!.idNeo4j!!))
+                               .toEntity(GraphqlResponseDeleteDireccionWithLinks::class.java)
+                               .awaitSingleOrNull()
+
+        if ((res == null) || (res.body?.errors != null) || (res.body?.data?.deleteDireccion == null)) {
             logger.error("Error al borrar la dirección:" + (res?.body?.errors ?: ""))
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:ELIMINAR_DIRECCION", value = EventGraphqlError(res.body?.errors, mutableMapOf("direccion" to direccion)))
-            return null
-        }
-        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = " ELIMINAR_DIRECCION", value = res.body!!.data!!.deleteDireccion)
-
-        return res.body!!.data!!.deleteDireccion
-    }
-
-    private fun deleteAddressZipcode(idAddress: String, idZipcode: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAddressZipcode"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                 "codigo" to idZipcode))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDireccionCodigo::class.java)
-                            .block()
-
-        if ((res == null) || (res.body?.errors != null)) {
-            logger.error("Error al borrar la relación dirección con código:" + (res?.body?.errors ?: ""))
-            val graphQLError = EventGraphqlError(res?.body?.errors, mutableMapOf("idAddress" to idAddress))
-
-            graphQLError.addExtraData("idZipcode", idZipcode)
-            eventService.sendEvent(eventType = EventType.ERROR_EVENT,
-                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                                    eventName = "ERROR:ELIMINAR_DIRECCION_CODIGO", value = graphQLError)
-            throw Exception("Error al borrar la relación dirección con código")
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "ELIMINAR_DIRECCION_CODIGO", value = res.body!!.data!!.deleteDireccionCodigo)
+                               eventName = "ELIMINAR_DIRECCION", value = res.body!!.data!!.deleteDireccion!!)
 
-        return res.body!!.data!!.deleteDireccionCodigo
+        return@securedMono res.body!!.data!!.deleteDireccion
     }
 
-    private fun deleteAddressColony(idAddress: String, idColony: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAddressColony"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                "municipio" to idColony))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDireccionMunicipio::class.java)
-                            .block()
+    fun addAddressCompany(idAddress: String, idCompany: String): Direccion = addAddressCompanyAsync(idAddress, idCompany).block()!!
 
-        if ((res == null) || (res.body?.errors != null)) {
-            logger.error("Error al borrar la relación dirección con municipio:" + (res?.body?.errors ?: ""))
-            val graphQLError = EventGraphqlError(res?.body?.errors, mutableMapOf("idAddress" to idAddress))
-
-            graphQLError.addExtraData("idColony", idColony)
-            eventService.sendEvent(eventType = EventType.ERROR_EVENT,
-                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                                    eventName = "ERROR:ELIMINAR_DIRECCION_MUNICIPIO", value = graphQLError)
-            throw Exception("Error al borrar la relación dirección con municipio")
-        }
-        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                               eventName = "ELIMINAR_DIRECCION_MUNICIPIO", value = res.body!!.data!!.deleteDireccionMunicipio)
-
-        return res.body!!.data!!.deleteDireccionMunicipio
-    }
-
-    fun addAddressCompany(idAddress: String, idCompany: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAddressCompany"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                 "compania" to idCompany))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseAddDireccionCompania::class.java)
-                        .block()
+    fun addAddressCompanyAsync(idAddress: String, idCompany: String): Mono<Direccion> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addAddressCompany",
+                                     mutableMapOf("id" to idAddress,
+                                                  "compania" to idCompany))
+                               .toEntity(GraphqlResponseAddDireccionCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir le dirección a la compañía:" + (res?.body?.errors ?: ""))
@@ -267,21 +198,17 @@ class DireccionService (@Qualifier("authorization_code") val webClient: WebClien
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "AÑADIR_DIRECCION_COMPANIA", value = res.body!!.data!!.addDireccionCompania)
 
-        return res.body!!.data!!.addDireccionCompania
+        return@securedMono res.body!!.data!!.addDireccionCompania
     }
 
-    fun deleteAddressCompany(idAddress: String, idCompany: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAddressCompany"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                "compania" to idCompany))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDireccionCompania::class.java)
-                            .block()
+    fun deleteAddressCompany(idAddress: String, idCompany: String): Direccion = deleteAddressCompanyAsync(idAddress, idCompany).block()!!
+
+    fun deleteAddressCompanyAsync(idAddress: String, idCompany: String): Mono<Direccion> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteAddressCompany",
+                                     mutableMapOf("id" to idAddress,
+                                                 "compania" to idCompany))
+                               .toEntity(GraphqlResponseDeleteDireccionCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la dirección de la compañía:" + (res?.body?.errors ?: ""))
@@ -296,21 +223,17 @@ class DireccionService (@Qualifier("authorization_code") val webClient: WebClien
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ELIMINAR_DIRECCION_COMPANIA", value = res.body!!.data!!.deleteDireccionCompania)
 
-        return res.body!!.data!!.deleteDireccionCompania
+        return@securedMono res.body!!.data!!.deleteDireccionCompania
     }
 
-    fun addAddressPerson(idAddress: String, idPerson: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addAddressPerson"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                 "persona" to idPerson))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddDireccionPersona::class.java)
-                            .block()
+    fun addAddressPerson(idAddress: String, idPerson: String): Direccion = addAddressPersonAsync(idAddress, idPerson).block()!!
+
+    fun addAddressPersonAsync(idAddress: String, idPerson: String): Mono<Direccion> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addAddressPerson",
+                                     mutableMapOf("id" to idAddress,
+                                                  "persona" to idPerson))
+                               .toEntity(GraphqlResponseAddDireccionPersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir le dirección a la persona:" +  (res?.body?.errors ?: ""))
@@ -325,21 +248,17 @@ class DireccionService (@Qualifier("authorization_code") val webClient: WebClien
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "AÑADIR_DIRECCION_PERSONA", value = res.body!!.data!!.addDireccionPersona)
 
-        return res.body!!.data!!.addDireccionPersona
+        return@securedMono res.body!!.data!!.addDireccionPersona
     }
 
-    fun deleteAddressPerson(idAddress: String, idPerson: String): Direccion {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteAddressPerson"),
-                                                    mutableMapOf("id" to idAddress,
-                                                                "persona" to idPerson))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDireccionPersona::class.java)
-                            .block()
+    fun deleteAddressPerson(idAddress: String, idPerson: String): Direccion = deleteAddressPersonAsync(idAddress, idPerson).block()!!
+
+    fun deleteAddressPersonAsync(idAddress: String, idPerson: String): Mono<Direccion> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteAddressPerson",
+                                     mutableMapOf("id" to idAddress,
+                                                 "persona" to idPerson))
+                               .toEntity(GraphqlResponseDeleteDireccionPersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la dirección de la persona:" + (res?.body?.errors ?: ""))
@@ -354,6 +273,6 @@ class DireccionService (@Qualifier("authorization_code") val webClient: WebClien
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ELIMINAR_DIRECCION_PERSONA", value = res.body!!.data!!.deleteDireccionPersona)
 
-        return res.body!!.data!!.deleteDireccionPersona
+        return@securedMono res.body!!.data!!.deleteDireccionPersona
     }
 }
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -46,27 +44,23 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class DirigeService (@Qualifier("authorization_code") val webClient: WebClient,
+class DirigeService (private val graphqlClient: GraphqlClient,
                      private val eventService: EventService,
                      private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addDirects(person: Persona, toId: String, idCompania: String, nombreCompania: String): Dirige? {
-        if (existRelationship(person, toId, idCompania))  return null        // avoid duplicates
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addDirect"),
-                                                mutableMapOf("from" to person._id,
-                                                             "to" to toId,
-                                                             "idCompania" to idCompania,
-                                                             "nombreCompania" to nombreCompania))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateDirige::class.java)
-                            .block()
+    fun addDirects(person: Persona, toId: String, idCompania: String, nombreCompania: String): Dirige? = addDirectsAsync(person, toId, idCompania, nombreCompania).block()
+
+    fun addDirectsAsync(person: Persona, toId: String, idCompania: String, nombreCompania: String): Mono<Dirige> = securedMono {
+        if (existRelationship(person, toId, idCompania))  return@securedMono null        // avoid duplicates
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addDirect",
+                                     mutableMapOf("from" to person._id,
+                                                  "to" to toId,
+                                                  "idCompania" to idCompania,
+                                                  "nombreCompania" to nombreCompania))
+                               .toEntity(GraphqlResponseCreateDirige::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación de persona a area (dirige):" +  (res?.body?.errors ?: ""))
@@ -78,12 +72,12 @@ class DirigeService (@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_AREA_DIRIGE", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_AREA_DIRIGE", value = res.body!!.data!!.createDirige)
 
-        return res.body!!.data!!.createDirige
+        return@securedMono res.body!!.data!!.createDirige
     }
 
     private fun existRelationship(person: Persona, toID: String, idCompania: String): Boolean {
@@ -94,18 +88,14 @@ class DirigeService (@Qualifier("authorization_code") val webClient: WebClient,
         } != null
     }
 
-    fun deleteDirects(fromId: String, toId: String): Persona? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteDirect"),
-                                                    mutableMapOf("id" to fromId,
-                                                                 "dirigeDel" to toId))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteDirige::class.java)
-                            .block()
+    fun deleteDirects(fromId: String, toId: String): Persona? = deleteDirectsAsync(fromId, toId).block()
+
+    fun deleteDirectsAsync(fromId: String, toId: String): Mono<Persona> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteDirect",
+                                     mutableMapOf("id" to fromId,
+                                                  "dirigeDel" to toId))
+                               .toEntity(GraphqlResponseDeleteDirige::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la relación de persona a área (dirige):" +  (res?.body?.errors ?: ""))
@@ -115,12 +105,12 @@ class DirigeService (@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_ELIMINAR_AREA_DIRIGE", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ERROR:ALTA_ELIMINAR_AREA_DIRIGE", value = res.body!!.data!!.deletePersonaDirigeDel)
 
-        return res.body!!.data!!.deletePersonaDirigeDel
+        return@securedMono res.body!!.data!!.deletePersonaDirigeDel
     }
 
 }
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -46,25 +44,21 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class EmailAsignadoService (@Qualifier("authorization_code") val webClient: WebClient,
+class EmailAsignadoService (private val graphqlClient: GraphqlClient,
                             private val eventService: EventService,
                             private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addEmailAsignado(from: Persona, to: Email, emailAssigned: EmailAsignado): EmailAsignado? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addEmailAssigned"),
-                                                    mutableMapOf("from" to from._id,
-                                                                 "to" to to._id,
-                                                                 "email" to emailAssigned.email))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateEmailAsignado::class.java)
-                            .block()
+    fun addEmailAsignado(from: Persona, to: Email, emailAssigned: EmailAsignado): EmailAsignado? = addEmailAsignadoAsync(from, to, emailAssigned).block()
+
+    fun addEmailAsignadoAsync(from: Persona, to: Email, emailAssigned: EmailAsignado): Mono<EmailAsignado> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addEmailAssigned",
+                                     mutableMapOf("from" to from._id,
+                                                  "to" to to._id,
+                                                  "email" to emailAssigned.email))
+                               .toEntity(GraphqlResponseCreateEmailAsignado::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación de persona a email (EmailAsignado):" + (res?.body?.errors ?: ""))
@@ -75,26 +69,22 @@ class EmailAsignadoService (@Qualifier("authorization_code") val webClient: WebC
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_EMAIL", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_EMAIL", value = res.body!!.data!!.createEmailAsignado)
 
-        return res.body!!.data!!.createEmailAsignado
+        return@securedMono res.body!!.data!!.createEmailAsignado
     }
 
-    fun deleteEmailAsignado(from: Persona, to: Email): Persona? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteEmailAssigned"),
-                                                    mutableMapOf("id" to from._id,
-                                                                 "emailDel" to to._id,))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteEmailAsignado::class.java)
-                            .block()
+    fun deleteEmailAsignado(from: Persona, to: Email): Persona? = deleteEmailAsignadoAsync(from, to).block()
+
+    fun deleteEmailAsignadoAsync(from: Persona, to: Email): Mono<Persona> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteEmailAssigned",
+                                     mutableMapOf("id" to from._id,
+                                                  "emailDel" to to._id,))
+                               .toEntity(GraphqlResponseDeleteEmailAsignado::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la relación de persona a email (emailAsigned):" + (res?.body?.errors ?: ""))
@@ -104,12 +94,12 @@ class EmailAsignadoService (@Qualifier("authorization_code") val webClient: WebC
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:BAJA_EMAIL_SERVER", value = from)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "BAJA_EMAIL", value = res.body!!.data!!.deletePersonaEmailDel)
 
-        return res.body!!.data!!.deletePersonaEmailDel
+        return@securedMono res.body!!.data!!.deletePersonaEmailDel
     }
 
 }
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -50,8 +48,9 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class EmailService (@Qualifier("authorization_code") val webClient: WebClient,
+class EmailService (private val graphqlClient: GraphqlClient,
                     private val eventService: EventService,
+                    private val identityCache: IdentityCache,
                     private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
@@ -59,47 +58,48 @@ class EmailService (@Qualifier("authorization_code") val webClient: WebClient,
     /**
      * This is not actually the email, it is the mail server
      */
-    fun getEmail(id: String? = null, uri: String? = null): List<Email>? {
+    fun getEmail(id: String? = null, uri: String? = null): List<Email>? = getEmailAsync(id, uri).block()
+
+    fun getEmailAsync(id: String? = null, uri: String? = null): Mono<List<Email>> = securedMono {
         val variables = if (id == null) mutableMapOf("uri" to uri)
                         else if (uri == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "uri" to uri)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getEmail"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseEmails::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getEmail", variables)
+                               .bodyToMono(GraphqlResponseEmails::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer los Emails servers:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return res.data!!.emails
+        return@securedMono res.data!!.emails
     }
 
-    fun addEmailIfNotExists(emailAsignado: EmailAsignado): Email? {
+    fun addEmailIfNotExists(emailAsignado: EmailAsignado): Email? = addEmailIfNotExistsAsync(emailAsignado).block()
+
+    /**
+     * Upsert of the email server. The _id is read from the IdentityCache, so most calls do not go to the BUP
+     */
+    fun addEmailIfNotExistsAsync(emailAsignado: EmailAsignado): Mono<Email> = securedMono {
         val emailUri = emailAsignado.email.substringAfter('@')
+        val id = identityCache.idAsync(IdentityCache.Kind.EMAIL_SERVER, emailUri) { upsertEmail(emailAsignado, emailUri) }
+                              .awaitSingleOrNull() ?: return@securedMono null
+
+        return@securedMono Email(_id = id, uri = emailUri)
+    }
+
+    private fun upsertEmail(emailAsignado: EmailAsignado, emailUri: String): Mono<String> = securedMono {
         // check that not exists
-        val emails = getEmail(uri = emailUri) ?: return null
+        val emails = getEmailAsync(uri = emailUri).awaitSingleOrNull() ?: return@securedMono null
 
         if (emails.isNotEmpty())
-            return emails.first()
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addEmail"),
-                                    mutableMapOf("uri" to emailUri))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateEmail::class.java)
-                            .block()
+            return@securedMono emails.first().idNeo4j
+
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addEmail",
+                                     mutableMapOf("uri" to emailUri))
+                               .toEntity(GraphqlResponseCreateEmail::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un email (server):" + (res?.body?.errors ?: ""))
@@ -107,16 +107,16 @@ class EmailService (@Qualifier("authorization_code") val webClient: WebClient,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_EMAIL_SERVER", value = EventGraphqlError(res.body?.errors, mutableMapOf("emailAsignado" to emailAsignado))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_EMAIL_SERVER", value = res.body!!.data!!.createEmail)
 
-        return res.body!!.data!!.createEmail
+        return@securedMono res.body!!.data!!.createEmail.idNeo4j
     }
 
-    private fun hasEmails(id: String): Boolean {
-        val emails = getEmail(id = id)
+    private suspend fun hasEmails(id: String): Boolean {
+        val emails = getEmailAsync(id = id).awaitSingleOrNull()
 
         if (emails == null) return true
         else if (emails.size == 1)
@@ -127,20 +127,16 @@ class EmailService (@Qualifier("authorization_code") val webClient: WebClient,
         return true  // must never occur
     }
 
-    fun deleteEmailIfNotNeeded(id: String): String? {
+    fun deleteEmailIfNotNeeded(id: String): String? = deleteEmailIfNotNeededAsync(id).block()
+
+    fun deleteEmailIfNotNeededAsync(id: String): Mono<String> = securedMono {
         if (hasEmails(id))
-            return "El email (server) tiene personas asignadas. No se borró"
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteEmail"),
-                                                    mutableMapOf("id" to id))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteEmail::class.java)
-                            .block()
+            return@securedMono "El email (server) tiene personas asignadas. No se borró"
+
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteEmail",
+                                     mutableMapOf("id" to id))
+                               .toEntity(GraphqlResponseDeleteEmail::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar el email (server):" + (res?.body?.errors ?: ""))
@@ -148,11 +144,12 @@ class EmailService (@Qualifier("authorization_code") val webClient: WebClient,
                                    headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                    eventName = "ERROR:DELETE_EMAIL_SERVER", value = EventGraphqlError(res.body?.errors, mutableMapOf("id" to id)))
 
-            return "Error interno al tratar de borrar el email (server)"
+            return@securedMono "Error interno al tratar de borrar el email (server)"
         }
+        identityCache.evict(IdentityCache.Kind.EMAIL_SERVER, id)
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "DELETE_EMAIL_SERVER", value = id)
 
-        return null   // ok no error
+        return@securedMono null   // ok no error
     }
 }
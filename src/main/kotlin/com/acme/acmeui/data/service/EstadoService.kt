@@ -24,15 +24,13 @@ package com.acme.acmeui.data.service
 
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.Estado
-import com.acme.acmeui.data.dto.GraphqlRequestBody
 import com.acme.acmeui.data.dto.GraphqlResponseEstados
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.SingleFlight
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -44,27 +42,28 @@ import reactor.core.publisher.Mono
  * @date February 2023
  */
 @Service
-class EstadoService (@Qualifier("authorization_code") val webClient: WebClient,
+class EstadoService (private val graphqlClient: GraphqlClient,
                      private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun allStates(): List<Estado> {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allStates"))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .bodyToMono(GraphqlResponseEstados::class.java)
-                        .block()
+    fun allStates(): List<Estado> = allStatesAsync().block()!!
+
+    /**
+     * unattended = true: read without a user (see ReferenceDataService scheduled refresh)
+     */
+    fun allStatesAsync(unattended: Boolean = false): Mono<List<Estado>> = securedMono {
+        val uri = uri().path("/bup/graphql").build().toUri()
+        val res = (if (unattended) graphqlClient.postUnattended(uri, "allStates")
+                   else graphqlClient.postShared(uri, "allStates", scope = SingleFlight.Scope.SHARED))
+                  .bodyToMono(GraphqlResponseEstados::class.java)
+                  .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer estados:" + res?.errors)
-            return emptyList()
+            return@securedMono emptyList()
         }
 
-        return res.data!!.estadoes
+        return@securedMono res.data!!.estadoes
     }
 }
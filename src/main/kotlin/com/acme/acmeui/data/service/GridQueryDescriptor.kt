@@ -0,0 +1,177 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GridQueryDescriptor.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.data.dto.GridQuery
+import com.acme.acmeui.data.dto.KeysetCursor
+import com.ailegorreta.client.security.utils.HasLogger
+import java.time.LocalDate
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+
+/**
+ * Maps the filter and sort of a grid (see GridQuery) to the 'filter' and 'options' variables of a BUP query, so
+ * the filtering and the ordering are done by Neo4j and not by the user scrolling the grid.
+ *
+ * Every grid path has its own mapping to the BUP filter (i.e., a 'contains', a relationship, a boolean or a
+ * day). All the filters are joined with AND. A path without mapping is logged and ignored.
+ *
+ * The sort is by one field of the entity plus its _id, so the keyset cursor (see KeysetCursor) works for any
+ * sortable field: the keyset condition is added to the filter, '_gt' for ascending and '_lt' for descending.
+ * A row with null sort key does not have cursor and the next page is read with skip.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class GridQueryDescriptor<T>(private val entity: String,
+                             private val filters: Map<String, (String) -> Map<String, Any?>?>,
+                             private val sorts: Map<String, (T) -> Any?>,
+                             private val defaultSort: String,
+                             private val id: (T) -> Any?): HasLogger {
+
+    data class Sort(val field: String, val descending: Boolean)
+
+    fun sort(query: GridQuery): Sort {
+        if (query.sortPath == null) return Sort(defaultSort, false)
+        if (!sorts.containsKey(query.sortPath)) {
+            logger.error("Error in sort path:${query.sortPath} para $entity")
+            return Sort(defaultSort, false)
+        }
+
+        return Sort(query.sortPath, query.descending)
+    }
+
+    /**
+     * BUP filter of the grid query (null if there is no filter). If a cursor is given the keyset condition is
+     * added, so this filter must not be used to count the rows.
+     */
+    fun filter(query: GridQuery, cursor: KeysetCursor? = null): Map<String, Any?>? {
+        val conditions = mutableListOf<Map<String, Any?>>()
+
+        query.filters.forEach { (path, value) ->
+            val mapping = filters[path]
+
+            if (mapping == null)
+                logger.error("Error in filter path:$path para $entity")
+            else
+                mapping(value)?.let { conditions.add(it) }
+                              ?: logger.warn("Valor inválido '$value' para el filtro $path de $entity")
+        }
+        if (cursor != null) {
+            val sort = sort(query)
+
+            conditions.add(mapOf("OR" to listOf(mapOf(sort.field + (if (sort.descending) "_lt" else "_gt") to cursor.sortKey),
+                                                mapOf(sort.field to cursor.sortKey, "_id_gt" to cursor.id))))
+        }
+
+        return when (conditions.size) {
+            0 -> null
+            1 -> conditions.first()
+            else -> mapOf("AND" to conditions)
+        }
+    }
+
+    /**
+     * BUP options: the page (with skip when there is no cursor) and the sort
+     */
+    fun options(query: GridQuery, page: Int, size: Int, cursor: KeysetCursor?): Map<String, Any?> {
+        val sort = sort(query)
+        val options = mutableMapOf<String, Any?>("limit" to size,
+                                                 "sort" to listOf(mapOf(sort.field to if (sort.descending) "DESC" else "ASC"),
+                                                                  mapOf("_id" to "ASC")))
+
+        if (cursor == null) options["skip"] = page * size
+
+        return options
+    }
+
+    /**
+     * Cursor of the next page, or null if the page was the last one or the sort key of its last row is null
+     */
+    fun nextCursor(content: List<T>, size: Int, query: GridQuery): String? {
+        val sortKey = sorts.getValue(sort(query).field)
+
+        if (content.isNotEmpty() && sortKey(content.last()) == null) return null
+
+        return KeysetCursor.next(content, size) { Pair(sortKey(it)?.toString(), id(it)) }
+    }
+
+    companion object {
+        private val DAY_FORMATS = listOf(DateTimeFormatter.ofPattern("dd-MM-yyyy"), DateTimeFormatter.ISO_LOCAL_DATE)
+        private val TRUE_VALUES = setOf("si", "sí", "true", "1", "activo", "activa")
+        private val FALSE_VALUES = setOf("no", "false", "0", "inactivo", "inactiva")
+
+        /**
+         * Total rows of a filter the BUP cannot count. Without reading all the _id's of the filter the total is
+         * just known in the last page (less rows than the page size), otherwise it is estimated with one row more
+         * than the page so the grid keeps asking for the next one.
+         */
+        fun estimatedTotal(page: Int, size: Int, rows: Int): Long =
+            if (rows < size) page.toLong() * size + rows
+            else (page + 1L) * size + 1
+
+        /**
+         * True if the total of the page is exact: it was counted by the BUP or it is the last page
+         */
+        fun isExactTotal(counted: Boolean, content: List<*>, size: Int) = counted || content.size < size
+
+        fun contains(field: String): (String) -> Map<String, Any?>? = { value -> mapOf("${field}_contains" to value) }
+
+        /**
+         * Filter of a one-to-one relationship, i.e., 'sector: { nombre_contains: ... }'
+         */
+        fun relationship(field: String, filter: (String) -> Map<String, Any?>?): (String) -> Map<String, Any?>? =
+            { value -> filter(value)?.let { mapOf(field to it) } }
+
+        /**
+         * Filter of a one-to-many relationship: at least one of the related nodes, i.e., 'direcciones_some: {...}'
+         */
+        fun some(field: String, filter: (String) -> Map<String, Any?>?): (String) -> Map<String, Any?>? =
+            { value -> filter(value)?.let { mapOf("${field}_some" to it) } }
+
+        fun boolean(field: String): (String) -> Map<String, Any?>? = { value ->
+            when (value.lowercase()) {
+                in TRUE_VALUES -> mapOf(field to true)
+                in FALSE_VALUES -> mapOf(field to false)
+                else -> null
+            }
+        }
+
+        /**
+         * A LocalDateTime field in the day of the value ('dd-MM-yyyy' as the grid shows it, or 'yyyy-MM-dd')
+         */
+        fun day(field: String): (String) -> Map<String, Any?>? = { value ->
+            DAY_FORMATS.firstNotNullOfOrNull { format ->
+                try {
+                    LocalDate.parse(value, format)
+                } catch (e: DateTimeParseException) {
+                    null
+                }
+            }?.let { day ->
+                mapOf("${field}_gte" to day.atStartOfDay().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME),
+                      "${field}_lt" to day.plusDays(1).atStartOfDay().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME))
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  IdentityCache.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.service.graphql.SingleFlight
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics
+import org.springframework.stereotype.Component
+import reactor.core.publisher.Mono
+
+/**
+ * Natural key -> _id of the BUP entities that are shared by the companies and persons (rfcs, telephones, areas
+ * and email servers), so the addXIfNotExists upserts of their services do not read the BUP every time.
+ *
+ * If the natural key is not here the upsert reads the entity and creates it if it does not exist. Identical
+ * upserts in flight at the same time in this node share one read (and create) by single-flight, so two users
+ * that save the same telephone at once do not create it twice.
+ *
+ * The entries expire after 'microservice.bup.identity-cache.ttl' and they are removed when the entity is
+ * deleted in this node (evict) or in any node (see CacheInvalidationListener), so a stale _id lives at most the
+ * ttl just if the entity is deleted outside acme-ui.
+ *
+ * The cache is exposed in the actuator with the cache.* metrics and the tag cache=bup-identities.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class IdentityCache(private val singleFlight: SingleFlight,
+                    serviceConfig: ServiceConfig,
+                    meterRegistry: MeterRegistry) {
+
+    enum class Kind { RFC, TELEFONO, AREA, EMAIL_SERVER }
+
+    data class Key(val kind: Kind, val naturalKey: String)
+
+    companion object {
+        /**
+         * Events sent when an entity is deleted (its value is not always the _id, so all its kind is invalidated)
+         */
+        val DELETE_EVENTS = mapOf("BAJA_RFC" to Kind.RFC,
+                                  "BAJA_TELEFONO" to Kind.TELEFONO,
+                                  "BORRADO_AUTOMATICO_AREA_COMPAÑIA" to Kind.AREA,
+                                  "DELETE_EMAIL_SERVER" to Kind.EMAIL_SERVER)
+    }
+
+    private val ids: Cache<Key, String> = Caffeine.newBuilder()
+                                                  .expireAfterWrite(serviceConfig.bupIdentityCacheTtl)
+                                                  .maximumSize(serviceConfig.bupIdentityCacheMaxSize)
+                                                  .recordStats()
+                                                  .build()
+
+    init {
+        CaffeineCacheMetrics.monitor(meterRegistry, ids, "bup-identities")
+    }
+
+    /**
+     * Returns the _id of the natural key, or executes the upsert (read and create if it does not exist) that
+     * returns the _id. If the upsert fails (empty) nothing is cached.
+     */
+    fun idAsync(kind: Kind, naturalKey: String, upsert: () -> Mono<String>): Mono<String> {
+        val key = Key(kind, naturalKey)
+        val id = ids.getIfPresent(key)
+
+        if (id != null) return Mono.just(id)
+
+        return singleFlight.execute(singleFlight.key("upsert$kind", mapOf("naturalKey" to naturalKey),
+                                                     SingleFlight.Scope.SHARED)) {
+            upsert().doOnNext { ids.put(key, it) }
+        }
+    }
+
+    fun evict(kind: Kind, id: String) {
+        ids.asMap().entries.removeIf { it.key.kind == kind && it.value == id }
+    }
+
+    fun invalidate(kind: Kind) {
+        ids.asMap().keys.removeIf { it.kind == kind }
+    }
+}
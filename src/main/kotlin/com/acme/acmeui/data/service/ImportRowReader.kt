@@ -0,0 +1,258 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ImportRowReader.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import java.io.BufferedReader
+import java.io.Closeable
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipFile
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
+
+/**
+ * Reads the rows of a CSV or XLSX file one by one, so a file with thousands of rows is never in memory.
+ *
+ * The first row is the header with the column names, and every row is returned as a map 'column -> value' (the
+ * empty cells are not in the map). The column names are compared without case and without blanks.
+ *
+ * CSV: UTF-8 (with or without BOM), separated by ',' or ';' (the one in the header) and with quoted values as in
+ * RFC 4180, i.e., a value can have the separator, doubled quotes or new lines.
+ *
+ * XLSX: just the first sheet (sheet1.xml) is read. The XLSX is a zip, so the sheet XML is read with StAX as a stream and just
+ * the shared strings table is kept in memory (the same as the Apache POI streaming reader, without the
+ * dependency).
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+abstract class ImportRowReader: Closeable {
+
+    data class Row(val number: Long, val values: Map<String, String>) {
+        fun value(column: String): String? = values[normalize(column)]
+    }
+
+    companion object {
+        fun open(file: Path, fileName: String): ImportRowReader =
+            when (fileName.substringAfterLast('.').lowercase()) {
+                "csv", "txt" -> CsvRowReader(file)
+                "xlsx" -> XlsxRowReader(file)
+                else -> throw IllegalArgumentException("Tipo de archivo no soportado para importar:$fileName")
+            }
+
+        fun normalize(column: String) = column.filterNot { it.isWhitespace() || it == '_' }.lowercase()
+    }
+
+    private var header: List<String>? = null
+
+    /**
+     * Returns the next row that is not empty, or null at the end of the file
+     */
+    fun next(): Row? {
+        if (header == null)
+            header = nextCells()?.map { normalize(it) } ?: return null
+        while (true) {
+            val cells = nextCells() ?: return null
+            val values = LinkedHashMap<String, String>()
+
+            cells.forEachIndexed { i, cell ->
+                if (i < header!!.size && header!![i].isNotEmpty() && cell.isNotBlank()) values[header!![i]] = cell.trim()
+            }
+            if (values.isNotEmpty()) return Row(rowNumber(), values)
+        }
+    }
+
+    /**
+     * Returns the next n rows (less at the end of the file)
+     */
+    fun next(n: Int): List<Row> {
+        val rows = ArrayList<Row>(n)
+
+        while (rows.size < n) rows.add(next() ?: break)
+
+        return rows
+    }
+
+    protected abstract fun nextCells(): List<String>?
+
+    protected abstract fun rowNumber(): Long
+}
+
+private class CsvRowReader(file: Path): ImportRowReader() {
+    private val reader: BufferedReader = Files.newBufferedReader(file, Charsets.UTF_8)
+    private var separator: Char? = null
+    private var line = 0L
+    private var rowLine = 0L
+
+    override fun nextCells(): List<String>? {
+        var c = reader.read()
+
+        if (c == -1) return null
+        if (line == 0L && c == '\uFEFF'.code) c = reader.read()   // BOM
+        line++
+        rowLine = line
+
+        val cells = mutableListOf<String>()
+        val cell = StringBuilder()
+        var quoted = false
+
+        while (c != -1) {
+            val ch = c.toChar()
+
+            if (quoted) {
+                if (ch == '"') {
+                    reader.mark(1)
+                    if (reader.read() == '"'.code) cell.append('"')
+                    else {
+                        reader.reset()
+                        quoted = false
+                    }
+                } else {
+                    if (ch == '\n') line++
+                    cell.append(ch)
+                }
+            } else when {
+                ch == '"' -> quoted = true
+                ch == '\n' -> break
+                ch == '\r' -> { }
+                separator == null && (ch == ',' || ch == ';') -> {      // the header defines the separator
+                    separator = ch
+                    cells.add(cell.toString())
+                    cell.clear()
+                }
+                ch == separator -> {
+                    cells.add(cell.toString())
+                    cell.clear()
+                }
+                else -> cell.append(ch)
+            }
+            c = reader.read()
+        }
+        cells.add(cell.toString())
+
+        return cells
+    }
+
+    override fun rowNumber() = rowLine
+
+    override fun close() = reader.close()
+}
+
+private class XlsxRowReader(file: Path): ImportRowReader() {
+    companion object {
+        const val SHEET = "xl/worksheets/sheet1.xml"
+        const val SHARED_STRINGS = "xl/sharedStrings.xml"
+
+        private val factory = XMLInputFactory.newInstance().apply {
+            setProperty(XMLInputFactory.SUPPORT_DTD, false)             // no XXE
+            setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+        }
+    }
+
+    private val zip = ZipFile(file.toFile())
+    private val sharedStrings = readSharedStrings()
+    private val sheet: XMLStreamReader = factory.createXMLStreamReader(
+                zip.getInputStream(zip.getEntry(SHEET) ?: throw IllegalArgumentException("El archivo XLSX no tiene hojas")))
+    private var row = 0L
+
+    private fun readSharedStrings(): List<String> {
+        val entry = zip.getEntry(SHARED_STRINGS) ?: return emptyList()
+        val strings = mutableListOf<String>()
+        val reader = factory.createXMLStreamReader(zip.getInputStream(entry))
+        var text: StringBuilder? = null
+
+        while (reader.hasNext()) {
+            when (reader.next()) {
+                XMLStreamConstants.START_ELEMENT -> if (reader.localName == "si") text = StringBuilder()
+                                                   else if (reader.localName == "t" && text != null) text.append(reader.elementText)
+                XMLStreamConstants.END_ELEMENT -> if (reader.localName == "si") {
+                    strings.add(text.toString())
+                    text = null
+                }
+            }
+        }
+        reader.close()
+
+        return strings
+    }
+
+    override fun nextCells(): List<String>? {
+        while (sheet.hasNext()) {
+            if (sheet.next() == XMLStreamConstants.START_ELEMENT && sheet.localName == "row") {
+                row = sheet.getAttributeValue(null, "r")?.toLongOrNull() ?: (row + 1)
+                return readRow()
+            }
+        }
+
+        return null
+    }
+
+    /**
+     * The empty cells are not in the XML, so the column is taken from the cell reference (i.e., 'C7' -> 2)
+     */
+    private fun readRow(): List<String> {
+        val cells = mutableListOf<String>()
+        var column = 0
+        var type: String? = null
+        var value: String? = null
+
+        while (sheet.hasNext()) {
+            when (sheet.next()) {
+                XMLStreamConstants.START_ELEMENT -> when (sheet.localName) {
+                    "c" -> {
+                        column = sheet.getAttributeValue(null, "r")?.let { columnIndex(it) } ?: cells.size
+                        type = sheet.getAttributeValue(null, "t")
+                        value = null
+                    }
+                    "v" -> value = sheet.elementText
+                    "t" -> value = (value ?: "") + sheet.elementText      // inline string
+                }
+                XMLStreamConstants.END_ELEMENT -> when (sheet.localName) {
+                    "c" -> {
+                        while (cells.size < column) cells.add("")
+                        cells.add(when (type) {
+                            "s" -> value?.toIntOrNull()?.let { sharedStrings.getOrNull(it) } ?: ""
+                            "b" -> if (value == "1") "true" else "false"
+                            else -> value ?: ""
+                        })
+                    }
+                    "row" -> return cells
+                }
+            }
+        }
+
+        return cells
+    }
+
+    private fun columnIndex(reference: String): Int =
+        reference.takeWhile { it.isLetter() }.fold(0) { index, letter -> index * 26 + (letter.uppercaseChar() - 'A' + 1) } - 1
+
+    override fun rowNumber() = row
+
+    override fun close() {
+        sheet.close()
+        zip.close()
+    }
+}
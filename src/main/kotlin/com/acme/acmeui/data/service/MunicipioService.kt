@@ -25,16 +25,15 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingle
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -50,47 +49,55 @@ import reactor.core.publisher.Mono
  * @date February 2023
  */
 @Service
-class MunicipioService (@Qualifier("authorization_code") val webClient: WebClient,
+class MunicipioService (private val graphqlClient: GraphqlClient,
                         private val eventService: EventService,
                         private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun getColony(id: Long? = null, nombre: String? = null): List<Municipio>? {
+    fun getColony(id: Long? = null, nombre: String? = null): List<Municipio>? = getColonyAsync(id, nombre).block()
+
+    fun getColonyAsync(id: Long? = null, nombre: String? = null): Mono<List<Municipio>> = securedMono {
         val variables = if (id == null) mutableMapOf("nombre" to nombre)
                         else if (nombre == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "nombre" to nombre)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getColony"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseMunicipios::class.java)
-                            .block()
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "getColony", variables)
+                               .bodyToMono(GraphqlResponseMunicipios::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer loc municipio:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return res.data!!.municipios
+        return@securedMono res.data!!.municipios
     }
 
-    fun addColony(colony: Municipio): Municipio? {
-        val graphQLRequestBody = GraphqlRequestBody(
-            GraphqlSchemaReaderUtil.getSchemaFromFileName("addColony"),
-                                                            mutableMapOf("nombre" to colony.nombre))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateMunicipio::class.java)
-                            .block()
+    /**
+     * Reads one page of all the municipios sorted by _id, just with the zip codes numbers (see AddressIndexService)
+     */
+    fun allColoniesAsync(page: Int, size: Int): Mono<List<Municipio>> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "allColonies",
+                                     mutableMapOf("options" to mapOf("skip" to page * size, "limit" to size,
+                                                                     "sort" to listOf(mapOf("_id" to "ASC")))))
+                               .bodyToMono(GraphqlResponseMunicipios::class.java)
+                               .awaitSingleOrNull()
+
+        if (res == null || res.errors != null) {
+            logger.error("Error al leer la página $page de municipios:" + res?.errors)
+            return@securedMono null
+        }
+
+        return@securedMono res.data!!.municipios
+    }
+
+    fun addColony(colony: Municipio): Municipio? = addColonyAsync(colony).block()
+
+    fun addColonyAsync(colony: Municipio): Mono<Municipio> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addColony",
+                                     mutableMapOf("nombre" to colony.nombre))
+                               .toEntity(GraphqlResponseCreateMunicipio::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir el municipio:" + (res?.body?.errors ?: ""))
@@ -98,7 +105,7 @@ class MunicipioService (@Qualifier("authorization_code") val webClient: WebClien
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_MUNICIPIO", value = EventGraphqlError(res.body?.errors, mutableMapOf("colony" to colony))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_MUNICIPIO", value = res.body!!.data!!.createMunicipio)
@@ -106,29 +113,24 @@ class MunicipioService (@Qualifier("authorization_code") val webClient: WebClien
         // now its relationships to zipcodes (at least on (i.e, the first one) must exist
         // note: we think they already where created before
         try {
-            addColonyZipcode(idColony = res.body!!.data!!.createMunicipio._id!!,
-                             idZipcode = colony.codigos!!.first().idNeo4j!!)
+            addColonyZipcodeAsync(idColony = res.body!!.data!!.createMunicipio._id!!,
+                             idZipcode = colony.codigos!!.first().idNeo4j!!).awaitSingle()
         } catch (e: Exception) {
             logger.error("Error al añadir la relación de código postal a estado:" + e.message)
-            return null
+            return@securedMono null
         }
 
-        return res.body!!.data!!.createMunicipio
+        return@securedMono res.body!!.data!!.createMunicipio
     }
 
-    fun addColonyZipcode(idColony: String, idZipcode: String): Municipio {
-        val graphQLRequestBody = GraphqlRequestBody(
-            GraphqlSchemaReaderUtil.getSchemaFromFileName("addColonyZipcode"),
-                                                            mutableMapOf("id" to idColony,
-                                                                        "codigo" to idZipcode))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddMunicipioCodigo::class.java)
-                            .block()
+    fun addColonyZipcode(idColony: String, idZipcode: String): Municipio = addColonyZipcodeAsync(idColony, idZipcode).block()!!
+
+    fun addColonyZipcodeAsync(idColony: String, idZipcode: String): Mono<Municipio> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addColonyZipcode",
+                                     mutableMapOf("id" to idColony,
+                                                 "codigo" to idZipcode))
+                               .toEntity(GraphqlResponseAddMunicipioCodigo::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación municipio com código:" + (res?.body?.errors ?: ""))
@@ -143,6 +145,6 @@ class MunicipioService (@Qualifier("authorization_code") val webClient: WebClien
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_MUNICIPIO_CODIGO_POSTAL", value = res.body!!.data!!.addMunicipioCodigo)
 
-        return res.body!!.data!!.addMunicipioCodigo
+        return@securedMono res.body!!.data!!.addMunicipioCodigo
     }
 }
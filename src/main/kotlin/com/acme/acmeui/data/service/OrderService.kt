@@ -23,22 +23,20 @@
 package com.acme.acmeui.data.service
 
 import com.acme.acmeui.config.ServiceConfig
-import com.acme.acmeui.data.dto.GraphqlRequestBody
 import com.acme.acmeui.data.dto.GraphqlResponseOrders
 import com.acme.acmeui.data.dto.GraphqlResponseOrdersCount
+import com.acme.acmeui.data.dto.KeysetCursor
 import com.acme.acmeui.data.dto.Order
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
-import reactor.core.publisher.Mono
 import org.springframework.data.domain.Page
+import org.springframework.data.domain.PageImpl
 import org.springframework.data.domain.PageRequest
-import org.springframework.data.support.PageableExecutionUtils
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
+import reactor.core.publisher.Mono
 
 /**
  * Order to communicate to the Order microservice server repo to get all orders
@@ -49,47 +47,55 @@ import org.springframework.security.oauth2.client.web.reactive.function.client.S
  * @date November 2023
  */
 @Service
-class OrderService(@Qualifier("authorization_code") val webClient: WebClient,
+class OrderService(private val graphqlClient: GraphqlClient,
                    private val serviceConfig: ServiceConfig): HasLogger {
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getOrderProvider())
 
-    fun allOrders(page: Int, size: Int): Page<Order>? {
-        val variables = mutableMapOf("skip" to (page * size), "limit" to size)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allOrdersPageable"),
-                                                                variables)
-        val res = webClient.post()
-                            .uri(uri().path("/order/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseOrders::class.java)
-                            .block()
+    /**
+     * Page of orders. If a cursor is given the page is read after it (keyset pagination), otherwise it skips
+     * page * size rows. If the total is not known (i.e., null) it is read in the same document as the page.
+     */
+    fun allOrders(page: Int, size: Int, cursor: KeysetCursor? = null, total: Long? = null): Page<Order>? =
+        allOrdersAsync(page, size, cursor, total).block()
+
+    fun allOrdersAsync(page: Int, size: Int,
+                       cursor: KeysetCursor? = null, total: Long? = null): Mono<Page<Order>> = securedMono {
+        val variables = mutableMapOf<String, Any?>("limit" to size, "withCount" to (total == null))
+
+        if (cursor == null)
+            variables["skip"] = page * size
+        else {
+            variables["afterFechaOperacion"] = cursor.sortKey
+            variables["afterId"] = cursor.id
+        }
+
+        val res = graphqlClient.postShared(uri().path("/order/graphql").build().toUri(),
+                                           if (cursor == null) "allOrdersPageable" else "allOrdersAfter",
+                                           variables)
+                               .bodyToMono(GraphqlResponseOrders::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.errors != null)) {
             logger.error("Error al leer una página de ordenes:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return PageableExecutionUtils.getPage(res.data!!.orders, PageRequest.of(page, size)) { 0 }
+        return@securedMono PageImpl(res.data!!.orders, PageRequest.of(page, size),
+                                    total ?: res.data.ordersCount?.toLong() ?: 0L)
     }
 
-    fun count() : Long {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allOrdersCount"))
-        val res = webClient.post()
-                            .uri(uri().path("/order/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseOrdersCount::class.java)
-                            .block()
+    fun count(): Long = countAsync().block()!!
+
+    fun countAsync(): Mono<Long> = securedMono {
+        val res = graphqlClient.postShared(uri().path("/order/graphql").build().toUri(), "allOrdersCount")
+                               .bodyToMono(GraphqlResponseOrdersCount::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.errors != null)) {
             logger.error("Error al leer una el número de registros en ordenes:" + res?.errors)
-            return 0L
+            return@securedMono 0L
         }
 
-        return res.data!!.ordersCount.toLong()
+        return@securedMono res.data!!.ordersCount.toLong()
     }
 }
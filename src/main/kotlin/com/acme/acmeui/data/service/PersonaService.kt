@@ -24,24 +24,30 @@ package com.acme.acmeui.data.service
 
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.boolean
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.contains
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.day
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.relationship
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.some
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.CompositeMutation
+import com.acme.acmeui.service.graphql.FanOutExecutor
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
+import kotlinx.coroutines.reactor.awaitSingle
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.data.domain.Page
+import org.springframework.data.domain.PageImpl
 import org.springframework.data.domain.PageRequest
 import org.springframework.data.support.PageableExecutionUtils
-import org.springframework.http.MediaType
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServerOAuth2AuthorizedClientExchangeFilterFunction
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
-import reactor.core.publisher.Mono
 import java.time.format.DateTimeFormatter
+import reactor.core.publisher.Mono
 
 /**
  * Persons to communicate to the BUP microservice server repo to get all persons
@@ -52,17 +58,20 @@ import java.time.format.DateTimeFormatter
  * @date February 2024
  */
 @Service
-class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
+class PersonaService (private val graphqlClient: GraphqlClient,
                       private val telefonoService: TelefonoService,
                       private val emailService: EmailService,
                       private val emailAsignadoService: EmailAsignadoService,
                       private val direccionService: DireccionService,
                       private val rfcService: RfcService,
                       private val eventService: EventService,
+                      private val fanOutExecutor: FanOutExecutor,
                       private val serviceConfig: ServiceConfig): HasLogger {
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun allPersons(apellidoPaterno: String?, activo: Boolean?, page: Int, size: Int): Page<Persona>? {
+    fun allPersons(apellidoPaterno: String?, activo: Boolean?, page: Int, size: Int): Page<Persona>? = allPersonsAsync(apellidoPaterno, activo, page, size).block()
+
+    fun allPersonsAsync(apellidoPaterno: String?, activo: Boolean?, page: Int, size: Int): Mono<Page<Persona>> = securedMono {
         val variables = if (apellidoPaterno.isNullOrBlank())
                             if (activo == null )
                                 mutableMapOf("skip" to (page * size), "limit" to size)
@@ -75,58 +84,93 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
                             mutableMapOf("apellidoPaterno" to apellidoPaterno, "activo" to activo,
                                          "skip" to (page * size), "limit" to size)
 
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allPersonsPageable"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponsePersonas::class.java)
-                            .block()
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allPersonsPageable", variables)
+                               .bodyToMono(GraphqlResponsePersonas::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer una página de personas:" + res?.errors)
-            return null
+            return@securedMono null
         }
 
-        return PageableExecutionUtils.getPage(res.data!!.personae, PageRequest.of(page, size)) { 0 }
+        return@securedMono PageableExecutionUtils.getPage(res.data!!.personae, PageRequest.of(page, size)) { 0 }
     }
 
 
-    fun count(apellidoPaterno: String?, activo: Boolean?) : Long {
-        val graphQLRequestBody = if (apellidoPaterno.isNullOrBlank())
-                                    if (activo == null )
-                                        GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allPersonsCount"))
-                                    else
-                                        GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allPersonsCount"),
-                                            mutableMapOf("activo" to activo))
-                                else if (activo == null )
-                                        GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allPersonsCount"),
-                                            mutableMapOf("apellidoPaterno" to apellidoPaterno))
-                                else
-                                        GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allPersonsCount"),
-                                            mutableMapOf("apellidoPaterno" to apellidoPaterno, "activo" to activo))
-
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponsePersonasCount::class.java)
-                            .block()
+    /**
+     * Page of persons for the grid. Just the summary is read, the full person is read with getPersonById() when
+     * the user opens it for editing.
+     *
+     * The grid filter and sort are done by the BUP, see GRID for the grid paths that can be filtered and sorted.
+     * If a cursor is given the page is read after it (keyset pagination), otherwise it skips page * size rows.
+     * If the total is not known (i.e., null) it is read in the same document as the page. The BUP just counts
+     * active persons by apellido paterno (see isCounted), for any other filter the total is estimated (see
+     * GridQueryDescriptor.estimatedTotal) and it is exact only in the last page.
+     */
+    fun allPersonsSummary(query: GridQuery, page: Int, size: Int,
+                          cursor: KeysetCursor? = null, total: Long? = null): Page<PersonaResumen>? =
+        allPersonsSummaryAsync(query, page, size, cursor, total).block()
+
+    fun allPersonsSummaryAsync(query: GridQuery, page: Int, size: Int,
+                               cursor: KeysetCursor? = null, total: Long? = null): Mono<Page<PersonaResumen>> = securedMono {
+        val countByApellido = total == null && isCounted(query)
+        val variables = mapOf("filter" to GRID.filter(query, cursor),
+                              "options" to GRID.options(query, page, size, cursor),
+                              "apellidoPaterno" to if (countByApellido) query.filter("apellidoPaterno") else null,
+                              "activo" to if (countByApellido && query.filter("activo") != null) true else null,
+                              "countByApellido" to countByApellido)
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allPersonsSummary",
+                                           variables.filterValues { it != null })      // a null filter would mean 'is null'
+                               .bodyToMono(GraphqlResponsePersonasResumen::class.java)
+                               .awaitSingleOrNull()
+
+        if (res == null || res.errors != null) {
+            logger.error("Error al leer una página del resumen de personas:" + res?.errors)
+            return@securedMono null
+        }
+
+        return@securedMono PageImpl(res.data!!.personae.map { it.toResumen() }, PageRequest.of(page, size),
+                                    total ?: res.data.personasCount?.toLong()
+                                          ?: GridQueryDescriptor.estimatedTotal(page, size, res.data.personae.size))
+    }
+
+    /**
+     * True if the BUP can count the rows of the grid filter: personasCount just filters by apellido paterno
+     * and active persons
+     */
+    fun isCounted(query: GridQuery) =
+        query.filters.keys.all { it == "apellidoPaterno" || it == "activo" } &&
+        query.filter("activo").let { it == null || it == "true" }
+
+    fun getPersonById(id: String): Persona? = getPersonByIdAsync(id).block()
+
+    fun getPersonByIdAsync(id: String): Mono<Persona> = securedMono {
+        return@securedMono getPerson(id = id, nombre = null)?.firstOrNull()
+    }
+
+    fun count(apellidoPaterno: String?, activo: Boolean?): Long = countAsync(apellidoPaterno, activo).block()!!
+
+    fun countAsync(apellidoPaterno: String?, activo: Boolean?): Mono<Long> = securedMono {
+        val variables = if (apellidoPaterno.isNullOrBlank())
+                            if (activo == null ) null
+                            else mutableMapOf("activo" to activo)
+                        else if (activo == null )
+                            mutableMapOf("apellidoPaterno" to apellidoPaterno)
+                        else
+                            mutableMapOf("apellidoPaterno" to apellidoPaterno, "activo" to activo)
+        val res = graphqlClient.postShared(uri().path("/bup/graphql").build().toUri(), "allPersonsCount", variables)
+                               .bodyToMono(GraphqlResponsePersonasCount::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.errors != null)) {
             logger.error("Error al leer una el número de registros en personas:" + res?.errors)
-            return 0L
+            return@securedMono 0L
         }
 
-        return res.data!!.personasCount.toLong()
+        return@securedMono res.data!!.personasCount.toLong()
     }
 
-    private fun getPerson(id: String? = null, nombre: String? = null,
+    private suspend fun getPerson(id: String? = null, nombre: String? = null,
                           apellidoPaterno: String? = null, apellidoMaterno: String? = null): List<Persona>? {
         val variables = if (id == null) mutableMapOf("nombre" to nombre,
                                                      "apellidoPaterno" to apellidoPaterno,
@@ -136,16 +180,9 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
                                           "nombre" to nombre,
                                           "apellidoPaterno" to apellidoPaterno,
                                           "apellidoMaterno" to apellidoMaterno)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getPerson"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponsePersonas::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getPerson", variables)
+                               .bodyToMono(GraphqlResponsePersonas::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer la persona:" + res?.errors)
@@ -155,38 +192,36 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
         return res.data!!.personae
     }
 
-    fun uniqueValidator(persona: Persona): String? {
+    fun uniqueValidator(persona: Persona): String? = uniqueValidatorAsync(persona).block()
+
+    fun uniqueValidatorAsync(persona: Persona): Mono<String> = securedMono {
         val persons = getPerson(nombre = persona.nombre,
                                 apellidoPaterno = persona.apellidoPaterno,
                                 apellidoMaterno = persona.apellidoMaterno)
 
-        return if (persons == null) "Error al leer de la base de datos"
+        return@securedMono if (persons == null) "Error al leer de la base de datos"
         else if (persons.isEmpty()) null
         else if (persons.first().idNeo4j == persona.idNeo4j) null
         else "Ya existe una persona con el mismo nombre"
     }
 
-    fun addPerson(person: Persona): Persona? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addPerson"),
-                                    mutableMapOf("nombre" to person.nombre,
-                                                 "apellidoPaterno" to person.apellidoPaterno,
-                                                 "apellidoMaterno" to person.apellidoMaterno,
-                                                 "fechaNAcimiento" to person.fechaNacimiento,
-                                                 "genero" to person.genero,
-                                                 "estadoCivil" to person.estadoCivil,
-                                                 "curp" to person.curp,
-                                                 "usuarioModificacion" to person.usuarioModificacion!!,
-                                                 "fechaModificacion" to person.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
-                                                 "activo" to person.activo,
-                                                 "idPersona" to person.idPersona))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreatePersona::class.java)
-                            .block()
+    fun addPerson(person: Persona): Persona? = addPersonAsync(person).block()
+
+    fun addPersonAsync(person: Persona): Mono<Persona> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addPerson",
+                                     mutableMapOf("nombre" to person.nombre,
+                                                  "apellidoPaterno" to person.apellidoPaterno,
+                                                  "apellidoMaterno" to person.apellidoMaterno,
+                                                  "fechaNAcimiento" to person.fechaNacimiento,
+                                                  "genero" to person.genero,
+                                                  "estadoCivil" to person.estadoCivil,
+                                                  "curp" to person.curp,
+                                                  "usuarioModificacion" to person.usuarioModificacion!!,
+                                                  "fechaModificacion" to person.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
+                                                  "activo" to person.activo,
+                                                  "idPersona" to person.idPersona))
+                               .toEntity(GraphqlResponseCreatePersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la persona:" + (res?.body?.errors ?: ""))
@@ -194,279 +229,265 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_PERSONA", value = EventGraphqlError(res.body?.errors, mutableMapOf("person" to person))
             )
-            return null
+            return@securedMono null
         }
         val newPerson = res.body!!.data!!.createPersona
 
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ALTA_PERSONA", value = newPerson)
-        // Now check relationships to be added
+        // Now add all relationships. Every step is executed at the same time (see CompositeMutation), so their
+        // mutations are sent in a few aliased documents and not one by one
+        val relationships = fanOutExecutor.composite(FanOutExecutor.BUP)
+
         // Rfc 1:1
         if (person.rfc.rfc != null)
-            try {
-                val newRfc = rfcService.addRfcIfNotExists(person.rfc)
-
-                if (newRfc != null)
-                    addPersonRfc(res.body!!.data!!.createPersona.idNeo4j!!, newRfc.idNeo4j!!)
-            } catch (e : Exception) {
-                logger.error("No se pudo dar de alta el rfc para la persona ${person.idPersona}: ${e.message}")
-                return null
-            }
-        // Check telephones 1:m
-        if (person.telefonos != null && person.telefonos!!.isNotEmpty())
-            try {
-                person.telefonos!!.forEach { telephone ->
-                    run {
-                        val newTelephone = telefonoService.addTelephoneIfNotExists(telephone)
-
-                        if (newTelephone != null)
-                            telefonoService.addTelephonePerson(idTelephone =  newTelephone.idNeo4j!!,
-                                                               idPerson = newPerson.idNeo4j!!,)
+            relationships.add("el rfc ${person.rfc.rfc}") {
+                val newRfc = rfcService.addRfcIfNotExistsAsync(person.rfc).awaitSingleOrNull()
+
+                if (newRfc != null) {
+                    addPersonRfc(newPerson.idNeo4j!!, newRfc.idNeo4j!!)
+                    compensate {
+                        deletePersonaRfc(newPerson.idNeo4j!!, newRfc.idNeo4j!!)
+                        rfcService.deleteRfcIfNotNeededAsync(newRfc.idNeo4j!!).awaitSingleOrNull()
                     }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los teléfonos de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
-        // Check email 1:m
-        if (person.emails != null && person.emails!!.isNotEmpty())
-            try {
-                person.emails!!.forEach { emailAsignado ->
-                    run {
-                        val newEmail = emailService.addEmailIfNotExists(emailAsignado)
-
-                        if (newEmail != null)
-                            emailAsignadoService.addEmailAsignado(from = person, to = newEmail, emailAssigned = emailAsignado)    // add relationship
-                    }
+        // Check telephones 1:m (the same telephone just once, because the steps of the same telephone would create it twice)
+        person.telefonos?.distinctBy { it.numero }?.forEach { telephone ->
+            relationships.add("el teléfono ${telephone.numero}") {
+                val newTelephone = telefonoService.addTelephoneIfNotExistsAsync(telephone).awaitSingleOrNull()
+
+                if (newTelephone != null) {
+                    telefonoService.addTelephonePersonAsync(idTelephone = newTelephone.idNeo4j!!,
+                                                            idPerson = newPerson.idNeo4j!!).awaitSingle()
+                    compensate { removeTelephone(newTelephone, newPerson.idNeo4j!!) }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los emails de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
+        }
+        // Check email 1:m
+        addEmails(relationships, person, person.emails)
         // Addresses 1:m
-        if (person.direcciones != null && person.direcciones!!.isNotEmpty())
-            try {
-                person.direcciones!!.forEach { address ->
-                    run {
-                        val newAddress = direccionService.addAddress(address)
-
-                        if (newAddress != null)
-                            direccionService.addAddressPerson(idAddress = newAddress.idNeo4j!!,
-                                                              idPerson = newPerson.idNeo4j!!)
-                    }
+        person.direcciones?.forEach { address ->
+            relationships.add("la dirección ${address.calle}") {
+                val newAddress = direccionService.addAddressAsync(address).awaitSingleOrNull()
+
+                if (newAddress != null) {
+                    compensate { direccionService.deleteAddressAsync(address.copy(_id = newAddress._id)).awaitSingleOrNull() }
+                    direccionService.addAddressPersonAsync(idAddress = newAddress.idNeo4j!!,
+                                                           idPerson = newPerson.idNeo4j!!).awaitSingle()
+                    compensate { direccionService.deleteAddressPersonAsync(idAddress = newAddress.idNeo4j!!, idPerson = newPerson.idNeo4j!!).awaitSingle() }
                 }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de alta las direcciones de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
+        }
+        if (!execute(relationships, "dar de alta", person))
+            return@securedMono null
 
-
-        return newPerson
+        return@securedMono newPerson
     }
 
-    fun updatePerson(person: Persona): Persona? {
+    fun updatePerson(person: Persona): Persona? = updatePersonAsync(person).block()
+
+    fun updatePersonAsync(person: Persona): Mono<Persona> = securedMono {
         // now check relationship if need to be deleted or added
         val personas = getPerson(person._id)
 
         if (personas == null || personas.size != 1) {
             logger.error("No se pudo leer el registro anterior de la persona ${person.nombre} ${person.apellidoPaterno}. No se hizo ninguna actualización")
-            return null
+            return@securedMono null
         }
         val oldPerson = personas.first()
+        // Structural diff with the version read from the server, so just the relationships that changed are sent
+        val rfc = RelationshipDiff.rfc(oldPerson.rfc, person.rfc)
+        val telephones = RelationshipDiff.telephones(oldPerson.telefonos, person.telefonos)
+        val addresses = RelationshipDiff.addresses(oldPerson.direcciones, person.direcciones)
+        val emails = RelationshipDiff.emails(oldPerson.emails, person.emails)
 
         // update person
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("updatePerson"),
-                                                        mutableMapOf("id" to person._id,
-                                                                     "nombre" to person.nombre,
-                                                                    "apellidoPaterno" to person.apellidoPaterno,
-                                                                    "apellidoMaterno" to person.apellidoMaterno,
-                                                                    "fechaNacimiento" to person.fechaNacimiento,
-                                                                    "genero" to person.genero,
-                                                                    "estadoCivil" to person.estadoCivil,
-                                                                    "curp" to person.curp,
-                                                                    "usuarioModificacion" to person.usuarioModificacion!!,
-                                                                    "fechaModificacion" to person.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
-                                                                    "activo" to person.activo,
-                                                                    "idPersona" to person.idPersona))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseUpdatePersona::class.java)
-                        .block()
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "updatePerson",
+                                     mutableMapOf("id" to person._id,
+                                                  "nombre" to person.nombre,
+                                                 "apellidoPaterno" to person.apellidoPaterno,
+                                                 "apellidoMaterno" to person.apellidoMaterno,
+                                                 "fechaNacimiento" to person.fechaNacimiento,
+                                                 "genero" to person.genero,
+                                                 "estadoCivil" to person.estadoCivil,
+                                                 "curp" to person.curp,
+                                                 "usuarioModificacion" to person.usuarioModificacion!!,
+                                                 "fechaModificacion" to person.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME),
+                                                 "activo" to person.activo,
+                                                 "idPersona" to person.idPersona))
+                               .toEntity(GraphqlResponseUpdatePersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al actualizar a la persona:" + (res?.body?.errors ?: ""))
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ACTUALIZA_PERSONA", value = EventGraphqlError(res.body?.errors, mutableMapOf("person" to person)))
-            return null
+            return@securedMono null
         }
 
-        // Check PersonRfc relationship
-        if (!((oldPerson.rfc.rfc != null) && (person.rfc.rfc != null) &&
-                    (oldPerson.rfc.idNeo4j == person.rfc.idNeo4j)))
-            try {
-                if (oldPerson.rfc.rfc != null) {
-                    deletePersonaRfc(oldPerson.idNeo4j!!, oldPerson.rfc.idNeo4j!!)
-                    rfcService.deleteRfcIfNotNeeded(oldPerson.rfc.idNeo4j!!)
-                }
-                if (person.rfc.rfc != null) {
-                    val newRfc = rfcService.addRfcIfNotExists(person.rfc)
+        // First remove the relationships that are not needed anymore and then add the new ones. Just the items of
+        // the diff are sent, and the steps of each phase are executed at the same time (see CompositeMutation), so
+        // their mutations are sent in a few aliased documents and not one by one
+        val removals = fanOutExecutor.composite(FanOutExecutor.BUP)
+        val additions = fanOutExecutor.composite(FanOutExecutor.BUP)
+        val idPerson = res.body!!.data!!.updatePersona.idNeo4j!!
 
-                    if (newRfc != null)
-                        addPersonRfc(person.idNeo4j!!, newRfc.idNeo4j!!)
-                }
-            } catch (e: Exception) {
-                logger.error("No se pudo actualizar la relación con el rfc. ")
-                return null
+        // Check PersonRfc relationship
+        rfc.removed.forEach { oldRfc ->
+            removals.add("el rfc ${oldRfc.rfc}") {
+                deletePersonaRfc(oldPerson.idNeo4j!!, oldRfc.idNeo4j!!)
+                rfcService.deleteRfcIfNotNeededAsync(oldRfc.idNeo4j!!).awaitSingleOrNull()
             }
-        // Check PersonTelefono relationship
-        if (oldPerson.telefonos != null && oldPerson.telefonos!!.isNotEmpty())
-            try {
-                oldPerson.telefonos!!.forEach { telephone ->
-                    if ((person.telefonos == null) || (!person.telefonos!!.any {it == telephone})) {
-                        telefonoService.deleteTelephonePerson(idTelephone = telephone.idNeo4j!!, idPerson = oldPerson.idNeo4j!!)
-                        telefonoService.deleteTelephoneIfNotNeeded(id = telephone.idNeo4j!!, idCompany = oldPerson.idNeo4j!!)
+        }
+        rfc.added.forEach { rfcToAdd ->
+            additions.add("el rfc ${rfcToAdd.rfc}") {
+                val newRfc = rfcService.addRfcIfNotExistsAsync(rfcToAdd).awaitSingleOrNull()
+
+                if (newRfc != null) {
+                    addPersonRfc(idPerson, newRfc.idNeo4j!!)
+                    compensate {
+                        deletePersonaRfc(idPerson, newRfc.idNeo4j!!)
+                        rfcService.deleteRfcIfNotNeededAsync(newRfc.idNeo4j!!).awaitSingleOrNull()
                     }
                 }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de baja los teléfonos de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
-        if (person.telefonos != null && person.telefonos!!.isNotEmpty())
-            try {
-                person.telefonos!!.forEach { telephone ->
-                    if ((oldPerson.telefonos == null) || (!oldPerson.telefonos!!.any {it == telephone})) {
-                        val newTelephone = telefonoService.addTelephoneIfNotExists(telephone)
+        }
+        // Check PersonTelefono relationship
+        telephones.removed.forEach { telephone ->
+            removals.add("el teléfono ${telephone.numero}") { removeTelephone(telephone, oldPerson.idNeo4j!!) }
+        }
+        telephones.added.forEach { telephone ->
+            additions.add("el teléfono ${telephone.numero}") {
+                val newTelephone = telefonoService.addTelephoneIfNotExistsAsync(telephone).awaitSingleOrNull()
 
-                        if (newTelephone != null)
-                            telefonoService.addTelephonePerson(idTelephone =  newTelephone.idNeo4j!!,
-                                                               idPerson = res.body!!.data!!.updatePersona.idNeo4j!!,)
-                    }
+                if (newTelephone != null) {
+                    telefonoService.addTelephonePersonAsync(idTelephone = newTelephone.idNeo4j!!, idPerson = idPerson).awaitSingle()
+                    compensate { removeTelephone(newTelephone, idPerson) }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los teléfonos de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
+        }
         // Check PersonaDireccion relationship
-        if (oldPerson.direcciones != null && oldPerson.direcciones!!.isNotEmpty())
-            try {
-                oldPerson.direcciones!!.forEach { address ->
-                    if ((person.direcciones == null) || (!person.direcciones!!.any {it == address})) {
-                        direccionService.deleteAddressPerson(idAddress = address.idNeo4j!!, idPerson = oldPerson.idNeo4j!!)
-                        direccionService.deleteAddress(address)
-                    }
-                }
-            } catch (e: Exception) {
-                logger.error("No se pudo dar de baja las direcciones de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
+        addresses.removed.forEach { address ->
+            removals.add("la dirección ${address.calle}") {
+                direccionService.deleteAddressPersonAsync(idAddress = address.idNeo4j!!, idPerson = oldPerson.idNeo4j!!).awaitSingle()
+                direccionService.deleteAddressAsync(address).awaitSingleOrNull()
             }
-        if (person.direcciones != null && person.direcciones!!.isNotEmpty())
-            try {
-                person.direcciones!!.forEach { address ->
-                    if ((oldPerson.direcciones == null) || (!oldPerson.direcciones!!.any {it == address})) {
-                        val newAddress = direccionService.addAddress(address)
-
-                        if (newAddress != null)
-                            direccionService.addAddressPerson(idAddress =  newAddress.idNeo4j!!,
-                                                              idPerson = res.body!!.data!!.updatePersona.idNeo4j!!,)
-                    }
+        }
+        addresses.added.forEach { address ->
+            additions.add("la dirección ${address.calle}") {
+                val newAddress = direccionService.addAddressAsync(address).awaitSingleOrNull()
+
+                if (newAddress != null) {
+                    compensate { direccionService.deleteAddressAsync(address.copy(_id = newAddress._id)).awaitSingleOrNull() }
+                    direccionService.addAddressPersonAsync(idAddress = newAddress.idNeo4j!!, idPerson = idPerson).awaitSingle()
+                    compensate { direccionService.deleteAddressPersonAsync(idAddress = newAddress.idNeo4j!!, idPerson = idPerson).awaitSingle() }
                 }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta las direcciones de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
             }
+        }
+        if (!execute(removals, "dar de baja", person))
+            return@securedMono null
         // Check PersonaEmails relationship
-        if (oldPerson.emails != null && oldPerson.emails!!.isNotEmpty())
+        if (emails.removed.isNotEmpty())
             try {
-                val emailsSetToBeDeleted = mutableSetOf<String>()
+                val emailsSetToBeDeleted = emails.removed.map { it.email.substringAfter('@') }.toSet()
                 val emailsHashToBeDeleted = mutableMapOf<String, Email>()
 
-                // Because the email relationship can delete more maisl from the email uri, we need solve it in three
-                // tree passes:
-                // First get all emails servers (uri) we need to delete
-                oldPerson.emails!!.forEach { emailAsignado ->run {
-                            if ((person.emails == null) || (!person.emails!!.any { it == emailAsignado }))
-                                emailsSetToBeDeleted.add(emailAsignado.email.substringAfter('@'))
-
-                    }
-                }
+                // Because the email relationship can delete more mails from the email uri, we need solve it in
+                // three passes:
                 // 1st pass delete all mail servers (maybe we will delete more than needed
                 emailsSetToBeDeleted.forEach {
-                        val emails = emailService.getEmail(uri = it)
+                        val servers = emailService.getEmailAsync(uri = it).awaitSingleOrNull()
 
-                        if (emails.isNullOrEmpty()) {
+                        if (servers.isNullOrEmpty()) {
                             logger.error("No se pudo dar de baja los emails (no se encontró el email server) de la persona ${person.nombre} ${person.apellidoPaterno}")
-                            return null
+                            return@securedMono null
                         }
-                        val email = emails.first()
+                        val email = servers.first()
 
                         emailsHashToBeDeleted[it] = email  // store for future passes
-                        emailAsignadoService.deleteEmailAsignado(from = oldPerson, to = email)
+                        emailAsignadoService.deleteEmailAsignadoAsync(from = oldPerson, to = email).awaitSingleOrNull()
                 }
-                // 2nd pass:  maybe we deleted more mails than necessary, so we insert email from the same email uri
-                if (person.emails != null && person.emails!!.isNotEmpty()) {
-                    person.emails!!.forEach {
-                        if (emailsSetToBeDeleted.contains(it.email.substringAfter('@'))) {
-                            val newEmail = emailsHashToBeDeleted[it.email.substringAfter('@')]
+                // 2nd pass:  maybe we deleted more mails than necessary, so we insert again the unchanged emails
+                // from the same email uri (the new ones are added with the other additions)
+                emails.kept.forEach {
+                    if (emailsSetToBeDeleted.contains(it.email.substringAfter('@'))) {
+                        val newEmail = emailsHashToBeDeleted[it.email.substringAfter('@')]
 
-                            emailAsignadoService.addEmailAsignado(from = person, to = newEmail!!, emailAssigned = it)    // add relationship that was deleted
-                        }
+                        emailAsignadoService.addEmailAsignadoAsync(from = person, to = newEmail!!, emailAssigned = it).awaitSingleOrNull()    // add relationship that was deleted
                     }
                 }
                 // 3rd pass: delete the mail server if no has no more
                 // links in it
                 emailsHashToBeDeleted.values.forEach {
-                    emailService.deleteEmailIfNotNeeded(id = it.idNeo4j!!)
+                    emailService.deleteEmailIfNotNeededAsync(id = it.idNeo4j!!).awaitSingleOrNull()
                 }
             } catch (e: Exception) {
                 logger.error("No se pudo dar de baja los emails de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
-            }
-        if (person.emails != null && person.emails!!.isNotEmpty())
-            try {
-                person.emails!!.forEach { emailAsignado ->
-                    if ((oldPerson.emails == null) || (!oldPerson.emails!!.any {it == emailAsignado})) {
-                        val newEmail = emailService.addEmailIfNotExists(emailAsignado)
-
-                        if (newEmail != null)
-                            emailAsignadoService.addEmailAsignado(from = person, to = newEmail, emailAssigned = emailAsignado)    // add relationship
-                    }
-                }
-            } catch (e: Exception) {
-                e.printStackTrace()
-                logger.error("No se pudo dar de alta los emails de la persona ${person.nombre} ${person.apellidoPaterno}: ${e.message}")
-                return null
+                return@securedMono null
             }
+        addEmails(additions, person, emails.added)
+        if (!execute(additions, "dar de alta", person))
+            return@securedMono null
 
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                eventName = "ACTUALIZA_PERSONA", value = res.body!!.data!!.updatePersona)
 
-        return res.body!!.data!!.updatePersona
+        return@securedMono res.body!!.data!!.updatePersona
+    }
+
+    /**
+     * Adds one step for every email server, because the emails of the same server must be added one after the
+     * other in order to create the server just once.
+     *
+     * note: These steps have no compensation because the relationship with an email server can only be deleted for
+     *       all the emails of the server (see the three passes in updatePerson).
+     */
+    private fun addEmails(mutation: CompositeMutation, person: Persona, emails: Collection<EmailAsignado>?) {
+        emails?.groupBy { it.email.substringAfter('@') }
+              ?.forEach { (emailUri, serverEmails) ->
+                  mutation.add("los emails de $emailUri") {
+                      serverEmails.forEach { emailAsignado ->
+                          val newEmail = emailService.addEmailIfNotExistsAsync(emailAsignado).awaitSingleOrNull()
+
+                          if (newEmail != null)
+                              emailAsignadoService.addEmailAsignadoAsync(from = person, to = newEmail, emailAssigned = emailAsignado).awaitSingleOrNull()    // add relationship
+                      }
+                  }
+              }
+    }
+
+    /**
+     * Executes the relationships steps and logs every step that failed. Returns true if all steps were executed
+     */
+    private suspend fun execute(mutation: CompositeMutation, action: String, person: Persona): Boolean {
+        val failures = mutation.execute()
+
+        failures.forEach {
+            if (it.compensation)
+                logger.error("No se pudo deshacer ${it.description} de la persona ${person.nombre} ${person.apellidoPaterno}: ${it.error.message}")
+            else
+                logger.error("No se pudo $action ${it.description} de la persona ${person.nombre} ${person.apellidoPaterno}: ${it.error.message}")
+        }
+
+        return failures.isEmpty()
+    }
+
+    private suspend fun removeTelephone(telephone: Telefono, idPerson: String) {
+        telefonoService.deleteTelephonePersonAsync(idTelephone = telephone.idNeo4j!!, idPerson = idPerson).awaitSingle()
+        telefonoService.deleteTelephoneIfNotNeededAsync(id = telephone.idNeo4j!!, idCompany = idPerson).awaitSingleOrNull()
     }
 
     /**
      * Company rfc relationship maintenance
      */
-    private fun addPersonRfc(idPerson: String, idRfc: String): Persona {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addPersonRfc"),
-                                                        mutableMapOf("id" to idPerson,
-                                                            "rfc" to idRfc))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddPersonaRfc::class.java)
-                            .block()
+    private suspend fun addPersonRfc(idPerson: String, idRfc: String): Persona {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addPersonRfc",
+                                     mutableMapOf("id" to idPerson,
+                                         "rfc" to idRfc))
+                               .toEntity(GraphqlResponseAddPersonaRfc::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error al añadir la relación persona rfc:" + (res?.body?.errors ?: ""))
@@ -484,18 +505,12 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
         return res.body!!.data!!.addPersonaRfc
     }
 
-    private fun deletePersonaRfc(idPerson: String, idRfc: String): Persona {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deletePersonRfc"),
-                                                        mutableMapOf("id" to idPerson,
-                                                            "rfc" to idRfc))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(ServerOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeletePersonaRfc::class.java)
-                            .block()
+    private suspend fun deletePersonaRfc(idPerson: String, idRfc: String): Persona {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deletePersonRfc",
+                                     mutableMapOf("id" to idPerson,
+                                         "rfc" to idRfc))
+                               .toEntity(GraphqlResponseDeletePersonaRfc::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body!!.errors != null)) {
             logger.error("Error borrar la relación rfc persona:" + (res?.body?.errors ?: ""))
@@ -513,4 +528,26 @@ class PersonaService (@Qualifier("authorization_code") val webClient: WebClient,
         return res.body!!.data!!.deletePersonaRfc
     }
 
+    companion object {
+        /**
+         * Grid paths of the persons grid that are filtered and sorted by the BUP
+         */
+        val GRID = GridQueryDescriptor<PersonaResumen>(
+                        entity = "personas",
+                        filters = mapOf("nombre" to contains("nombre"),
+                                        "apellidoPaterno" to contains("apellidoPaterno"),
+                                        "apellidoMaterno" to contains("apellidoMaterno"),
+                                        "rfc" to relationship("rfc", contains("rfc")),
+                                        "activo" to boolean("activo"),
+                                        "fechaModificacion" to day("fechaModificacion"),
+                                        "estado" to some("direcciones",
+                                                         relationship("codigo", relationship("estado", contains("nombre"))))),
+                        sorts = mapOf("apellidoPaterno" to PersonaResumen::apellidoPaterno,
+                                      "apellidoMaterno" to PersonaResumen::apellidoMaterno,
+                                      "nombre" to PersonaResumen::nombre,
+                                      "usuarioModificacion" to PersonaResumen::usuarioModificacion,
+                                      "fechaModificacion" to PersonaResumen::fechaModificacion),
+                        defaultSort = "apellidoPaterno",
+                        id = PersonaResumen::_id)
+    }
 }
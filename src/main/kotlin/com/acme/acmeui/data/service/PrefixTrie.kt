@@ -0,0 +1,154 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PrefixTrie.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import java.text.Normalizer
+
+/**
+ * Prefix trie for the type-ahead of names (i.e., colonies and cities).
+ *
+ * Every name is indexed by the beginning of each one of its words, so "Lomas de Chapultepec" is found with
+ * "lom", "chap" or "de cha". The keys are normalized for Spanish: lower case, without accents and 'ñ' as 'n',
+ * so "pena" finds "Peña".
+ *
+ * Just the first MAX_DEPTH characters of every key are in the trie, so it stays small. Longer prefixes are
+ * searched with their first MAX_DEPTH characters and the names found are filtered.
+ *
+ * The children of a node are kept in an immutable pair of sorted arrays that is replaced when a child is added,
+ * so the searches do not lock. The names must be added by one thread at a time.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class PrefixTrie {
+    companion object {
+        const val MAX_DEPTH = 12
+        private val MARKS = Regex("\\p{M}+")
+        private val SPACES = Regex("\\s+")
+        private val NO_CHILDREN = Children(CharArray(0), emptyArray())
+
+        fun normalize(text: String): String =
+            SPACES.replace(MARKS.replace(Normalizer.normalize(text.lowercase(), Normalizer.Form.NFD), ""), " ").trim()
+    }
+
+    private class Children(val chars: CharArray, val nodes: Array<Node>)
+
+    private class Node {
+        @Volatile var children = NO_CHILDREN
+        @Volatile var names = emptyArray<String>()     // names with a key (or the key of a word) that ends here
+
+        fun child(c: Char): Node? {
+            val children = children
+            val i = children.chars.binarySearch(c)
+
+            return if (i >= 0) children.nodes[i] else null
+        }
+
+        fun childOrAdd(c: Char): Node {
+            val children = children
+            val i = children.chars.binarySearch(c)
+
+            if (i >= 0) return children.nodes[i]
+
+            val at = -(i + 1)
+            val node = Node()
+            val chars = CharArray(children.chars.size + 1)
+            val nodes = arrayOfNulls<Node>(children.nodes.size + 1)
+
+            children.chars.copyInto(chars, 0, 0, at)
+            children.chars.copyInto(chars, at + 1, at)
+            children.nodes.copyInto(nodes, 0, 0, at)
+            children.nodes.copyInto(nodes, at + 1, at)
+            chars[at] = c
+            nodes[at] = node
+            @Suppress("UNCHECKED_CAST")
+            this.children = Children(chars, nodes as Array<Node>)
+
+            return node
+        }
+    }
+
+    private val root = Node()
+
+    @Volatile var size = 0
+        private set
+
+    fun add(name: String?) {
+        if (name.isNullOrBlank()) return
+
+        val key = normalize(name)
+        var start = 0
+
+        while (start < key.length) {
+            var node = root
+
+            for (i in start until minOf(key.length, start + MAX_DEPTH)) node = node.childOrAdd(key[i])
+            if (!node.names.contains(name)) {
+                node.names = node.names + name
+                if (start == 0) size++
+            }
+            start = key.indexOf(' ', start).let { if (it < 0) key.length else it + 1 }
+        }
+    }
+
+    /**
+     * Returns at most 'limit' names that start (or that have a word that starts) with the prefix. The names
+     * whose key is the prefix come first and then the rest in alphabetical order of their keys.
+     */
+    fun search(prefix: String, limit: Int): List<String> {
+        val key = normalize(prefix)
+        val result = LinkedHashSet<String>()
+
+        if (key.isEmpty() || limit <= 0) return emptyList()
+
+        var node = root
+
+        for (i in 0 until minOf(key.length, MAX_DEPTH)) node = node.child(key[i]) ?: return emptyList()
+        collect(node, if (key.length > MAX_DEPTH) key else null, limit, result)
+
+        return result.toList()
+    }
+
+    /**
+     * All the names in the trie, i.e., to save them
+     */
+    fun names(): Set<String> = LinkedHashSet<String>().also { collect(root, null, Int.MAX_VALUE, it) }
+
+    private fun collect(node: Node, longKey: String?, limit: Int, result: MutableSet<String>) {
+        for (name in node.names) {
+            if (result.size >= limit) return
+            if (longKey == null || matches(name, longKey)) result.add(name)
+        }
+        for (child in node.children.nodes) {
+            if (result.size >= limit) return
+            collect(child, longKey, limit, result)
+        }
+    }
+
+    private fun matches(name: String, key: String): Boolean {
+        val nameKey = normalize(name)
+
+        return nameKey.startsWith(key) || nameKey.contains(" $key")
+    }
+}
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -48,26 +46,22 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class ProveedorService (@Qualifier("authorization_code") val webClient: WebClient,
+class ProveedorService (private val graphqlClient: GraphqlClient,
                         private val eventService: EventService,
                         private val serviceConfig: ServiceConfig
 ): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addProveedor(fromId: String, toId: String, tipo: String): Proveedor? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addSupplier"),
-                                        mutableMapOf("from" to fromId,
-                                                     "to" to toId,
-                                                     "tipo" to tipo))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseCreateProveedor::class.java)
-                        .block()
+    fun addProveedor(fromId: String, toId: String, tipo: String): Proveedor? = addProveedorAsync(fromId, toId, tipo).block()
+
+    fun addProveedorAsync(fromId: String, toId: String, tipo: String): Mono<Proveedor> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addSupplier",
+                                     mutableMapOf("from" to fromId,
+                                                  "to" to toId,
+                                                  "tipo" to tipo))
+                               .toEntity(GraphqlResponseCreateProveedor::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un proveedor a la compañía:" + (res?.body?.errors ?: ""))
@@ -78,12 +72,12 @@ class ProveedorService (@Qualifier("authorization_code") val webClient: WebClien
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_PROVEEDOR_COMPAÑIA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_PROVEEDOR_COMPAÑIA", value = res.body!!.data!!.createProveedor)
 
-        return res.body!!.data!!.createProveedor
+        return@securedMono res.body!!.data!!.createProveedor
     }
 
     /**
@@ -96,18 +90,14 @@ class ProveedorService (@Qualifier("authorization_code") val webClient: WebClien
      * But this facility is not needed between "PROVEEDOR" since just one relation can exist for "PROVEEDOR"
      * between two companies.
      */
-    fun deleteProveedor(fromId: String, toId: String): Compania? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteSupplier"),
-                                                mutableMapOf("id" to fromId,
-                                                             "proveedorDel" to toId,))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseDeleteProveedor::class.java)
-                        .block()
+    fun deleteProveedor(fromId: String, toId: String): Compania? = deleteProveedorAsync(fromId, toId).block()
+
+    fun deleteProveedorAsync(fromId: String, toId: String): Mono<Compania> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteSupplier",
+                                     mutableMapOf("id" to fromId,
+                                                  "proveedorDel" to toId,))
+                               .toEntity(GraphqlResponseDeleteProveedor::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar el proveedor de la compañía:" + (res?.body?.errors ?: ""))
@@ -117,12 +107,12 @@ class ProveedorService (@Qualifier("authorization_code") val webClient: WebClien
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:BAJA_PROVEEDORES_COMPAÑIA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_PROVEEDORES_COMPAÑIA", value = res.body!!.data!!.deleteCompaniaProveedorDel)
 
-        return res.body!!.data!!.deleteCompaniaProveedorDel
+        return@securedMono res.body!!.data!!.deleteCompaniaProveedorDel
     }
 
 }
@@ -0,0 +1,206 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ReferenceDataService.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.Estado
+import com.acme.acmeui.data.dto.Sector
+import com.acme.acmeui.service.cache.SnapshotStore
+import com.acme.acmeui.service.cache.SnapshotStore.Companion.getBytes
+import com.ailegorreta.client.security.utils.HasLogger
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.event.EventListener
+import org.springframework.stereotype.Service
+import reactor.core.Disposable
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Reference data (sectors and states) that is the same for all users and changes very seldom.
+ *
+ * The data is kept in an immutable snapshot that is replaced atomically, so a reader always gets the sectors and
+ * the states of the same load. The readers never wait for the BUP once the first snapshot is loaded: when the
+ * snapshot is older than 'microservice.reference-data.refresh' it is returned anyway and a new one is loaded in
+ * background (just one load at a time). A save or an invalidation that arrives while a load is in flight is not
+ * lost: one more load is done when the load in flight ends.
+ *
+ * Every snapshot has a version (a hash of its content) that works as an ETag: the clients send the version they
+ * have and receive the data only when it changed.
+ *
+ * The last snapshot is saved in disk (see SnapshotStore) and it is served after a restart until it is read again
+ * in background by the first reader.
+ *
+ * The data is also loaded at startup and every 'microservice.reference-data.refresh' by a timer. These loads do
+ * not have a user, so they are sent with the token of the application (see GraphqlClient.postUnattended), as the
+ * load done after an invalidation from another node (Kafka consumer thread).
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Service
+class ReferenceDataService(private val sectorService: SectorService,
+                           private val estadoService: EstadoService,
+                           private val serviceConfig: ServiceConfig,
+                           private val mapper: ObjectMapper,
+                           private val snapshots: SnapshotStore,
+                           meterRegistry: MeterRegistry): DisposableBean, HasLogger {
+    companion object {
+        const val SNAPSHOT = "reference-data"
+    }
+
+    data class Snapshot(val sectors: List<Sector>, val states: List<Estado>, val version: String, val loadedAt: Long)
+
+    private val snapshot = AtomicReference<Snapshot?>()
+    private val loading = AtomicBoolean(false)
+    private val pending = AtomicBoolean(false)    // an invalidation arrived while loading: load again at the end
+    private var scheduled: Disposable? = null
+    @Volatile private var reconciled = false      // false while the data comes from the disk snapshot
+    private val loads = Counter.builder("acme.reference-data.loads")
+                               .description("Lecturas de sectores y estados al BUP")
+                               .register(meterRegistry)
+
+    init {
+        Gauge.builder("acme.reference-data.age", snapshot) { ref ->
+                 ref.get()?.let { (System.currentTimeMillis() - it.loadedAt) / 1000.0 } ?: 0.0
+             }
+             .description("Segundos desde la última lectura de sectores y estados")
+             .baseUnit("seconds")
+             .register(meterRegistry)
+        snapshots.read(SNAPSHOT)?.let { saved ->
+            try {
+                snapshot.set(mapper.readValue(saved.data.getBytes(), Snapshot::class.java))
+                logger.info("Sectores y estados leídos del snapshot en disco, versión ${snapshot.get()?.version}")
+            } catch (e: Exception) {
+                logger.warn("No se pudo leer el snapshot de sectores y estados:${e.message}")
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent::class)
+    fun scheduleRefresh() {
+        scheduled = Flux.interval(Duration.ZERO, serviceConfig.referenceDataRefresh)
+                        .subscribe { refreshInBackground(unattended = true) }
+    }
+
+    override fun destroy() {
+        scheduled?.dispose()
+    }
+
+    fun current(): Snapshot = currentAsync().block()!!
+
+    /**
+     * Must be called in the caller thread, because the load (if needed) uses the token of the user.
+     */
+    fun currentAsync(): Mono<Snapshot> {
+        val current = snapshot.get() ?: return load()       // just the first time the reader waits
+
+        if (!reconciled || System.currentTimeMillis() - current.loadedAt > serviceConfig.referenceDataRefresh.toMillis())
+            refreshInBackground()
+
+        return Mono.just(current)
+    }
+
+    /**
+     * Loads the data again and waits for it (i.e., the user asked for it)
+     */
+    fun reload(): Snapshot = load().block()!!
+
+    /**
+     * Must be called when a sector is saved or deleted, in the caller thread
+     */
+    fun invalidate() = refreshInBackground()
+
+    /**
+     * The data was changed in another node (i.e., this is called from a Kafka consumer thread that does not have
+     * the token of a user). If the unattended load fails the next reader starts the load.
+     */
+    fun expire() {
+        snapshot.updateAndGet { it?.copy(loadedAt = 0) }
+        refreshInBackground(unattended = true)
+    }
+
+    /**
+     * The pending flag is set before trying to start the load, so an invalidation that arrives while a load is in
+     * flight is seen by that load when it ends, and it loads once more (without user, since it ends in a WebClient
+     * thread).
+     */
+    private fun refreshInBackground(unattended: Boolean = false) {
+        pending.set(true)
+        if (!loading.compareAndSet(false, true)) return
+        pending.set(false)
+
+        load(unattended).doFinally {
+                            loading.set(false)
+                            if (pending.get()) refreshInBackground(unattended = true)
+                        }
+                        .subscribe({ }, { logger.error("Error al refrescar sectores y estados:${it.message}") })
+    }
+
+    private fun load(unattended: Boolean = false): Mono<Snapshot> =
+        Mono.zip(sectorService.allSectorsAsync(unattended), estadoService.allStatesAsync(unattended))
+            .map { data ->
+                loads.increment()
+
+                val previous = snapshot.get()
+
+                // the services return empty lists when the BUP fails, so an empty load does not replace the data
+                if (data.t1.isEmpty() && data.t2.isEmpty()) {
+                    if (previous == null) {
+                        // nothing is kept (nor written to disk), so the next reader tries the load again
+                        logger.warn("La lectura de sectores y estados regresó vacía, se intentará en la siguiente lectura")
+                        return@map Snapshot(emptyList(), emptyList(), "", System.currentTimeMillis())
+                    }
+                    logger.warn("La lectura de sectores y estados regresó vacía, se mantiene la versión ${previous.version}")
+                    return@map previous.copy(loadedAt = System.currentTimeMillis())
+                                       .also { snapshot.set(it) }
+                }
+
+                val version = version(data.t1, data.t2)
+                val new = if (previous != null && previous.version == version) previous.copy(loadedAt = System.currentTimeMillis())
+                          else Snapshot(data.t1, data.t2, version, System.currentTimeMillis())
+
+                snapshot.set(new)
+                reconciled = true
+                snapshots.write(SNAPSHOT) { out -> out.write(mapper.writeValueAsBytes(new)) }
+                if (previous?.version != version)
+                    logger.info("Nueva versión de sectores y estados:$version")
+                new
+            }
+
+    private fun version(sectors: List<Sector>, states: List<Estado>): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(mapper.writeValueAsBytes(listOf(sectors, states)))
+
+        return HexFormat.of().formatHex(digest, 0, 8)
+    }
+}
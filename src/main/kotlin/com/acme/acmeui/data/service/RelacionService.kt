@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -48,26 +46,22 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class RelacionService (@Qualifier("authorization_code") val webClient: WebClient,
+class RelacionService (private val graphqlClient: GraphqlClient,
                        private val eventService: EventService,
                        private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addRelacion(fromId: String, toId: String, tipo: String, name: String): Relacion? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addRelationship"),
-                                                    mutableMapOf("from" to fromId,
-                                                                "to" to toId,
-                                                                "tipo" to tipo,
-                                                                "nombre" to name))
-        val res = webClient.post()
-                        .uri(uri().path("/bup/graphql").build().toUri())
-                        .accept(MediaType.APPLICATION_JSON)
-                        .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .toEntity(GraphqlResponseCreateRelacion::class.java)
-                        .block()
+    fun addRelacion(fromId: String, toId: String, tipo: String, name: String): Relacion? = addRelacionAsync(fromId, toId, tipo, name).block()
+
+    fun addRelacionAsync(fromId: String, toId: String, tipo: String, name: String): Mono<Relacion> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addRelationship",
+                                     mutableMapOf("from" to fromId,
+                                                 "to" to toId,
+                                                 "tipo" to tipo,
+                                                 "nombre" to name))
+                               .toEntity(GraphqlResponseCreateRelacion::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un una relación entre personas:" + (res?.body?.errors ?: ""))
@@ -79,12 +73,12 @@ class RelacionService (@Qualifier("authorization_code") val webClient: WebClient
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_RELACION_PERSONA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_RELACION_PERSONA", value = res.body!!.data!!.createRelacion)
 
-        return res.body!!.data!!.createRelacion
+        return@securedMono res.body!!.data!!.createRelacion
     }
 
     /**
@@ -97,18 +91,14 @@ class RelacionService (@Qualifier("authorization_code") val webClient: WebClient
      * But this facility is not needed between "RELACION" since just one relation can exist for "RELACION"
      * between two persons.
      */
-    fun deleteRelacion(fromId: String, toId: String): Persona? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteRelationship"),
-                                mutableMapOf("id" to fromId,
-                                        "relacionDel" to toId))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteRelacion::class.java)
-                            .block()
+    fun deleteRelacion(fromId: String, toId: String): Persona? = deleteRelacionAsync(fromId, toId).block()
+
+    fun deleteRelacionAsync(fromId: String, toId: String): Mono<Persona> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteRelationship",
+                                     mutableMapOf("id" to fromId,
+                                             "relacionDel" to toId))
+                               .toEntity(GraphqlResponseDeleteRelacion::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la relación entre personas:" + (res?.body?.errors ?: ""))
@@ -118,12 +108,12 @@ class RelacionService (@Qualifier("authorization_code") val webClient: WebClient
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:BAJA_RELACIONES_PERSONA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_RELACIONES_PERSONA", value = res.body!!.data!!.deletePersonaRelacionDel)
 
-        return res.body!!.data!!.deletePersonaRelacionDel
+        return@securedMono res.body!!.data!!.deletePersonaRelacionDel
     }
 
 }
@@ -0,0 +1,85 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  RelationshipDiff.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.data.dto.*
+
+/**
+ * Structural diff between the relationships of the last version read from the server (old) and the version
+ * edited by the user (new), so an update sends just the mutations for what really changed.
+ *
+ * The items are matched by their id (idNeo4j, because the DTOs that come from the endpoints lose the '_id'). An
+ * item with the same id but different content (i.e., the user changed the number of a telephone) is removed and
+ * added again, because the BUP does not update these nodes in place. A new item without id that has the same
+ * content as an old item (i.e., the user deleted a telephone and captured it again) is taken as unchanged.
+ *
+ * 'removed' is in the order of the old collection and 'added' in the order of the new one, without duplicates.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+data class RelationshipDiff<T>(val removed: List<T>, val added: List<T>, val kept: List<T>) {
+
+    fun isEmpty() = removed.isEmpty() && added.isEmpty()
+
+    companion object {
+        fun <T> of(old: Collection<T>?, new: Collection<T>?, id: (T) -> String?, content: (T) -> Any?): RelationshipDiff<T> {
+            val unmatched = (old ?: emptyList()).toMutableList()
+            val added = mutableListOf<T>()
+            val kept = mutableListOf<T>()
+
+            (new ?: emptyList()).distinctBy { content(it) }.forEach { item ->
+                val itemId = id(item)
+                // first the same node and, if not, any node with the same content
+                var match = unmatched.indexOfFirst { itemId != null && id(it) == itemId && content(it) == content(item) }
+
+                if (match < 0) match = unmatched.indexOfFirst { content(it) == content(item) }
+                if (match < 0)
+                    added.add(item)
+                else {
+                    unmatched.removeAt(match)    // by index because the DTOs equals() do not compare the id
+                    kept.add(item)
+                }
+            }
+
+            return RelationshipDiff(unmatched, added, kept)
+        }
+
+        fun areas(old: Collection<Area>?, new: Collection<Area>?) = of(old, new, { it.idNeo4j }, { it.nombre })
+
+        fun telephones(old: Collection<Telefono>?, new: Collection<Telefono>?) =
+            of(old, new, { it.idNeo4j }, { Triple(it.numero.filter { c -> c.isDigit() }, it.ciudad, it.tipo) })
+
+        fun addresses(old: Collection<Direccion>?, new: Collection<Direccion>?) =
+            of(old, new, { it.idNeo4j }, { listOf(it.calle, it.ciudad, it.tipo, it.municipio?.idNeo4j, it.codigo?.cp) })
+
+        fun emails(old: Collection<EmailAsignado>?, new: Collection<EmailAsignado>?) = of(old, new, { null }, { it.email })
+
+        fun rfc(old: Rfc, new: Rfc) = of(listOfNotNull(old.takeIf { it.rfc != null }),
+                                         listOfNotNull(new.takeIf { it.rfc != null }),
+                                         { it.idNeo4j }, { it.rfc })
+
+        fun sector(old: Sector?, new: Sector?) = of(listOfNotNull(old), listOfNotNull(new), { it.idNeo4j }, { it.idNeo4j })
+    }
+}
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -46,26 +44,20 @@ import reactor.core.publisher.Mono
  * @date February 20204
  */
 @Service
-class RfcService(@Qualifier("authorization_code") val webClient: WebClient,
+class RfcService(private val graphqlClient: GraphqlClient,
                  private val eventService: EventService,
+                 private val identityCache: IdentityCache,
                  private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    private fun getRfc(id: String? = null, rfc: String? = null): List<Rfc>? {
+    private suspend fun getRfc(id: String? = null, rfc: String? = null): List<Rfc>? {
         val variables = if (id == null) mutableMapOf("rfc" to rfc)
                         else if (rfc == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "rfc" to rfc)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getRfc"),
-                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseRfcs::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getRfc", variables)
+                               .bodyToMono(GraphqlResponseRfcs::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer Rfc:" + res?.errors)
@@ -75,16 +67,18 @@ class RfcService(@Qualifier("authorization_code") val webClient: WebClient,
         return res.data!!.rfcs
     }
 
-    fun uniqueValidator(rfc: Rfc): String? {
+    fun uniqueValidator(rfc: Rfc): String? = uniqueValidatorAsync(rfc).block()
+
+    fun uniqueValidatorAsync(rfc: Rfc): Mono<String> = securedMono {
         val rfcs = getRfc(rfc = rfc.rfc)
 
-        return if (rfcs == null) "Error al leer de la base de datos"
+        return@securedMono if (rfcs == null) "Error al leer de la base de datos"
         else if (rfcs.isEmpty()) null
         else if (rfcs.first().idNeo4j == rfc.idNeo4j) null
         else "El rfc YA existe en la base de datos"
     }
 
-    private fun hasCompaniasOrPersonas(id: String): Boolean {
+    private suspend fun hasCompaniasOrPersonas(id: String): Boolean {
         val rfcs = getRfc(id = id)
 
         return if (rfcs == null) true
@@ -97,22 +91,28 @@ class RfcService(@Qualifier("authorization_code") val webClient: WebClient,
                 else false
     }
 
-    fun addRfcIfNotExists(rfc: Rfc): Rfc? {
+    fun addRfcIfNotExists(rfc: Rfc): Rfc? = addRfcIfNotExistsAsync(rfc).block()
+
+    /**
+     * Upsert of the rfc. The _id is read from the IdentityCache, so most calls do not go to the BUP
+     */
+    fun addRfcIfNotExistsAsync(rfc: Rfc): Mono<Rfc> = securedMono {
+        val id = identityCache.idAsync(IdentityCache.Kind.RFC, rfc.rfc!!) { upsertRfc(rfc) }
+                              .awaitSingleOrNull() ?: return@securedMono null
+
+        return@securedMono Rfc(_id = id, rfc = rfc.rfc)
+    }
+
+    private fun upsertRfc(rfc: Rfc): Mono<String> = securedMono {
         // check if not exist the Rfc
-        val rfcs = getRfc(rfc = rfc.rfc) ?: return null
+        val rfcs = getRfc(rfc = rfc.rfc) ?: return@securedMono null
 
-        if (rfcs.isNotEmpty()) return rfcs.first()
+        if (rfcs.isNotEmpty()) return@securedMono rfcs.first().idNeo4j
 
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addRfc"),
-                                    mutableMapOf("rfc" to rfc.rfc))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateRfc::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addRfc",
+                                     mutableMapOf("rfc" to rfc.rfc))
+                               .toEntity(GraphqlResponseCreateRfc::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un rfc:" + (res?.body?.errors ?: ""))
@@ -120,35 +120,35 @@ class RfcService(@Qualifier("authorization_code") val webClient: WebClient,
                 headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                 eventName = "ERROR:ALTA_RFC", value = EventGraphqlError(res.body?.errors, mutableMapOf("rfc" to rfc))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
             eventName = "ALTA_RFC", value = res.body!!.data!!.createRfc)
 
-        return res.body!!.data!!.createRfc
+        return@securedMono res.body!!.data!!.createRfc.idNeo4j
     }
 
 
-    fun deleteRfcIfNotNeeded(id: String): String? {
+    fun deleteRfcIfNotNeeded(id: String): String? = deleteRfcIfNotNeededAsync(id).block()
+
+    fun deleteRfcIfNotNeededAsync(id: String): Mono<String> = securedMono {
         if (hasCompaniasOrPersonas(id))
-            return "El rfc que se quiere borrar tiene compañías o personar asignadas. No se borró"
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteRfc"),
-                                                    mutableMapOf("id" to id))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseDeleteRfc::class.java)
-                            .block()
+            return@securedMono "El rfc que se quiere borrar tiene compañías o personar asignadas. No se borró"
 
-        if (res == null || res.errors != null) {
-            logger.error("Error al borrar el rfc:" + res?.errors)
-            return "Error interno al tratar de borrar el rfc"
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteRfc",
+                                     mutableMapOf("id" to id))
+                               .toEntity(GraphqlResponseDeleteRfc::class.java)
+                               .awaitSingleOrNull()
+
+        if (res == null || res.body?.errors != null) {
+            logger.error("Error al borrar el rfc:" + res?.body?.errors)
+            return@securedMono "Error interno al tratar de borrar el rfc"
         }
+        identityCache.evict(IdentityCache.Kind.RFC, id)
+        // so the other nodes remove it from their IdentityCache
+        eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
+            eventName = "BAJA_RFC", value = id)
 
-        return null   // ok no error
+        return@securedMono null   // ok no error
     }
 }
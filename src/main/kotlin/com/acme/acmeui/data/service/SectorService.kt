@@ -25,19 +25,18 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.SingleFlight
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
-import reactor.core.publisher.Mono
 import java.time.format.DateTimeFormatter
+import reactor.core.publisher.Mono
 
 /**
  * Sector to communicate to the BUP microservice server repo to get all sectors
@@ -47,45 +46,39 @@ import java.time.format.DateTimeFormatter
  * @date February 2023
  */
 @Service
-class SectorService(@Qualifier("authorization_code") val webClient: WebClient,
+class SectorService(private val graphqlClient: GraphqlClient,
                     private val eventService: EventService,
                     private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun allSectors(): List<Sector> {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("allSectores"))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseSectors::class.java)
-                            .block()
+    fun allSectors(): List<Sector> = allSectorsAsync().block()!!
+
+    /**
+     * unattended = true: read without a user (see ReferenceDataService scheduled refresh)
+     */
+    fun allSectorsAsync(unattended: Boolean = false): Mono<List<Sector>> = securedMono {
+        val uri = uri().path("/bup/graphql").build().toUri()
+        val res = (if (unattended) graphqlClient.postUnattended(uri, "allSectores")
+                   else graphqlClient.postShared(uri, "allSectores", scope = SingleFlight.Scope.SHARED))
+                  .bodyToMono(GraphqlResponseSectors::class.java)
+                  .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer sectores:" + res?.errors)
-            return emptyList()
+            return@securedMono emptyList()
         }
 
-        return res.data!!.sectors
+        return@securedMono res.data!!.sectors
     }
 
-    private fun getSector(id: String? = null, nombre: String? = null): List<Sector>? {
+    private suspend fun getSector(id: String? = null, nombre: String? = null): List<Sector>? {
         val variables = if (id == null) mutableMapOf("nombre" to nombre)
                         else if (nombre == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "nombre" to nombre)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getSector"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseSectors::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getSector", variables)
+                               .bodyToMono(GraphqlResponseSectors::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer sectores:" + res?.errors)
@@ -95,16 +88,18 @@ class SectorService(@Qualifier("authorization_code") val webClient: WebClient,
         return res.data!!.sectors
     }
 
-    fun uniqueValidator(sector: Sector): String? {
+    fun uniqueValidator(sector: Sector): String? = uniqueValidatorAsync(sector).block()
+
+    fun uniqueValidatorAsync(sector: Sector): Mono<String> = securedMono {
         val sectors = getSector(nombre = sector.nombre)
 
-        return if (sectors == null) "Error al leer de la base de datos"
+        return@securedMono if (sectors == null) "Error al leer de la base de datos"
                else if (sectors.isEmpty()) null
                else if (sectors.first().idNeo4j == sector.idNeo4j) null
                else "El sector YA existe en la base de datos"
     }
 
-    private fun hasCompanias(id: String): Boolean {
+    private suspend fun hasCompanias(id: String): Boolean {
         val sectors = getSector(id = id)
 
         return if (sectors == null) true
@@ -112,19 +107,15 @@ class SectorService(@Qualifier("authorization_code") val webClient: WebClient,
                else false
     }
 
-    fun addSector(sector: Sector): Sector? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addSector"),
-            mutableMapOf("nombre" to sector.nombre,
-                         "usuarioModificacion" to sector.usuarioModificacion!!,
-                         "fechaModificacion" to sector.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME)))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateSector::class.java)
-                            .block()
+    fun addSector(sector: Sector): Sector? = addSectorAsync(sector).block()
+
+    fun addSectorAsync(sector: Sector): Mono<Sector> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addSector",
+                                     mutableMapOf("nombre" to sector.nombre,
+                                                  "usuarioModificacion" to sector.usuarioModificacion!!,
+                                                  "fechaModificacion" to sector.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME)))
+                               .toEntity(GraphqlResponseCreateSector::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un sector:" + (res?.body?.errors ?: ""))
@@ -132,62 +123,54 @@ class SectorService(@Qualifier("authorization_code") val webClient: WebClient,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_SECTOR_INDUSTRIAL", value = EventGraphqlError(res.body?.errors, mutableMapOf("sector" to sector))
             )
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_SECTOR_INDUSTRIAL", value = res.body!!.data!!.createSector)
 
-        return res.body!!.data!!.createSector
+        return@securedMono res.body!!.data!!.createSector
     }
 
-    fun updateSector(sector: Sector): Sector? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("updateSector"),
-                                    mutableMapOf("id" to sector.idNeo4j,
-                                                 "nombre" to sector.nombre,
-                                                 "usuarioModificacion" to sector.usuarioModificacion!!,
-                                                 "fechaModificacion" to sector.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME)))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseUpdateSector::class.java)
-                            .block()
+    fun updateSector(sector: Sector): Sector? = updateSectorAsync(sector).block()
+
+    fun updateSectorAsync(sector: Sector): Mono<Sector> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "updateSector",
+                                     mutableMapOf("id" to sector.idNeo4j,
+                                                  "nombre" to sector.nombre,
+                                                  "usuarioModificacion" to sector.usuarioModificacion!!,
+                                                  "fechaModificacion" to sector.fechaModificacion!!.format(DateTimeFormatter.ISO_DATE_TIME)))
+                               .toEntity(GraphqlResponseUpdateSector::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al actualizar el sector:" + (res?.body?.errors ?: ""))
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:UPDATE_SECTOR_INDUSTRIAL", value = EventGraphqlError(res.body?.errors, mutableMapOf("sector" to sector)))
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "UPDATESECTOR_INDUSTRIAL", value = res.body!!.data!!.updateSector)
 
-        return res.body!!.data!!.updateSector
+        return@securedMono res.body!!.data!!.updateSector
     }
 
-    fun deleteSector(id: String): String? {
+    fun deleteSector(id: String): String? = deleteSectorAsync(id).block()
+
+    fun deleteSectorAsync(id: String): Mono<String> = securedMono {
         if (hasCompanias(id))
-            return "El sector que se quiere borrar tiene compañías asignadas. No se borró"
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteSector"),
-                                                mutableMapOf("id" to id))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseDeleteSector::class.java)
-                            .block()
+            return@securedMono "El sector que se quiere borrar tiene compañías asignadas. No se borró"
+
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteSector",
+                                     mutableMapOf("id" to id))
+                               .bodyToMono(GraphqlResponseDeleteSector::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al borrar el sector:" + res?.errors)
-            return "Error interno al tratar de borrar el sector"
+            return@securedMono "Error interno al tratar de borrar el sector"
         }
 
-        return null   // ok no error
+        return@securedMono null   // ok no error
     }
 }
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -47,26 +45,20 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
+class TelefonoService(private val graphqlClient: GraphqlClient,
                       private val eventService: EventService,
+                      private val identityCache: IdentityCache,
                       private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    private fun getTelephone(id: String? = null, numero: String? = null): List<Telefono>? {
+    private suspend fun getTelephone(id: String? = null, numero: String? = null): List<Telefono>? {
         val variables = if (id == null) mutableMapOf("numero" to numero)
                         else if (numero == null) mutableMapOf("id" to id)
                         else mutableMapOf("id" to id, "numero" to numero)
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("getTelephone"),
-                                                    variables)
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseTelefonos::class.java)
-                            .block()
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "getTelephone", variables)
+                               .bodyToMono(GraphqlResponseTelefonos::class.java)
+                               .awaitSingleOrNull()
 
         if (res == null || res.errors != null) {
             logger.error("Error al leer el teléfono:" + res?.errors)
@@ -76,24 +68,33 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
         return res.data!!.telefonoes
     }
 
-    fun addTelephoneIfNotExists(telephone: Telefono): Telefono? {
+    fun addTelephoneIfNotExists(telephone: Telefono): Telefono? = addTelephoneIfNotExistsAsync(telephone).block()
+
+    /**
+     * Upsert of the telephone. The _id is read from the IdentityCache, so most calls do not go to the BUP.
+     *
+     * note: The numbers are stored just with digits, so the number is also read just with its digits.
+     */
+    fun addTelephoneIfNotExistsAsync(telephone: Telefono): Mono<Telefono> = securedMono {
+        val numero = telephone.numero.filter { it.isDigit() }
+        val id = identityCache.idAsync(IdentityCache.Kind.TELEFONO, numero) { upsertTelephone(telephone, numero) }
+                              .awaitSingleOrNull() ?: return@securedMono null
+
+        return@securedMono telephone.copy(_id = id, numero = numero, companias = null)
+    }
+
+    private fun upsertTelephone(telephone: Telefono, numero: String): Mono<String> = securedMono {
         // check that not exists
-        val telefonos = getTelephone(numero = telephone.numero) ?: return null
-
-        if (telefonos.isNotEmpty()) return telefonos.first()
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addTelephone"),
-                                                    mutableMapOf("numero" to telephone.numero.filter { it.isDigit() },
-                                                                 "ciudad" to telephone.ciudad,
-                                                                 "tipo" to telephone.tipo))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateTelefono::class.java)
-                            .block()
+        val telefonos = getTelephone(numero = numero) ?: return@securedMono null
+
+        if (telefonos.isNotEmpty()) return@securedMono telefonos.first().idNeo4j
+
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addTelephone",
+                                     mutableMapOf("numero" to numero,
+                                                  "ciudad" to telephone.ciudad,
+                                                  "tipo" to telephone.tipo))
+                               .toEntity(GraphqlResponseCreateTelefono::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir un teléfono:" + (res?.body?.errors ?: ""))
@@ -101,16 +102,16 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_TELEFONO", value = EventGraphqlError(res.body?.errors, mutableMapOf("telephone" to telephone))
             )
-            return null
+            return@securedMono null
         }
 
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
-                                eventName = "ERROR:ALTA_TELEFONO", value = res.body!!.data!!.createTelefono)
+                                eventName = "ALTA_TELEFONO", value = res.body!!.data!!.createTelefono)
 
-        return res.body!!.data!!.createTelefono
+        return@securedMono res.body!!.data!!.createTelefono.idNeo4j
     }
 
-    private fun hasCompanies(id: String, idCompany: String): Boolean {
+    private suspend fun hasCompanies(id: String, idCompany: String): Boolean {
         val telephones = getTelephone(id = id)
 
         return if (telephones == null) true
@@ -122,20 +123,16 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
                else true // this is not possible
     }
 
-    fun deleteTelephoneIfNotNeeded(id: String, idCompany: String): String? {
+    fun deleteTelephoneIfNotNeeded(id: String, idCompany: String): String? = deleteTelephoneIfNotNeededAsync(id, idCompany).block()
+
+    fun deleteTelephoneIfNotNeededAsync(id: String, idCompany: String): Mono<String> = securedMono {
         if (hasCompanies(id, idCompany))
-            return "El teléfono tiene compañías asignadas. No se borró"
-
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteTelephone"),
-                                                    mutableMapOf("id" to id))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteTelefono::class.java)
-                            .block()
+            return@securedMono "El teléfono tiene compañías asignadas. No se borró"
+
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteTelephone",
+                                     mutableMapOf("id" to id))
+                               .toEntity(GraphqlResponseDeleteTelefono::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar el teléfono:" + (res?.body?.errors ?: ""))
@@ -145,26 +142,23 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:BAJA_TELEFONO", value = graphQLError)
-            return "Error interno al tratar de borrar el teléfono"
+            return@securedMono "Error interno al tratar de borrar el teléfono"
         }
+        identityCache.evict(IdentityCache.Kind.TELEFONO, id)
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_TELEFONO", value = id)
 
-        return null   // ok no error
+        return@securedMono null   // ok no error
     }
 
-    fun addTelephoneCompany(idTelephone: String, idCompany: String): Telefono {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addTelephoneCompany"),
-                                                    mutableMapOf("id" to idTelephone,
-                                                                 "compania" to idCompany))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddTelefonoCompania::class.java)
-                            .block()
+    fun addTelephoneCompany(idTelephone: String, idCompany: String): Telefono = addTelephoneCompanyAsync(idTelephone, idCompany).block()!!
+
+    fun addTelephoneCompanyAsync(idTelephone: String, idCompany: String): Mono<Telefono> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addTelephoneCompany",
+                                     mutableMapOf("id" to idTelephone,
+                                                  "compania" to idCompany))
+                               .toEntity(GraphqlResponseAddTelefonoCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación teléfono compañía:" + (res?.body?.errors ?: ""))
@@ -179,21 +173,17 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_TELEFONO_COMPAÑÏA", value = res.body!!.data!!.addTelefonoCompania)
 
-        return res.body!!.data!!.addTelefonoCompania
+        return@securedMono res.body!!.data!!.addTelefonoCompania
     }
 
-    fun deleteTelephoneCompany(idTelephone: String, idCompany: String): Telefono {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteTelephoneCompany"),
-                                                        mutableMapOf("id" to idTelephone,
-                                                                     "compania" to idCompany))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteTelefonoCompania::class.java)
-                            .block()
+    fun deleteTelephoneCompany(idTelephone: String, idCompany: String): Telefono = deleteTelephoneCompanyAsync(idTelephone, idCompany).block()!!
+
+    fun deleteTelephoneCompanyAsync(idTelephone: String, idCompany: String): Mono<Telefono> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteTelephoneCompany",
+                                     mutableMapOf("id" to idTelephone,
+                                                  "compania" to idCompany))
+                               .toEntity(GraphqlResponseDeleteTelefonoCompania::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error borrar la relación teléfono compañía:" + (res?.body?.errors ?: ""))
@@ -208,21 +198,17 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_TELEFONO_COMPAÑÏA", value = res.body!!.data!!.deleteTelefonoCompania)
 
-        return res.body!!.data!!.deleteTelefonoCompania
+        return@securedMono res.body!!.data!!.deleteTelefonoCompania
     }
 
-    fun addTelephonePerson(idTelephone: String, idPerson: String): Telefono {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addTelephonePerson"),
-                                                    mutableMapOf("id" to idTelephone,
-                                                                 "persona" to idPerson))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseAddTelefonoPersona::class.java)
-                            .block()
+    fun addTelephonePerson(idTelephone: String, idPerson: String): Telefono = addTelephonePersonAsync(idTelephone, idPerson).block()!!
+
+    fun addTelephonePersonAsync(idTelephone: String, idPerson: String): Mono<Telefono> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "addTelephonePerson",
+                                     mutableMapOf("id" to idTelephone,
+                                                  "persona" to idPerson))
+                               .toEntity(GraphqlResponseAddTelefonoPersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación teléfono persona:" + (res?.body?.errors ?: ""))
@@ -237,21 +223,17 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "ALTA_TELEFONO_PERSONA", value = res.body!!.data!!.addTelefonoPersona)
 
-        return res.body!!.data!!.addTelefonoPersona
+        return@securedMono res.body!!.data!!.addTelefonoPersona
     }
 
-    fun deleteTelephonePerson(idTelephone: String, idPerson: String): Telefono {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteTelephonePerson"),
-                                                    mutableMapOf("id" to idTelephone,
-                                                                 "person" to idPerson))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteTelefonoPersona::class.java)
-                            .block()
+    fun deleteTelephonePerson(idTelephone: String, idPerson: String): Telefono = deleteTelephonePersonAsync(idTelephone, idPerson).block()!!
+
+    fun deleteTelephonePersonAsync(idTelephone: String, idPerson: String): Mono<Telefono> = securedMono {
+        val res = graphqlClient.postBatched(uri().path("/bup/graphql").build().toUri(), "deleteTelephonePerson",
+                                     mutableMapOf("id" to idTelephone,
+                                                  "person" to idPerson))
+                               .toEntity(GraphqlResponseDeleteTelefonoPersona::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error borrar la relación teléfono compañía:" + (res?.body?.errors ?: ""))
@@ -266,6 +248,6 @@ class TelefonoService(@Qualifier("authorization_code") val webClient: WebClient,
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_TELEFONO_PERSONA", value = res.body!!.data!!.deleteTelefonoPersona)
 
-        return res.body!!.data!!.deleteTelefonoPersona
+        return@securedMono res.body!!.data!!.deleteTelefonoPersona
     }
 }
@@ -25,16 +25,14 @@ package com.acme.acmeui.data.service
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.*
 import com.acme.acmeui.service.event.EventService
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.EventGraphqlError
 import com.ailegorreta.commons.event.EventType
-import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.http.MediaType
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -46,25 +44,21 @@ import reactor.core.publisher.Mono
  * @date November 2023
  */
 @Service
-class TrabajaService (@Qualifier("authorization_code") val webClient: WebClient,
+class TrabajaService (private val graphqlClient: GraphqlClient,
                       private val eventService: EventService,
                       private val serviceConfig: ServiceConfig): HasLogger {
 
     fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getBupProvider())
 
-    fun addWork(fromId: String, toId: String, puesto: String): Trabaja? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("addWork"),
-                                        mutableMapOf("from" to fromId,
-                                                     "to" to toId,
-                                                     "puesto" to puesto))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseCreateTrabaja::class.java)
-                            .block()
+    fun addWork(fromId: String, toId: String, puesto: String): Trabaja? = addWorkAsync(fromId, toId, puesto).block()
+
+    fun addWorkAsync(fromId: String, toId: String, puesto: String): Mono<Trabaja> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "addWork",
+                                     mutableMapOf("from" to fromId,
+                                                  "to" to toId,
+                                                  "puesto" to puesto))
+                               .toEntity(GraphqlResponseCreateTrabaja::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al añadir la relación de persona a compañía (trabaja):" + (res?.body?.errors ?: ""))
@@ -75,26 +69,22 @@ class TrabajaService (@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:ALTA_TRABAJA_PERSONA_COMPAÑIA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                             eventName = "ALTA_TRABAJA_PERSONA_COMPAÑIA", value = res.body!!.data!!.createTrabaja)
 
-        return res.body!!.data!!.createTrabaja
+        return@securedMono res.body!!.data!!.createTrabaja
     }
 
-    fun deleteWork(fromId: String, toId: String): Persona? {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("deleteWork"),
-                                            mutableMapOf("id" to fromId,
-                                                         "trabajaDel" to toId))
-        val res = webClient.post()
-                            .uri(uri().path("/bup/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .toEntity(GraphqlResponseDeleteTrabaja::class.java)
-                            .block()
+    fun deleteWork(fromId: String, toId: String): Persona? = deleteWorkAsync(fromId, toId).block()
+
+    fun deleteWorkAsync(fromId: String, toId: String): Mono<Persona> = securedMono {
+        val res = graphqlClient.post(uri().path("/bup/graphql").build().toUri(), "deleteWork",
+                                     mutableMapOf("id" to fromId,
+                                                  "trabajaDel" to toId))
+                               .toEntity(GraphqlResponseDeleteTrabaja::class.java)
+                               .awaitSingleOrNull()
 
         if ((res == null) || (res.body?.errors != null)) {
             logger.error("Error al borrar la relación de persona a compañía (trabaja):" + (res?.body?.errors ?: ""))
@@ -104,12 +94,12 @@ class TrabajaService (@Qualifier("authorization_code") val webClient: WebClient,
             eventService.sendEvent(eventType = EventType.ERROR_EVENT,
                                     headers = res!!.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                     eventName = "ERROR:BAJA_TRABAJA_PERSONA_COMPAÑIA", value = graphQLError)
-            return null
+            return@securedMono null
         }
         eventService.sendEvent(headers = res.headers, userName = SecurityContextHolder.getContext().authentication!!.name,
                                 eventName = "BAJA_TRABAJA_PERSONA_COMPAÑIA", value = res.body!!.data!!.deletePersonaTrabajaDel)
 
-        return res.body!!.data!!.deletePersonaTrabajaDel
+        return@securedMono res.body!!.data!!.deletePersonaTrabajaDel
     }
 
 }
@@ -24,12 +24,21 @@ package com.acme.acmeui.service.cache
 
 import com.acme.acmeui.config.ServiceConfig
 import com.acme.acmeui.data.dto.DocumentType
+import com.acme.acmeui.service.graphql.SingleFlight
+import com.acme.acmeui.service.cache.SnapshotStore.Companion.getBytes
 import com.ailegorreta.client.security.utils.HasLogger
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.beans.factory.DisposableBean
 import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.event.EventListener
 import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
 import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
+import reactor.core.Disposable
+import reactor.core.publisher.Flux
 import reactor.core.publisher.Mono
 import java.math.BigDecimal
 import java.time.Duration
@@ -38,58 +47,128 @@ import java.time.LocalDate
 /**
  * CacheService to communicate to the cache server microservice
  *
+ * The exchange rates and the system days are kept in NearCaches: the rates are read again in background after
+ * 'microservice.cache.near-cache.rate-ttl' and the days are valid until midnight, since they depend on the date.
+ * The document types are read at startup and every 'microservice.cache.near-cache.document-types-ttl' by a timer,
+ * with the token of the application (client_credentials WebClient), and they are saved in a disk snapshot, so after
+ * a restart they are served at once (see SnapshotStore). The views just read the types kept in memory, so a view
+ * never waits for the cache microservice.
+ *
  * @project acme-ui
  * @author rlh
  * @date February 2023
  */
 @Service
 class CacheService(@Qualifier("authorization_code") val webClient: WebClient,
-                   private val serviceConfig: ServiceConfig) : HasLogger {
+                   @Qualifier("client_credentials") private val clientCredentialsWebClient: WebClient,
+                   private val serviceConfig: ServiceConfig,
+                   private val singleFlight: SingleFlight,
+                   private val snapshots: SnapshotStore,
+                   private val mapper: ObjectMapper,
+                   meterRegistry: MeterRegistry) : DisposableBean, HasLogger {
+    companion object {
+        const val ALL_DOCUMENT_TYPES = "*"
+        const val DOCUMENT_TYPES_SNAPSHOT = "document-types"
+        val DOCUMENT_TYPES_TIMEOUT: Duration = Duration.ofMillis(10_000)
+    }
 
-    fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getCacheProvider())
 
-    fun getRate(nombre: String): BigDecimal? {
-        val res = webClient.get()
-                            .uri(uri().path("/cache/sysvar")
-                                .queryParam("nombre", nombre)
-                                .build().toUri())
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(BigDecimal::class.java)
-                            .block()
-
-        return res
+    private val rates = NearCache<String, BigDecimal>("rates", serviceConfig.cacheNearCacheTimeout, true, meterRegistry,
+                                                      NearCache.after(serviceConfig.cacheNearCacheRateTtl)) { nombre ->
+                            getRateAsync(nombre)
+                        }
+    private val days = NearCache<Int, LocalDate>("days", serviceConfig.cacheNearCacheTimeout, false, meterRegistry,
+                                                 NearCache.untilMidnight()) { days ->
+                            getDayAsync(days)
+                        }
+    private val documentTypes = NearCache<String, List<DocumentType>>("document-types", DOCUMENT_TYPES_TIMEOUT, true,
+                                                                      meterRegistry,
+                                                                      NearCache.after(serviceConfig.cacheNearCacheDocumentTypesTtl),
+                                                                      { _, types -> saveDocumentTypes(types) }) {
+                                    allDocumentTypesAsync()
+                                }
+    private var documentTypesRefresh: Disposable? = null
+
+    init {
+        snapshots.read(DOCUMENT_TYPES_SNAPSHOT)?.let { saved ->
+            try {
+                documentTypes.seed(ALL_DOCUMENT_TYPES,
+                                   mapper.readValue(saved.data.getBytes(), Array<DocumentType>::class.java).toList())
+            } catch (e: Exception) {
+                logger.warn("No se pudo leer el snapshot de tipos de documento:${e.message}")
+            }
+        }
     }
 
-    fun getDay(days: Int): LocalDate? {
-        val res = webClient.get()
-                            .uri(uri().path("/cache/day")
-                                .queryParam("days", days)
-                                .build().toUri())
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(LocalDate::class.java)
-                            .block()
-
-        return res
+    @EventListener(ApplicationReadyEvent::class)
+    fun scheduleDocumentTypesRefresh() {
+        documentTypesRefresh = Flux.interval(Duration.ZERO, serviceConfig.cacheNearCacheDocumentTypesTtl)
+                                   .subscribe { documentTypes.refresh(ALL_DOCUMENT_TYPES) }
     }
 
-    private fun switchIfEmpty() = Mono.just(arrayOfNulls<DocumentType>(0))
+    override fun destroy() {
+        documentTypesRefresh?.dispose()
+    }
+
+    fun uri(): UriComponentsBuilder = UriComponentsBuilder.fromUriString(serviceConfig.getCacheProvider())
+
+    fun getRate(nombre: String): BigDecimal? = rates.get(nombre)
 
+    private fun getRateAsync(nombre: String): Mono<BigDecimal> =
+        singleFlight.execute(singleFlight.key("/cache/sysvar", mapOf("nombre" to nombre), SingleFlight.Scope.SHARED)) {
+            webClient.get()
+                     .uri(uri().path("/cache/sysvar")
+                         .queryParam("nombre", nombre)
+                         .build().toUri())
+                     .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
+                     .retrieve()
+                     .bodyToMono(BigDecimal::class.java)
+        }
+
+    fun getDay(days: Int): LocalDate? = this.days.get(days)
+
+    private fun getDayAsync(days: Int): Mono<LocalDate> =
+        singleFlight.execute(singleFlight.key("/cache/day", mapOf("days" to days), SingleFlight.Scope.SHARED)) {
+            webClient.get()
+                     .uri(uri().path("/cache/day")
+                         .queryParam("days", days)
+                         .build().toUri())
+                     .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
+                     .retrieve()
+                     .bodyToMono(LocalDate::class.java)
+        }
+
+    /**
+     * The document types are the same for all users. It returns the types kept in memory and never waits for the
+     * cache microservice (i.e., it is called in the Vaadin UI thread). If they were not read yet (the cache
+     * microservice was down at startup and there is no snapshot) it returns an empty list and reads them in
+     * background.
+     */
     fun allDocumentTypes(): List<DocumentType> {
-        val res = webClient.get()
-                        .uri(uri().path("/cache/doctypes")
-                            .build().toUri())
-                        .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                        .retrieve()
-                        .bodyToMono(Array<DocumentType>::class.java)
-                        .timeout(Duration.ofMillis(10_000))
-                        .switchIfEmpty(switchIfEmpty() as Mono<out Nothing>)
-                        .map{ elements -> listOf(elements) }
-                        as Mono<List<DocumentType>>
-
-        val result = res.block()!!.first() as Array<DocumentType>
-
-        return result.toList()
+        val types = documentTypes.peek(ALL_DOCUMENT_TYPES)
+
+        if (types == null) documentTypes.refresh(ALL_DOCUMENT_TYPES)
+
+        return types ?: emptyList()
     }
+
+    private fun saveDocumentTypes(types: List<DocumentType>) =
+        snapshots.write(DOCUMENT_TYPES_SNAPSHOT) { out -> out.write(mapper.writeValueAsBytes(types)) }
+
+    /**
+     * Unattended read (no user): it is sent with the client_credentials WebClient. Identical calls in flight at the
+     * same time share one call.
+     */
+    private fun allDocumentTypesAsync(): Mono<List<DocumentType>> =
+        singleFlight.execute(singleFlight.key("/cache/doctypes", scope = SingleFlight.Scope.SHARED)) {
+            clientCredentialsWebClient.get()
+                                      .uri(uri().path("/cache/doctypes")
+                                          .build().toUri())
+                                      .attributes(clientRegistrationId(serviceConfig.securityClientId +
+                                                                       "-client-credentials"))
+                                      .retrieve()
+                                      .bodyToMono(Array<DocumentType>::class.java)
+                                      .map { elements -> elements.toList() }
+                                      .defaultIfEmpty(emptyList())
+        }
 }
@@ -0,0 +1,162 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  NearCache.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.cache
+
+import com.ailegorreta.client.security.utils.HasLogger
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.time.Instant
+import java.time.LocalDate
+import java.time.ZoneId
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Local cache of the values read from the cache microservice, so the (anonymous) endpoints that every page load
+ * calls do not go to the cache microservice every time.
+ *
+ * Every key has its own expiration (see 'expiresAt'). When a value expires:
+ *  - staleWhileRevalidate = true: the expired value is returned and it is read again in background (just one
+ *    read per key at a time).
+ *  - staleWhileRevalidate = false: the value is read again and the caller waits (i.e., a value that depends on
+ *    the date).
+ * If the read fails the last good value is returned, so a failure of the cache microservice is not seen by the
+ * users, and the value is read again in the next call.
+ *
+ * 'onLoad' is called after every read, i.e., to save a snapshot of the values (see seed).
+ *
+ * The background read is subscribed in the caller thread, so it is sent with the security context of the caller.
+ *
+ * peek() never reads: it returns the value kept (even expired) so the caller never waits for the cache
+ * microservice. The values read with peek() must be refreshed by the owner (see refresh), i.e., with a timer.
+ *
+ * Metrics (tag 'cache'): acme.near-cache.hits, acme.near-cache.stale, acme.near-cache.misses and
+ * acme.near-cache.errors.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class NearCache<K : Any, V : Any>(private val name: String,
+                                  private val timeout: Duration,
+                                  private val staleWhileRevalidate: Boolean,
+                                  meterRegistry: MeterRegistry,
+                                  private val expiresAt: (K, Instant) -> Instant,
+                                  private val onLoad: (K, V) -> Unit = { _, _ -> },
+                                  private val loader: (K) -> Mono<V>): HasLogger {
+    companion object {
+        /**
+         * Expiration for the values that are valid until the end of the day
+         */
+        fun <K> untilMidnight(zone: ZoneId = ZoneId.systemDefault()): (K, Instant) -> Instant = { _, now ->
+            LocalDate.ofInstant(now, zone).plusDays(1).atStartOfDay(zone).toInstant()
+        }
+
+        fun <K> after(ttl: Duration): (K, Instant) -> Instant = { _, now -> now.plus(ttl) }
+    }
+
+    private class Entry<V>(val value: V, val expiresAt: Instant)
+
+    private val entries = ConcurrentHashMap<K, Entry<V>>()
+    private val refreshing = ConcurrentHashMap.newKeySet<K>()
+    private val hits = counter(meterRegistry, "hits", "Lecturas resueltas con el valor local vigente")
+    private val stale = counter(meterRegistry, "stale", "Lecturas resueltas con el valor local vencido")
+    private val misses = counter(meterRegistry, "misses", "Lecturas que esperaron al microservicio de cache")
+    private val errors = counter(meterRegistry, "errors", "Lecturas al microservicio de cache con error")
+
+    fun get(key: K): V {
+        val entry = entries[key]
+        val now = Instant.now()
+
+        if (entry != null && now.isBefore(entry.expiresAt)) {
+            hits.increment()
+            return entry.value
+        }
+        if (entry != null && staleWhileRevalidate) {
+            stale.increment()
+            refresh(key)
+            return entry.value
+        }
+        misses.increment()
+
+        return try {
+            load(key).block(timeout) ?: throw IllegalStateException("El microservicio de cache no regresó $name:$key")
+        } catch (e: Exception) {
+            errors.increment()
+            if (entry == null) throw e
+            logger.warn("Error al leer $name:$key, se usa el último valor leído:${e.message}")
+            entry.value
+        }
+    }
+
+    /**
+     * The value kept for the key, even if it is expired, or null if it was never read. It does not read.
+     */
+    fun peek(key: K): V? {
+        val entry = entries[key]
+
+        when {
+            entry == null -> misses.increment()
+            Instant.now().isBefore(entry.expiresAt) -> hits.increment()
+            else -> stale.increment()
+        }
+
+        return entry?.value
+    }
+
+    fun invalidate() = entries.clear()
+
+    /**
+     * Puts a value already expired (i.e., read from a disk snapshot), so it is used until it is read again
+     */
+    fun seed(key: K, value: V) {
+        entries.putIfAbsent(key, Entry(value, Instant.EPOCH))
+    }
+
+    /**
+     * Reads the value again in background (just one read per key at a time)
+     */
+    fun refresh(key: K) {
+        if (!refreshing.add(key)) return
+
+        load(key).timeout(timeout)
+                 .doFinally { refreshing.remove(key) }
+                 .subscribe({ }, { error ->
+                                errors.increment()
+                                logger.warn("Error al refrescar $name:$key, se usa el último valor leído:${error.message}")
+                            })
+    }
+
+    private fun load(key: K): Mono<V> =
+        loader(key).doOnNext { value ->
+                        entries[key] = Entry(value, expiresAt(key, Instant.now()))
+                        onLoad(key, value)
+                    }
+
+    private fun counter(meterRegistry: MeterRegistry, result: String, description: String) =
+        Counter.builder("acme.near-cache.$result")
+               .description(description)
+               .tag("cache", name)
+               .register(meterRegistry)
+}
@@ -0,0 +1,156 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SnapshotStore.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.cache
+
+import com.acme.acmeui.config.ServiceConfig
+import com.ailegorreta.client.security.utils.HasLogger
+import org.springframework.stereotype.Component
+import reactor.core.scheduler.Schedulers
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.UUID
+
+/**
+ * Snapshot files of the reference data caches (sectors and states, the address index and the document types) in
+ * the local disk, so a node that restarts serves them immediately instead of waiting for the microservices.
+ *
+ * Every cache writes its snapshot after it reads its data and reads it (memory mapped) when the node starts. The
+ * data read from a snapshot is taken as expired, so the cache reads it again in background when it is used.
+ *
+ * File format: MAGIC (int), FORMAT_VERSION (int), savedAt (long, epoch millis), payload length (int), payload.
+ * The file is written in a temporary file that is moved to its name, so a reader never sees half a file.
+ *
+ * The snapshots are disabled if 'microservice.reference-data.snapshot.dir' is empty.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class SnapshotStore(serviceConfig: ServiceConfig): HasLogger {
+    companion object {
+        const val MAGIC = 0x41434D45            // "ACME"
+        const val FORMAT_VERSION = 1
+        const val HEADER_SIZE = 4 + 4 + 8 + 4
+        const val EXTENSION = ".snapshot"
+
+        fun DataOutputStream.writeText(text: String?) {
+            if (text == null) writeInt(-1)
+            else {
+                val bytes = text.toByteArray(Charsets.UTF_8)
+
+                writeInt(bytes.size)
+                write(bytes)
+            }
+        }
+
+        fun ByteBuffer.getText(): String? {
+            val size = int
+
+            if (size < 0) return null
+
+            val bytes = ByteArray(size)
+
+            get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        fun ByteBuffer.getBytes(): ByteArray = ByteArray(remaining()).also { get(it) }
+    }
+
+    class Snapshot(val savedAt: Long, val data: ByteBuffer)
+
+    private val dir: Path? = serviceConfig.referenceDataSnapshotDir.takeIf { it.isNotBlank() }?.let { Path.of(it) }
+
+    /**
+     * Returns the snapshot memory mapped or null if it does not exist or it is not valid
+     */
+    fun read(name: String): Snapshot? {
+        val file = dir?.resolve(name + EXTENSION) ?: return null
+
+        if (!Files.isRegularFile(file)) return null
+
+        return try {
+            FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+
+                if (buffer.remaining() < HEADER_SIZE || buffer.int != MAGIC || buffer.int != FORMAT_VERSION) {
+                    logger.warn("El snapshot $file no es válido, se ignora")
+                    return null
+                }
+
+                val savedAt = buffer.long
+                val length = buffer.int
+
+                if (length != buffer.remaining()) {
+                    logger.warn("El snapshot $file está incompleto, se ignora")
+                    return null
+                }
+                Snapshot(savedAt, buffer.slice(HEADER_SIZE, length))
+            }
+        } catch (e: Exception) {
+            logger.warn("No se pudo leer el snapshot $file:${e.message}")
+            null
+        }
+    }
+
+    /**
+     * Writes the snapshot in background (the caller could be a WebClient thread)
+     */
+    fun write(name: String, payload: (DataOutputStream) -> Unit) {
+        val dir = dir ?: return
+        val savedAt = System.currentTimeMillis()
+
+        Schedulers.boundedElastic().schedule {
+            val file = dir.resolve(name + EXTENSION)
+            val temporal = dir.resolve("$name.${UUID.randomUUID()}.tmp")
+
+            try {
+                Files.createDirectories(dir)
+
+                val data = ByteArrayOutputStream()
+
+                DataOutputStream(data).use { payload(it) }
+                DataOutputStream(BufferedOutputStream(Files.newOutputStream(temporal))).use { out ->
+                    out.writeInt(MAGIC)
+                    out.writeInt(FORMAT_VERSION)
+                    out.writeLong(savedAt)
+                    out.writeInt(data.size())
+                    data.writeTo(out)
+                }
+                Files.move(temporal, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                logger.debug("Snapshot $file guardado (${data.size()} bytes)")
+            } catch (e: Exception) {
+                logger.warn("No se pudo guardar el snapshot $file:${e.message}")
+                Files.deleteIfExists(temporal)
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  CacheInvalidationListener.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.event
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.service.AddressIndexService
+import com.acme.acmeui.data.service.IdentityCache
+import com.acme.acmeui.data.service.ReferenceDataService
+import com.acme.acmeui.views.dataproviders.CompaniesDataProvider
+import com.acme.acmeui.views.dataproviders.PersonsDataProvider
+import com.ailegorreta.client.security.utils.HasLogger
+import com.ailegorreta.commons.event.EventType
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import org.apache.kafka.streams.kstream.KStream
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.stereotype.Component
+import java.util.function.Consumer
+
+/**
+ * Invalidates the local caches of this node when any node (including this one) saves an entity.
+ *
+ * Every save already sends an event to the 'audit' topic (see EventService) so every acme-ui node reads all the
+ * events of the topic (its Kafka Streams applicationId is unique per node) and, depending on the event name (an
+ * explicit set per rule), invalidates:
+ *  - company saved (the event data is the company): just the companies pages where it is (see
+ *    CompaniesDataProvider.invalidate), and the persons pages that show its name if it was updated.
+ *  - person saved (the event data is the person): just the persons pages where it is.
+ *  - company or person added, or a relationship whose event data does not have the company or person (i.e.,
+ *    areas, providers, emails, jobs and addresses, the state is in both grids): all the pages of the grid.
+ *  - sectors: the companies pages (just when a sector is updated) and the reference data (expired, so the next
+ *    reader loads it).
+ *  - colony zip codes: the colony in the address index, so the next lookup reads it from the BUP.
+ *  - deleted rfcs, telephones, areas and email servers: their kind in the IdentityCache.
+ * The error events ('ERROR:' prefix) and the events of other applications are ignored.
+ *
+ * With this the caches can keep their data longer, since a save in another node does not leave stale data.
+ *
+ * Metric: acme.cache-invalidation.events (tag 'target').
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class CacheInvalidationListener(private val companiesDataProvider: CompaniesDataProvider,
+                                private val personsDataProvider: PersonsDataProvider,
+                                private val referenceDataService: ReferenceDataService,
+                                private val addressIndexService: AddressIndexService,
+                                private val identityCache: IdentityCache,
+                                private val serviceConfig: ServiceConfig,
+                                private val mapper: ObjectMapper,
+                                private val meterRegistry: MeterRegistry): HasLogger {
+    companion object {
+        const val ERROR_PREFIX = "ERROR:"
+    }
+
+    private class Rule(val target: String, val events: Set<String>, val invalidate: (id: String?, datos: Map<*, *>?) -> Unit)
+
+    private val rules = listOf(
+        Rule("companies", setOf("ACTUALIZA_COMPANIA")) { id, datos ->
+            if (id == null) invalidateGrids()
+            else personsDataProvider.invalidateCompany(companiesDataProvider.invalidate(id, datos?.get("nombre") as? String))
+        },
+        Rule("companies", setOf("ASIGNACION_SECTOR_COMPAÑIA", "DES_ASIGNACION_SECTOR_COMPAÑIA",
+                                "ASIGNACION_RFC_COMPAÑIA", "DES_ASIGNACION_RFC_COMPAÑIA",
+                                "ASIGNACION_SUBSIDIARIA_COMPAÑIA", "DES_ASIGNACION_SUBSIDIARIA_COMPAÑIA",
+                                "BAJA_PROVEEDORES_COMPAÑIA",
+                                "BORRADO_AUTOMATICO_AREA_COMPAÑIA")) { id, _ ->
+            if (id == null) companiesDataProvider.invalidateAll()
+            else companiesDataProvider.invalidate(id, null)
+        },
+        Rule("companies", setOf("ALTA_COMPANIA", "ALTA_PROVEEDOR_COMPAÑIA",
+                                "ASIGNACION_AREA_COMPAÑIA", "DES_ASIGNACION_AREA_COMPAÑIA")) { _, _ ->
+            companiesDataProvider.invalidateAll()
+        },
+        Rule("persons", setOf("ACTUALIZA_PERSONA", "ASIGNACION_RFC_PERSONA", "DES_ASIGNACION_RFC_PERSONA",
+                              "BAJA_EMAIL", "BAJA_TRABAJA_PERSONA_COMPAÑIA")) { id, _ ->
+            if (id == null) personsDataProvider.invalidateAll()
+            else personsDataProvider.invalidate(id)
+        },
+        Rule("persons", setOf("ALTA_PERSONA", "ALTA_EMAIL", "ALTA_TRABAJA_PERSONA_COMPAÑIA")) { _, _ ->
+            personsDataProvider.invalidateAll()
+        },
+        Rule("addresses", setOf("AÑADIR_DIRECCION_COMPAÑIA", "AÑADIR_DIRECCION_COMPANIA", "AÑADIR_DIRECCION_PERSONA",
+                                "ELIMINAR_DIRECCION", "ELIMINAR_DIRECCION_COMPANIA", "ELIMINAR_DIRECCION_PERSONA")) { _, _ ->
+            invalidateGrids()               // the event data is the address, not its company or person
+        },
+        Rule("sectors", setOf("ALTA_SECTOR_INDUSTRIAL")) { _, _ -> referenceDataService.expire() },
+        Rule("sectors", setOf("UPDATESECTOR_INDUSTRIAL")) { _, _ ->
+            companiesDataProvider.invalidateAll()
+            referenceDataService.expire()
+        },
+        Rule("colonies", setOf("ALTA_MUNICIPIO_CODIGO_POSTAL")) { _, datos ->
+            (datos?.get("nombre") as? String)?.let { addressIndexService.colonyChanged(it) }
+        }
+    ) + IdentityCache.DELETE_EVENTS.map { (eventName, kind) ->
+        Rule("identities", setOf(eventName)) { _, _ -> identityCache.invalidate(kind) }
+    }
+
+    /**
+     * All the pages of both grids, i.e., the state of the addresses is in both
+     */
+    private fun invalidateGrids() {
+        companiesDataProvider.invalidateAll()
+        personsDataProvider.invalidateAll()
+    }
+
+    fun onEvent(json: String) {
+        try {
+            val event = mapper.readTree(json)
+
+            if (event.path("applicationName").asText() != serviceConfig.getAppName() ||
+                event.path("eventType").asText() != EventType.DB_STORE.name) return
+
+            val eventName = event.path("eventName").asText()
+
+            if (eventName.startsWith(ERROR_PREFIX)) return
+
+            val matched = rules.filter { eventName in it.events }
+
+            if (matched.isEmpty()) return
+
+            val body = event.path("eventBody").path("datos")
+            val datos = if (body.isObject) mapper.convertValue(body, Map::class.java) else null
+            val id = if (body.isTextual) body.asText()          // the events that send just an _id
+                     else datos?.get("_id") as? String
+
+            matched.forEach { rule ->
+                rule.invalidate(id, datos)
+                Counter.builder("acme.cache-invalidation.events")
+                       .description("Invalidaciones de cache locales por eventos de cualquier nodo")
+                       .tag("target", rule.target)
+                       .register(meterRegistry)
+                       .increment()
+            }
+            logger.debug("Evento $eventName: se invalidó ${matched.joinToString { it.target }}")
+        } catch (e: Exception) {
+            logger.warn("No se pudo procesar el evento para invalidar caches:${e.message}")
+        }
+    }
+}
+
+/**
+ * Kafka Streams consumer of the 'audit' topic (binding cacheInvalidation-in-0)
+ */
+@Configuration
+class CacheInvalidationConfig {
+
+    @Bean
+    fun cacheInvalidation(listener: CacheInvalidationListener): Consumer<KStream<String, String>> =
+        Consumer { events -> events.foreach { _, event -> if (event != null) listener.onEvent(event) } }
+}
@@ -23,21 +23,18 @@
 package com.acme.acmeui.service.event
 
 import com.acme.acmeui.config.ServiceConfig
-import com.acme.acmeui.data.dto.GraphqlRequestBody
 import com.acme.acmeui.data.dto.Notification
-import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.acme.acmeui.service.graphql.GraphqlClient
+import com.acme.acmeui.service.graphql.securedMono
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.ailegorreta.client.security.utils.HasLogger
 import com.ailegorreta.commons.event.*
-import org.springframework.beans.factory.annotation.Qualifier
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.cloud.stream.function.StreamBridge
 import org.springframework.http.HttpHeaders
-import org.springframework.http.MediaType
 import org.springframework.security.core.context.SecurityContextHolder
-import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.clientRegistrationId
 import org.springframework.stereotype.Service
-import org.springframework.web.reactive.function.client.WebClient
 import org.springframework.web.util.UriComponentsBuilder
 import reactor.core.publisher.Mono
 
@@ -49,7 +46,7 @@ import reactor.core.publisher.Mono
  * @date February 2023
  */
 @Service
-class EventService(@Qualifier("authorization_code") val webClient: WebClient,
+class EventService(private val graphqlClient: GraphqlClient,
                    private var streamBridge: StreamBridge,
                    private val serviceConfig: ServiceConfig,
                    private val mapper: ObjectMapper? = null): HasLogger {
@@ -102,20 +99,15 @@ class EventService(@Qualifier("authorization_code") val webClient: WebClient,
      *
      * This method is a support for the user that did not read the on-line event
      */
-    fun notifications(): List<Notification> {
-        val graphQLRequestBody = GraphqlRequestBody(GraphqlSchemaReaderUtil.getSchemaFromFileName("notifications"),
-                                            mutableMapOf("username" to  SecurityContextHolder.getContext().authentication!!.name))
-
-        val res = webClient.post()
-                            .uri(uri().path("/audit/graphql").build().toUri())
-                            .accept(MediaType.APPLICATION_JSON)
-                            .body(Mono.just(graphQLRequestBody), GraphqlRequestBody::class.java)
-                            .attributes(clientRegistrationId(serviceConfig.securityClientId + "-oidc"))
-                            .retrieve()
-                            .bodyToMono(GraphqlResponseNotifications::class.java)
-                            .block()
-
-        return res!!.data.notifications
+    fun notifications(): List<Notification> = notificationsAsync().block()!!
+
+    fun notificationsAsync(): Mono<List<Notification>> = securedMono {
+        val res = graphqlClient.post(uri().path("/audit/graphql").build().toUri(), "notifications",
+                                     mutableMapOf("username" to  SecurityContextHolder.getContext().authentication!!.name))
+                               .bodyToMono(GraphqlResponseNotifications::class.java)
+                               .awaitSingleOrNull()
+
+        return@securedMono res!!.data.notifications
     }
 
     data class GraphqlResponseNotifications(val data: Data) {
@@ -0,0 +1,129 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  CompositeMutation.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+
+/**
+ * Executes at the same time all the steps of a save, where every step is the chain of calls for one item, i.e.,
+ * find or create an area and then add its relationship with the company. It is created by the FanOutExecutor,
+ * and no more steps than the concurrency cap of the downstream are executed at the same time.
+ *
+ * The services send these calls with postBatched() and every step runs in the caller thread until its first
+ * call (the coroutines are unconfined), so the calls of the same level of all the steps are issued within the
+ * same batch window and the GraphqlBatchLoader sends them as one aliased document. A save needs then a small
+ * fixed number of round trips (the length of its longest chain) and not one round trip per mutation, so its
+ * latency is close to the slowest chain and not the sum of all of them.
+ *
+ * A failed step does not cancel the others. Every service keeps reporting the error of its own mutation (log and
+ * ERROR event) and execute() returns the steps that failed in the order they were added, not in the order they
+ * failed, so the same save always reports the same errors.
+ *
+ * If any step failed, the compensations registered by the steps (i.e., delete the relationship just added) are
+ * executed one by one in the reverse order of the steps and, for every step, in the reverse order they were
+ * registered. A compensation that fails is returned as one more failure. If the save is cancelled (i.e., the
+ * client went away) the cancellation is not taken as a failed step, but what the steps did so far is compensated
+ * as well. The compensations are not cancellable, so they are not stopped half way.
+ *
+ * note: execute() must be called inside a securedMono block in order to keep the security context in all steps.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class CompositeMutation(private val limit: Semaphore) {
+
+    data class Failure(val description: String, val error: Exception, val compensation: Boolean = false)
+
+    class Step(val description: String, private val block: suspend Step.() -> Unit) {
+        internal val compensations = mutableListOf<suspend () -> Unit>()
+
+        internal suspend fun run() = block()
+
+        /**
+         * Registers how to undo what this step has done so far
+         */
+        fun compensate(compensation: suspend () -> Unit) {
+            compensations.add(compensation)
+        }
+    }
+
+    private val steps = mutableListOf<Step>()
+
+    fun add(description: String, step: suspend Step.() -> Unit): CompositeMutation {
+        steps.add(Step(description, step))
+
+        return this
+    }
+
+    suspend fun execute(): List<Failure> {
+        val failures = try {
+            coroutineScope {
+                steps.map { step ->
+                        async {
+                            try {
+                                limit.withPermit { step.run() }
+                                null
+                            } catch (e: CancellationException) {
+                                throw e
+                            } catch (e: Exception) {
+                                Failure(step.description, e)
+                            }
+                        }
+                     }
+                     .awaitAll()
+                     .filterNotNull()
+            }
+        } catch (e: CancellationException) {
+            withContext(NonCancellable) { compensate() }
+            throw e
+        }
+
+        return if (failures.isEmpty()) failures else failures + withContext(NonCancellable) { compensate() }
+    }
+
+    private suspend fun compensate(): List<Failure> {
+        val failures = mutableListOf<Failure>()
+
+        steps.asReversed().forEach { step ->
+            step.compensations.asReversed().forEach { compensation ->
+                try {
+                    limit.withPermit { compensation() }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    failures.add(Failure(step.description, e, compensation = true))
+                }
+            }
+        }
+
+        return failures
+    }
+}
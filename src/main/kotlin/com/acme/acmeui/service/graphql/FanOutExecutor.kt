@@ -0,0 +1,51 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  FanOutExecutor.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.config.ServiceConfig
+import kotlinx.coroutines.sync.Semaphore
+import org.springframework.stereotype.Component
+
+/**
+ * Creates the CompositeMutation of every save and keeps the concurrency cap of every downstream microservice.
+ *
+ * The cap is shared by all the saves of this node, so a few saves of rich entities (i.e., a company with many
+ * areas and addresses) cannot flood the downstream with calls. A step that finds no permit suspends (no thread
+ * waits) until another step ends.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class FanOutExecutor(serviceConfig: ServiceConfig) {
+
+    companion object {
+        const val BUP = "bup"
+    }
+
+    private val limits = mapOf(BUP to Semaphore(serviceConfig.bupFanOutMaxConcurrency))
+
+    fun composite(downstream: String) =
+        CompositeMutation(limits[downstream] ?: throw IllegalArgumentException("No existe el límite de concurrencia para $downstream"))
+}
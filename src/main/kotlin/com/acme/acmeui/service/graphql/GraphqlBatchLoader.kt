@@ -0,0 +1,179 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GraphqlBatchLoader.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.data.dto.GraphqlRequestBody
+import com.ailegorreta.client.security.utils.HasLogger
+import com.fasterxml.jackson.databind.JsonNode
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.DistributionSummary
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Tag
+import org.springframework.http.ResponseEntity
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import reactor.core.scheduler.Schedulers
+import java.net.URI
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import java.util.function.Consumer
+import kotlin.concurrent.withLock
+
+/**
+ * DataLoader-style coalescing of the GraphQL lookups.
+ *
+ * All the lookups for the same endpoint and the same user issued within the batch window are merged by the
+ * GraphqlDocumentMerger in just one document and sent in one POST. Every caller receives its own response.
+ * A batch is sent before the window ends if it reaches the maximum batch size.
+ *
+ * The batches are per user because the call is sent with the OAuth2 token of the first caller, and per operation
+ * type because queries and mutations cannot be merged in one document. The mutations of a batch are executed by
+ * the server in the order they arrived (i.e., serially), and every caller receives just the errors of its own
+ * mutation.
+ *
+ * If the server rejects the whole merged document (i.e., a variable of one caller is not valid, so the response
+ * has errors but no data) nothing was executed and every operation is sent again alone, so one wrong operation
+ * does not fail the others.
+ *
+ * Metrics:
+ *  - acme.graphql.batch.size: number of lookups sent in every batch.
+ *  - acme.graphql.batch.saved: round trips saved (i.e., batch size - 1).
+ *  - acme.graphql.batch.rejected: merged documents rejected by the server and sent again one by one.
+ *
+ * note: A ReentrantLock is used instead of synchronized in order not to pin virtual threads.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class GraphqlBatchLoader(private val window: Duration,
+                         private val maxSize: Int,
+                         private val meterRegistry: MeterRegistry,
+                         private val exchange: (URI, GraphqlDocument, Map<String, Any?>?, Consumer<MutableMap<String, Any>>) -> Mono<ResponseEntity<JsonNode>>,
+                         private val send: (URI, GraphqlRequestBody, Consumer<MutableMap<String, Any>>) -> Mono<ResponseEntity<JsonNode>>): HasLogger {
+
+    private data class BatchKey(val uri: URI, val principal: String?, val type: String?)
+
+    private class Lookup(val document: GraphqlDocument,
+                         val variables: Map<String, Any?>?,
+                         val sink: Sinks.One<ResponseEntity<JsonNode>> = Sinks.one())
+
+    private class Batch(val key: BatchKey, val attributes: Consumer<MutableMap<String, Any>>) {
+        val lookups = mutableListOf<Lookup>()
+    }
+
+    private val lock = ReentrantLock()
+    private val pending = HashMap<BatchKey, Batch>()
+
+    fun load(uri: URI, principal: String?, document: GraphqlDocument, variables: Map<String, Any?>?,
+             attributes: Consumer<MutableMap<String, Any>>): Mono<ResponseEntity<JsonNode>> =
+        Mono.defer {
+            val lookup = Lookup(document, variables)
+            val key = BatchKey(uri, principal, GraphqlDocumentMerger.operationType(document))
+            val (batch, isNew, isFull) = lock.withLock {
+                val isNew = !pending.containsKey(key)
+                val batch = pending.getOrPut(key) { Batch(key, attributes) }
+
+                batch.lookups.add(lookup)
+                val isFull = batch.lookups.size >= maxSize
+
+                if (isFull) pending.remove(key)
+                Triple(batch, isNew, isFull)
+            }
+
+            if (isFull)
+                dispatch(batch)
+            else if (isNew)
+                Schedulers.parallel().schedule({ flush(batch) }, window.toNanos(), TimeUnit.NANOSECONDS)
+
+            lookup.sink.asMono()
+        }
+
+    private fun flush(batch: Batch) {
+        val isPending = lock.withLock { pending.remove(batch.key, batch) }
+
+        if (isPending) dispatch(batch)    // else it was already dispatched because it was full
+    }
+
+    private fun dispatch(batch: Batch) {
+        val lookups = batch.lookups
+        val tags = listOf(Tag.of("uri", batch.key.uri.path))
+
+        DistributionSummary.builder("acme.graphql.batch.size")
+                           .description("Número de consultas GraphQL enviadas en un solo POST")
+                           .tags(tags)
+                           .register(meterRegistry)
+                           .record(lookups.size.toDouble())
+        if (lookups.size == 1) {
+            sendAlone(batch, lookups.first())
+            return
+        }
+        Counter.builder("acme.graphql.batch.saved")
+               .description("Viajes al servidor GraphQL ahorrados al combinar consultas")
+               .tags(tags)
+               .register(meterRegistry)
+               .increment((lookups.size - 1).toDouble())
+
+        val merged = GraphqlDocumentMerger.merge(lookups.map { GraphqlDocumentMerger.Operation(it.document, it.variables) })
+
+        logger.debug("Se combinaron ${lookups.size} consultas GraphQL en un solo POST a ${batch.key.uri}")
+        send(batch.key.uri, GraphqlRequestBody(merged.text, merged.variables), batch.attributes)
+                .subscribe({ res ->
+                               if (isRejected(res.body)) {
+                                   rejected(batch, res.body)
+                                   return@subscribe
+                               }
+                               lookups.forEachIndexed { i, lookup ->
+                                   lookup.sink.tryEmitValue(ResponseEntity(GraphqlDocumentMerger.split(res.body, merged.aliases[i]),
+                                                                           res.headers, res.statusCode))
+                               }
+                           },
+                           { error -> lookups.forEach { it.sink.tryEmitError(error) } })
+    }
+
+    private fun sendAlone(batch: Batch, lookup: Lookup) {
+        exchange(batch.key.uri, lookup.document, lookup.variables, batch.attributes)
+                .subscribe({ lookup.sink.tryEmitValue(it) }, { lookup.sink.tryEmitError(it) })
+    }
+
+    /**
+     * A response with errors and without data means that the server did not execute any operation
+     */
+    private fun isRejected(body: JsonNode?): Boolean {
+        val data = body?.get("data")
+
+        return (data == null || data.isNull) && body?.get("errors")?.isEmpty == false
+    }
+
+    private fun rejected(batch: Batch, body: JsonNode?) {
+        logger.warn("El servidor ${batch.key.uri} rechazó ${batch.lookups.size} operaciones combinadas, se envían " +
+                    "una por una:" + body?.get("errors"))
+        Counter.builder("acme.graphql.batch.rejected")
+               .description("Documentos GraphQL combinados rechazados por el servidor y enviados uno por uno")
+               .tags(listOf(Tag.of("uri", batch.key.uri.path)))
+               .register(meterRegistry)
+               .increment()
+        batch.lookups.forEach { sendAlone(batch, it) }
+    }
+}
@@ -0,0 +1,252 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GraphqlClient.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.GraphqlRequestBody
+import com.ailegorreta.client.security.utils.HasLogger
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.http.HttpStatus
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction.*
+import org.springframework.stereotype.Service
+import org.springframework.web.context.request.RequestContextHolder
+import org.springframework.web.context.request.ServletRequestAttributes
+import org.springframework.web.reactive.function.client.WebClient
+import org.springframework.web.reactive.function.client.WebClientResponseException
+import reactor.core.publisher.Mono
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Consumer
+
+/**
+ * Client for all GraphQL calls to the back-end microservices (i.e., BUP, Order and Audit).
+ *
+ * The documents are taken from the GraphqlDocumentRegistry so no document is read from the classpath on each
+ * request. When persisted queries are enabled the client follows the Automatic Persisted Queries protocol:
+ *  - First it sends just the SHA-256 hash of the document and its variables.
+ *  - If the server does not know the hash (PersistedQueryNotFound) it sends again the full text and the hash,
+ *    so the server registers it for the next calls.
+ *  - If the server does not support persisted queries at all (PersistedQueryNotSupported, or an HTTP 4xx for
+ *    the request without text, i.e., Spring GraphQL) the endpoint is remembered and from then on we always send
+ *    the full text.
+ *
+ * The lookups and mutations sent with postBatched() are coalesced by the GraphqlBatchLoader, so all the lookups
+ * (or all the mutations) issued within the batch window are sent in just one POST. The reads sent with
+ * postShared() are deduplicated by the SingleFlight, so identical reads in flight at the same time share just
+ * one call.
+ *
+ * The reads sent with postUnattended() do not have a user (i.e., the scheduled refresh of the reference data), so
+ * they are sent by the client_credentials WebClient with the token of the application.
+ *
+ * note: The security attributes (i.e., authentication and servlet request) are read when the call is created,
+ *       not when the Mono is subscribed, so the retry or any later subscription can be done in another thread.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Service
+class GraphqlClient(@Qualifier("authorization_code") val webClient: WebClient,
+                    @Qualifier("client_credentials") private val clientCredentialsWebClient: WebClient,
+                    private val registry: GraphqlDocumentRegistry,
+                    private val serviceConfig: ServiceConfig,
+                    private val mapper: ObjectMapper,
+                    private val singleFlight: SingleFlight,
+                    meterRegistry: MeterRegistry): HasLogger {
+
+    companion object {
+        const val PERSISTED_QUERY_NOT_FOUND = "PersistedQueryNotFound"
+        const val PERSISTED_QUERY_NOT_SUPPORTED = "PersistedQueryNotSupported"
+    }
+
+    private val persistedQueriesNotSupported = ConcurrentHashMap.newKeySet<URI>()
+    private val batchLoader = GraphqlBatchLoader(serviceConfig.graphqlBatchWindow, serviceConfig.graphqlBatchMaxSize,
+                                                 meterRegistry, ::exchange, ::send)
+
+    fun post(uri: URI, document: String, variables: Map<String, Any?>? = null) =
+                    GraphqlResponseSpec(uri, registry.document(document), variables, requestAttributes())
+
+    /**
+     * Same as post() but the lookup (or mutation) is coalesced with the other lookups (or mutations) for the same
+     * uri and user. See CompositeMutation to issue the mutations of a save at the same time.
+     */
+    fun postBatched(uri: URI, document: String, variables: Map<String, Any?>? = null): GraphqlResponseSpec {
+        val graphqlDocument = registry.document(document)
+
+        return GraphqlResponseSpec(uri, graphqlDocument, variables, requestAttributes(),
+                                   principal = SecurityContextHolder.getContext().authentication?.name,
+                                   batched = serviceConfig.graphqlBatch && GraphqlDocumentMerger.isMergeable(graphqlDocument))
+    }
+
+    /**
+     * Same as post() but identical reads in flight at the same time share one call. See SingleFlight for the scope.
+     */
+    fun postShared(uri: URI, document: String, variables: Map<String, Any?>? = null,
+                   scope: SingleFlight.Scope = SingleFlight.Scope.USER) =
+                    GraphqlResponseSpec(uri, registry.document(document), variables, requestAttributes(),
+                                        singleFlightKey = singleFlight.key("$uri#$document", variables, scope))
+
+    /**
+     * Same as postShared() with SHARED scope, for the reads done without a user (i.e., in a scheduled task). It must
+     * be used only for data that is the same for all users.
+     */
+    fun postUnattended(uri: URI, document: String, variables: Map<String, Any?>? = null) =
+                    GraphqlResponseSpec(uri, registry.document(document), variables, unattendedAttributes(),
+                                        singleFlightKey = singleFlight.key("$uri#$document", variables,
+                                                                           SingleFlight.Scope.SHARED),
+                                        unattended = true)
+
+    fun postBpm(uri: URI, document: String, variables: Map<String, Any?>? = null) =
+                    GraphqlResponseSpec(uri, registry.bpmDocument(document), variables, requestAttributes())
+
+    /**
+     * Reads the security attributes from the current thread in order to use them when the Mono is subscribed.
+     */
+    private fun requestAttributes(): Consumer<MutableMap<String, Any>> {
+        val authentication = SecurityContextHolder.getContext().authentication
+        val servletAttributes = RequestContextHolder.getRequestAttributes() as? ServletRequestAttributes
+
+        return Consumer { attributes ->
+            clientRegistrationId(serviceConfig.securityClientId + "-oidc").accept(attributes)
+            if (authentication != null)
+                authentication(authentication).accept(attributes)
+            if (servletAttributes != null) {
+                httpServletRequest(servletAttributes.request).accept(attributes)
+                if (servletAttributes.response != null)
+                    httpServletResponse(servletAttributes.response).accept(attributes)
+            }
+        }
+    }
+
+    /**
+     * The client_credentials registration: the token is of the application, not of a user
+     */
+    private fun unattendedAttributes() = Consumer<MutableMap<String, Any>> { attributes ->
+        clientRegistrationId(serviceConfig.securityClientId + "-client-credentials").accept(attributes)
+    }
+
+    private fun usePersistedQueries(uri: URI) =
+        serviceConfig.persistedQueries && !persistedQueriesNotSupported.contains(uri)
+
+    private fun exchange(spec: GraphqlResponseSpec): Mono<ResponseEntity<JsonNode>> =
+        singleFlight.execute(spec.singleFlightKey) {
+            if (spec.batched)
+                batchLoader.load(spec.uri, spec.principal, spec.document, spec.variables, spec.attributes)
+            else
+                exchange(spec.uri, spec.document, spec.variables, spec.attributes,
+                         if (spec.unattended) clientCredentialsWebClient else webClient)
+        }
+
+    private fun exchange(uri: URI, document: GraphqlDocument, variables: Map<String, Any?>?,
+                         attributes: Consumer<MutableMap<String, Any>>,
+                         client: WebClient = webClient): Mono<ResponseEntity<JsonNode>> {
+        if (!usePersistedQueries(uri))
+            return send(uri, GraphqlRequestBody(document.text, variables), attributes, client)
+
+        return send(uri, GraphqlRequestBody.persisted(document.sha256, variables), attributes, client)
+                .onErrorResume(WebClientResponseException::class.java) { e ->
+                    if (isPersistedQueryRejected(e)) notSupported(uri, document, variables, attributes, client)
+                    else Mono.error(e)
+                }
+                .flatMap { res ->
+                    when (persistedQueryError(res.body)) {
+                        PERSISTED_QUERY_NOT_FOUND ->
+                            send(uri, GraphqlRequestBody(document.text, variables,
+                                                         GraphqlRequestBody.persistedQueryExtension(document.sha256)),
+                                 attributes, client)
+                        PERSISTED_QUERY_NOT_SUPPORTED -> notSupported(uri, document, variables, attributes, client)
+                        else -> Mono.just(res)
+                    }
+                }
+    }
+
+    /**
+     * A server without persisted queries rejects the request without text with a 4xx. The authentication errors
+     * are not taken as not supported, since the full text would be rejected too.
+     */
+    private fun isPersistedQueryRejected(e: WebClientResponseException) =
+        e.statusCode.is4xxClientError &&
+        e.statusCode.value() != HttpStatus.UNAUTHORIZED.value() && e.statusCode.value() != HttpStatus.FORBIDDEN.value()
+
+    private fun notSupported(uri: URI, document: GraphqlDocument, variables: Map<String, Any?>?,
+                             attributes: Consumer<MutableMap<String, Any>>,
+                             client: WebClient): Mono<ResponseEntity<JsonNode>> {
+        logger.warn("El servidor $uri no soporta persisted queries, se envía el documento completo")
+        persistedQueriesNotSupported.add(uri)
+
+        return send(uri, GraphqlRequestBody(document.text, variables), attributes, client)
+    }
+
+    private fun send(uri: URI, body: GraphqlRequestBody, attributes: Consumer<MutableMap<String, Any>>,
+                     client: WebClient = webClient) =
+                        client.post()
+                                 .uri(uri)
+                                 .accept(MediaType.APPLICATION_JSON)
+                                 .bodyValue(body)
+                                 .attributes(attributes)
+                                 .retrieve()
+                                 .toEntity(JsonNode::class.java)
+
+    private fun persistedQueryError(body: JsonNode?): String? {
+        val errors = body?.get("errors") ?: return null
+
+        return errors.firstNotNullOfOrNull { error ->
+            val code = error.path("extensions").path("code").asText("")
+            val message = error.path("message").asText("")
+
+            when {
+                code == "PERSISTED_QUERY_NOT_FOUND" || message == PERSISTED_QUERY_NOT_FOUND -> PERSISTED_QUERY_NOT_FOUND
+                code == "PERSISTED_QUERY_NOT_SUPPORTED" || message == PERSISTED_QUERY_NOT_SUPPORTED ->
+                    PERSISTED_QUERY_NOT_SUPPORTED
+                else -> null
+            }
+        }
+    }
+
+    /**
+     * Same methods names as the WebClient ResponseSpec in order to keep the services code as it was
+     */
+    inner class GraphqlResponseSpec(val uri: URI,
+                                    val document: GraphqlDocument,
+                                    val variables: Map<String, Any?>?,
+                                    val attributes: Consumer<MutableMap<String, Any>>,
+                                    val principal: String? = null,
+                                    val batched: Boolean = false,
+                                    val singleFlightKey: String? = null,
+                                    val unattended: Boolean = false) {
+
+        fun <T> bodyToMono(responseType: Class<T>): Mono<T> = toEntity(responseType).mapNotNull { it.body }
+
+        fun <T> toEntity(responseType: Class<T>): Mono<ResponseEntity<T>> =
+            exchange(this).map { res ->
+                ResponseEntity(if (res.body == null) null else mapper.treeToValue(res.body, responseType),
+                               res.headers, res.statusCode)
+            }
+    }
+}
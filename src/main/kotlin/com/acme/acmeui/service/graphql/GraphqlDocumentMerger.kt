@@ -0,0 +1,219 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GraphqlDocumentMerger.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.ObjectNode
+
+/**
+ * Merges several GraphQL operations of the same type (query or mutation) in just one document, so they can be
+ * sent in one round trip.
+ *
+ * Every operation 'i' is rewritten with the prefix 'b<i>_':
+ *  - Its variables are renamed, i.e., $id -> $b0_id.
+ *  - Its root fields are aliased, i.e., companias(...) -> b0_companias: companias(...).
+ *
+ * After the call, split() builds for each operation the same response that the server would have returned if
+ * the operation was sent alone, so the callers do not know that their operation was merged.
+ *
+ * note: Documents with fragments are not supported and they must be sent alone.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+object GraphqlDocumentMerger {
+    private val OPERATION = Regex("^\\s*(query|mutation)\\s*\\w*\\s*(\\((.*?)\\))?\\s*\\{", RegexOption.DOT_MATCHES_ALL)
+    private val VARIABLE = Regex("\\$(\\w+)")
+
+    data class Operation(val document: GraphqlDocument, val variables: Map<String, Any?>?)
+
+    /**
+     * Result of the merge. 'aliases' has for every operation the map 'alias -> original response key'
+     */
+    data class MergedDocument(val text: String,
+                              val variables: Map<String, Any?>,
+                              val aliases: List<Map<String, String>>)
+
+    private data class ParsedOperation(val type: String, val definitions: String, val selections: String)
+
+    fun prefix(index: Int) = "b${index}_"
+
+    /**
+     * Returns true if the document can be merged with other documents
+     */
+    fun isMergeable(document: GraphqlDocument): Boolean = parse(document.text) != null
+
+    /**
+     * Returns the operation type of the document ('query' or 'mutation'), or null if it cannot be merged
+     */
+    fun operationType(document: GraphqlDocument): String? = parse(document.text)?.type
+
+    fun merge(operations: List<Operation>): MergedDocument {
+        val definitions = mutableListOf<String>()
+        val selections = StringBuilder()
+        val variables = LinkedHashMap<String, Any?>()
+        val aliases = mutableListOf<Map<String, String>>()
+        var type: String? = null
+
+        operations.forEachIndexed { i, operation ->
+            val parsed = parse(operation.document.text)
+                            ?: throw IllegalArgumentException("El documento GraphQL ${operation.document.name} no se puede combinar")
+            val prefix = prefix(i)
+
+            if (type == null) type = parsed.type
+            else if (type != parsed.type)
+                throw IllegalArgumentException("No se pueden combinar documentos query y mutation")
+            if (parsed.definitions.isNotBlank())
+                definitions.add(VARIABLE.replace(parsed.definitions) { "\$$prefix${it.groupValues[1]}" })
+            operation.variables?.forEach { (name, value) -> variables[prefix + name] = value }
+
+            val operationAliases = LinkedHashMap<String, String>()
+
+            selections.append(aliasRootFields(VARIABLE.replace(parsed.selections) { "\$$prefix${it.groupValues[1]}" },
+                                              prefix, operationAliases))
+                      .append('\n')
+            aliases.add(operationAliases)
+        }
+
+        val text = "$type batch" + (if (definitions.isEmpty()) "" else definitions.joinToString(", ", "(", ")")) +
+                   " {\n$selections}"
+
+        return MergedDocument(text, variables, aliases)
+    }
+
+    /**
+     * Builds the response body ('data' and 'errors') of the operation 'index' from the merged response body.
+     * Errors without path (i.e., document errors) are copied to all operations.
+     */
+    fun split(body: JsonNode?, aliases: Map<String, String>): ObjectNode {
+        val result = JsonNodeFactory.instance.objectNode()
+        val data = body?.get("data")
+
+        if (data != null && !data.isNull) {
+            val operationData = result.putObject("data")
+
+            aliases.forEach { (alias, responseKey) -> operationData.set<JsonNode>(responseKey, data.get(alias)) }
+        }
+
+        val errors = body?.get("errors")?.filter { error ->
+            val path = error.get("path")
+
+            path == null || path.isEmpty || aliases.containsKey(path.get(0).asText())
+        }?.map { error ->
+            val path = error.get("path")
+
+            if (path == null || path.isEmpty) error
+            else {
+                val newError = error.deepCopy<ObjectNode>()
+                val newPath = newError.putArray("path")
+
+                newPath.add(aliases[path.get(0).asText()])
+                path.drop(1).forEach { newPath.add(it) }
+                newError
+            }
+        }
+
+        if (!errors.isNullOrEmpty())
+            result.putArray("errors").addAll(errors)
+
+        return result
+    }
+
+    private fun parse(text: String): ParsedOperation? {
+        val document = text.trim()
+
+        if (document.contains("...") || document.contains("fragment ")) return null
+        if (document.startsWith("{"))
+            return ParsedOperation("query", "", document.substring(1, document.lastIndexOf('}')))
+
+        val operation = OPERATION.find(document) ?: return null
+        val end = document.lastIndexOf('}')
+
+        if (end <= operation.range.last) return null
+
+        return ParsedOperation(operation.groupValues[1],
+                               operation.groups[3]?.value ?: "",
+                               document.substring(operation.range.last + 1, end))
+    }
+
+    /**
+     * Adds the prefix to the alias of every root field, or adds an alias if the field does not have one.
+     */
+    private fun aliasRootFields(selections: String, prefix: String, aliases: MutableMap<String, String>): String {
+        val result = StringBuilder()
+        var braces = 0
+        var parenthesis = 0
+        var i = 0
+
+        while (i < selections.length) {
+            val c = selections[i]
+
+            when {
+                c == '{' -> braces++
+                c == '}' -> braces--
+                c == '(' -> parenthesis++
+                c == ')' -> parenthesis--
+                c == '#' -> {                   // comment until the end of line
+                    val end = selections.indexOf('\n', i).let { if (it < 0) selections.length else it }
+
+                    result.append(selections, i, end)
+                    i = end
+                    continue
+                }
+                braces == 0 && parenthesis == 0 && (c.isLetter() || c == '_') &&
+                (i == 0 || !(selections[i - 1].isLetterOrDigit() || selections[i - 1] == '_' || selections[i - 1] == '@')) -> {
+                    var end = i
+
+                    while (end < selections.length && (selections[end].isLetterOrDigit() || selections[end] == '_')) end++
+                    val name = selections.substring(i, end)
+                    var next = end
+
+                    while (next < selections.length && selections[next].isWhitespace()) next++
+                    if (next < selections.length && selections[next] == ':') {
+                        // already has an alias: just add the prefix
+                        aliases[prefix + name] = name
+                        result.append(prefix).append(name)
+                        i = end
+                        // skip the field name so it is not taken as another root field
+                        next++
+                        while (next < selections.length && selections[next].isWhitespace()) next++
+                        while (next < selections.length && (selections[next].isLetterOrDigit() || selections[next] == '_')) next++
+                        result.append(selections, i, next)
+                        i = next
+                    } else {
+                        aliases[prefix + name] = name
+                        result.append(prefix).append(name).append(": ").append(name)
+                        i = end
+                    }
+                    continue
+                }
+            }
+            result.append(c)
+            i++
+        }
+
+        return result.toString()
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GraphqlDocumentRegistry.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.util.GraphqlSchemaReaderUtil
+import com.ailegorreta.client.security.utils.HasLogger
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver
+import org.springframework.stereotype.Component
+import java.security.MessageDigest
+import java.util.HexFormat
+
+/**
+ * Registry of all GraphQL documents stored in the resource directories 'graphql' and 'bpm/graphql'.
+ *
+ * All documents are read and checked once when the application starts, so a malformed document stops the
+ * boot instead of failing the first time a user calls it. For every document we keep its SHA-256 hash that
+ * is used by the GraphqlClient to send Automatic Persisted Queries (APQ).
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class GraphqlDocumentRegistry: HasLogger {
+
+    private val documents = loadDocuments("graphql") { GraphqlSchemaReaderUtil.getSchemaFromFileName(it) }
+    private val bpmDocuments = loadDocuments("bpm/graphql") { GraphqlSchemaReaderUtil.getBpmSchemaFromFileName(it) }
+
+    init {
+        logger.info("Se cargaron ${documents.size} documentos GraphQL y ${bpmDocuments.size} documentos GraphQL BPM")
+    }
+
+    fun document(name: String) = documents[name] ?: throw IllegalArgumentException("No existe el documento GraphQL:$name")
+
+    fun bpmDocument(name: String) = bpmDocuments[name] ?: throw IllegalArgumentException("No existe el documento GraphQL BPM:$name")
+
+    fun size() = documents.size + bpmDocuments.size
+
+    private fun loadDocuments(directory: String, reader: (String) -> String): Map<String, GraphqlDocument> {
+        val resources = PathMatchingResourcePatternResolver().getResources("classpath*:$directory/*.graphql")
+
+        return resources.filter { it.filename != null }
+                        .map { it.filename!!.removeSuffix(".graphql") }
+                        .associateWith { name ->
+                            val text = reader(name)
+                            val errors = validate(text)
+
+                            if (errors.isNotEmpty())
+                                throw IllegalStateException("El documento GraphQL $directory/$name.graphql tiene errores:$errors")
+
+                            GraphqlDocument(name, text)
+                        }
+    }
+
+    companion object {
+        private val OPERATION = Regex("^\\s*(query|mutation|subscription)\\s*\\w*\\s*(\\((.*?)\\))?\\s*\\{", RegexOption.DOT_MATCHES_ALL)
+        private val VARIABLE = Regex("\\$(\\w+)")
+
+        /**
+         * Lightweight check of the document: it does not parse the GraphQL grammar, it just validates the
+         * errors that we had in the past, i.e., unbalanced braces, variables that are used but not declared
+         * and declared variables without '$'
+         */
+        fun validate(text: String): List<String> {
+            val errors = mutableListOf<String>()
+            val document = text.trim()
+
+            if (document.isEmpty()) return listOf("documento vacío")
+            if (document.count { it == '{' } != document.count { it == '}' }) errors.add("llaves no balanceadas")
+            if (document.count { it == '(' } != document.count { it == ')' }) errors.add("paréntesis no balanceados")
+            if (document.startsWith("{")) return errors     // anonymous query without variables
+
+            val operation = OPERATION.find(document) ?: return errors + "no inicia con query, mutation o subscription"
+            val definitions = operation.groups[3]?.value ?: ""
+            val declared = definitions.split(',')
+                                      .map { it.trim() }
+                                      .filter { it.isNotEmpty() }
+                                      .mapNotNull { definition ->
+                                          if (!definition.startsWith("$")) {
+                                              errors.add("variable sin '$':$definition")
+                                              null
+                                          } else
+                                              definition.substring(1).substringBefore(':').trim()
+                                      }.toSet()
+            val used = VARIABLE.findAll(document.substring(operation.range.last)).map { it.groupValues[1] }.toSet()
+
+            (used - declared).forEach { errors.add("variable no declarada:\$$it") }
+
+            return errors
+        }
+    }
+}
+
+/**
+ * A GraphQL document, its text and the SHA-256 hash used for persisted queries
+ */
+data class GraphqlDocument(val name: String,
+                           val text: String) {
+    val sha256: String = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+                                                               .digest(text.toByteArray(Charsets.UTF_8)))
+}
@@ -0,0 +1,95 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SecurityCoroutineContext.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ThreadContextElement
+import kotlinx.coroutines.channels.ProducerScope
+import kotlinx.coroutines.reactor.flux
+import kotlinx.coroutines.reactor.mono
+import org.springframework.security.core.context.SecurityContext
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.web.context.request.RequestAttributes
+import org.springframework.web.context.request.RequestContextHolder
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import kotlin.coroutines.AbstractCoroutineContextElement
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Coroutine context element that keeps the Spring Security context and the servlet request attributes of the
+ * thread that created the coroutine.
+ *
+ * When a coroutine is resumed in a WebClient (netty) thread the element sets again the SecurityContextHolder and
+ * the RequestContextHolder, so the services can keep reading the user name for the events and the GraphqlClient
+ * can keep sending the OAuth2 token of the user.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class SecurityCoroutineContext(private val securityContext: SecurityContext = SecurityContextHolder.getContext(),
+                               private val requestAttributes: RequestAttributes? = RequestContextHolder.getRequestAttributes()):
+        ThreadContextElement<SecurityCoroutineContext.State>, AbstractCoroutineContextElement(Key) {
+
+    companion object Key : CoroutineContext.Key<SecurityCoroutineContext>
+
+    data class State(val securityContext: SecurityContext, val requestAttributes: RequestAttributes?)
+
+    override fun updateThreadContext(context: CoroutineContext): State {
+        val oldState = State(SecurityContextHolder.getContext(), RequestContextHolder.getRequestAttributes())
+
+        SecurityContextHolder.setContext(securityContext)
+        RequestContextHolder.setRequestAttributes(requestAttributes)
+
+        return oldState
+    }
+
+    override fun restoreThreadContext(context: CoroutineContext, oldState: State) {
+        SecurityContextHolder.setContext(oldState.securityContext)
+        RequestContextHolder.setRequestAttributes(oldState.requestAttributes)
+    }
+}
+
+/**
+ * Creates a Mono from a suspend block keeping the security context of the caller thread.
+ *
+ * The block starts in the thread that subscribes (i.e., no thread pool hop) and after every suspension point it
+ * continues in the thread that completed the WebClient call, so no thread is waiting for the network I/O.
+ * An empty Mono is returned when the block returns null.
+ *
+ * note: The security context is read when this function is called, so the Mono must be created in the caller
+ *       thread (or inside another securedMono block) and not inside a Reactor operator like flatMap.
+ */
+fun <T> securedMono(block: suspend CoroutineScope.() -> T?): Mono<T> =
+        mono(Dispatchers.Unconfined + SecurityCoroutineContext(), block)
+
+/**
+ * Creates a Flux from a suspend producer keeping the security context of the caller thread (see securedMono).
+ *
+ * 'send' suspends until the subscriber requests more elements, so the producer reads from the microservices
+ * just as fast as the subscriber consumes (backpressure). If the subscriber cancels, the producer is cancelled.
+ */
+fun <T> securedFlux(block: suspend ProducerScope<T>.() -> Unit): Flux<T> =
+        flux(Dispatchers.Unconfined + SecurityCoroutineContext(), block)
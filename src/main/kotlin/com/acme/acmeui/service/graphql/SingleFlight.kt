@@ -0,0 +1,129 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SingleFlight.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.config.ServiceConfig
+import com.ailegorreta.client.security.utils.HasLogger
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.stereotype.Component
+import reactor.core.publisher.Mono
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Single-flight deduplication of the identical reads that are in flight at the same time.
+ *
+ * The first caller for a key (the leader) executes the call and all the callers that arrive before the call
+ * ends join it and receive the same result (or the same error). When the call ends the key is removed, so the
+ * next caller executes a new call; i.e., nothing is cached after the call ends.
+ *
+ * The key is the operation name plus the variables normalized (sorted by name and without null values) plus
+ * the scope:
+ *  - USER: the key includes the user name, so the data of one user is never shared with another user. Calls
+ *    without an authenticated user are not deduplicated.
+ *  - SHARED: the result is shared among all users. It must be used only for reference data that is the same
+ *    for everybody (i.e., sectors, states, document types) because the call is done with the token of the leader.
+ *
+ * Metrics:
+ *  - acme.graphql.single-flight.executed: calls sent to the server.
+ *  - acme.graphql.single-flight.joined: calls that joined another call in flight (i.e., round trips saved).
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class SingleFlight(private val serviceConfig: ServiceConfig,
+                   mapper: ObjectMapper,
+                   meterRegistry: MeterRegistry): HasLogger {
+
+    enum class Scope { USER, SHARED }
+
+    companion object {
+        const val SHARED_PRINCIPAL = "*"
+    }
+
+    private val inFlight = ConcurrentHashMap<String, Mono<*>>()
+    private val writer = mapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS)
+    private val executed = Counter.builder("acme.graphql.single-flight.executed")
+                                  .description("Lecturas enviadas al servidor por single-flight")
+                                  .register(meterRegistry)
+    private val joined = Counter.builder("acme.graphql.single-flight.joined")
+                                .description("Lecturas que se unieron a otra lectura idéntica en curso")
+                                .register(meterRegistry)
+
+    /**
+     * Builds the key for the operation. It must be called in the caller thread because it reads the user name
+     * from the security context. Returns null if the call must not be deduplicated.
+     */
+    fun key(operation: String, variables: Map<String, Any?>? = null, scope: Scope = Scope.USER): String? {
+        if (!serviceConfig.graphqlSingleFlight) return null
+
+        val principal = when (scope) {
+            Scope.SHARED -> SHARED_PRINCIPAL
+            Scope.USER -> SecurityContextHolder.getContext().authentication?.name ?: return null
+        }
+        val normalized = variables?.filterValues { it != null }?.toSortedMap() ?: emptyMap()
+
+        return "$principal|$operation|${writer.writeValueAsString(normalized)}"
+    }
+
+    /**
+     * Executes the call or joins the call in flight with the same key. If the key is null the call is always
+     * executed.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> execute(key: String?, call: () -> Mono<T>): Mono<T> {
+        if (key == null) return call()
+
+        return Mono.defer {
+            var isLeader = false
+            val flight = inFlight.computeIfAbsent(key) {
+                isLeader = true
+                newFlight(key, call)
+            } as Mono<T>
+
+            if (isLeader) executed.increment()
+            else {
+                joined.increment()
+                logger.debug("Lectura unida a otra idéntica en curso: $key")
+            }
+            flight
+        }
+    }
+
+    /**
+     * note: The call keeps running even if the leader cancels, because other callers may be waiting for it.
+     */
+    private fun <T> newFlight(key: String, call: () -> Mono<T>): Mono<T> {
+        lateinit var flight: Mono<T>
+
+        flight = call().doFinally { inFlight.remove(key, flight) }
+                       .cache()
+
+        return flight
+    }
+}
@@ -44,6 +44,7 @@ import com.vaadin.flow.component.orderedlayout.VerticalLayout
 import com.vaadin.flow.component.radiobutton.RadioGroupVariant
 import com.vaadin.flow.component.textfield.TextField
 import com.vaadin.flow.component.upload.receivers.MultiFileMemoryBuffer
+import com.vaadin.flow.data.provider.CallbackDataProvider
 import com.vaadin.flow.router.PageTitle
 import com.vaadin.flow.router.Route
 import org.springframework.security.core.context.SecurityContextHolder
@@ -167,7 +168,17 @@ class DocumentReception(private val expedienteService: ExpedienteService,
                     }
                     selectedContainer = verticalLayout {}
                     tipoDocumento = comboBox<DocumentType>("Tipo de documento") {
-                        setItems(cacheService.allDocumentTypes())
+                        // the document types kept in memory by the CacheService (refreshed by its timer), so
+                        // opening the list never waits for the cache microservice
+                        setItems(CallbackDataProvider.FetchCallback<DocumentType, String> { query ->
+                            val filter = query.filter.orElse("").lowercase()
+
+                            cacheService.allDocumentTypes()
+                                        .filter { it.name.lowercase().contains(filter) }
+                                        .stream()
+                                        .skip(query.offset.toLong())
+                                        .limit(query.limit.toLong())
+                        })
                         setItemLabelGenerator { it.name }
                         addValueChangeListener { checkEnableReceptionDocument() }
                     }
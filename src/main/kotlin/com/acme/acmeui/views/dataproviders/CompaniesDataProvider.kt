@@ -22,33 +22,79 @@
  */
 package com.acme.acmeui.views.dataproviders
 
-import com.acme.acmeui.data.dto.Compania
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.CompaniaResumen
+import com.acme.acmeui.data.dto.GridQuery
 import com.acme.acmeui.data.service.CompaniaService
+import io.micrometer.core.instrument.MeterRegistry
 import org.springframework.data.domain.Page
 import org.springframework.stereotype.Component
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
 
 /**
- * DataProvider for Companies in class. It just coordinates to call count() just the first time
+ * DataProvider for Companies in class. The pages, their totals, the read-ahead of the next page and the keyset
+ * pagination are in the PageCache (shared with the PersonsDataProvider).
+ *
+ * The pages already read are kept in the PageCache until a company is saved (just the pages where it is, see
+ * invalidate) or a company is added or deleted, or a sector (its name is in the summary) is saved (see
+ * invalidateAll).
+ *
+ * The grid filter and sort (see GridQuery) are done by the BUP, and they are part of the key of the cached pages.
+ *
+ * The grid receives just the summary of every company (see CompaniaResumen).
+ *
+ * The pages are read with keyset pagination: every page returns the cursor of the next one and, when the client
+ * sends it, the page is read after the cursor instead of skipping page * size rows. Without a cursor (i.e., the
+ * first page or a jump in the grid scroll) the page is read with skip.
  *
  * @project: acme-ui
  * @author: rlh
  * @date: November 2023
  */
 @Component
-class CompaniesDataProvider(private val service: CompaniaService) {
+class CompaniesDataProvider(private val service: CompaniaService,
+                            private val stream: PageStream,
+                            serviceConfig: ServiceConfig,
+                            meterRegistry: MeterRegistry) {
+
+    private val reader = PageCache.Reader<CompaniaResumen>(service::allCompaniesSummaryAsync)
+    private val pages = PageCache("companies", CompaniaService.GRID, service::isCounted, reader,
+                                  serviceConfig, meterRegistry)
 
-    private var totalElements = 0L
+    fun allCompanies(query: GridQuery, page: Int, size: Int, cursor: String?): Page<CompaniaResumen>? =
+        allCompaniesAsync(query, page, size, cursor).block()
 
-    fun allCompanies(nombre: String?, page: Int, size: Int): Page<Compania>? {
-        val companiesPage = service.allCompanies(nombre, page, size)
+    fun allCompaniesAsync(query: GridQuery, page: Int, size: Int, cursor: String?): Mono<Page<CompaniaResumen>> =
+        pages.get(query, page, size, cursor)
 
-        if (page == 0 && companiesPage != null)
-            totalElements = service.count(nombre)
+    /**
+     * All the companies of the query in chunks (see PageStream)
+     */
+    fun streamCompanies(query: GridQuery, chunkSize: Int, maxRows: Int): Flux<List<CompaniaResumen>> =
+        stream.chunks(query, chunkSize, maxRows, CompaniaService.GRID, reader)
 
-        return companiesPage
+    /**
+     * Must be called when an existing company is saved. Its name is also in the rows of the companies where it is
+     * the first subsidiary or provider, so they are dropped too, by the name it had in the cache and the saved
+     * one. Returns those names, because they are in the persons grid too (see PersonsDataProvider.invalidateCompany).
+     */
+    fun invalidate(id: String, nombre: String?): Set<String> {
+        val names = pages.rows { it._id == id }.map { it.nombre }.toSet() + listOfNotNull(nombre)
+
+        pages.invalidate { it._id == id || it.subsidiaria in names || it.proveedor in names }
+
+        return names
     }
 
-    fun getTotalElements() = totalElements
+    /**
+     * Must be called when a company is added or deleted, or a sector is saved
+     */
+    fun invalidateAll() = pages.invalidateAll()
+
+    fun nextCursor(companiesPage: Page<CompaniaResumen>, query: GridQuery) = pages.nextCursor(companiesPage, query)
 
     fun count(nombre: String) = service.count(nombre)
-}
\ No newline at end of file
+
+    fun countAsync(nombre: String) = service.countAsync(nombre)
+}
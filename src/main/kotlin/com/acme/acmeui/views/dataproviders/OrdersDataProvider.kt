@@ -22,33 +22,62 @@
  */
 package com.acme.acmeui.views.dataproviders
 
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.KeysetCursor
 import com.acme.acmeui.data.dto.Order
 import com.acme.acmeui.data.service.OrderService
+import io.micrometer.core.instrument.MeterRegistry
+import kotlinx.coroutines.reactor.awaitSingleOrNull
 import org.springframework.data.domain.Page
 import org.springframework.stereotype.Component
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
 
 /**
- * DataProvider for Orders in class. It just coordinates tto call count() just the first time
+ * DataProvider for Orders in class. The page and its total are read in just one call, and the total is kept
+ * for every user (see PageTotals).
+ *
+ * The pages are read with keyset pagination when the client sends the cursor of the page (see
+ * CompaniesDataProvider).
  *
  * @project: acme-ui
  * @author: rlh
  * @date: November 2023
  */
 @Component
-class OrdersDataProvider(private val service: OrderService) {
+class OrdersDataProvider(private val service: OrderService,
+                         private val stream: PageStream,
+                         serviceConfig: ServiceConfig,
+                         meterRegistry: MeterRegistry) {
 
-    private var totalElements = 0L
+    private val totals = PageTotals("orders", serviceConfig.gridTotalsTtl, serviceConfig.gridTotalsMaxSize,
+                                    meterRegistry)
 
-    fun allOrders(page: Int, size: Int): Page<Order>? {
-        val ordersPage = service.allOrders(page, size)
+    fun allOrders(page: Int, size: Int, cursor: String?): Page<Order>? = allOrdersAsync(page, size, cursor).block()
 
-        if (page == 0 && ordersPage != null)
-            totalElements = service.count()
+    fun allOrdersAsync(page: Int, size: Int, cursor: String?): Mono<Page<Order>> {
+        val key = totals.key()
+        val total = totals.get(key)
 
-        return ordersPage
+        return service.allOrdersAsync(page, size, cursor?.let { KeysetCursor.decode(it) }, total)
+                      .doOnNext { ordersPage -> if (total == null) totals.put(key, ordersPage.totalElements) }
     }
 
-    fun getTotalElements() = totalElements
+    /**
+     * All the orders in chunks (see PageStream)
+     */
+    fun streamOrders(chunkSize: Int, maxRows: Int): Flux<List<Order>> =
+        stream.chunks(chunkSize, maxRows,
+                      { page, size, cursor ->
+                          service.allOrdersAsync(page, size, cursor?.let { KeysetCursor.decode(it) }, PageStream.WITHOUT_TOTAL)
+                                 .awaitSingleOrNull()
+                      },
+                      { ordersPage -> nextCursor(ordersPage) })
+
+    fun nextCursor(ordersPage: Page<Order>) =
+        KeysetCursor.next(ordersPage.content, ordersPage.size) { Pair(it.fechaOperacion, it._id) }
 
     fun count() = service.count()
+
+    fun countAsync() = service.countAsync()
 }
@@ -0,0 +1,179 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PageCache.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.views.dataproviders
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.GridQuery
+import com.acme.acmeui.data.dto.KeysetCursor
+import com.acme.acmeui.data.service.GridQueryDescriptor
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics
+import org.springframework.data.domain.Page
+import org.springframework.security.core.context.SecurityContextHolder
+import reactor.core.publisher.Mono
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Cache of the grid pages already read, so scrolling back and forth does not read the same page again. It has
+ * the logic shared by the grids of the BUP entities (see CompaniesDataProvider and PersonsDataProvider):
+ *  - The page and its total are read in just one call, and the total is kept for every filter and user (see
+ *    PageTotals). An estimated total (see GridQueryDescriptor.estimatedTotal) is not kept.
+ *  - After every page is read, the next page is read in background (see PagePrefetcher).
+ *  - The pages are read with keyset pagination when the client sends the cursor of the page, otherwise with
+ *    skip (see GridQueryDescriptor).
+ *
+ * The key is the filter and sort, the page number or cursor, the page size and the user. The cache is LRU with a
+ * TTL and its size is limited by the number of rows of all its pages (not the number of pages).
+ *
+ * When an existing row is saved just the pages where it is are dropped (see invalidate), plus the totals of the
+ * filtered queries because the row may match the filter now (or not anymore). A row whose sort field changed
+ * moves to its new page when that page expires. When rows are added or deleted every page and total is
+ * dropped (see invalidateAll). A page that was being read while the cache was invalidated is not stored,
+ * because it may have the old data.
+ *
+ * Metrics (actuator):
+ *  - cache.* metrics with the tag cache=grid-pages-<name> (i.e., hits, misses, evictions, size).
+ *  - acme.grid.page-cache.rows: rows in the cache, as an estimate of its memory footprint.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class PageCache<T>(name: String,
+                   private val grid: GridQueryDescriptor<T>,
+                   private val isCounted: (GridQuery) -> Boolean,
+                   private val reader: Reader<T>,
+                   serviceConfig: ServiceConfig,
+                   meterRegistry: MeterRegistry) {
+
+    /**
+     * Reads a page of the BUP, with its total if the given total is null
+     */
+    fun interface Reader<T> {
+        fun read(query: GridQuery, page: Int, size: Int, cursor: KeysetCursor?, total: Long?): Mono<Page<T>>
+    }
+
+    data class Key(val filter: List<Any?>, val page: Int, val cursor: String?, val size: Int, val principal: String?)
+
+    private val generation = AtomicLong()
+    private val pages: Cache<Key, Page<T>> = Caffeine.newBuilder()
+                                                     .expireAfterWrite(serviceConfig.gridPagesTtl)
+                                                     .maximumWeight(serviceConfig.gridPagesMaxRows)
+                                                     .weigher { _: Key, page: Page<T> -> maxOf(1, page.numberOfElements) }
+                                                     .recordStats()
+                                                     .build()
+    private val totals = PageTotals(name, serviceConfig.gridTotalsTtl, serviceConfig.gridTotalsMaxSize, meterRegistry)
+    private val prefetcher = PagePrefetcher<T>(name, serviceConfig, meterRegistry)
+
+    init {
+        CaffeineCacheMetrics.monitor(meterRegistry, pages, "grid-pages-$name")
+        Gauge.builder("acme.grid.page-cache.rows", pages) { it.policy().eviction().map { e -> e.weightedSize().orElse(0L) }.orElse(0L).toDouble() }
+             .description("Renglones guardados en el cache de páginas de los grids")
+             .tag("cache", "grid-pages-$name")
+             .register(meterRegistry)
+    }
+
+    /**
+     * Page of the grid query from the cache, the prefetch buffer or the BUP. Must be called in the caller thread
+     * because it reads the user from the security context.
+     */
+    fun get(query: GridQuery, page: Int, size: Int, cursor: String?): Mono<Page<T>> {
+        val key = key(page, cursor, size, query)
+        val prefetchNext = prefetcher.prefetchNext({ readPage ->
+                                                       nextCursor(readPage, query)?.let { key(page + 1, it, size, query) }
+                                                           ?.takeUnless { contains(it) }
+                                                   },
+                                                   { next -> read(query, next.page, size, next.cursor) })
+
+        return get(key) {
+            val read = read(query, page, size, cursor)
+
+            prefetcher.take(key)?.switchIfEmpty(read) ?: read
+        }.doOnNext(prefetchNext)
+    }
+
+    fun nextCursor(page: Page<T>, query: GridQuery) = grid.nextCursor(page.content, page.size, query)
+
+    /**
+     * Existing rows changed, i.e., the saved row or the rows that show its name: the pages where they are are
+     * dropped, and the totals of the filtered queries. The unfiltered total does not change.
+     */
+    fun invalidate(matches: (T) -> Boolean) {
+        generation.incrementAndGet()
+        pages.asMap().values.removeIf { page -> page.content.any(matches) }
+        prefetcher.invalidateAll()              // the prefetched pages can still be being read
+        totals.invalidateFiltered()
+    }
+
+    /**
+     * Rows were added or deleted (or a related entity whose name is in many rows was saved)
+     */
+    fun invalidateAll() {
+        generation.incrementAndGet()
+        pages.invalidateAll()
+        prefetcher.invalidateAll()
+        totals.invalidateAll()
+    }
+
+    /**
+     * The rows in the cache that match, i.e., to know the name that a row had before it was saved
+     */
+    fun rows(matches: (T) -> Boolean): List<T> = pages.asMap().values.flatMap { page -> page.content.filter(matches) }
+
+    private fun key(page: Int, cursor: String?, size: Int, vararg filter: Any?) =
+        Key(filter.toList(), page, cursor, size, SecurityContextHolder.getContext().authentication?.name)
+
+    /**
+     * Returns the page from the cache or reads it with the loader. The loader is called in the caller thread.
+     */
+    private fun get(key: Key, loader: () -> Mono<Page<T>>): Mono<Page<T>> {
+        val cached = pages.getIfPresent(key)
+
+        if (cached != null) return Mono.just(cached)
+
+        val readGeneration = generation.get()
+
+        return loader().doOnNext { page ->
+            if (generation.get() == readGeneration) {
+                pages.put(key, page)
+                if (generation.get() != readGeneration) pages.invalidate(key)   // invalidated while it was stored
+            }
+        }
+    }
+
+    private fun contains(key: Key) = pages.getIfPresent(key) != null
+
+    private fun read(query: GridQuery, page: Int, size: Int, cursor: String?): Mono<Page<T>> {
+        val key = totals.key(query.filters)         // the total does not depend on the sort
+        val total = totals.get(key)
+
+        return reader.read(query, page, size, cursor?.let { KeysetCursor.decode(it) }, total)
+                     .doOnNext { readPage ->
+                         if (total == null && GridQueryDescriptor.isExactTotal(isCounted(query), readPage.content, size))
+                             totals.put(key, readPage.totalElements)
+                     }
+    }
+}
@@ -0,0 +1,177 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PagePrefetcher.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.views.dataproviders
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.service.graphql.SecurityCoroutineContext
+import com.ailegorreta.client.security.utils.HasLogger
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import com.github.benmanes.caffeine.cache.RemovalCause
+import com.github.benmanes.caffeine.cache.Scheduler
+import io.micrometer.core.instrument.Counter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import org.springframework.data.domain.Page
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.coroutines.EmptyCoroutineContext
+
+/**
+ * Read-ahead of the grid pages: after a page is read, the next page is read in background and kept in a short
+ * lived buffer, so when the user scrolls to it the page is already read (or being read).
+ *
+ * The buffer key is the PageCache key (filter, page, cursor, size and user) of the next page, so it is per user
+ * and it is found by the same key that the grid sends for that page. A prefetched page that is not used within
+ * the TTL is discarded and counted as a miss.
+ *
+ * The prefetch is adaptive: the hit rate and the read latency are averaged (EWMA) and if, after a minimum number
+ * of samples, the hit rate is lower or the latency is higher than the configured limits, the prefetch is turned
+ * off during the cooldown, so the BUP load does not grow for pages that nobody reads.
+ *
+ * Metrics (actuator), with the tag grid=<name>:
+ *  - acme.grid.prefetch.hits and acme.grid.prefetch.misses: prefetched pages used and discarded.
+ *  - acme.grid.prefetch.enabled: 1 if the prefetch is on.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class PagePrefetcher<T>(private val name: String,
+                        private val serviceConfig: ServiceConfig,
+                        meterRegistry: MeterRegistry): HasLogger {
+    companion object {
+        const val ALPHA = 0.1           // weight of the last sample in the EWMA
+        const val MIN_SAMPLES = 20      // samples before the prefetch can be turned off
+    }
+
+    private val buffer: Cache<PageCache.Key, Mono<Page<T>>> = Caffeine.newBuilder()
+                                                                       .expireAfterWrite(serviceConfig.gridPrefetchTtl)
+                                                                       .maximumSize(serviceConfig.gridPrefetchMaxSize)
+                                                                       .scheduler(Scheduler.systemScheduler())
+                                                                       .removalListener { _: PageCache.Key?, _: Mono<Page<T>>?, cause ->
+                                                                           if (cause == RemovalCause.EXPIRED || cause == RemovalCause.SIZE)
+                                                                               sample(hit = false)
+                                                                       }
+                                                                       .build()
+    private val hits = Counter.builder("acme.grid.prefetch.hits")
+                              .description("Páginas leídas por adelantado que el usuario sí consultó")
+                              .tag("grid", name)
+                              .register(meterRegistry)
+    private val misses = Counter.builder("acme.grid.prefetch.misses")
+                                .description("Páginas leídas por adelantado que se descartaron sin usarse")
+                                .tag("grid", name)
+                                .register(meterRegistry)
+
+    private val lock = ReentrantLock()
+    private var hitRate = 1.0
+    private var latencyMillis = 0.0
+    private var samples = 0
+    private var disabledUntil = 0L
+
+    init {
+        Gauge.builder("acme.grid.prefetch.enabled", this) { if (it.isEnabled()) 1.0 else 0.0 }
+             .description("1 si la lectura por adelantado de páginas está activa")
+             .tag("grid", name)
+             .register(meterRegistry)
+    }
+
+    fun isEnabled() = serviceConfig.gridPrefetch && lock.withLock { System.nanoTime() - disabledUntil >= 0 }
+
+    /**
+     * Returns the prefetched page (it can still be being read) and removes it from the buffer, or null if the
+     * page was not prefetched.
+     */
+    fun take(key: PageCache.Key): Mono<Page<T>>? {
+        val page = buffer.asMap().remove(key) ?: return null
+
+        sample(hit = true)
+        return page
+    }
+
+    /**
+     * Must be called in the caller thread, because the security context is read in order to read the next page
+     * with the same user. Returns the function that reads in background the next page of the page that was read.
+     *
+     * @param nextKey the buffer key of the next page, or null if it is the last page
+     * @param loader  reads the page of the key
+     */
+    fun prefetchNext(nextKey: (Page<T>) -> PageCache.Key?, loader: (PageCache.Key) -> Mono<Page<T>>): (Page<T>) -> Unit {
+        if (!isEnabled()) return { }
+
+        val context = SecurityCoroutineContext()
+
+        return { page ->
+            val state = context.updateThreadContext(EmptyCoroutineContext)
+
+            try {
+                nextKey(page)?.let { key -> prefetch(key, loader) }
+            } finally {
+                context.restoreThreadContext(EmptyCoroutineContext, state)
+            }
+        }
+    }
+
+    fun invalidateAll() = buffer.invalidateAll()
+
+    private fun prefetch(key: PageCache.Key, loader: (PageCache.Key) -> Mono<Page<T>>) {
+        if (buffer.getIfPresent(key) != null) return
+
+        val start = System.nanoTime()
+        val page = loader(key).doOnNext { sample(latency = Duration.ofNanos(System.nanoTime() - start)) }
+                              .doOnError { e ->
+                                  logger.warn("Error al leer por adelantado la página ${key.page} del grid $name:${e.message}")
+                                  buffer.asMap().remove(key)
+                              }
+                              .onErrorResume { Mono.empty() }
+                              .cache()
+
+        buffer.put(key, page)
+        page.subscribe()
+    }
+
+    private fun sample(hit: Boolean? = null, latency: Duration? = null) {
+        if (hit == true) hits.increment()
+        if (hit == false) misses.increment()
+        lock.withLock {
+            if (hit != null) {
+                hitRate += ALPHA * ((if (hit) 1.0 else 0.0) - hitRate)
+                samples++
+            }
+            if (latency != null)
+                latencyMillis += ALPHA * (latency.toMillis() - latencyMillis)
+            if (samples >= MIN_SAMPLES &&
+                (hitRate < serviceConfig.gridPrefetchMinHitRate ||
+                 latencyMillis > serviceConfig.gridPrefetchMaxLatency.toMillis())) {
+                logger.info("Se desactiva la lectura por adelantado del grid $name por ${serviceConfig.gridPrefetchCooldown}: " +
+                            "aciertos ${"%.2f".format(hitRate)}, latencia ${latencyMillis.toLong()}ms")
+                disabledUntil = System.nanoTime() + serviceConfig.gridPrefetchCooldown.toNanos()
+                hitRate = 1.0           // after the cooldown the prefetch is tried again from scratch
+                latencyMillis = 0.0
+                samples = 0
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PageStream.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.views.dataproviders
+
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.GridQuery
+import com.acme.acmeui.data.dto.KeysetCursor
+import com.acme.acmeui.data.service.GridQueryDescriptor
+import com.acme.acmeui.service.graphql.securedFlux
+import com.ailegorreta.client.security.utils.HasLogger
+import kotlinx.coroutines.reactor.awaitSingleOrNull
+import org.springframework.data.domain.Page
+import org.springframework.stereotype.Component
+import reactor.core.publisher.Flux
+
+/**
+ * Streams all the rows of a grid in chunks, for the exports and the long scrolls, instead of one request per
+ * page.
+ *
+ * Every chunk is a page read from the microservice with the keyset cursor of the previous one (or with skip if
+ * there is no cursor). The next page is read only when the subscriber has requested it, so the client drives the
+ * reading: it receives the first rows while the rest are still being read, and if it cancels the subscription no
+ * more pages are read.
+ *
+ * The pages are not kept in the PageCache and the total is not read.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+@Component
+class PageStream(private val serviceConfig: ServiceConfig): HasLogger {
+    companion object {
+        const val CHUNKS_AHEAD = 2              // chunks read before the subscriber receives them
+        const val WITHOUT_TOTAL = 0L            // passed as the known total, so the services do not count the rows
+    }
+
+    /**
+     * All the rows of a grid query of a BUP entity, read with the same reader of its PageCache
+     */
+    fun <T> chunks(query: GridQuery, chunkSize: Int, maxRows: Int,
+                   grid: GridQueryDescriptor<T>, reader: PageCache.Reader<T>): Flux<List<T>> =
+        chunks(chunkSize, maxRows,
+               { page, size, cursor ->
+                   reader.read(query, page, size, cursor?.let { KeysetCursor.decode(it) }, WITHOUT_TOTAL).awaitSingleOrNull()
+               },
+               { chunk -> grid.nextCursor(chunk.content, chunk.size, query) })
+
+    /**
+     * @param chunkSize  rows of every chunk, limited by 'microservice.grid.stream.max-chunk-size'
+     * @param maxRows    maximum rows to stream, zero or negative for the 'microservice.grid.stream.max-rows'
+     * @param read       reads a page with its number, size and cursor, null if there was an error
+     * @param nextCursor cursor of the page after the given one
+     */
+    fun <T> chunks(chunkSize: Int, maxRows: Int,
+                   read: suspend (page: Int, size: Int, cursor: String?) -> Page<T>?,
+                   nextCursor: (Page<T>) -> String?): Flux<List<T>> {
+        val size = chunkSize.coerceIn(1, serviceConfig.gridStreamMaxChunkSize)
+        val limit = if (maxRows <= 0) serviceConfig.gridStreamMaxRows else minOf(maxRows, serviceConfig.gridStreamMaxRows)
+
+        return securedFlux<List<T>> {
+            var page = 0
+            var cursor: String? = null
+            var rows = 0
+
+            while (rows < limit) {
+                val chunk = read(page, size, cursor) ?: throw IllegalStateException("Error al leer la página $page del stream")
+                val content = chunk.content.take(limit - rows)
+
+                if (content.isNotEmpty()) send(content)
+                rows += content.size
+                if (chunk.content.size < size) break
+                cursor = nextCursor(chunk)      // null: the next page is read with skip
+                page++
+            }
+            logger.debug("Stream terminado con $rows renglones")
+        }.limitRate(CHUNKS_AHEAD)
+    }
+}
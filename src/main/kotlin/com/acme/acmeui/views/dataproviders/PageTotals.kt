@@ -0,0 +1,75 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PageTotals.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.views.dataproviders
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics
+import org.springframework.security.core.context.SecurityContextHolder
+import java.time.Duration
+
+/**
+ * Total number of rows for every grid filter and user.
+ *
+ * The total is read in the same document as the page when it is not here (or it expired), so it always belongs
+ * to the filter of the page. It is per user because the data that every user can read may be different.
+ *
+ * The cache is exposed in the actuator with the cache.* metrics and the tag cache=grid-totals-<name>.
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class PageTotals(name: String, ttl: Duration, maxSize: Long, meterRegistry: MeterRegistry) {
+
+    data class Key(val filter: List<Any?>, val principal: String?)
+
+    private val totals: Cache<Key, Long> = Caffeine.newBuilder()
+                                                   .expireAfterWrite(ttl)
+                                                   .maximumSize(maxSize)
+                                                   .recordStats()
+                                                   .build()
+
+    init {
+        CaffeineCacheMetrics.monitor(meterRegistry, totals, "grid-totals-$name")
+    }
+
+    /**
+     * Must be called in the caller thread because it reads the user from the security context.
+     */
+    fun key(vararg filter: Any?) = Key(filter.toList(), SecurityContextHolder.getContext().authentication?.name)
+
+    fun get(key: Key): Long? = totals.getIfPresent(key)
+
+    fun put(key: Key, total: Long) = totals.put(key, total)
+
+    fun invalidateAll() = totals.invalidateAll()
+
+    /**
+     * Drops the totals of the filtered queries, i.e., when a row is updated it may match the filter now
+     */
+    fun invalidateFiltered() = totals.asMap().keys.removeIf { key ->
+        key.filter.any { it != null && (it !is Map<*, *> || it.isNotEmpty()) }
+    }
+}
@@ -22,33 +22,73 @@
  */
 package com.acme.acmeui.views.dataproviders
 
-import com.acme.acmeui.data.dto.Persona
+import com.acme.acmeui.config.ServiceConfig
+import com.acme.acmeui.data.dto.GridQuery
+import com.acme.acmeui.data.dto.PersonaResumen
 import com.acme.acmeui.data.service.PersonaService
+import io.micrometer.core.instrument.MeterRegistry
 import org.springframework.data.domain.Page
 import org.springframework.stereotype.Component
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
 
 /**
- * DataProvider for Persons in class. It just coordinates to call count() just the first time
+ * DataProvider for Persons in class. The pages, their totals, the read-ahead of the next page and the keyset
+ * pagination are in the PageCache (see CompaniesDataProvider).
+ *
+ * The pages already read are kept in the PageCache until a person is saved (just the pages where it is, see
+ * invalidate), a company where the persons work is saved (see invalidateCompany) or a person is added or
+ * deleted (see invalidateAll).
+ *
+ * The grid filter and sort (see GridQuery) are done by the BUP, and they are part of the key of the cached pages.
+ *
+ * The grid receives just the summary of every person (see PersonaResumen).
  *
  * @project: acme-ui
  * @author: rlh
  * @date: November 2023
  */
 @Component
-class PersonsDataProvider constructor (private val service: PersonaService) {
+class PersonsDataProvider constructor (private val service: PersonaService,
+                                       private val stream: PageStream,
+                                       serviceConfig: ServiceConfig,
+                                       meterRegistry: MeterRegistry) {
+
+    private val reader = PageCache.Reader<PersonaResumen>(service::allPersonsSummaryAsync)
+    private val pages = PageCache("persons", PersonaService.GRID, service::isCounted, reader,
+                                  serviceConfig, meterRegistry)
 
-    private var totalElements = 0L
+    fun allPersons(query: GridQuery, page: Int, size: Int, cursor: String?): Page<PersonaResumen>? =
+        allPersonsAsync(query, page, size, cursor).block()
 
-    fun allPersons(apellidoPaterno: String?, activo: Boolean?, page: Int, size: Int): Page<Persona>? {
-        val personsPage = service.allPersons(apellidoPaterno, activo,page, size)
+    fun allPersonsAsync(query: GridQuery, page: Int, size: Int, cursor: String?): Mono<Page<PersonaResumen>> =
+        pages.get(query, page, size, cursor)
 
-        if (page == 0 && personsPage != null)
-            totalElements = service.count(apellidoPaterno, activo)
+    /**
+     * All the persons of the query in chunks (see PageStream)
+     */
+    fun streamPersons(query: GridQuery, chunkSize: Int, maxRows: Int): Flux<List<PersonaResumen>> =
+        stream.chunks(query, chunkSize, maxRows, PersonaService.GRID, reader)
 
-        return personsPage
-    }
+    /**
+     * Must be called when an existing person is saved
+     */
+    fun invalidate(id: String) = pages.invalidate { it._id == id }
 
-    fun getTotalElements() = totalElements
+    /**
+     * Must be called when an existing company is saved, with the names it had and has (see
+     * CompaniesDataProvider.invalidate): the grid shows the company where every person works
+     */
+    fun invalidateCompany(names: Set<String>) = pages.invalidate { it.empresa in names }
+
+    /**
+     * Must be called when a person is added or deleted
+     */
+    fun invalidateAll() = pages.invalidateAll()
+
+    fun nextCursor(personsPage: Page<PersonaResumen>, query: GridQuery) = pages.nextCursor(personsPage, query)
 
     fun count(apellidoPaterno: String, activo: Boolean) = service.count(apellidoPaterno, activo)
-}
\ No newline at end of file
+
+    fun countAsync(apellidoPaterno: String, activo: Boolean) = service.countAsync(apellidoPaterno, activo)
+}
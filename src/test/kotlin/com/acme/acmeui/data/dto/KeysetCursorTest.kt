@@ -0,0 +1,60 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  KeysetCursorTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.dto
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+
+/**
+ * Encoding of the keyset cursor and the cursor of the next page (see KeysetCursor)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class KeysetCursorTest {
+
+    @Test
+    fun `decodes the sort key even if it has the separator`() {
+        val cursor = KeysetCursor("Acme|Norte", "4:abc:12")
+
+        assertThat(KeysetCursor.decode(cursor.encode())).isEqualTo(cursor)
+    }
+
+    @Test
+    fun `rejects a cursor that was not encoded by the server`() {
+        assertThatThrownBy { KeysetCursor.decode("%%%") }.isInstanceOf(IllegalArgumentException::class.java)
+        assertThatThrownBy { KeysetCursor.decode(KeysetCursor("a", "b").encode().drop(2)) }
+            .isInstanceOf(IllegalArgumentException::class.java)
+    }
+
+    @Test
+    fun `the last page does not have next cursor`() {
+        val rows = listOf("1" to "Acme", "2" to "Bimbo")
+
+        assertThat(KeysetCursor.next(rows, 3) { Pair(it.second, it.first) }).isNull()
+        assertThat(KeysetCursor.next(rows, 2) { Pair(it.second, it.first) }?.let { KeysetCursor.decode(it) })
+            .isEqualTo(KeysetCursor("Bimbo", "2"))
+    }
+}
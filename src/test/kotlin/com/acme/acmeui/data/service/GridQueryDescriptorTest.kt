@@ -0,0 +1,98 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GridQueryDescriptorTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.data.dto.GridQuery
+import com.acme.acmeui.data.dto.KeysetCursor
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.boolean
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.contains
+import com.acme.acmeui.data.service.GridQueryDescriptor.Companion.relationship
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+/**
+ * BUP filter, keyset conditions and options of a grid query (see GridQueryDescriptor)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class GridQueryDescriptorTest {
+
+    data class Row(val _id: String, val nombre: String?)
+
+    private val grid = GridQueryDescriptor<Row>(
+                            entity = "renglones",
+                            filters = mapOf("nombre" to contains("nombre"),
+                                            "sector" to relationship("sector", contains("nombre")),
+                                            "activo" to boolean("activo")),
+                            sorts = mapOf("nombre" to Row::nombre),
+                            defaultSort = "nombre",
+                            id = Row::_id)
+
+    @Test
+    fun `joins the filters with AND and ignores the invalid ones`() {
+        assertThat(grid.filter(GridQuery())).isNull()
+        assertThat(grid.filter(GridQuery(mapOf("nombre" to "ac")))).isEqualTo(mapOf("nombre_contains" to "ac"))
+        assertThat(grid.filter(GridQuery(mapOf("activo" to "tal vez", "desconocido" to "x")))).isNull()
+        assertThat(grid.filter(GridQuery(mapOf("sector" to "serv", "activo" to "Sí"))))
+            .isEqualTo(mapOf("AND" to listOf(mapOf("sector" to mapOf("nombre_contains" to "serv")),
+                                             mapOf("activo" to true))))
+    }
+
+    @Test
+    fun `adds the keyset condition of the sort direction`() {
+        val cursor = KeysetCursor("Acme", "7")
+
+        assertThat(grid.filter(GridQuery(), cursor))
+            .isEqualTo(mapOf("OR" to listOf(mapOf("nombre_gt" to "Acme"),
+                                            mapOf("nombre" to "Acme", "_id_gt" to "7"))))
+        assertThat(grid.filter(GridQuery(mapOf("nombre" to "ac"), "nombre", descending = true), cursor))
+            .isEqualTo(mapOf("AND" to listOf(mapOf("nombre_contains" to "ac"),
+                                             mapOf("OR" to listOf(mapOf("nombre_lt" to "Acme"),
+                                                                  mapOf("nombre" to "Acme", "_id_gt" to "7"))))))
+    }
+
+    @Test
+    fun `skips rows just when there is no cursor`() {
+        assertThat(grid.options(GridQuery(sortPath = "otro"), 2, 50, null))
+            .isEqualTo(mapOf("limit" to 50, "sort" to listOf(mapOf("nombre" to "ASC"), mapOf("_id" to "ASC")), "skip" to 100))
+        assertThat(grid.options(GridQuery(), 2, 50, KeysetCursor("Acme", "7"))).doesNotContainKey("skip")
+    }
+
+    @Test
+    fun `a row without sort key does not have next cursor`() {
+        val rows = listOf(Row("1", "Acme"), Row("2", null))
+
+        assertThat(grid.nextCursor(rows, 2, GridQuery())).isNull()
+        assertThat(grid.nextCursor(rows.take(1), 1, GridQuery())).isEqualTo(KeysetCursor("Acme", "1").encode())
+    }
+
+    @Test
+    fun `the estimated total is exact just in the last page`() {
+        assertThat(GridQueryDescriptor.estimatedTotal(2, 10, 4)).isEqualTo(24L)
+        assertThat(GridQueryDescriptor.estimatedTotal(0, 10, 10)).isEqualTo(11L)
+        assertThat(GridQueryDescriptor.isExactTotal(false, List(10) { it }, 10)).isFalse()
+        assertThat(GridQueryDescriptor.isExactTotal(false, List(4) { it }, 10)).isTrue()
+    }
+}
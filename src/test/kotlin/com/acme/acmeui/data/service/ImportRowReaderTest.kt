@@ -0,0 +1,120 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  ImportRowReaderTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * CSV quoting and XLSX shared strings of the bulk import files (see ImportRowReader)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class ImportRowReaderTest {
+
+    @TempDir
+    lateinit var dir: Path
+
+    @Test
+    fun `reads quoted CSV values with separators, quotes and new lines`() {
+        val file = dir.resolve("companias.csv")
+
+        Files.writeString(file, "\uFEFFNombre;R F C;Sector\n" +
+                                "\"Acme; S.A.\";ACM010101AAA;\"Servicios \"\"Pro\"\"\"\n" +
+                                "\"Multi\nLínea\";X;\n" +
+                                ";;\n" +
+                                "Última;Y;Z")
+
+        ImportRowReader.open(file, "companias.csv").use { reader ->
+            val rows = reader.next(10)
+
+            assertThat(rows.map { it.number }).containsExactly(2L, 3L, 6L)
+            assertThat(rows[0].value("nombre")).isEqualTo("Acme; S.A.")
+            assertThat(rows[0].value("rfc")).isEqualTo("ACM010101AAA")
+            assertThat(rows[0].value("sector")).isEqualTo("Servicios \"Pro\"")
+            assertThat(rows[1].value("Nombre")).isEqualTo("Multi\nLínea")
+            assertThat(rows[1].values).doesNotContainKey("sector")
+            assertThat(rows[2].value("sector")).isEqualTo("Z")
+            assertThat(reader.next()).isNull()
+        }
+    }
+
+    @Test
+    fun `reads a CSV separated by commas with CRLF`() {
+        val file = dir.resolve("personas.csv")
+
+        Files.writeString(file, "nombre,apellido_paterno\r\nAna,\"López, Díaz\"\r\n")
+
+        ImportRowReader.open(file, "personas.CSV").use { reader ->
+            val row = reader.next()!!
+
+            assertThat(row.values).isEqualTo(mapOf("nombre" to "Ana", "apellidopaterno" to "López, Díaz"))
+            assertThat(reader.next()).isNull()
+        }
+    }
+
+    @Test
+    fun `reads the XLSX shared strings, inline strings and empty cells`() {
+        val file = dir.resolve("companias.xlsx")
+
+        ZipOutputStream(Files.newOutputStream(file)).use { zip ->
+            zip.putNextEntry(ZipEntry("xl/sharedStrings.xml"))
+            zip.write(("""<?xml version="1.0" encoding="UTF-8"?>
+                <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" count="4" uniqueCount="4">
+                    <si><t>Nombre</t></si>
+                    <si><t>RFC</t></si>
+                    <si><r><t xml:space="preserve">Acme </t></r><r><t>S.A.</t></r></si>
+                    <si><t>ACM010101AAA</t></si>
+                </sst>""").toByteArray())
+            zip.putNextEntry(ZipEntry("xl/worksheets/sheet1.xml"))
+            zip.write(("""<?xml version="1.0" encoding="UTF-8"?>
+                <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main"><sheetData>
+                    <row r="1"><c r="A1" t="s"><v>0</v></c><c r="B1" t="s"><v>1</v></c><c r="C1" t="inlineStr"><is><t>Activo</t></is></c></row>
+                    <row r="3"><c r="A3" t="s"><v>2</v></c><c r="C3" t="b"><v>1</v></c></row>
+                    <row r="4"><c r="B4" t="s"><v>3</v></c><c r="C4"><v>42</v></c></row>
+                </sheetData></worksheet>""").toByteArray())
+        }
+
+        ImportRowReader.open(file, "companias.xlsx").use { reader ->
+            val rows = reader.next(10)
+
+            assertThat(rows.map { it.number }).containsExactly(3L, 4L)
+            assertThat(rows[0].values).isEqualTo(mapOf("nombre" to "Acme S.A.", "activo" to "true"))
+            assertThat(rows[1].values).isEqualTo(mapOf("rfc" to "ACM010101AAA", "activo" to "42"))
+        }
+    }
+
+    @Test
+    fun `rejects other file types`() {
+        assertThatThrownBy { ImportRowReader.open(dir.resolve("datos.xls"), "datos.xls") }
+            .isInstanceOf(IllegalArgumentException::class.java)
+    }
+}
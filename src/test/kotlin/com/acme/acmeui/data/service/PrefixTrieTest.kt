@@ -0,0 +1,71 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  PrefixTrieTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+/**
+ * Type-ahead of the PrefixTrie: words, accents, 'ñ' and prefixes longer than the trie depth
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class PrefixTrieTest {
+    private val trie = PrefixTrie().apply {
+        add("Peña Pobre")
+        add("Lomas de Chapultepec")
+        add("Álvaro Obregón")
+        add("San Juan")
+        add("San")
+        add("Peña Pobre")                   // repeated names are kept once
+    }
+
+    @Test
+    fun `normalizes case, accents and blanks`() {
+        assertThat(PrefixTrie.normalize("  Ñuñoa   ÁLVARO ")).isEqualTo("nunoa alvaro")
+    }
+
+    @Test
+    fun `finds the names by the beginning of any word without accents`() {
+        assertThat(trie.size).isEqualTo(5)
+        assertThat(trie.search("pena", 10)).containsExactly("Peña Pobre")
+        assertThat(trie.search("ALVARO ob", 10)).containsExactly("Álvaro Obregón")
+        assertThat(trie.search("obregon", 10)).containsExactly("Álvaro Obregón")
+        assertThat(trie.search("de cha", 10)).containsExactly("Lomas de Chapultepec")
+        assertThat(trie.search("xyz", 10)).isEmpty()
+    }
+
+    @Test
+    fun `the name that is the prefix comes first and the limit is kept`() {
+        assertThat(trie.search("san", 10)).containsExactly("San", "San Juan")
+        assertThat(trie.search("san", 1)).containsExactly("San")
+    }
+
+    @Test
+    fun `filters the prefixes longer than the trie depth`() {
+        assertThat(trie.search("lomas de chapultepec", 10)).containsExactly("Lomas de Chapultepec")
+        assertThat(trie.search("lomas de chapala", 10)).isEmpty()
+    }
+}
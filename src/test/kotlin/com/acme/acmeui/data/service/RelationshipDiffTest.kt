@@ -0,0 +1,77 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  RelationshipDiffTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.data.service
+
+import com.acme.acmeui.data.dto.Area
+import com.acme.acmeui.data.dto.Telefono
+import com.acme.acmeui.data.dto.TelefonoType
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+/**
+ * Removed, added and kept relationships between the old and the edited version (see RelationshipDiff)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class RelationshipDiffTest {
+
+    @Test
+    fun `matches by id and by content`() {
+        val diff = RelationshipDiff.areas(listOf(Area("1", "Ventas"), Area("2", "Compras")),
+                                          listOf(Area("1", "Ventas"), Area(null, "Sistemas"), Area(null, "Sistemas")))
+
+        assertThat(diff.removed.map { it.idNeo4j }).containsExactly("2")
+        assertThat(diff.added.map { it.nombre }).containsExactly("Sistemas")
+        assertThat(diff.kept.map { it.nombre }).containsExactly("Ventas")
+    }
+
+    @Test
+    fun `an item with the same id and other content is removed and added`() {
+        val old = Telefono("1", "55 1234 5678", "CDMX", TelefonoType.OFICINA)
+        val new = Telefono("1", "55 1234 0000", "CDMX", TelefonoType.OFICINA)
+        val diff = RelationshipDiff.telephones(listOf(old), listOf(new))
+
+        assertThat(diff.removed).containsExactly(old)
+        assertThat(diff.added).containsExactly(new)
+    }
+
+    @Test
+    fun `an item captured again without id is not changed`() {
+        val diff = RelationshipDiff.telephones(listOf(Telefono("1", "55 1234 5678", "CDMX", TelefonoType.CASA)),
+                                               listOf(Telefono(null, "(55)12345678", "CDMX", TelefonoType.CASA)))
+
+        assertThat(diff.isEmpty()).isTrue()
+        assertThat(diff.kept).hasSize(1)
+    }
+
+    @Test
+    fun `null collections are empty`() {
+        val diff = RelationshipDiff.areas(null, listOf(Area(null, "Ventas")))
+
+        assertThat(diff.removed).isEmpty()
+        assertThat(diff.added.map { it.nombre }).containsExactly("Ventas")
+        assertThat(RelationshipDiff.areas(null, null).isEmpty()).isTrue()
+    }
+}
@@ -0,0 +1,101 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  GraphqlDocumentMergerTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+
+/**
+ * Aliasing of the merged operations and the split of the merged response (see GraphqlDocumentMerger)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class GraphqlDocumentMergerTest {
+    private val mapper = ObjectMapper()
+
+    private val getCompany = GraphqlDocument("getCompany", """
+        query getCompany(${'$'}id: ID) {
+            companias(_id:${'$'}id) {
+                _id
+                nombre
+                sector { nombre }
+            }
+        }
+        """.trimIndent())
+    private val allSectors = GraphqlDocument("allSectors", """
+        query allSectors {
+            sectors: sectores { _id nombre }
+        }
+        """.trimIndent())
+
+    @Test
+    fun `renames the variables and aliases just the root fields`() {
+        val merged = GraphqlDocumentMerger.merge(listOf(GraphqlDocumentMerger.Operation(getCompany, mapOf("id" to "7")),
+                                                        GraphqlDocumentMerger.Operation(allSectors, null)))
+
+        assertThat(merged.text).startsWith("query batch(${'$'}b0_id: ID) {")
+                               .contains("b0_companias: companias(_id:${'$'}b0_id)")
+                               .contains("b1_sectors: sectores")
+                               .doesNotContain("b0__id", "b0_nombre", "b0_sector")
+        assertThat(merged.variables).isEqualTo(mapOf("b0_id" to "7"))
+        assertThat(merged.aliases).containsExactly(mapOf("b0_companias" to "companias"),
+                                                   mapOf("b1_sectors" to "sectors"))
+    }
+
+    @Test
+    fun `does not merge queries with mutations nor documents with fragments`() {
+        val mutation = GraphqlDocument("addSector", "mutation(${'$'}nombre: String!) { createSector(nombre:${'$'}nombre) { _id } }")
+        val fragment = GraphqlDocument("withFragment", "query { companias { ...Fields } } fragment Fields on Compania { _id }")
+
+        assertThat(GraphqlDocumentMerger.operationType(mutation)).isEqualTo("mutation")
+        assertThat(GraphqlDocumentMerger.isMergeable(fragment)).isFalse()
+        assertThatThrownBy {
+            GraphqlDocumentMerger.merge(listOf(GraphqlDocumentMerger.Operation(getCompany, null),
+                                               GraphqlDocumentMerger.Operation(mutation, null)))
+        }.isInstanceOf(IllegalArgumentException::class.java)
+    }
+
+    @Test
+    fun `splits the data and the errors of every operation`() {
+        val aliases = listOf(mapOf("b0_companias" to "companias"), mapOf("b1_sectors" to "sectors"))
+        val body = mapper.readTree("""
+            {"data": {"b0_companias": [{"_id": "7"}], "b1_sectors": null},
+             "errors": [{"message": "sin permiso", "path": ["b1_sectors", 0, "nombre"]},
+                        {"message": "documento inválido"}]}
+            """)
+
+        val company = GraphqlDocumentMerger.split(body, aliases[0])
+        val sectors = GraphqlDocumentMerger.split(body, aliases[1])
+
+        assertThat(company.path("data").path("companias").get(0).path("_id").asText()).isEqualTo("7")
+        assertThat(company.path("errors").map { it.path("message").asText() }).containsExactly("documento inválido")
+        assertThat(sectors.path("data").has("sectors")).isTrue()
+        assertThat(sectors.path("errors").map { it.path("message").asText() })
+            .containsExactly("sin permiso", "documento inválido")
+        assertThat(sectors.path("errors").get(0).path("path").map { it.asText() }).containsExactly("sectors", "0", "nombre")
+    }
+}
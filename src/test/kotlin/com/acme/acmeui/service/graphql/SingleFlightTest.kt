@@ -0,0 +1,98 @@
+/* Copyright (c) 2023, LegoSoft Soluciones, S.C.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are not permitted.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ *  SingleFlightTest.kt
+ *
+ *  Developed 2023 by LegoSoftSoluciones, S.C. www.legosoft.com.mx
+ */
+package com.acme.acmeui.service.graphql
+
+import com.acme.acmeui.config.ServiceConfig
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.security.authentication.TestingAuthenticationToken
+import org.springframework.security.core.context.SecurityContextHolder
+import reactor.core.publisher.Mono
+import reactor.core.publisher.Sinks
+import reactor.test.StepVerifier
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Key normalization and the sharing of the calls in flight (see SingleFlight)
+ *
+ * @project acme-ui
+ * @author rlh
+ * @date November 2023
+ */
+class SingleFlightTest {
+    private val singleFlight = SingleFlight(ServiceConfig(), ObjectMapper(), SimpleMeterRegistry())
+
+    @AfterEach
+    fun clearUser() = SecurityContextHolder.clearContext()
+
+    @Test
+    fun `the key does not depend on the order of the variables nor on the null ones`() {
+        val key = singleFlight.key("allSectors",
+                                   linkedMapOf("b" to 1, "a" to mapOf("z" to 1, "y" to 2), "c" to null),
+                                   SingleFlight.Scope.SHARED)
+
+        assertThat(key).startsWith("${SingleFlight.SHARED_PRINCIPAL}|allSectors|")
+                       .isEqualTo(singleFlight.key("allSectors",
+                                                   linkedMapOf("a" to mapOf("y" to 2, "z" to 1), "b" to 1),
+                                                   SingleFlight.Scope.SHARED))
+        assertThat(singleFlight.key("allSectors", null, SingleFlight.Scope.SHARED))
+            .isEqualTo(singleFlight.key("allSectors", mapOf("a" to null), SingleFlight.Scope.SHARED))
+    }
+
+    @Test
+    fun `the user scope is per user and it needs an authenticated user`() {
+        assertThat(singleFlight.key("getCompany", mapOf("id" to "7"))).isNull()
+
+        SecurityContextHolder.getContext().authentication = TestingAuthenticationToken("ana", null)
+        val ana = singleFlight.key("getCompany", mapOf("id" to "7"))
+        SecurityContextHolder.getContext().authentication = TestingAuthenticationToken("luis", null)
+        val luis = singleFlight.key("getCompany", mapOf("id" to "7"))
+
+        assertThat(ana).startsWith("ana|getCompany|")
+        assertThat(luis).startsWith("luis|getCompany|")
+    }
+
+    @Test
+    fun `the calls in flight with the same key share one call`() {
+        val calls = AtomicInteger()
+        val response = Sinks.one<String>()
+        val key = singleFlight.key("allSectors", null, SingleFlight.Scope.SHARED)
+        val call = { calls.incrementAndGet(); response.asMono() }
+
+        val first = singleFlight.execute(key, call).toFuture()
+        val second = singleFlight.execute(key, call).toFuture()
+
+        response.tryEmitValue("sectores")
+        assertThat(first.get()).isEqualTo("sectores")
+        assertThat(second.get()).isEqualTo("sectores")
+        assertThat(calls.get()).isEqualTo(1)
+
+        // after the call ends nothing is kept
+        StepVerifier.create(singleFlight.execute(key) { calls.incrementAndGet(); Mono.error<String>(IllegalStateException()) })
+                    .verifyError(IllegalStateException::class.java)
+        assertThat(calls.get()).isEqualTo(2)
+    }
+}